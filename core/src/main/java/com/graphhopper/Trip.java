@@ -66,12 +66,16 @@ public class Trip {
         public final String route_id;
 
         public PtLeg(String feedId, boolean isInSameVehicleAsPrevious, String tripId, String routeId, List<EdgeIteratorState> edges, Instant departureTime, List<Stop> stops, double distance, long travelTime, Instant arrivalTime, Geometry geometry) {
+            this(feedId, isInSameVehicleAsPrevious, tripId, routeId, edges.get(0).getName(), departureTime, stops, distance, travelTime, arrivalTime, geometry);
+        }
+
+        public PtLeg(String feedId, boolean isInSameVehicleAsPrevious, String tripId, String routeId, String tripHeadsign, Instant departureTime, List<Stop> stops, double distance, long travelTime, Instant arrivalTime, Geometry geometry) {
             super("pt", stops.get(0).stop_name, departureTime, geometry, distance, arrivalTime);
             this.feed_id = feedId;
             this.isInSameVehicleAsPrevious = isInSameVehicleAsPrevious;
             this.trip_id = tripId;
             this.route_id = routeId;
-            this.trip_headsign = edges.get(0).getName();
+            this.trip_headsign = tripHeadsign;
             this.travelTime = travelTime;
             this.stops = stops;
         }
@@ -56,6 +56,10 @@ public class Parameters {
          * round trip algorithm (not yet for CH)
          */
         public static final String ROUND_TRIP = "round_trip";
+        /**
+         * round-based public transit routing on the timetable (only for pt)
+         */
+        public static final String RAPTOR = "raptor";
 
         /**
          * All public properties for alternative routing.
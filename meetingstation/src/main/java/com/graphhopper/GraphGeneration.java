@@ -0,0 +1,157 @@
+/*
+ * Copyright 2017 GraphHopper GmbH.
+ *
+ * All rights reserved.
+ *
+ */
+
+package com.graphhopper;
+
+import com.graphhopper.reader.gtfs.*;
+import com.graphhopper.routing.util.EncodingManager;
+import com.graphhopper.storage.GHDirectory;
+import com.graphhopper.storage.GraphHopperStorage;
+import com.graphhopper.storage.index.LocationIndex;
+
+import java.io.File;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * One loaded graph with everything built on it. The service holds one reference, and every
+ * request holds one while it runs, so that a generation which has been replaced is closed only
+ * once the last request on it is done.
+ */
+class GraphGeneration {
+
+    private final String graphLocation;
+    private final MeetingStationConfiguration configuration;
+    private final AtomicInteger references = new AtomicInteger(1);
+
+    final PtFlagEncoder ptFlagEncoder;
+    final GraphHopperStorage graphHopperStorage;
+    final GtfsStorage gtfsStorage;
+    final LocationIndex locationIndex;
+    final StopTable stopTable;
+    final TripFromLabel tripFromLabel;
+    final StationSearchCache stationSearchCache;
+    private final ServiceDaySlices serviceDaySlices;
+    private final RealtimeFeedUpdater realtimeFeedUpdater;
+
+    private GraphGeneration(MeetingStationConfiguration configuration, String graphLocation) {
+        this.configuration = configuration;
+        this.graphLocation = graphLocation;
+        ptFlagEncoder = new PtFlagEncoder();
+        EncodingManager encodingManager = new EncodingManager(Arrays.asList(ptFlagEncoder), 8);
+        GHDirectory directory = GraphHopperGtfs.createGHDirectory(graphLocation);
+        gtfsStorage = GraphHopperGtfs.createGtfsStorage();
+        graphHopperStorage = GraphHopperGtfs.createOrLoad(directory, encodingManager, ptFlagEncoder, gtfsStorage, false, Collections.singletonList(configuration.getGtfsFile()), Collections.emptyList());
+        locationIndex = GraphHopperGtfs.createOrLoadIndex(directory, graphHopperStorage);
+        stopTable = gtfsStorage.getStopTable("gtfs_0");
+        tripFromLabel = new TripFromLabel(gtfsStorage);
+        stationSearchCache = configuration.getStationCacheLabels() > 0 ?
+                new StationSearchCache(configuration.getStationCacheLabels()) :
+                null;
+        serviceDaySlices = configuration.getServiceDaySlices() > 0 ?
+                ServiceDaySlices.start(graphHopperStorage, ptFlagEncoder, gtfsStorage, configuration.getServiceDaySlices()) :
+                null;
+        realtimeFeedUpdater = new RealtimeFeedUpdater(graphHopperStorage, ptFlagEncoder, gtfsStorage);
+        if (configuration.getRealtimeFeedFile() != null) {
+            // Edge ids are those of this graph, so every generation reads the feed itself.
+            realtimeFeedUpdater.poll(new File(configuration.getRealtimeFeedFile()), Duration.ofSeconds(configuration.getRealtimeFeedPollSeconds()));
+        }
+    }
+
+    /**
+     * Loads the graph at the location, importing the configured GTFS file if there is none yet.
+     */
+    static GraphGeneration load(MeetingStationConfiguration configuration, String graphLocation) {
+        return new GraphGeneration(configuration, graphLocation);
+    }
+
+    /**
+     * Brings the graph at the location up to date with a new GTFS file, which has to be another
+     * version of the one it was built from. Only the changed trips are imported, unless too much has
+     * changed, and then the graph is built again. The location must not be the one being served.
+     */
+    static void update(String graphLocation, String gtfsFile) {
+        final PtFlagEncoder ptFlagEncoder = new PtFlagEncoder();
+        EncodingManager encodingManager = new EncodingManager(Arrays.asList(ptFlagEncoder), 8);
+        GraphHopperGtfs.createOrUpdate(GraphHopperGtfs.createGHDirectory(graphLocation), encodingManager, ptFlagEncoder, gtfsFile).close();
+    }
+
+    String getGraphLocation() {
+        return graphLocation;
+    }
+
+    /**
+     * Builds the timetable routers, which any request may ask for, and runs a short search, so that
+     * the first requests on this generation are as fast as the ones after.
+     */
+    void warmUp() {
+        getConnectionScan();
+        getRaptor();
+        for (int stop = 0; stop < stopTable.size(); stop++) {
+            if (stopTable.getStationNode(stop) != -1) {
+                final MultiCriteriaLabelSetting router = createRouter(new PtTravelTimeWeighting(ptFlagEncoder, 0.0));
+                router.setMaxTravelTime(Duration.ofHours(1).toMillis());
+                router.getLabelStream(stopTable.getStationNode(stop), -1, Instant.now()).count();
+                return;
+            }
+        }
+    }
+
+    RealtimeFeed getRealtimeFeed() {
+        return realtimeFeedUpdater.get();
+    }
+
+    MultiCriteriaLabelSetting createRouter(PtTravelTimeWeighting weighting) {
+        return createRouter(weighting, realtimeFeedUpdater.get());
+    }
+
+    MultiCriteriaLabelSetting createRouter(PtTravelTimeWeighting weighting, RealtimeFeed realtimeFeed) {
+        return new MultiCriteriaLabelSetting(new GraphExplorer(graphHopperStorage, weighting, ptFlagEncoder, gtfsStorage, realtimeFeed, false), weighting, false, Double.MAX_VALUE, Double.MAX_VALUE, false, false, Integer.MAX_VALUE);
+    }
+
+    /**
+     * Both timetable routers share one timetable of the feed, which is built by {@link #warmUp()}
+     * before the generation is served.
+     */
+    ConnectionScan getConnectionScan() {
+        return gtfsStorage.getConnectionScan("gtfs_0");
+    }
+
+    Raptor getRaptor() {
+        return gtfsStorage.getRaptor("gtfs_0");
+    }
+
+    /**
+     * @return false if this generation is already closed, and the caller has to look again
+     */
+    boolean retain() {
+        while (true) {
+            final int n = references.get();
+            if (n == 0) {
+                return false;
+            }
+            if (references.compareAndSet(n, n + 1)) {
+                return true;
+            }
+        }
+    }
+
+    void release() {
+        if (references.decrementAndGet() == 0) {
+            realtimeFeedUpdater.close();
+            if (serviceDaySlices != null) {
+                serviceDaySlices.close();
+            }
+            locationIndex.close();
+            graphHopperStorage.close();
+        }
+    }
+
+}
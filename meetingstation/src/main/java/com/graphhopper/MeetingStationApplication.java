@@ -28,10 +28,11 @@ public class MeetingStationApplication extends Application<MeetingStationConfigu
         environment.getObjectMapper().registerModule(new JavaTimeModule());
         environment.getObjectMapper().registerModule(new JtsModule());
 
-        final MeetingStationService meetingStationService = new MeetingStationService(configuration);
+        final MeetingStationService meetingStationService = new MeetingStationService(configuration, environment.metrics());
         environment.lifecycle().manage(meetingStationService);
         environment.jersey().register(meetingStationService);
 
         environment.healthChecks().register("stations-database", new MeetingStationHealthCheck(meetingStationService));
+        environment.admin().addTask(new ReloadGraphTask(meetingStationService));
     }
 }
@@ -11,6 +11,9 @@ import com.fasterxml.jackson.annotation.JsonProperty;
 import io.dropwizard.Configuration;
 import org.hibernate.validator.constraints.NotEmpty;
 
+import javax.validation.constraints.Min;
+import javax.validation.constraints.NotNull;
+
 public class MeetingStationConfiguration extends Configuration {
 
     @NotEmpty
@@ -19,6 +22,26 @@ public class MeetingStationConfiguration extends Configuration {
     @NotEmpty
     private String gtfsFile;
 
+    @NotNull
+    private MeetingStationService.RoutingAlgorithm algorithm = MeetingStationService.RoutingAlgorithm.MLS;
+
+    @Min(0)
+    private int serviceDaySlices = 0;
+
+    @Min(1)
+    private int maxSourceStations = 10;
+
+    private String realtimeFeedFile;
+
+    @Min(1)
+    private int realtimeFeedPollSeconds = 10;
+
+    @Min(0)
+    private long stationCacheLabels = 1000000;
+
+    @Min(1)
+    private int departureTimeBucketSeconds = 60;
+
     @JsonProperty
     public String getGraphLocation() {
         return graphLocation;
@@ -39,4 +62,74 @@ public class MeetingStationConfiguration extends Configuration {
         this.gtfsFile = gtfsFile;
     }
 
+    @JsonProperty
+    public MeetingStationService.RoutingAlgorithm getAlgorithm() {
+        return algorithm;
+    }
+
+    @JsonProperty
+    public void setAlgorithm(MeetingStationService.RoutingAlgorithm algorithm) {
+        this.algorithm = algorithm;
+    }
+
+    @JsonProperty
+    public int getServiceDaySlices() {
+        return serviceDaySlices;
+    }
+
+    @JsonProperty
+    public void setServiceDaySlices(int serviceDaySlices) {
+        this.serviceDaySlices = serviceDaySlices;
+    }
+
+    @JsonProperty
+    public int getMaxSourceStations() {
+        return maxSourceStations;
+    }
+
+    @JsonProperty
+    public void setMaxSourceStations(int maxSourceStations) {
+        this.maxSourceStations = maxSourceStations;
+    }
+
+    @JsonProperty
+    public String getRealtimeFeedFile() {
+        return realtimeFeedFile;
+    }
+
+    @JsonProperty
+    public void setRealtimeFeedFile(String realtimeFeedFile) {
+        this.realtimeFeedFile = realtimeFeedFile;
+    }
+
+    @JsonProperty
+    public int getRealtimeFeedPollSeconds() {
+        return realtimeFeedPollSeconds;
+    }
+
+    @JsonProperty
+    public void setRealtimeFeedPollSeconds(int realtimeFeedPollSeconds) {
+        this.realtimeFeedPollSeconds = realtimeFeedPollSeconds;
+    }
+
+    @JsonProperty
+    public long getStationCacheLabels() {
+        return stationCacheLabels;
+    }
+
+    @JsonProperty
+    public void setStationCacheLabels(long stationCacheLabels) {
+        this.stationCacheLabels = stationCacheLabels;
+    }
+
+    @JsonProperty
+    public int getDepartureTimeBucketSeconds() {
+        return departureTimeBucketSeconds;
+    }
+
+    @JsonProperty
+    public void setDepartureTimeBucketSeconds(int departureTimeBucketSeconds) {
+        this.departureTimeBucketSeconds = departureTimeBucketSeconds;
+    }
+
 }
@@ -7,56 +7,70 @@
 
 package com.graphhopper;
 
-import com.conveyal.gtfs.GTFSFeed;
+import com.codahale.metrics.Counter;
+import com.codahale.metrics.MetricRegistry;
 import com.conveyal.gtfs.model.Stop;
 import com.graphhopper.reader.gtfs.*;
-import com.graphhopper.routing.util.EncodingManager;
-import com.graphhopper.storage.GHDirectory;
-import com.graphhopper.storage.GraphHopperStorage;
-import com.graphhopper.storage.index.LocationIndex;
 import com.graphhopper.util.Translation;
 import com.graphhopper.util.TranslationMap;
 import io.dropwizard.lifecycle.Managed;
 
 import javax.validation.Valid;
+import javax.validation.constraints.Min;
 import javax.validation.constraints.NotNull;
 import javax.ws.rs.*;
 import javax.ws.rs.core.MediaType;
+import java.io.File;
 import java.time.Duration;
 import java.time.Instant;
 import java.util.*;
-import java.util.function.Predicate;
-import java.util.function.Supplier;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
 import java.util.stream.Collectors;
+import java.util.stream.Stream;
 
 @Path("stations")
 @Produces(MediaType.APPLICATION_JSON)
 @Consumes(MediaType.APPLICATION_JSON)
 public class MeetingStationService implements Managed {
 
+    static final Duration TIMETABLE_HORIZON = Duration.ofDays(1);
+
     private final MeetingStationConfiguration configuration;
+    private final Counter stationCacheHits;
+    private final Counter stationCacheMisses;
 
-    private PtFlagEncoder ptFlagEncoder;
-    private Map<Integer, String> stopNodes;
-    private GraphHopperStorage graphHopperStorage;
-    private GtfsStorage gtfsStorage;
-    private LocationIndex locationIndex;
-    private TripFromLabel tripFromLabel;
+    private final AtomicReference<GraphGeneration> generation = new AtomicReference<>();
+    private final Object reloadLock = new Object();
     private TranslationMap translationMap;
+    private ExecutorService searchPool;
 
-    MeetingStationService(MeetingStationConfiguration configuration) {
+    MeetingStationService(MeetingStationConfiguration configuration, MetricRegistry metrics) {
         this.configuration = configuration;
+        this.stationCacheHits = metrics.counter(MetricRegistry.name(MeetingStationService.class, "stationCache", "hits"));
+        this.stationCacheMisses = metrics.counter(MetricRegistry.name(MeetingStationService.class, "stationCache", "misses"));
     }
 
     @GET
     public Collection<Stop> getStations() {
-        return gtfsStorage.getGtfsFeeds().get("gtfs_0").stops.values();
+        final GraphGeneration g = acquire();
+        try {
+            return g.stopTable.getStops();
+        } finally {
+            g.release();
+        }
     }
 
     static class StopWithMeetingStationLabel {
         public Stop stop;
         public MeetingStationLabel label;
         public Trip plan;
+        /**
+         * For requests with a departure window: the earliest arrival for every time within the
+         * window, as the Pareto set of departure and arrival, by departure time.
+         */
+        public List<MeetingStationLabel> profile;
 
         public StopWithMeetingStationLabel(Stop stop, MeetingStationLabel label, Trip plan) {
             this.stop = stop;
@@ -75,82 +89,481 @@ public class MeetingStationService implements Managed {
         }
     }
 
+    /**
+     * How station queries are answered. CSA and RAPTOR scan the timetable instead of the graph and
+     * only know arrival times, so requests which include plans are always answered by MLS. They also
+     * only look {@link #TIMETABLE_HORIZON} ahead, where MLS would go on to stations which are reached
+     * days later. They answer from the schedule alone, only MLS applies the realtime feed.
+     */
+    enum RoutingAlgorithm {
+        MLS, CSA, RAPTOR
+    }
+
     static class StationRequest {
         public @NotNull Stop sourceStation;
         public Collection<Stop> targetStations;
         public Instant departureTime = Instant.now();
+        /**
+         * If set, departures from departureTime up to this one are considered, and every station
+         * comes with its profile. Always answered by RAPTOR, on the schedule without realtime updates.
+         */
+        public Instant latestDepartureTime;
+        /**
+         * If set, only stations reached within this time after departureTime are returned, and
+         * the search goes no further.
+         */
+        public Duration maxTravelTime;
+        /**
+         * If set, only stations reached with at most this many changes of vehicle are returned.
+         */
+        public @Min(0) Integer maxTransfers;
         public boolean includePlans = false;
+        public RoutingAlgorithm algorithm;
+    }
+
+    enum MeetingCriterion {
+        MAX, SUM
+    }
+
+    static class MeetingRequest {
+        public @NotNull Collection<Stop> sourceStations;
+        public Instant departureTime = Instant.now();
+        public MeetingCriterion criterion = MeetingCriterion.MAX;
+        public int limit = 10;
+    }
+
+    static class MeetingPoint {
+        public Stop stop;
+        public List<MeetingStationLabel> labels;
+        public Duration maxTravelTime;
+        public Duration sumTravelTime;
+
+        public MeetingPoint(Stop stop, List<MeetingStationLabel> labels, Duration maxTravelTime, Duration sumTravelTime) {
+            this.stop = stop;
+            this.labels = labels;
+            this.maxTravelTime = maxTravelTime;
+            this.sumTravelTime = sumTravelTime;
+        }
+    }
+
+    /**
+     * Earliest arrival of every participant at one station, filled in concurrently by the
+     * per-participant searches.
+     */
+    private static class MeetingCandidate {
+        final long[] arrivalTimes;
+        int nReached = 0;
+
+        MeetingCandidate(int nParticipants) {
+            arrivalTimes = new long[nParticipants];
+        }
     }
 
     @POST
     public List<StopWithMeetingStationLabel> getStations(@Valid StationRequest request) {
-        final GTFSFeed db = gtfsStorage.getGtfsFeeds().get("gtfs_0");
+        final GraphGeneration g = acquire();
+        try {
+            return findStations(g, request);
+        } finally {
+            g.release();
+        }
+    }
 
-        final Predicate<? super StopWithMeetingStationLabel> filter;
+    private List<StopWithMeetingStationLabel> findStations(GraphGeneration g, StationRequest request) {
+        if (request.latestDepartureTime != null) {
+            return getStationProfiles(g, request);
+        }
+        final RoutingAlgorithm algorithm = request.algorithm != null ? request.algorithm : configuration.getAlgorithm();
+        if (algorithm != RoutingAlgorithm.MLS && !request.includePlans) {
+            return getStationsOnTimetable(g, request, algorithm);
+        }
+        if (g.stationSearchCache != null) {
+            return getStationsFromCache(g, request);
+        }
+        final BitSet targetStops;
         if (request.targetStations != null) {
-            final Set<String> targetIds = request.targetStations.stream().map(targetStation -> targetStation.stop_id).collect(Collectors.toSet());
-            filter = label -> targetIds.contains(label.stop.stop_id);
+            targetStops = new BitSet();
+            for (Stop targetStation : request.targetStations) {
+                final int stop = g.stopTable.getStopIndex(targetStation.stop_id);
+                // Stops without a station node are never reached, so we don't wait for them.
+                if (stop != StopTable.NO_STOP && g.stopTable.getStationNode(stop) != -1) {
+                    targetStops.set(stop);
+                }
+            }
         } else {
-            filter = label -> true;
+            targetStops = null;
+        }
+        final int stationNode = findStationNode(g, request.sourceStation);
+        final PtTravelTimeWeighting weighting = new PtTravelTimeWeighting(g.ptFlagEncoder, 0.0);
+        final List<Label> settled = searchTargets(g, g.getRealtimeFeed(), weighting, stationNode, request.departureTime.toEpochMilli(),
+                request.maxTravelTime != null ? request.maxTravelTime.toMillis() : Long.MAX_VALUE,
+                request.maxTransfers != null ? request.maxTransfers : Integer.MAX_VALUE,
+                targetStops);
+
+        return createResponse(g, request, weighting, settled);
+    }
+
+    /**
+     * The stations reached from the source, in the order they are settled. With targetStops, only
+     * those, and the search stops once it has settled all of them.
+     */
+    private List<Label> searchTargets(GraphGeneration g, RealtimeFeed realtimeFeed, PtTravelTimeWeighting weighting, int stationNode, long departureTime, long maxTravelTime, int maxTransfers, BitSet targetStops) {
+        final MultiCriteriaLabelSetting router = g.createRouter(weighting, realtimeFeed);
+        router.setMaxTravelTime(maxTravelTime);
+        router.setMaxTransfers(maxTransfers);
+        final BitSet unvisitedTargets = new BitSet();
+        if (targetStops != null) {
+            unvisitedTargets.or(targetStops);
         }
+        // With a transfer cap, a station can be settled again with fewer transfers but later.
+        final Set<Integer> settledStationNodes = new HashSet<>();
+        final List<Label> settled = new ArrayList<>();
+        try (Stream<Label> labels = router.getLabelStream(stationNode, -1, Instant.ofEpochMilli(departureTime))) {
+            final Iterator<Label> labelStream = labels
+                    .filter(label -> g.stopTable.getStopOfNode(label.node) != StopTable.NO_STOP)
+                    .filter(label -> settledStationNodes.add(label.node))
+                    .filter(label -> targetStops == null || targetStops.get(g.stopTable.getStopOfNode(label.node)))
+                    .iterator();
+            while (labelStream.hasNext() && (targetStops == null || !unvisitedTargets.isEmpty())) {
+                final Label label = labelStream.next();
+                unvisitedTargets.clear(g.stopTable.getStopOfNode(label.node));
+                settled.add(label);
+            }
+        }
+        return settled;
+    }
 
-        Set<String> visitedNodes = new HashSet<>();
-        final Supplier<Boolean> goOn;
+    /**
+     * Answers from all stations reached from the source, which are searched once and then kept for
+     * other targets and for plans. The search starts at the departure time rounded down to the
+     * bucket, so requests a little apart share one search, and goes as much further as the bucket
+     * starts earlier. For each station it settles the earliest arrival, which is also the earliest
+     * from the departure time unless it boards before that. Only the stations where it does are
+     * searched again from the exact departure time, and that search is not kept.
+     * Requests which come in while a search is running wait for it instead of searching too.
+     */
+    private List<StopWithMeetingStationLabel> getStationsFromCache(GraphGeneration g, StationRequest request) {
+        final int stationNode = findStationNode(g, request.sourceStation);
+        final long bucket = TimeUnit.SECONDS.toMillis(configuration.getDepartureTimeBucketSeconds());
+        final long departureTime = request.departureTime.toEpochMilli();
+        final long bucketStart = Math.floorDiv(departureTime, bucket) * bucket;
+        final long maxTravelTime = request.maxTravelTime != null ? request.maxTravelTime.toMillis() : Long.MAX_VALUE;
+        final long bucketMaxTravelTime = maxTravelTime == Long.MAX_VALUE ? Long.MAX_VALUE : maxTravelTime + (departureTime - bucketStart);
+        final PtTravelTimeWeighting weighting = new PtTravelTimeWeighting(g.ptFlagEncoder, 0.0);
+        final RealtimeFeed realtimeFeed = g.getRealtimeFeed();
+        final int maxTransfers = request.maxTransfers != null ? request.maxTransfers : Integer.MAX_VALUE;
+        final StationSearchCache.Key key = new StationSearchCache.Key(stationNode, bucketStart, maxTransfers);
+        final boolean[] searched = {false};
+        final List<Label> settled = g.stationSearchCache.get(realtimeFeed, key, bucketMaxTravelTime, () -> {
+            searched[0] = true;
+            return searchTargets(g, realtimeFeed, weighting, stationNode, bucketStart, bucketMaxTravelTime, maxTransfers, null);
+        });
+        (searched[0] ? stationCacheMisses : stationCacheHits).inc();
+        final BitSet targetStops = new BitSet();
         if (request.targetStations != null) {
-            final Set<String> targetStations = request.targetStations.stream().map(targetStation -> targetStation.stop_id).collect(Collectors.toSet());
-            goOn = () -> !visitedNodes.containsAll(targetStations);
-        } else {
-            goOn = () -> true;
+            for (Stop targetStation : request.targetStations) {
+                final int stop = g.stopTable.getStopIndex(targetStation.stop_id);
+                if (stop != StopTable.NO_STOP) {
+                    targetStops.set(stop);
+                }
+            }
+        }
+        final List<Label> result = new ArrayList<>();
+        final BitSet boardedTooEarly = new BitSet();
+        for (Label label : settled) {
+            final int stop = g.stopTable.getStopOfNode(label.node);
+            if (request.targetStations != null && !targetStops.get(stop)) {
+                continue;
+            }
+            if (label.nTransfers > 0 && label.departureTime < departureTime) {
+                boardedTooEarly.set(stop);
+            } else if (label.currentTime - departureTime <= maxTravelTime) {
+                result.add(label);
+            }
         }
-        final Integer stationNode = gtfsStorage.getStationNodes().get(request.sourceStation.stop_id);
-        if (stationNode == null) {
-            throw new BadRequestException(String.format("station id %s not found", request.sourceStation.stop_id));
+        if (!boardedTooEarly.isEmpty()) {
+            result.addAll(searchTargets(g, realtimeFeed, weighting, stationNode, departureTime, maxTravelTime, maxTransfers, boardedTooEarly));
+            result.sort(Comparator.comparingLong(label -> label.currentTime));
         }
-        final PtTravelTimeWeighting weighting = new PtTravelTimeWeighting(ptFlagEncoder, 0.0);
+        return createResponse(g, request, weighting, result);
+    }
+
+    private List<StopWithMeetingStationLabel> createResponse(GraphGeneration g, StationRequest request, PtTravelTimeWeighting weighting, List<Label> settled) {
         final Translation tr = translationMap.getWithFallBack(Locale.GERMAN);
-        final MultiCriteriaLabelSetting router = new MultiCriteriaLabelSetting(new GraphExplorer(graphHopperStorage, weighting, ptFlagEncoder, gtfsStorage, RealtimeFeed.empty(), false), weighting, false, Double.MAX_VALUE, Double.MAX_VALUE, false, false, Integer.MAX_VALUE);
-        final Iterator<StopWithMeetingStationLabel> labelStream = router.getLabelStream(stationNode, -1, request.departureTime)
-                .filter(label -> stopNodes.containsKey(label.node))
-                .map(label -> new StopWithMeetingStationLabel(
-                        db.stops.get(stopNodes.get(label.node)),
-                        new MeetingStationLabel(Instant.ofEpochMilli(
-                                label.currentTime),
-                                label.nTransfers > 0 ?
-                                        Duration.between(Instant.ofEpochMilli(label.departureTime), Instant.ofEpochMilli(label.currentTime)) :
-                                        Duration.ZERO),
-                        request.includePlans ?
-                                new Trip(tripFromLabel.getTrip(false, ptFlagEncoder, tr, graphHopperStorage, weighting, label)) :
-                                null))
-                .filter(filter)
-                .iterator();
-        List<StopWithMeetingStationLabel> response = new ArrayList<>();
-        while (labelStream.hasNext() && goOn.get()) {
-            final StopWithMeetingStationLabel label = labelStream.next();
-            visitedNodes.add(label.stop.stop_id);
-            response.add(label);
+        // Plans are only built for the stations returned, all at once, sharing common prefixes.
+        final List<List<Trip.Leg>> plans = request.includePlans ?
+                g.tripFromLabel.getTrips(g.ptFlagEncoder, tr, g.graphHopperStorage, weighting, settled) :
+                null;
+        final List<StopWithMeetingStationLabel> response = new ArrayList<>();
+        for (int i = 0; i < settled.size(); i++) {
+            final Label label = settled.get(i);
+            response.add(new StopWithMeetingStationLabel(
+                    g.stopTable.getStop(g.stopTable.getStopOfNode(label.node)),
+                    new MeetingStationLabel(
+                            // Without boarding, we are still at the source when we ask.
+                            label.nTransfers > 0 ? Instant.ofEpochMilli(label.currentTime) : request.departureTime,
+                            label.nTransfers > 0 ?
+                                    Duration.between(Instant.ofEpochMilli(label.departureTime), Instant.ofEpochMilli(label.currentTime)) :
+                                    Duration.ZERO),
+                    request.includePlans ? new Trip(plans.get(i)) : null));
         }
         return response;
     }
 
-    @Override
-    public void start() throws Exception {
-        ptFlagEncoder = new PtFlagEncoder();
-        EncodingManager encodingManager = new EncodingManager(Arrays.asList(ptFlagEncoder), 8);
-        GHDirectory directory = GraphHopperGtfs.createGHDirectory(configuration.getGraphLocation());
-        gtfsStorage = GraphHopperGtfs.createGtfsStorage();
-        graphHopperStorage = GraphHopperGtfs.createOrLoad(directory, encodingManager, ptFlagEncoder, gtfsStorage, false, Collections.singletonList(configuration.getGtfsFile()), Collections.emptyList());
-        locationIndex = GraphHopperGtfs.createOrLoadIndex(directory, graphHopperStorage);
-        stopNodes = gtfsStorage.getStationNodes().entrySet()
+    private List<StopWithMeetingStationLabel> getStationsOnTimetable(GraphGeneration g, StationRequest request, RoutingAlgorithm algorithm) {
+        findStationNode(g, request.sourceStation); // same error for unknown stations as with MLS
+        final Set<String> targetIds = request.targetStations != null ?
+                request.targetStations.stream().map(targetStation -> targetStation.stop_id).collect(Collectors.toSet()) :
+                null;
+        final Duration horizon = request.maxTravelTime != null && request.maxTravelTime.compareTo(TIMETABLE_HORIZON) < 0 ?
+                request.maxTravelTime :
+                TIMETABLE_HORIZON;
+        final Stream<StopWithMeetingStationLabel> labels;
+        // CSA has no notion of rounds, so a transfer cap needs RAPTOR.
+        if (algorithm == RoutingAlgorithm.CSA && request.maxTransfers == null) {
+            labels = g.getConnectionScan().route(request.sourceStation.stop_id, request.departureTime, horizon, targetIds)
+                    .stream()
+                    .map(arrival -> new StopWithMeetingStationLabel(g.stopTable.getStop(g.stopTable.getStopIndex(arrival.stopId)), createLabel(arrival.arrivalTime, arrival.departureTime), null));
+        } else {
+            // The Pareto set per stop is sorted by arrival time, so the first one is the earliest.
+            final Set<String> reached = new HashSet<>();
+            final int maxTrips = request.maxTransfers != null ? request.maxTransfers + 1 : Integer.MAX_VALUE;
+            labels = g.getRaptor().route(request.sourceStation.stop_id, request.departureTime, horizon, maxTrips)
+                    .stream()
+                    .filter(arrival -> reached.add(arrival.stopId))
+                    .map(arrival -> new StopWithMeetingStationLabel(g.stopTable.getStop(g.stopTable.getStopIndex(arrival.stopId)), createLabel(arrival.arrivalTime, arrival.departureTime), null));
+        }
+        return labels
+                .filter(label -> request.maxTravelTime == null || !label.label.arrivalTime.isAfter(request.departureTime.plus(request.maxTravelTime)))
+                .filter(label -> g.gtfsStorage.getStationNode(label.stop.stop_id) != -1)
+                .filter(label -> targetIds == null || targetIds.contains(label.stop.stop_id))
+                .collect(Collectors.toList());
+    }
+
+    /**
+     * One search over the whole departure window instead of one per departure time. The label of a
+     * station is its earliest arrival, the first entry of its profile. The source station is not
+     * included.
+     */
+    private List<StopWithMeetingStationLabel> getStationProfiles(GraphGeneration g, StationRequest request) {
+        if (request.includePlans) {
+            throw new BadRequestException("includePlans is not supported with latestDepartureTime");
+        }
+        if (request.maxTravelTime != null || request.maxTransfers != null) {
+            throw new BadRequestException("maxTravelTime and maxTransfers are not supported with latestDepartureTime");
+        }
+        if (request.latestDepartureTime.isBefore(request.departureTime)) {
+            throw new BadRequestException("latestDepartureTime must not be before departureTime");
+        }
+        findStationNode(g, request.sourceStation); // same error for unknown stations as with MLS
+        final Set<String> targetIds = request.targetStations != null ?
+                request.targetStations.stream().map(targetStation -> targetStation.stop_id).collect(Collectors.toSet()) :
+                null;
+        final Map<String, List<MeetingStationLabel>> profiles = new HashMap<>();
+        g.getRaptor().profile(request.sourceStation.stop_id, request.departureTime, request.latestDepartureTime, TIMETABLE_HORIZON)
                 .stream()
-                .collect(Collectors.toMap(Map.Entry::getValue, Map.Entry::getKey));
+                .filter(arrival -> g.gtfsStorage.getStationNode(arrival.stopId) != -1)
+                .filter(arrival -> targetIds == null || targetIds.contains(arrival.stopId))
+                .forEach(arrival -> profiles.computeIfAbsent(arrival.stopId, stopId -> new ArrayList<>())
+                        .add(createLabel(arrival.arrivalTime, arrival.departureTime)));
+        return profiles.entrySet().stream()
+                .map(profile -> {
+                    StopWithMeetingStationLabel station = new StopWithMeetingStationLabel(g.stopTable.getStop(g.stopTable.getStopIndex(profile.getKey())), profile.getValue().get(0), null);
+                    station.profile = profile.getValue();
+                    return station;
+                })
+                .sorted(Comparator.comparing(station -> station.label.arrivalTime))
+                .collect(Collectors.toList());
+    }
+
+    private MeetingStationLabel createLabel(long arrivalTime, Long departureTime) {
+        return new MeetingStationLabel(Instant.ofEpochMilli(arrivalTime),
+                departureTime != null ?
+                        Duration.ofMillis(arrivalTime - departureTime) :
+                        Duration.ZERO);
+    }
+
+    /**
+     * Finds the stations where all participants can meet soonest. One search per participant runs
+     * on its own thread. A search stops as soon as its own travel time exceeds the score of the
+     * limit-th best station reached by everybody, because no station it has yet to reach can then
+     * make it into the result.
+     */
+    @POST
+    @Path("meeting")
+    public List<MeetingPoint> getMeetingPoints(@Valid MeetingRequest request) {
+        final GraphGeneration g = acquire();
+        try {
+            return findMeetingPoints(g, request);
+        } finally {
+            g.release();
+        }
+    }
+
+    private List<MeetingPoint> findMeetingPoints(GraphGeneration g, MeetingRequest request) {
+        final List<Stop> sourceStations = new ArrayList<>(request.sourceStations);
+        if (sourceStations.isEmpty()) {
+            throw new BadRequestException("at least one source station is required");
+        }
+        // Every source station is a search over the whole network on the shared pool.
+        if (sourceStations.size() > configuration.getMaxSourceStations()) {
+            throw new BadRequestException(String.format("at most %d source stations are allowed", configuration.getMaxSourceStations()));
+        }
+        if (request.limit <= 0) {
+            throw new BadRequestException("limit must be positive");
+        }
+        final int[] sourceNodes = sourceStations.stream().mapToInt(station -> findStationNode(g, station)).toArray();
+        final int nParticipants = sourceNodes.length;
+        final long departureTime = request.departureTime.toEpochMilli();
+
+        final Map<Integer, MeetingCandidate> candidates = new ConcurrentHashMap<>();
+        final PriorityQueue<Long> bestScores = new PriorityQueue<>(Comparator.reverseOrder());
+        final AtomicLong bound = new AtomicLong(Long.MAX_VALUE);
+
+        final List<Callable<Void>> searches = new ArrayList<>();
+        for (int i = 0; i < nParticipants; i++) {
+            final int participant = i;
+            searches.add(() -> {
+                final PtTravelTimeWeighting weighting = new PtTravelTimeWeighting(g.ptFlagEncoder, 0.0);
+                // Stopping at the bound leaves the search unfinished, closing it lets go of its labels.
+                try (Stream<Label> labelStream = g.createRouter(weighting).getLabelStream(sourceNodes[participant], -1, request.departureTime)) {
+                    final Iterator<Label> labels = labelStream.iterator();
+                    while (labels.hasNext()) {
+                        final Label label = labels.next();
+                        if (label.currentTime - departureTime > bound.get()) {
+                            break;
+                        }
+                        if (g.stopTable.getStopOfNode(label.node) == StopTable.NO_STOP) {
+                            continue;
+                        }
+                        final MeetingCandidate candidate = candidates.computeIfAbsent(label.node, node -> new MeetingCandidate(nParticipants));
+                        final long score;
+                        synchronized (candidate) {
+                            if (candidate.arrivalTimes[participant] != 0) {
+                                continue;
+                            }
+                            candidate.arrivalTimes[participant] = label.currentTime;
+                            if (++candidate.nReached < nParticipants) {
+                                continue;
+                            }
+                            score = score(request.criterion, candidate.arrivalTimes, departureTime);
+                        }
+                        synchronized (bestScores) {
+                            bestScores.add(score);
+                            if (bestScores.size() > request.limit) {
+                                bestScores.poll();
+                            }
+                            if (bestScores.size() == request.limit) {
+                                bound.set(bestScores.peek());
+                            }
+                        }
+                    }
+                }
+                return null;
+            });
+        }
+        try {
+            for (Future<Void> search : searchPool.invokeAll(searches)) {
+                search.get();
+            }
+        } catch (InterruptedException | ExecutionException e) {
+            throw new RuntimeException(e);
+        }
 
-        tripFromLabel = new TripFromLabel(gtfsStorage);
+        return candidates.entrySet().stream()
+                .filter(e -> e.getValue().nReached == nParticipants)
+                .sorted(Comparator.comparingLong(e -> score(request.criterion, e.getValue().arrivalTimes, departureTime)))
+                .limit(request.limit)
+                .map(e -> {
+                    final long[] arrivalTimes = e.getValue().arrivalTimes;
+                    final List<MeetingStationLabel> labels = new ArrayList<>();
+                    for (long arrivalTime : arrivalTimes) {
+                        labels.add(new MeetingStationLabel(Instant.ofEpochMilli(arrivalTime), Duration.ofMillis(arrivalTime - departureTime)));
+                    }
+                    return new MeetingPoint(g.stopTable.getStop(g.stopTable.getStopOfNode(e.getKey())), labels,
+                            Duration.ofMillis(score(MeetingCriterion.MAX, arrivalTimes, departureTime)),
+                            Duration.ofMillis(score(MeetingCriterion.SUM, arrivalTimes, departureTime)));
+                })
+                .collect(Collectors.toList());
+    }
+
+    private static long score(MeetingCriterion criterion, long[] arrivalTimes, long departureTime) {
+        long score = 0;
+        for (long arrivalTime : arrivalTimes) {
+            if (criterion == MeetingCriterion.MAX) {
+                score = Math.max(score, arrivalTime - departureTime);
+            } else {
+                score += arrivalTime - departureTime;
+            }
+        }
+        return score;
+    }
+
+    private int findStationNode(GraphGeneration g, Stop station) {
+        final int stationNode = g.gtfsStorage.getStationNode(station.stop_id);
+        if (stationNode == -1) {
+            throw new BadRequestException(String.format("station id %s not found", station.stop_id));
+        }
+        return stationNode;
+    }
+
+    /**
+     * The current generation, retained for the caller, who has to release it. If it is swapped
+     * out and closed between looking and retaining, we look again.
+     */
+    GraphGeneration acquire() {
+        while (true) {
+            final GraphGeneration result = generation.get();
+            if (result.retain()) {
+                return result;
+            }
+        }
+    }
+
+    /**
+     * Loads and warms up the graph at the location next to the one being served, then swaps it in.
+     * Requests which are running finish on the old graph, which is closed after the last of them.
+     * The location must not be the one currently served, as its files are still in use.
+     *
+     * @param gtfsFile if not null, the graph at the location is first updated to this feed
+     */
+    void reload(String graphLocation, String gtfsFile) {
+        synchronized (reloadLock) {
+            if (new File(graphLocation).getAbsoluteFile().equals(new File(getGraphLocation()).getAbsoluteFile())) {
+                throw new IllegalArgumentException("Cannot reload " + graphLocation + " while serving it.");
+            }
+            if (gtfsFile != null) {
+                GraphGeneration.update(graphLocation, gtfsFile);
+            }
+            final GraphGeneration next = GraphGeneration.load(configuration, graphLocation);
+            try {
+                next.warmUp();
+            } catch (RuntimeException e) {
+                next.release();
+                throw e;
+            }
+            generation.getAndSet(next).release();
+        }
+    }
+
+    String getGraphLocation() {
+        return generation.get().getGraphLocation();
+    }
+
+    @Override
+    public void start() throws Exception {
         translationMap = GraphHopperGtfs.createTranslationMap();
+        searchPool = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors());
+        final GraphGeneration first = GraphGeneration.load(configuration, configuration.getGraphLocation());
+        first.warmUp();
+        generation.set(first);
     }
 
     @Override
     public void stop() throws Exception {
-        locationIndex.close();
-        graphHopperStorage.close();
+        searchPool.shutdownNow();
+        synchronized (reloadLock) {
+            generation.get().release();
+        }
     }
 }
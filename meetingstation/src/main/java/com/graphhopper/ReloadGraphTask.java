@@ -0,0 +1,41 @@
+/*
+ * Copyright 2017 GraphHopper GmbH.
+ *
+ * All rights reserved.
+ *
+ */
+
+package com.graphhopper;
+
+import com.google.common.collect.ImmutableMultimap;
+import io.dropwizard.servlets.tasks.Task;
+
+import java.io.PrintWriter;
+import java.util.Collection;
+
+/**
+ * POST /tasks/reload-graph?graphLocation=... on the admin port switches to another graph-db
+ * without a restart. The location is required and must not be the one being served. With
+ * gtfsFile=..., the graph-db is first updated to that feed, importing only the trips which changed.
+ */
+public class ReloadGraphTask extends Task {
+
+    private final MeetingStationService meetingStationService;
+
+    public ReloadGraphTask(MeetingStationService meetingStationService) {
+        super("reload-graph");
+        this.meetingStationService = meetingStationService;
+    }
+
+    @Override
+    public void execute(ImmutableMultimap<String, String> parameters, PrintWriter output) throws Exception {
+        final Collection<String> graphLocations = parameters.get("graphLocation");
+        if (graphLocations.isEmpty()) {
+            throw new IllegalArgumentException("graphLocation is required");
+        }
+        final Collection<String> gtfsFiles = parameters.get("gtfsFile");
+        meetingStationService.reload(graphLocations.iterator().next(), gtfsFiles.isEmpty() ? null : gtfsFiles.iterator().next());
+        output.println("Serving " + meetingStationService.getGraphLocation());
+    }
+
+}
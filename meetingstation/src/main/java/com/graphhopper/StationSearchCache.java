@@ -0,0 +1,181 @@
+/*
+ * Copyright 2017 GraphHopper GmbH.
+ *
+ * All rights reserved.
+ *
+ */
+
+package com.graphhopper;
+
+import com.graphhopper.reader.gtfs.Label;
+import com.graphhopper.reader.gtfs.RealtimeFeed;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.function.Supplier;
+
+/**
+ * The stations reached from a source station, with their labels, for recently searched departure
+ * times. Entries are evicted least recently used first once they hold more than maxLabels labels
+ * together. One cache belongs to one generation, and a new realtime feed empties it.
+ * <p>
+ * A search which is asked for while it is running is not started again, the caller waits for the
+ * running one instead. This also holds if the cache keeps nothing.
+ */
+class StationSearchCache {
+
+    static class Key {
+        final int stationNode;
+        final long departureTime;
+        final int maxTransfers;
+
+        Key(int stationNode, long departureTime, int maxTransfers) {
+            this.stationNode = stationNode;
+            this.departureTime = departureTime;
+            this.maxTransfers = maxTransfers;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (o == null || getClass() != o.getClass()) return false;
+            Key key = (Key) o;
+            return stationNode == key.stationNode && departureTime == key.departureTime && maxTransfers == key.maxTransfers;
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * (31 * stationNode + Long.hashCode(departureTime)) + maxTransfers;
+        }
+    }
+
+    private static class Entry {
+        final List<Label> settled;
+        final long maxTravelTime;
+
+        Entry(List<Label> settled, long maxTravelTime) {
+            this.settled = settled;
+            this.maxTravelTime = maxTravelTime;
+        }
+    }
+
+    private static class Search {
+        final CompletableFuture<List<Label>> settled = new CompletableFuture<>();
+        final long maxTravelTime;
+
+        Search(long maxTravelTime) {
+            this.maxTravelTime = maxTravelTime;
+        }
+    }
+
+    private final long maxLabels;
+    private final LinkedHashMap<Key, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+    private final Map<Key, Search> running = new HashMap<>();
+    private RealtimeFeed realtimeFeed;
+    private long labels = 0;
+
+    StationSearchCache(long maxLabels) {
+        this.maxLabels = maxLabels;
+    }
+
+    /**
+     * @return the stations settled by a search which went at least maxTravelTime far, in the order
+     * they were settled, or null
+     */
+    private List<Label> getCached(RealtimeFeed realtimeFeed, Key key, long maxTravelTime) {
+        switchTo(realtimeFeed);
+        final Entry entry = entries.get(key);
+        return entry != null && entry.maxTravelTime >= maxTravelTime ? entry.settled : null;
+    }
+
+    /**
+     * The stations settled by a search which went at least maxTravelTime far, from the cache, from
+     * a search which is running, or from the search we run ourselves if there is neither.
+     */
+    List<Label> get(RealtimeFeed realtimeFeed, Key key, long maxTravelTime, Supplier<List<Label>> searcher) {
+        final Search search;
+        final boolean ours;
+        synchronized (this) {
+            final List<Label> cached = getCached(realtimeFeed, key, maxTravelTime);
+            if (cached != null) {
+                return cached;
+            }
+            final Search theirs = running.get(key);
+            ours = theirs == null || theirs.maxTravelTime < maxTravelTime;
+            if (ours) {
+                search = new Search(maxTravelTime);
+                running.put(key, search);
+            } else {
+                search = theirs;
+            }
+        }
+        if (!ours) {
+            return join(search);
+        }
+        try {
+            final List<Label> settled = searcher.get();
+            synchronized (this) {
+                running.remove(key, search);
+                put(realtimeFeed, key, maxTravelTime, settled);
+            }
+            search.settled.complete(settled);
+            return settled;
+        } catch (RuntimeException | Error e) {
+            synchronized (this) {
+                running.remove(key, search);
+            }
+            search.settled.completeExceptionally(e);
+            throw e;
+        }
+    }
+
+    private static List<Label> join(Search search) {
+        try {
+            return search.settled.join();
+        } catch (CompletionException e) {
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw e;
+        }
+    }
+
+    private void put(RealtimeFeed realtimeFeed, Key key, long maxTravelTime, List<Label> settled) {
+        // A search on an older feed than the one we have now is not kept.
+        if (this.realtimeFeed != realtimeFeed) {
+            return;
+        }
+        if (settled.size() > maxLabels) {
+            return;
+        }
+        final Entry previous = entries.get(key);
+        if (previous != null) {
+            if (previous.maxTravelTime >= maxTravelTime) {
+                return;
+            }
+            labels -= previous.settled.size();
+        }
+        entries.put(key, new Entry(settled, maxTravelTime));
+        labels += settled.size();
+        final Iterator<Map.Entry<Key, Entry>> eldest = entries.entrySet().iterator();
+        while (labels > maxLabels) {
+            labels -= eldest.next().getValue().settled.size();
+            eldest.remove();
+        }
+    }
+
+    private void switchTo(RealtimeFeed realtimeFeed) {
+        if (this.realtimeFeed != realtimeFeed) {
+            entries.clear();
+            running.clear();
+            labels = 0;
+            this.realtimeFeed = realtimeFeed;
+        }
+    }
+
+}
@@ -55,4 +55,45 @@ public class MeetingStationRequestTest {
 
         assertThat(MAPPER.writeValueAsString(request)).isEqualTo(expected);
     }
+
+    @Test
+    public void profileRequestSerializesToJSON() throws Exception {
+        final MeetingStationService.StationRequest request = new MeetingStationService.StationRequest();
+        final Stop bamberg = new Stop();
+        bamberg.stop_id = "8000025";
+        bamberg.stop_name = "Bamberg";
+
+        request.sourceStation = bamberg;
+        request.departureTime = Instant.ofEpochSecond(1496073180);
+        request.latestDepartureTime = Instant.ofEpochSecond(1496080380);
+
+        final String expected = MAPPER.writeValueAsString(
+                MAPPER.readValue(fixture("fixtures/profilerequest.json"), MeetingStationService.StationRequest.class));
+
+        assertThat(MAPPER.writeValueAsString(request)).isEqualTo(expected);
+    }
+
+    @Test
+    public void meetingRequestSerializesToJSON() throws Exception {
+        final MeetingStationService.MeetingRequest request = new MeetingStationService.MeetingRequest();
+        final Stop bamberg = new Stop();
+        bamberg.stop_id = "8000025";
+        bamberg.stop_name = "Bamberg";
+        final Stop basel = new Stop();
+        basel.stop_id = "8000026";
+        basel.stop_name = "Basel Bad Bf";
+        final Stop badbentheim = new Stop();
+        badbentheim.stop_id = "8000879";
+        badbentheim.stop_name = "Bad Bentheim";
+
+        request.sourceStations = Arrays.asList(bamberg, basel, badbentheim);
+        request.departureTime = Instant.ofEpochSecond(1496073180);
+        request.criterion = MeetingStationService.MeetingCriterion.SUM;
+        request.limit = 5;
+
+        final String expected = MAPPER.writeValueAsString(
+                MAPPER.readValue(fixture("fixtures/meetingrequest.json"), MeetingStationService.MeetingRequest.class));
+
+        assertThat(MAPPER.writeValueAsString(request)).isEqualTo(expected);
+    }
 }
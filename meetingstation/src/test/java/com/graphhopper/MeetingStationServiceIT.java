@@ -0,0 +1,140 @@
+/*
+ *  Licensed to GraphHopper GmbH under one or more contributor
+ *  license agreements. See the NOTICE file distributed with this work for
+ *  additional information regarding copyright ownership.
+ *
+ *  GraphHopper GmbH licenses this file to you under the Apache License,
+ *  Version 2.0 (the "License"); you may not use this file except in
+ *  compliance with the License. You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package com.graphhopper;
+
+import com.codahale.metrics.MetricRegistry;
+import com.conveyal.gtfs.model.Stop;
+import com.graphhopper.util.Helper;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import javax.ws.rs.BadRequestException;
+import java.io.File;
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.util.*;
+import java.util.stream.Collectors;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class MeetingStationServiceIT {
+
+    private static final String GRAPH_LOC = "target/MeetingStationServiceIT";
+    private static final ZoneId zoneId = ZoneId.of("America/Los_Angeles");
+    private static final Instant DEPARTURE_TIME = LocalDateTime.of(2007, 1, 1, 7, 30).atZone(zoneId).toInstant();
+    private static MeetingStationService service;
+
+    @BeforeClass
+    public static void init() throws Exception {
+        Helper.removeDir(new File(GRAPH_LOC));
+        final MeetingStationConfiguration configuration = new MeetingStationConfiguration();
+        configuration.setGraphLocation(GRAPH_LOC);
+        configuration.setGtfsFile("../reader-gtfs/files/sample-feed.zip");
+        configuration.setMaxSourceStations(3);
+        service = new MeetingStationService(configuration, new MetricRegistry());
+        service.start();
+    }
+
+    @AfterClass
+    public static void close() throws Exception {
+        service.stop();
+        Helper.removeDir(new File(GRAPH_LOC));
+    }
+
+    @Test
+    public void testSameAsSeparateSearches() {
+        final List<String> sourceIds = Arrays.asList("STAGECOACH", "BEATTY_AIRPORT", "EMSI");
+        for (MeetingStationService.MeetingCriterion criterion : MeetingStationService.MeetingCriterion.values()) {
+            for (int limit : new int[]{1, 3, 100}) {
+                assertSameAsSeparateSearches(sourceIds, criterion, limit);
+            }
+        }
+        assertSameAsSeparateSearches(Arrays.asList("STAGECOACH", "BULLFROG"), MeetingStationService.MeetingCriterion.MAX, 2);
+    }
+
+    @Test(expected = BadRequestException.class)
+    public void testTooManySourceStations() {
+        final MeetingStationService.MeetingRequest request = new MeetingStationService.MeetingRequest();
+        request.sourceStations = Arrays.asList(stop("STAGECOACH"), stop("BEATTY_AIRPORT"), stop("EMSI"), stop("BULLFROG"));
+        request.departureTime = DEPARTURE_TIME;
+        service.getMeetingPoints(request);
+    }
+
+    /**
+     * Joins the stations each source reaches on its own, scores them and compares the best ones
+     * with the meeting points. Stations with the same score may come in any order.
+     */
+    private void assertSameAsSeparateSearches(List<String> sourceIds, MeetingStationService.MeetingCriterion criterion, int limit) {
+        final Map<String, long[]> arrivalTimes = new HashMap<>();
+        for (int i = 0; i < sourceIds.size(); i++) {
+            final MeetingStationService.StationRequest request = new MeetingStationService.StationRequest();
+            request.sourceStation = stop(sourceIds.get(i));
+            request.departureTime = DEPARTURE_TIME;
+            request.algorithm = MeetingStationService.RoutingAlgorithm.MLS;
+            for (MeetingStationService.StopWithMeetingStationLabel station : service.getStations(request)) {
+                arrivalTimes.computeIfAbsent(station.stop.stop_id, stopId -> new long[sourceIds.size()])[i] = station.label.arrivalTime.toEpochMilli();
+            }
+        }
+        final Map<String, Long> expectedScores = new HashMap<>();
+        arrivalTimes.forEach((stopId, times) -> {
+            if (Arrays.stream(times).allMatch(time -> time != 0)) {
+                expectedScores.put(stopId, score(criterion, times));
+            }
+        });
+        final List<Long> expectedBest = expectedScores.values().stream().sorted().limit(limit).collect(Collectors.toList());
+
+        final MeetingStationService.MeetingRequest request = new MeetingStationService.MeetingRequest();
+        request.sourceStations = sourceIds.stream().map(MeetingStationServiceIT::stop).collect(Collectors.toList());
+        request.departureTime = DEPARTURE_TIME;
+        request.criterion = criterion;
+        request.limit = limit;
+        final List<MeetingStationService.MeetingPoint> meetingPoints = service.getMeetingPoints(request);
+
+        final String message = sourceIds + " " + criterion + " " + limit;
+        assertTrue(message, !expectedBest.isEmpty());
+        assertEquals(message, expectedBest, meetingPoints.stream()
+                .map(meetingPoint -> (criterion == MeetingStationService.MeetingCriterion.MAX ? meetingPoint.maxTravelTime : meetingPoint.sumTravelTime).toMillis())
+                .collect(Collectors.toList()));
+        for (MeetingStationService.MeetingPoint meetingPoint : meetingPoints) {
+            final long[] expectedTimes = arrivalTimes.get(meetingPoint.stop.stop_id);
+            for (int i = 0; i < sourceIds.size(); i++) {
+                assertEquals(message + " " + meetingPoint.stop.stop_id, expectedTimes[i], meetingPoint.labels.get(i).arrivalTime.toEpochMilli());
+            }
+        }
+    }
+
+    private static long score(MeetingStationService.MeetingCriterion criterion, long[] arrivalTimes) {
+        long score = 0;
+        for (long arrivalTime : arrivalTimes) {
+            final long travelTime = arrivalTime - DEPARTURE_TIME.toEpochMilli();
+            score = criterion == MeetingStationService.MeetingCriterion.MAX ? Math.max(score, travelTime) : score + travelTime;
+        }
+        return score;
+    }
+
+    private static Stop stop(String stopId) {
+        final Stop stop = new Stop();
+        stop.stop_id = stopId;
+        return stop;
+    }
+
+}
@@ -0,0 +1,73 @@
+/*
+ *  Licensed to GraphHopper GmbH under one or more contributor
+ *  license agreements. See the NOTICE file distributed with this work for
+ *  additional information regarding copyright ownership.
+ *
+ *  GraphHopper GmbH licenses this file to you under the Apache License,
+ *  Version 2.0 (the "License"); you may not use this file except in
+ *  compliance with the License. You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package com.graphhopper;
+
+import com.codahale.metrics.MetricRegistry;
+import com.graphhopper.util.Helper;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+
+import static org.junit.Assert.*;
+
+public class MeetingStationServiceReloadIT {
+
+    private static final String GRAPH_LOC = "target/MeetingStationServiceReloadIT";
+    private static final String NEXT_GRAPH_LOC = "target/MeetingStationServiceReloadIT-next";
+    private MeetingStationService service;
+
+    @Before
+    public void init() throws Exception {
+        Helper.removeDir(new File(GRAPH_LOC));
+        Helper.removeDir(new File(NEXT_GRAPH_LOC));
+        final MeetingStationConfiguration configuration = new MeetingStationConfiguration();
+        configuration.setGraphLocation(GRAPH_LOC);
+        configuration.setGtfsFile("../reader-gtfs/files/sample-feed.zip");
+        service = new MeetingStationService(configuration, new MetricRegistry());
+        service.start();
+    }
+
+    @After
+    public void close() throws Exception {
+        service.stop();
+        Helper.removeDir(new File(GRAPH_LOC));
+        Helper.removeDir(new File(NEXT_GRAPH_LOC));
+    }
+
+    @Test
+    public void testOldGenerationClosedAfterLastRequest() {
+        final GraphGeneration old = service.acquire();
+        service.reload(NEXT_GRAPH_LOC, null);
+        assertEquals(NEXT_GRAPH_LOC, service.getGraphLocation());
+        // The service has let go of it, but our request is still running on it.
+        assertFalse(old.graphHopperStorage.isClosed());
+        assertFalse(old.stopTable.getStops().isEmpty());
+        old.release();
+        assertTrue(old.graphHopperStorage.isClosed());
+        assertFalse(old.retain());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testServedLocationRejected() {
+        service.reload(GRAPH_LOC, null);
+    }
+
+}
@@ -0,0 +1,114 @@
+/*
+ *  Licensed to GraphHopper GmbH under one or more contributor
+ *  license agreements. See the NOTICE file distributed with this work for
+ *  additional information regarding copyright ownership.
+ *
+ *  GraphHopper GmbH licenses this file to you under the Apache License,
+ *  Version 2.0 (the "License"); you may not use this file except in
+ *  compliance with the License. You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package com.graphhopper;
+
+import com.codahale.metrics.MetricRegistry;
+import com.conveyal.gtfs.model.Stop;
+import com.graphhopper.util.Helper;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.io.File;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.util.Arrays;
+import java.util.List;
+import java.util.stream.Collectors;
+
+import static org.junit.Assert.assertEquals;
+
+public class StationSearchCacheIT {
+
+    private static final String GRAPH_LOC = "target/StationSearchCacheIT";
+    private static final String UNCACHED_GRAPH_LOC = "target/StationSearchCacheIT-uncached";
+    private static final ZoneId zoneId = ZoneId.of("America/Los_Angeles");
+    private static final MetricRegistry metrics = new MetricRegistry();
+    private static MeetingStationService cached;
+    private static MeetingStationService uncached;
+
+    @BeforeClass
+    public static void init() throws Exception {
+        Helper.removeDir(new File(GRAPH_LOC));
+        Helper.removeDir(new File(UNCACHED_GRAPH_LOC));
+        final MeetingStationConfiguration configuration = new MeetingStationConfiguration();
+        configuration.setGraphLocation(GRAPH_LOC);
+        configuration.setGtfsFile("../reader-gtfs/files/sample-feed.zip");
+        configuration.setDepartureTimeBucketSeconds(3600);
+        cached = new MeetingStationService(configuration, metrics);
+        cached.start();
+        final MeetingStationConfiguration uncachedConfiguration = new MeetingStationConfiguration();
+        uncachedConfiguration.setGraphLocation(UNCACHED_GRAPH_LOC);
+        uncachedConfiguration.setGtfsFile("../reader-gtfs/files/sample-feed.zip");
+        uncachedConfiguration.setStationCacheLabels(0);
+        uncached = new MeetingStationService(uncachedConfiguration, new MetricRegistry());
+        uncached.start();
+    }
+
+    @AfterClass
+    public static void close() throws Exception {
+        cached.stop();
+        uncached.stop();
+        Helper.removeDir(new File(GRAPH_LOC));
+        Helper.removeDir(new File(UNCACHED_GRAPH_LOC));
+    }
+
+    @Test
+    public void testSameAsWithoutCache() {
+        // The shuttle leaves STAGECOACH at 7:00 and 7:30, so from 7:05 on the search from the start
+        // of the bucket at 7:00 has a train which the request cannot catch anymore.
+        for (String sourceId : Arrays.asList("STAGECOACH", "BEATTY_AIRPORT", "BULLFROG")) {
+            for (int minute = 0; minute <= 60; minute += 5) {
+                final LocalDateTime departureTime = LocalDateTime.of(2007, 1, 1, 7, 0).plusMinutes(minute);
+                assertEquals(sourceId + " " + departureTime, stations(uncached, sourceId, departureTime), stations(cached, sourceId, departureTime));
+            }
+        }
+    }
+
+    @Test
+    public void testOneSearchPerBucket() {
+        final long misses = misses();
+        // The shuttle from 7:00 is too early for both, so both have to look at some stations again.
+        stations(cached, "STAGECOACH", LocalDateTime.of(2007, 1, 2, 7, 25));
+        stations(cached, "STAGECOACH", LocalDateTime.of(2007, 1, 2, 7, 28));
+        assertEquals(1, misses() - misses);
+    }
+
+    private static long misses() {
+        return metrics.counter(MetricRegistry.name(MeetingStationService.class, "stationCache", "misses")).getCount();
+    }
+
+    private static List<String> stations(MeetingStationService service, String sourceId, LocalDateTime departureTime) {
+        final MeetingStationService.StationRequest request = new MeetingStationService.StationRequest();
+        request.sourceStation = stop(sourceId);
+        request.departureTime = departureTime.atZone(zoneId).toInstant();
+        request.algorithm = MeetingStationService.RoutingAlgorithm.MLS;
+        return service.getStations(request).stream()
+                .map(station -> station.stop.stop_id + " " + station.label.arrivalTime + " " + station.label.travelTime)
+                .sorted()
+                .collect(Collectors.toList());
+    }
+
+    private static Stop stop(String stopId) {
+        final Stop stop = new Stop();
+        stop.stop_id = stopId;
+        return stop;
+    }
+
+}
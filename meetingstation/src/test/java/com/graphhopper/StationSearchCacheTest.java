@@ -0,0 +1,114 @@
+/*
+ *  Licensed to GraphHopper GmbH under one or more contributor
+ *  license agreements. See the NOTICE file distributed with this work for
+ *  additional information regarding copyright ownership.
+ *
+ *  GraphHopper GmbH licenses this file to you under the Apache License,
+ *  Version 2.0 (the "License"); you may not use this file except in
+ *  compliance with the License. You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package com.graphhopper;
+
+import com.graphhopper.reader.gtfs.Label;
+import com.graphhopper.reader.gtfs.RealtimeFeed;
+import org.junit.Test;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.*;
+
+public class StationSearchCacheTest {
+
+    private static List<Label> labels(int n) {
+        return Collections.nCopies(n, null);
+    }
+
+    private static boolean searches(StationSearchCache cache, RealtimeFeed realtimeFeed, StationSearchCache.Key key, long maxTravelTime) {
+        final boolean[] searched = {false};
+        cache.get(realtimeFeed, key, maxTravelTime, () -> {
+            searched[0] = true;
+            return Collections.emptyList();
+        });
+        return searched[0];
+    }
+
+    @Test
+    public void evictsLeastRecentlyUsed() {
+        final RealtimeFeed realtimeFeed = RealtimeFeed.empty();
+        final StationSearchCache cache = new StationSearchCache(10);
+        cache.get(realtimeFeed, new StationSearchCache.Key(1, 0, Integer.MAX_VALUE), Long.MAX_VALUE, () -> labels(4));
+        cache.get(realtimeFeed, new StationSearchCache.Key(2, 0, Integer.MAX_VALUE), Long.MAX_VALUE, () -> labels(4));
+        assertFalse(searches(cache, realtimeFeed, new StationSearchCache.Key(1, 0, Integer.MAX_VALUE), Long.MAX_VALUE));
+        cache.get(realtimeFeed, new StationSearchCache.Key(3, 0, Integer.MAX_VALUE), Long.MAX_VALUE, () -> labels(4));
+        assertFalse(searches(cache, realtimeFeed, new StationSearchCache.Key(1, 0, Integer.MAX_VALUE), Long.MAX_VALUE));
+        assertTrue(searches(cache, realtimeFeed, new StationSearchCache.Key(2, 0, Integer.MAX_VALUE), Long.MAX_VALUE));
+        assertFalse(searches(cache, realtimeFeed, new StationSearchCache.Key(3, 0, Integer.MAX_VALUE), Long.MAX_VALUE));
+        cache.get(realtimeFeed, new StationSearchCache.Key(4, 0, Integer.MAX_VALUE), Long.MAX_VALUE, () -> labels(11));
+        assertTrue(searches(cache, realtimeFeed, new StationSearchCache.Key(4, 0, Integer.MAX_VALUE), Long.MAX_VALUE));
+    }
+
+    @Test
+    public void onlyServesSearchesWhichWentFarEnough() {
+        final RealtimeFeed realtimeFeed = RealtimeFeed.empty();
+        final StationSearchCache cache = new StationSearchCache(10);
+        cache.get(realtimeFeed, new StationSearchCache.Key(1, 0, Integer.MAX_VALUE), 1000, () -> labels(2));
+        assertFalse(searches(cache, realtimeFeed, new StationSearchCache.Key(1, 0, Integer.MAX_VALUE), 500));
+        assertTrue(searches(cache, realtimeFeed, new StationSearchCache.Key(1, 0, Integer.MAX_VALUE), 2000));
+        assertTrue(searches(cache, realtimeFeed, new StationSearchCache.Key(1, 60000, Integer.MAX_VALUE), 500));
+    }
+
+    @Test
+    public void newRealtimeFeedEmptiesCache() {
+        final StationSearchCache cache = new StationSearchCache(10);
+        cache.get(RealtimeFeed.empty(), new StationSearchCache.Key(1, 0, Integer.MAX_VALUE), Long.MAX_VALUE, () -> labels(2));
+        assertTrue(searches(cache, RealtimeFeed.empty(), new StationSearchCache.Key(1, 0, Integer.MAX_VALUE), Long.MAX_VALUE));
+    }
+
+    @Test
+    public void waitsForRunningSearch() throws InterruptedException {
+        final RealtimeFeed realtimeFeed = RealtimeFeed.empty();
+        // Keeps nothing, so the second request can only get the labels from the running search.
+        final StationSearchCache cache = new StationSearchCache(0);
+        final StationSearchCache.Key key = new StationSearchCache.Key(1, 0, Integer.MAX_VALUE);
+        final List<Label> settled = labels(2);
+        final CountDownLatch started = new CountDownLatch(1);
+        final CountDownLatch finish = new CountDownLatch(1);
+        final Thread first = new Thread(() -> cache.get(realtimeFeed, key, Long.MAX_VALUE, () -> {
+            started.countDown();
+            try {
+                finish.await();
+            } catch (InterruptedException e) {
+                throw new RuntimeException(e);
+            }
+            return settled;
+        }));
+        first.start();
+        started.await();
+        final AtomicReference<List<Label>> result = new AtomicReference<>();
+        final Thread second = new Thread(() -> result.set(cache.get(realtimeFeed, key, Long.MAX_VALUE, () -> {
+            throw new AssertionError("searched again");
+        })));
+        second.start();
+        while (second.isAlive() && second.getState() != Thread.State.WAITING) {
+            Thread.sleep(1);
+        }
+        finish.countDown();
+        first.join();
+        second.join();
+        assertSame(settled, result.get());
+        assertTrue(searches(cache, realtimeFeed, key, Long.MAX_VALUE));
+    }
+
+}
@@ -0,0 +1,290 @@
+/*
+ *  Licensed to GraphHopper GmbH under one or more contributor
+ *  license agreements. See the NOTICE file distributed with this work for
+ *  additional information regarding copyright ownership.
+ *
+ *  GraphHopper GmbH licenses this file to you under the Apache License,
+ *  Version 2.0 (the "License"); you may not use this file except in
+ *  compliance with the License. You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package com.graphhopper.reader.gtfs;
+
+import com.carrotsearch.hppc.IntArrayList;
+import com.carrotsearch.hppc.sorting.IndirectSort;
+import com.conveyal.gtfs.GTFSFeed;
+import com.conveyal.gtfs.model.StopTime;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.time.LocalDate;
+import java.time.ZoneId;
+import java.util.*;
+
+/**
+ * One-to-all earliest arrival by the Connection Scan Algorithm, as an alternative to
+ * {@link MultiCriteriaLabelSetting} for the station queries which need nothing but arrival times.
+ * <p>
+ * The elementary connections of every trip are extracted from the feed once and kept sorted by
+ * departure time of day, one array per agency time zone. A query walks the service days around the
+ * departure time and merges them by absolute departure time, so it touches every connection in the
+ * time window exactly once and never looks at the graph.
+ * <p>
+ * The model is the one GtfsReader builds: frequency-based trips are expanded the same way, changing
+ * vehicles at the same stop takes no time, and a transfer of type 2 from the feed lets you walk to
+ * another stop and board there after its minimum transfer time. Route specific transfer rules are
+ * collapsed to the shortest one between the two stops. Like the graph, a stop only counts as
+ * reached when a vehicle arrives there, not when it is just walked to.
+ */
+public final class ConnectionScan {
+
+    private static final long NOT_REACHED = Long.MAX_VALUE;
+    private static final long NOT_BOARDED = Long.MIN_VALUE;
+    private static final long SOURCE = Long.MIN_VALUE;
+
+    public static class Arrival {
+        public final String stopId;
+        public final long arrivalTime;
+        /**
+         * Departure of the first vehicle on the way here, or null for the source stop.
+         */
+        public final Long departureTime;
+
+        Arrival(String stopId, long arrivalTime, Long departureTime) {
+            this.stopId = stopId;
+            this.arrivalTime = arrivalTime;
+            this.departureTime = departureTime;
+        }
+    }
+
+    /**
+     * The connections of all trips run by agencies in one time zone. Times are seconds after noon
+     * minus 12 hours of the service day, as in GTFS, and may exceed 24 hours.
+     */
+    private static final class Connections {
+        final ZoneId zoneId;
+        final int[] departureStop;
+        final int[] arrivalStop;
+        final int[] departureTime;
+        final int[] arrivalTime;
+        final int[] trip;
+        final int[] tripValidity;
+        final int maxDayShift;
+
+        Connections(ZoneId zoneId, IntArrayList departureStop, IntArrayList arrivalStop, IntArrayList departureTime, IntArrayList arrivalTime, IntArrayList trip, IntArrayList tripValidity) {
+            this.zoneId = zoneId;
+            final int[] order = IndirectSort.mergesort(0, departureTime.size(), (a, b) -> {
+                int c = Integer.compare(departureTime.get(a), departureTime.get(b));
+                return c != 0 ? c : Integer.compare(arrivalTime.get(a), arrivalTime.get(b));
+            });
+            this.departureStop = permute(departureStop, order);
+            this.arrivalStop = permute(arrivalStop, order);
+            this.departureTime = permute(departureTime, order);
+            this.arrivalTime = permute(arrivalTime, order);
+            this.trip = permute(trip, order);
+            this.tripValidity = tripValidity.toArray();
+            this.maxDayShift = this.departureTime.length == 0 ? 0 : this.departureTime[this.departureTime.length - 1] / (24 * 60 * 60);
+        }
+
+        private static int[] permute(IntArrayList values, int[] order) {
+            final int[] result = new int[order.length];
+            for (int i = 0; i < order.length; i++) {
+                result[i] = values.get(order[i]);
+            }
+            return result;
+        }
+
+        int size() {
+            return departureTime.length;
+        }
+    }
+
+    /**
+     * The connections of one time zone on one service day, positioned at the next one to scan.
+     */
+    private final class Cursor {
+        final Connections connections;
+        final long base;
+        final int day;
+        final long[] tripDepartureTime;
+        int position;
+
+        Cursor(Connections connections, LocalDate serviceDay, long earliestDeparture) {
+            this.connections = connections;
+            this.base = Timetable.getBase(serviceDay, connections.zoneId);
+            this.day = timetable.getDay(serviceDay);
+            this.tripDepartureTime = new long[connections.tripValidity.length];
+            Arrays.fill(tripDepartureTime, NOT_BOARDED);
+            int low = 0;
+            int high = connections.size();
+            while (low < high) {
+                int mid = (low + high) >>> 1;
+                if (departureTime(mid) < earliestDeparture) {
+                    low = mid + 1;
+                } else {
+                    high = mid;
+                }
+            }
+            this.position = low;
+        }
+
+        boolean hasNext() {
+            return position < connections.size();
+        }
+
+        long departureTime(int connection) {
+            return base + connections.departureTime[connection] * 1000L;
+        }
+
+        long arrivalTime(int connection) {
+            return base + connections.arrivalTime[connection] * 1000L;
+        }
+
+        boolean isValid(int trip) {
+            return timetable.isValid(connections.tripValidity[trip], day);
+        }
+    }
+
+    private final Timetable timetable;
+    private final List<Connections> connectionsByZone = new ArrayList<>();
+
+    public ConnectionScan(GTFSFeed feed) {
+        this(new Timetable(feed));
+    }
+
+    ConnectionScan(Timetable timetable) {
+        this.timetable = timetable;
+        final Map<ZoneId, IntArrayList[]> columnsByZone = new LinkedHashMap<>();
+        timetable.forEachTripInstance((trip, zoneId, validity, offset, stopTimes) -> {
+            final IntArrayList[] columns = columnsByZone.computeIfAbsent(zoneId, z -> new IntArrayList[]{
+                    new IntArrayList(), new IntArrayList(), new IntArrayList(), new IntArrayList(), new IntArrayList(), new IntArrayList()});
+            final int tripIndex = columns[5].size();
+            columns[5].add(validity);
+            for (int i = 1; i < stopTimes.size(); i++) {
+                StopTime from = stopTimes.get(i - 1);
+                StopTime to = stopTimes.get(i);
+                columns[0].add(timetable.stopIndex.get(from.stop_id));
+                columns[1].add(timetable.stopIndex.get(to.stop_id));
+                columns[2].add(from.departure_time + offset);
+                columns[3].add(to.arrival_time + offset);
+                columns[4].add(tripIndex);
+            }
+        });
+        columnsByZone.forEach((zoneId, columns) ->
+                connectionsByZone.add(new Connections(zoneId, columns[0], columns[1], columns[2], columns[3], columns[4], columns[5])));
+    }
+
+    /**
+     * Earliest arrival at every stop reachable from the source within the horizon, sorted by
+     * arrival time. The source stop itself comes first.
+     *
+     * @param targetStopIds if not null, the scan stops once no later connection can improve on the
+     *                      arrival at any of these stops. Other stops may then be missing.
+     */
+    public List<Arrival> route(String sourceStopId, Instant departureTime, Duration horizon, Collection<String> targetStopIds) {
+        final String[] stopIds = timetable.stopIds;
+        final int[] footpathOffsets = timetable.footpathOffsets;
+        final Integer source = timetable.stopIndex.get(sourceStopId);
+        if (source == null) {
+            throw new IllegalArgumentException("Unknown stop: " + sourceStopId);
+        }
+        final long earliestDeparture = departureTime.toEpochMilli();
+        final long latestDeparture = earliestDeparture + horizon.toMillis();
+
+        final long[] arrival = new long[stopIds.length];
+        final long[] arrivalDeparture = new long[stopIds.length];
+        final long[] boardable = new long[stopIds.length];
+        final long[] boardableDeparture = new long[stopIds.length];
+        Arrays.fill(arrival, NOT_REACHED);
+        Arrays.fill(boardable, NOT_REACHED);
+        arrival[source] = earliestDeparture;
+        arrivalDeparture[source] = SOURCE;
+        boardable[source] = earliestDeparture;
+        boardableDeparture[source] = SOURCE;
+        final int[] targets = targetStopIds == null ? null : targetStopIds.stream()
+                .map(timetable.stopIndex::get).filter(Objects::nonNull).mapToInt(Integer::intValue).toArray();
+
+        final List<Cursor> cursors = new ArrayList<>();
+        for (Connections connections : connectionsByZone) {
+            LocalDate lastDay = Instant.ofEpochMilli(latestDeparture).atZone(connections.zoneId).toLocalDate();
+            LocalDate day = departureTime.atZone(connections.zoneId).toLocalDate().minusDays(connections.maxDayShift);
+            for (; !day.isAfter(lastDay); day = day.plusDays(1)) {
+                cursors.add(new Cursor(connections, day, earliestDeparture));
+            }
+        }
+
+        while (true) {
+            Cursor cursor = null;
+            long connectionDeparture = Long.MAX_VALUE;
+            for (Cursor candidate : cursors) {
+                if (candidate.hasNext() && candidate.departureTime(candidate.position) < connectionDeparture) {
+                    cursor = candidate;
+                    connectionDeparture = candidate.departureTime(candidate.position);
+                }
+            }
+            if (cursor == null || connectionDeparture > latestDeparture) {
+                break;
+            }
+            if (targets != null && connectionDeparture >= latestArrival(arrival, targets)) {
+                break;
+            }
+            final int connection = cursor.position++;
+            final int trip = cursor.connections.trip[connection];
+            if (!cursor.isValid(trip)) {
+                continue;
+            }
+            if (cursor.tripDepartureTime[trip] == NOT_BOARDED) {
+                final int departureStop = cursor.connections.departureStop[connection];
+                if (boardable[departureStop] > connectionDeparture) {
+                    continue;
+                }
+                cursor.tripDepartureTime[trip] = boardableDeparture[departureStop] == SOURCE ? connectionDeparture : boardableDeparture[departureStop];
+            }
+            final long tripDepartureTime = cursor.tripDepartureTime[trip];
+            final int arrivalStop = cursor.connections.arrivalStop[connection];
+            final long connectionArrival = cursor.arrivalTime(connection);
+            if (connectionArrival < arrival[arrivalStop]) {
+                arrival[arrivalStop] = connectionArrival;
+                arrivalDeparture[arrivalStop] = tripDepartureTime;
+                if (connectionArrival < boardable[arrivalStop]) {
+                    boardable[arrivalStop] = connectionArrival;
+                    boardableDeparture[arrivalStop] = tripDepartureTime;
+                }
+                for (int i = footpathOffsets[arrivalStop]; i < footpathOffsets[arrivalStop + 1]; i++) {
+                    final int to = timetable.footpathTargets[i];
+                    final long time = connectionArrival + timetable.footpathTimes[i] * 1000L;
+                    if (time < boardable[to]) {
+                        boardable[to] = time;
+                        boardableDeparture[to] = tripDepartureTime;
+                    }
+                }
+            }
+        }
+
+        final List<Arrival> result = new ArrayList<>();
+        for (int i = 0; i < stopIds.length; i++) {
+            if (arrival[i] != NOT_REACHED) {
+                result.add(new Arrival(stopIds[i], arrival[i], arrivalDeparture[i] == SOURCE ? null : arrivalDeparture[i]));
+            }
+        }
+        result.sort(Comparator.comparingLong(a -> a.arrivalTime));
+        return result;
+    }
+
+    private static long latestArrival(long[] arrival, int[] targets) {
+        long result = Long.MIN_VALUE;
+        for (int target : targets) {
+            result = Math.max(result, arrival[target]);
+        }
+        return result;
+    }
+
+}
@@ -24,32 +24,44 @@ import com.graphhopper.util.EdgeExplorer;
 import com.graphhopper.util.EdgeIterator;
 import com.graphhopper.util.EdgeIteratorState;
 
-import java.time.Instant;
-import java.time.ZoneId;
-import java.time.temporal.ChronoUnit;
+import java.util.Collections;
 import java.util.Iterator;
 
 public final class GraphExplorer {
 
+    private final Graph graph;
     private final EdgeExplorer edgeExplorer;
     private final PtFlagEncoder flagEncoder;
     private final GtfsStorage gtfsStorage;
     private final RealtimeFeed realtimeFeed;
     private final boolean reverse;
     private final PtTravelTimeWeighting weighting;
+    private final ServiceCalendar.Context calendar;
+    // moved to the timeline of each node we look at, so looking one up does not allocate
+    private final GtfsStorage.Timeline exploredTimeline = new GtfsStorage.Timeline();
+    private final GtfsStorage.Timeline waitingTimeline = new GtfsStorage.Timeline();
 
     public GraphExplorer(Graph graph, PtTravelTimeWeighting weighting, PtFlagEncoder flagEncoder, GtfsStorage gtfsStorage, RealtimeFeed realtimeFeed, boolean reverse) {
+        this.graph = graph;
         this.edgeExplorer = graph.createEdgeExplorer(new DefaultEdgeFilter(flagEncoder, reverse, !reverse));
         this.flagEncoder = flagEncoder;
         this.weighting = weighting;
         this.gtfsStorage = gtfsStorage;
         this.realtimeFeed = realtimeFeed;
         this.reverse = reverse;
+        this.calendar = gtfsStorage.getServiceCalendar().createContext();
     }
 
-    Iterable<EdgeIteratorState> exploreEdgesAround(Label label) {
+    private boolean findTimeline(int node, GtfsStorage.Timeline timeline) {
+        return reverse ? gtfsStorage.findArrivalTimeline(node, timeline) : gtfsStorage.findDepartureTimeline(node, timeline);
+    }
+
+    Iterable<EdgeIteratorState> exploreEdgesAround(int node, long currentTime) {
+        if (findTimeline(node, exploredTimeline)) {
+            return exploreTimeline(node, exploredTimeline, currentTime);
+        }
         return new Iterable<EdgeIteratorState>() {
-            EdgeIterator edgeIterator = edgeExplorer.setBaseNode(label.node);
+            EdgeIterator edgeIterator = edgeExplorer.setBaseNode(node);
 
             @Override
             public Iterator<EdgeIteratorState> iterator() {
@@ -60,20 +72,25 @@ public final class GraphExplorer {
                     public boolean hasNext() {
                         while(edgeIterator.next()) {
                             final GtfsStorage.EdgeType edgeType = flagEncoder.getEdgeType(edgeIterator.getFlags());
-                            if (!isValidOn(edgeIterator, label.currentTime)) {
+                            if (!isValidOn(edgeIterator, currentTime)) {
+                                continue;
+                            }
+                            if (isBlocked(edgeIterator, edgeType, currentTime)) {
                                 continue;
                             }
-                            if (realtimeFeed.isBlocked(edgeIterator.getEdge())) {
+                            if (edgeType == GtfsStorage.EdgeType.WAIT_ARRIVAL && waitingForArrival(edgeIterator) < 0) {
+                                // the earlier arrival is later than the next one today
                                 continue;
                             }
-                            if (edgeType == GtfsStorage.EdgeType.WAIT_ARRIVAL && !reverse) {
+                            if (edgeType == GtfsStorage.EdgeType.TRANSFER && transferTime(edgeIterator) < 0) {
+                                // the arrival is too late for it today
                                 continue;
                             }
                             if (edgeType == GtfsStorage.EdgeType.WAIT && reverse) {
                                 continue;
                             }
                             if (edgeType == GtfsStorage.EdgeType.ENTER_TIME_EXPANDED_NETWORK && !reverse) {
-                                if (secondsOnTrafficDay(edgeIterator, label.currentTime) > flagEncoder.getTime(edgeIterator.getFlags())) {
+                                if (secondsOnTrafficDay(edgeIterator, currentTime) > flagEncoder.getTime(edgeIterator.getFlags())) {
                                     continue;
                                 } else {
                                     if (foundEnteredTimeExpandedNetworkEdge) {
@@ -83,7 +100,7 @@ public final class GraphExplorer {
                                     }
                                 }
                             } else if (edgeType == GtfsStorage.EdgeType.LEAVE_TIME_EXPANDED_NETWORK && reverse) {
-                                if (secondsOnTrafficDay(edgeIterator, label.currentTime) < flagEncoder.getTime(edgeIterator.getFlags())) {
+                                if (secondsOnTrafficDay(edgeIterator, currentTime) < flagEncoder.getTime(edgeIterator.getFlags()) + realtimeFeed.getArrivalDelay(edgeIterator.getAdjNode())) {
                                     continue;
                                 }
                             }
@@ -101,6 +118,63 @@ public final class GraphExplorer {
         };
     }
 
+    /**
+     * A stop enter node has nothing but its departures going out, and a stop exit node nothing but
+     * its arrivals coming in. The next departure, or in reverse the latest arrival, is all we need,
+     * since the others are reached from there by waiting.
+     * <p>
+     * If the service day slices are there, we look for the next trip which runs on this day first.
+     * If there is none left, we take the next departure regardless, as the overnight edge behind it
+     * may still lead to a trip on the next day.
+     * <p>
+     * Realtime cancellations block the boarding and alighting edges, not these. A cancelled
+     * departure is left behind by waiting on to the next one, like one which does not run today.
+     * <p>
+     * A frequency based timeline has its next run computed from the headway instead.
+     */
+    private Iterable<EdgeIteratorState> exploreTimeline(int node, GtfsStorage.Timeline timeline, long currentTime) {
+        final int seconds = calendar.secondsOnTrafficDay(timeline.timeZoneId, currentTime);
+        if (timeline.isFrequencyBased()) {
+            final int run = reverse ? timeline.previousRun(seconds) : timeline.nextRun(seconds);
+            if (run == -1) {
+                return Collections.emptyList();
+            }
+            return Collections.singletonList(graph.getEdgeIteratorState(timeline.edge(0), timeline.timeNode(0)));
+        }
+        final ServiceDaySlices slices = gtfsStorage.getServiceDaySlices();
+        if (slices != null) {
+            final GtfsStorage.Timeline slice = slices.getTimeline(node, reverse, calendar.trafficDay(timeline.timeZoneId, currentTime));
+            if (slice != null) {
+                final EdgeIteratorState edge = nextOnTimeline(slice, seconds);
+                if (edge != null) {
+                    return Collections.singletonList(edge);
+                }
+            }
+        }
+        final EdgeIteratorState edge = nextOnTimeline(timeline, seconds);
+        return edge != null ? Collections.singletonList(edge) : Collections.emptyList();
+    }
+
+    private EdgeIteratorState nextOnTimeline(GtfsStorage.Timeline timeline, int seconds) {
+        if (reverse) {
+            for (int i = timeline.lastNotAfter(seconds); i >= 0; i--) {
+                if (timeline.time(i) + realtimeFeed.getArrivalDelay(timeline.timeNode(i)) <= seconds) {
+                    return graph.getEdgeIteratorState(timeline.edge(i), timeline.timeNode(i));
+                }
+            }
+        } else {
+            final int i = timeline.firstNotBefore(seconds);
+            if (i < timeline.size()) {
+                return graph.getEdgeIteratorState(timeline.edge(i), timeline.timeNode(i));
+            }
+        }
+        return null;
+    }
+
+    int getNodes() {
+        return graph.getNodes();
+    }
+
     long calcTravelTimeMillis(EdgeIteratorState edge, long earliestStartTime) {
         GtfsStorage.EdgeType edgeType = flagEncoder.getEdgeType(edge.getFlags());
         switch (edgeType) {
@@ -118,32 +192,63 @@ public final class GraphExplorer {
                 } else {
                     return 0;
                 }
+            case TRANSFER:
+                return transferTime(edge) * 1000L;
+            case WAIT_ARRIVAL:
+                return waitingForArrival(edge) * 1000L;
             default:
-                return flagEncoder.getTime(edge.getFlags()) * 1000;
+                return realtimeFeed.getTravelTime(edge.getEdge(), (int) flagEncoder.getTime(edge.getFlags())) * 1000L;
+        }
+    }
+
+    /**
+     * A transfer from an arrival which is late today is shorter by the delay.
+     */
+    private long transferTime(EdgeIteratorState edge) {
+        return flagEncoder.getTime(edge.getFlags()) - realtimeFeed.getArrivalDelay(reverse ? edge.getAdjNode() : edge.getBaseNode());
+    }
+
+    /**
+     * Waiting at the stop for the next arrival on the arrival timeline, or in reverse going back to
+     * the one before, with the delays of both. Forward, this is how an arrival gets to a departure
+     * whose transfer was left out as dominated, see {@link GtfsReader}.
+     */
+    private long waitingForArrival(EdgeIteratorState edge) {
+        final int earlier = reverse ? edge.getAdjNode() : edge.getBaseNode();
+        final int later = reverse ? edge.getBaseNode() : edge.getAdjNode();
+        return flagEncoder.getTime(edge.getFlags()) + realtimeFeed.getArrivalDelay(later) - realtimeFeed.getArrivalDelay(earlier);
+    }
+
+    private boolean isBlocked(EdgeIteratorState edge, GtfsStorage.EdgeType edgeType, long instant) {
+        if (realtimeFeed.hasBlockedRuns() && (edgeType == GtfsStorage.EdgeType.BOARD || edgeType == GtfsStorage.EdgeType.ALIGHT)) {
+            return realtimeFeed.isBlocked(edge.getEdge(), secondsOnTrafficDay(edge, instant));
         }
+        return realtimeFeed.isBlocked(edge.getEdge());
     }
 
     private long waitingTime(EdgeIteratorState edge, long earliestStartTime) {
-        return flagEncoder.getTime(edge.getFlags()) * 1000 - millisOnTravelDay(edge, earliestStartTime);
+        final GtfsStorage.Timeline timeline = waitingTimeline;
+        if (findTimeline(edge.getBaseNode(), timeline) && timeline.isFrequencyBased()) {
+            final int seconds = secondsOnTrafficDay(edge, earliestStartTime);
+            final int run = reverse ? timeline.previousRun(seconds) : timeline.nextRun(seconds);
+            return run * 1000L - millisOnTravelDay(edge, earliestStartTime);
+        }
+        final long delay = reverse ? realtimeFeed.getArrivalDelay(edge.getAdjNode()) : 0;
+        return (flagEncoder.getTime(edge.getFlags()) + delay) * 1000 - millisOnTravelDay(edge, earliestStartTime);
     }
 
     private int secondsOnTrafficDay(EdgeIteratorState edge, long instant) {
-        final ZoneId zoneId = gtfsStorage.getTimeZones().get(flagEncoder.getValidityId(edge.getFlags())).zoneId;
-        return Instant.ofEpochMilli(instant).atZone(zoneId).toLocalTime().toSecondOfDay();
+        return calendar.secondsOnTrafficDay(flagEncoder.getValidityId(edge.getFlags()), instant);
     }
 
     private long millisOnTravelDay(EdgeIteratorState edge, long instant) {
-        final ZoneId zoneId = gtfsStorage.getTimeZones().get(flagEncoder.getValidityId(edge.getFlags())).zoneId;
-        return Instant.ofEpochMilli(instant).atZone(zoneId).toLocalTime().toNanoOfDay() / 1000000L;
+        return calendar.millisOnTravelDay(flagEncoder.getValidityId(edge.getFlags()), instant);
     }
 
     private boolean isValidOn(EdgeIteratorState edge, long instant) {
         GtfsStorage.EdgeType edgeType = flagEncoder.getEdgeType(edge.getFlags());
         if (edgeType == GtfsStorage.EdgeType.BOARD || edgeType == GtfsStorage.EdgeType.ALIGHT) {
-            final int validityId = flagEncoder.getValidityId(edge.getFlags());
-            final GtfsStorage.Validity validity = gtfsStorage.getValidities().get(validityId);
-            final int trafficDay = (int) ChronoUnit.DAYS.between(validity.start, Instant.ofEpochMilli(instant).atZone(validity.zoneId).toLocalDate());
-            return trafficDay >= 0 && validity.validity.get(trafficDay);
+            return calendar.isValidOn(flagEncoder.getValidityId(edge.getFlags()), instant);
         } else {
             return true;
         }
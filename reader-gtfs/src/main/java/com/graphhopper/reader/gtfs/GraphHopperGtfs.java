@@ -18,6 +18,8 @@
 
 package com.graphhopper.reader.gtfs;
 
+import com.conveyal.gtfs.GTFSFeed;
+import com.conveyal.gtfs.model.Stop;
 import com.google.transit.realtime.GtfsRealtime;
 import com.graphhopper.*;
 import com.graphhopper.reader.osm.OSMReader;
@@ -33,9 +35,11 @@ import com.graphhopper.util.shapes.GHPoint;
 
 import java.io.File;
 import java.io.IOException;
+import java.time.Duration;
 import java.time.Instant;
 import java.time.format.DateTimeParseException;
 import java.util.*;
+import java.util.function.Supplier;
 import java.util.stream.Collectors;
 import java.util.stream.Stream;
 import java.util.zip.ZipFile;
@@ -45,6 +49,12 @@ import static com.graphhopper.util.Parameters.PT.PROFILE_QUERY;
 
 public final class GraphHopperGtfs implements GraphHopperAPI {
 
+    private static final Duration RAPTOR_HORIZON = Duration.ofDays(1);
+    /**
+     * Above this share of added or changed trips, an update is not worth it.
+     */
+    private static final double MAX_CHANGED_SHARE = 0.2;
+
     public static class Factory {
         private final TranslationMap translationMap;
         private final PtFlagEncoder flagEncoder;
@@ -61,11 +71,20 @@ public final class GraphHopperGtfs implements GraphHopperAPI {
         }
 
         public GraphHopperGtfs createWith(GtfsRealtime.FeedMessage realtimeFeed) {
-            return new GraphHopperGtfs(flagEncoder, translationMap, graphHopperStorage, locationIndex, gtfsStorage, RealtimeFeed.fromProtobuf(gtfsStorage, realtimeFeed));
+            final RealtimeFeed snapshot = RealtimeFeed.fromProtobuf(graphHopperStorage, flagEncoder, gtfsStorage, realtimeFeed);
+            return new GraphHopperGtfs(flagEncoder, translationMap, graphHopperStorage, locationIndex, gtfsStorage, () -> snapshot);
+        }
+
+        /**
+         * Every request sees the realtime feed the updater has at the time it starts.
+         */
+        public GraphHopperGtfs createWith(RealtimeFeedUpdater realtimeFeedUpdater) {
+            return new GraphHopperGtfs(flagEncoder, translationMap, graphHopperStorage, locationIndex, gtfsStorage, realtimeFeedUpdater::get);
         }
 
         public GraphHopperGtfs createWithoutRealtimeFeed() {
-            return new GraphHopperGtfs(flagEncoder, translationMap, graphHopperStorage, locationIndex, gtfsStorage, RealtimeFeed.empty());
+            final RealtimeFeed empty = RealtimeFeed.empty();
+            return new GraphHopperGtfs(flagEncoder, translationMap, graphHopperStorage, locationIndex, gtfsStorage, () -> empty);
         }
     }
 
@@ -78,7 +97,7 @@ public final class GraphHopperGtfs implements GraphHopperAPI {
     private final GraphHopperStorage graphHopperStorage;
     private final LocationIndex locationIndex;
     private final GtfsStorage gtfsStorage;
-    private final RealtimeFeed realtimeFeed;
+    private final Supplier<RealtimeFeed> realtimeFeeds;
     private final TripFromLabel tripFromLabel;
 
 
@@ -96,7 +115,9 @@ public final class GraphHopperGtfs implements GraphHopperAPI {
         private final GHPoint enter;
         private final GHPoint exit;
         private final Translation translation;
+        private final String algorithm;
 
+        private final RealtimeFeed realtimeFeed = realtimeFeeds.get();
         private final GHResponse response = new GHResponse();
         private final QueryGraph queryGraph = new QueryGraph(graphHopperStorage);
 
@@ -122,9 +143,63 @@ public final class GraphHopperGtfs implements GraphHopperAPI {
             }
             enter = request.getPoints().get(0);
             exit = request.getPoints().get(1);
+            algorithm = request.getAlgorithm();
+        }
+
+        /**
+         * Routes with RAPTOR from the stop closest to the start to the stop closest to the
+         * destination. There are no walking legs, and realtime updates are not considered.
+         */
+        private GHResponse routeOnTimetable() {
+            if (arriveBy) {
+                throw new IllegalArgumentException(Parameters.PT.ARRIVE_BY + " is not supported by " + Parameters.Algorithms.RAPTOR);
+            }
+            StopWatch stopWatch = new StopWatch().start();
+            Map.Entry<String, Stop> source = findClosestStop(enter);
+            Map.Entry<String, Stop> dest = findClosestStop(exit);
+            if (!source.getKey().equals(dest.getKey())) {
+                throw new IllegalArgumentException(String.format("%s only routes within one feed, but the stops closest to start and destination are in %s and %s",
+                        Parameters.Algorithms.RAPTOR, source.getKey(), dest.getKey()));
+            }
+            PointList waypoints = new PointList(2, false);
+            waypoints.add(source.getValue().stop_lat, source.getValue().stop_lon);
+            waypoints.add(dest.getValue().stop_lat, dest.getValue().stop_lon);
+            gtfsStorage.getRaptor(source.getKey()).route(source.getValue().stop_id, dest.getValue().stop_id, initialTime, RAPTOR_HORIZON, Integer.MAX_VALUE).stream()
+                    .limit(limitSolutions)
+                    .map(journey -> tripFromLabel.parseJourneyIntoPath(initialTime, translation, source.getKey(), journey, waypoints))
+                    .forEach(response::add);
+            response.addDebugInfo("routing:" + stopWatch.stop().getSeconds() + "s");
+            if (response.getAll().isEmpty()) {
+                response.addError(new RuntimeException("No route found"));
+            }
+            return response;
+        }
+
+        private Map.Entry<String, Stop> findClosestStop(GHPoint point) {
+            Map.Entry<String, Stop> closest = null;
+            double closestDistance = Double.MAX_VALUE;
+            for (String feedId : gtfsStorage.getGtfsFeedIds()) {
+                StopTable stopTable = gtfsStorage.getStopTable(feedId);
+                int stop = stopTable.getClosestPlatform(point.lat, point.lon);
+                if (stop == StopTable.NO_STOP) {
+                    continue;
+                }
+                double distance = Helper.DIST_EARTH.calcDist(point.lat, point.lon, stopTable.getLat(stop), stopTable.getLon(stop));
+                if (distance < closestDistance) {
+                    closest = new AbstractMap.SimpleImmutableEntry<>(feedId, stopTable.getStop(stop));
+                    closestDistance = distance;
+                }
+            }
+            if (closest == null) {
+                throw new PointNotFoundException("Cannot find point: " + point, point == enter ? 0 : 1);
+            }
+            return closest;
         }
 
         GHResponse route() {
+            if (Parameters.Algorithms.RAPTOR.equals(algorithm)) {
+                return routeOnTimetable();
+            }
             StopWatch stopWatch = new StopWatch().start();
 
             QueryResult source = findClosest(enter, 0);
@@ -167,9 +242,10 @@ public final class GraphHopperGtfs implements GraphHopperAPI {
             StopWatch stopWatch = new StopWatch().start();
             GraphExplorer graphExplorer = new GraphExplorer(queryGraph, weighting, flagEncoder, gtfsStorage, realtimeFeed, arriveBy);
             MultiCriteriaLabelSetting router = new MultiCriteriaLabelSetting(graphExplorer, weighting, arriveBy, maxWalkDistancePerLeg, maxTransferDistancePerLeg, !ignoreTransfers, profileQuery, maxVisitedNodesForRequest);
-            List<Label> solutions = router.calcPaths(startNode, destNode, initialTime)
-                    .limit(limitSolutions)
-                    .collect(Collectors.toList());
+            final List<Label> solutions;
+            try (Stream<Label> labels = router.calcPaths(startNode, destNode, initialTime)) {
+                solutions = labels.limit(limitSolutions).collect(Collectors.toList());
+            }
             response.addDebugInfo("routing:" + stopWatch.stop().getSeconds() + "s");
             if (router.getVisitedNodes() >= maxVisitedNodesForRequest) {
                 throw new IllegalArgumentException("No path found - maximum number of nodes exceeded: " + maxVisitedNodesForRequest);
@@ -184,12 +260,16 @@ public final class GraphHopperGtfs implements GraphHopperAPI {
     }
 
     public GraphHopperGtfs(PtFlagEncoder flagEncoder, TranslationMap translationMap, GraphHopperStorage graphHopperStorage, LocationIndex locationIndex, GtfsStorage gtfsStorage, RealtimeFeed realtimeFeed) {
+        this(flagEncoder, translationMap, graphHopperStorage, locationIndex, gtfsStorage, () -> realtimeFeed);
+    }
+
+    private GraphHopperGtfs(PtFlagEncoder flagEncoder, TranslationMap translationMap, GraphHopperStorage graphHopperStorage, LocationIndex locationIndex, GtfsStorage gtfsStorage, Supplier<RealtimeFeed> realtimeFeeds) {
         this.flagEncoder = flagEncoder;
         this.translationMap = translationMap;
         this.graphHopperStorage = graphHopperStorage;
         this.locationIndex = locationIndex;
         this.gtfsStorage = gtfsStorage;
-        this.realtimeFeed = realtimeFeed;
+        this.realtimeFeeds = realtimeFeeds;
         this.tripFromLabel = new TripFromLabel(this.gtfsStorage);
     }
 
@@ -223,8 +303,8 @@ public final class GraphHopperGtfs implements GraphHopperAPI {
             }
             int id = 0;
             for (String gtfsFile : gtfsFiles) {
-                try {
-                    ((GtfsStorage) graphHopperStorage.getExtension()).loadGtfsFromFile("gtfs_" + id++, new ZipFile(gtfsFile));
+                try (ZipFile zip = new ZipFile(gtfsFile)) {
+                    ((GtfsStorage) graphHopperStorage.getExtension()).loadGtfsFromFile("gtfs_" + id++, zip);
                 } catch (IOException e) {
                     throw new RuntimeException(e);
                 }
@@ -247,6 +327,50 @@ public final class GraphHopperGtfs implements GraphHopperAPI {
     }
 
 
+    /**
+     * Updates the graph in the directory to a new version of its single feed, touching only the trips
+     * which changed. If the graph can't be updated, or there is none yet, it is built from scratch.
+     */
+    public static GraphHopperStorage createOrUpdate(GHDirectory directory, EncodingManager encodingManager, PtFlagEncoder ptFlagEncoder, String gtfsFile) {
+        GraphHopperStorage graphHopperStorage = new GraphHopperStorage(directory, encodingManager, false, new GtfsStorage(true));
+        if (graphHopperStorage.loadExisting()) {
+            GtfsStorage gtfsStorage = (GtfsStorage) graphHopperStorage.getExtension();
+            boolean updated = false;
+            boolean served = false;
+            try {
+                GTFSFeed next;
+                try (ZipFile zip = new ZipFile(gtfsFile)) {
+                    next = gtfsStorage.loadNextGtfsFromFile("gtfs_0", zip);
+                } catch (IOException e) {
+                    throw new RuntimeException(e);
+                }
+                try {
+                    updated = new GtfsReader("gtfs_0", graphHopperStorage, new EmptyLocationIndex()).updateGraph(next, MAX_CHANGED_SHARE);
+                } finally {
+                    if (!updated) {
+                        gtfsStorage.discardGtfsFeed("gtfs_0", next);
+                    }
+                }
+                if (updated) {
+                    gtfsStorage.replaceGtfsFeed("gtfs_0", next);
+                    graphHopperStorage.flush();
+                    LocationIndex locationIndex = new LocationIndexTree(graphHopperStorage, directory).prepareIndex();
+                    locationIndex.flush();
+                    locationIndex.close();
+                    served = true;
+                    return graphHopperStorage;
+                }
+            } finally {
+                // also if reading the feed or updating the graph failed
+                if (!served) {
+                    graphHopperStorage.close();
+                }
+            }
+            Helper.removeDir(new File(directory.getLocation()));
+        }
+        return createOrLoad(directory, encodingManager, ptFlagEncoder, createGtfsStorage(), false, Collections.singletonList(gtfsFile), Collections.emptyList());
+    }
+
     public static LocationIndex createOrLoadIndex(GHDirectory directory, GraphHopperStorage graphHopperStorage) {
         LocationIndex locationIndex = new LocationIndexTree(graphHopperStorage, directory);
         if (!locationIndex.loadExisting()) {
@@ -0,0 +1,153 @@
+/*
+ *  Licensed to GraphHopper GmbH under one or more contributor
+ *  license agreements. See the NOTICE file distributed with this work for
+ *  additional information regarding copyright ownership.
+ *
+ *  GraphHopper GmbH licenses this file to you under the Apache License,
+ *  Version 2.0 (the "License"); you may not use this file except in
+ *  compliance with the License. You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.graphhopper.reader.gtfs;
+
+import com.conveyal.gtfs.GTFSFeed;
+import com.conveyal.gtfs.model.*;
+
+import java.time.LocalDate;
+import java.util.*;
+import java.util.function.Function;
+
+/**
+ * What changed between two versions of a feed, as far as the graph is concerned.
+ * <p>
+ * Trips are compared by route, headsign, block, frequencies and stop times. A trip which differs
+ * in any of these counts as removed and added again. Calendars only decide on which days trips run,
+ * so a trip whose service changed only needs new validities. Everything else which ends up in the
+ * graph, i.e. agencies, routes, stops and transfers, has to be the same, or we can't update the
+ * graph and have to build it again.
+ */
+final class GtfsFeedDiff {
+
+    final Set<String> removedTrips = new HashSet<>();
+    final Set<String> addedTrips = new HashSet<>();
+    final Set<String> revalidatedTrips = new HashSet<>();
+    /**
+     * Why the graph can't be updated, or null if it can.
+     */
+    String incompatibility;
+
+    private GtfsFeedDiff() {
+    }
+
+    static GtfsFeedDiff compute(GTFSFeed previous, GTFSFeed next) {
+        final GtfsFeedDiff diff = new GtfsFeedDiff();
+        if (!sameEntries(previous.agency, next.agency, agency -> agency.agency_timezone)) {
+            diff.incompatibility = "agencies changed";
+        } else if (!sameEntries(previous.routes, next.routes, route -> Arrays.asList(route.agency_id, route.route_short_name, route.route_long_name))) {
+            diff.incompatibility = "routes changed";
+        } else if (!sameEntries(previous.stops, next.stops, stop -> Arrays.asList(stop.stop_name, stop.stop_lat, stop.stop_lon, stop.location_type, stop.parent_station))) {
+            diff.incompatibility = "stops changed";
+        } else if (!transfers(previous).equals(transfers(next))) {
+            diff.incompatibility = "transfers changed";
+        } else {
+            diff.compareTrips(previous, next);
+        }
+        return diff;
+    }
+
+    private void compareTrips(GTFSFeed previous, GTFSFeed next) {
+        final LocalDate previousStartDate = previous.calculateStats().getStartDate();
+        final LocalDate previousEndDate = previous.calculateStats().getEndDate();
+        final LocalDate startDate = next.calculateStats().getStartDate();
+        final LocalDate endDate = next.calculateStats().getEndDate();
+        final Set<String> changedServices = new HashSet<>();
+        for (Service service : next.services.values()) {
+            final Service previousService = previous.services.get(service.service_id);
+            if (!previousStartDate.equals(startDate) || previousService == null
+                    || !activeDays(previousService, previousStartDate, previousEndDate).equals(activeDays(service, startDate, endDate))) {
+                changedServices.add(service.service_id);
+            }
+        }
+        for (String tripId : previous.trips.keySet()) {
+            if (!next.trips.containsKey(tripId)) {
+                removedTrips.add(tripId);
+            }
+        }
+        for (Trip trip : next.trips.values()) {
+            final Trip previousTrip = previous.trips.get(trip.trip_id);
+            if (previousTrip == null) {
+                addedTrips.add(trip.trip_id);
+            } else if (!describe(previous, previousTrip).equals(describe(next, trip))) {
+                removedTrips.add(trip.trip_id);
+                addedTrips.add(trip.trip_id);
+            } else if (!trip.service_id.equals(previousTrip.service_id) || changedServices.contains(trip.service_id)) {
+                revalidatedTrips.add(trip.trip_id);
+            }
+        }
+        for (String tripId : addedTrips) {
+            if (next.trips.get(tripId).block_id != null) {
+                incompatibility = "trip " + tripId + " in block " + next.trips.get(tripId).block_id + " changed";
+                return;
+            }
+        }
+    }
+
+    private static List<Object> describe(GTFSFeed feed, Trip trip) {
+        final List<Object> result = new ArrayList<>(Arrays.asList(trip.route_id, trip.trip_headsign, trip.block_id));
+        for (Frequency frequency : feed.getFrequencies(trip.trip_id)) {
+            result.add(Arrays.asList(frequency.start_time, frequency.end_time, frequency.headway_secs));
+        }
+        try {
+            for (StopTime stopTime : feed.getInterpolatedStopTimesForTrip(trip.trip_id)) {
+                result.add(Arrays.asList(stopTime.stop_id, stopTime.stop_sequence, stopTime.arrival_time, stopTime.departure_time));
+            }
+        } catch (GTFSFeed.FirstAndLastStopsDoNotHaveTimes e) {
+            throw new RuntimeException(e);
+        }
+        return result;
+    }
+
+    /**
+     * The days the service runs, counted from the start of the feed, as the validities are.
+     */
+    private static BitSet activeDays(Service service, LocalDate startDate, LocalDate endDate) {
+        final BitSet result = new BitSet();
+        int day = 0;
+        for (LocalDate date = startDate; !date.isAfter(endDate); date = date.plusDays(1)) {
+            if (service.activeOn(date)) {
+                result.set(day);
+            }
+            day++;
+        }
+        return result;
+    }
+
+    private static Set<List<Object>> transfers(GTFSFeed feed) {
+        final Set<List<Object>> result = new HashSet<>();
+        for (Transfer transfer : feed.transfers.values()) {
+            result.add(Arrays.asList(transfer.from_stop_id, transfer.to_stop_id, transfer.from_route_id, transfer.to_route_id,
+                    transfer.transfer_type, transfer.min_transfer_time));
+        }
+        return result;
+    }
+
+    private static <T> boolean sameEntries(Map<String, T> previous, Map<String, T> next, Function<T, Object> attributes) {
+        if (!previous.keySet().equals(next.keySet())) {
+            return false;
+        }
+        for (Map.Entry<String, T> entry : next.entrySet()) {
+            if (!Objects.equals(attributes.apply(previous.get(entry.getKey())), attributes.apply(entry.getValue()))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+}
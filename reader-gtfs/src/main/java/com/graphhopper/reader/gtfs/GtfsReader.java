@@ -19,17 +19,17 @@
 package com.graphhopper.reader.gtfs;
 
 import com.carrotsearch.hppc.IntArrayList;
+import com.carrotsearch.hppc.IntHashSet;
 import com.conveyal.gtfs.GTFSFeed;
 import com.conveyal.gtfs.model.*;
-import com.google.common.collect.HashMultimap;
-import com.google.common.collect.SetMultimap;
-import com.google.transit.realtime.GtfsRealtime;
 import com.graphhopper.routing.util.EdgeFilter;
 import com.graphhopper.storage.GraphHopperStorage;
 import com.graphhopper.storage.NodeAccess;
 import com.graphhopper.storage.index.LocationIndex;
 import com.graphhopper.storage.index.QueryResult;
 import com.graphhopper.util.DistanceCalc;
+import com.graphhopper.util.EdgeExplorer;
+import com.graphhopper.util.EdgeIterator;
 import com.graphhopper.util.EdgeIteratorState;
 import com.graphhopper.util.Helper;
 import gnu.trove.map.hash.TIntIntHashMap;
@@ -40,6 +40,8 @@ import org.slf4j.LoggerFactory;
 import java.time.LocalDate;
 import java.time.ZoneId;
 import java.util.*;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
 import java.util.stream.Collectors;
 
 import static java.time.temporal.ChronoUnit.DAYS;
@@ -58,18 +60,63 @@ class GtfsReader {
         }
     }
 
-    private static class TimelineNodeIdWithTripId {
-        final String tripId;
-        final int timelineNodeId;
+    /**
+     * A trip with everything the feed has to say about it, read by a worker thread. Only putting
+     * it into the graph is left, which happens on one thread, in a fixed order.
+     */
+    private static class TripPlan {
+        final Trip trip;
+        final List<StopTime> stopTimes;
+        final BitSet validOnDay;
+        final ZoneId zoneId;
+        final String routeName;
 
-        private TimelineNodeIdWithTripId(int timelineNodeId, String tripId) {
-            this.tripId = tripId;
-            this.timelineNodeId = timelineNodeId;
+        private TripPlan(Trip trip, List<StopTime> stopTimes, BitSet validOnDay, ZoneId zoneId, String routeName) {
+            this.trip = trip;
+            this.stopTimes = stopTimes;
+            this.validOnDay = validOnDay;
+            this.zoneId = zoneId;
+            this.routeName = routeName;
+        }
+    }
+
+    private static class BlockPlan {
+        final List<TripPlan> trips;
+        final Collection<Frequency> frequencies;
+
+        private BlockPlan(List<TripPlan> trips, Collection<Frequency> frequencies) {
+            this.trips = trips;
+            this.frequencies = frequencies;
+        }
+    }
+
+    /**
+     * A stop of a trip given by frequencies, which is put into the graph once, for its first run.
+     */
+    private static class FrequencyStopTime {
+        final String routeId;
+        final int departureTimelineNode;
+        final int arrivalTimelineNode;
+        final int headway;
+        final int lastRunOffset;
+
+        private FrequencyStopTime(String routeId, int departureTimelineNode, int arrivalTimelineNode, Frequency frequency) {
+            this.routeId = routeId;
+            this.departureTimelineNode = departureTimelineNode;
+            this.arrivalTimelineNode = arrivalTimelineNode;
+            this.headway = frequency.headway_secs;
+            this.lastRunOffset = (frequency.end_time - 1 - frequency.start_time) / frequency.headway_secs * frequency.headway_secs;
         }
     }
 
     private static final Logger LOGGER = LoggerFactory.getLogger(GtfsReader.class);
 
+    /**
+     * How many blocks are read ahead by the worker threads, which bounds how many trips are held in
+     * memory at a time.
+     */
+    private static final int BLOCKS_PER_BATCH = 10000;
+
     private static final Frequency SINGLE_FREQUENCY = new Frequency();
     static {
         SINGLE_FREQUENCY.start_time = 0;
@@ -87,11 +134,20 @@ class GtfsReader {
     private final String id;
     private int i;
     private GTFSFeed feed;
-    private final TIntIntHashMap times = new TIntIntHashMap();
-    private final SetMultimap<String, TimelineNodeIdWithTripId> departureTimelineNodes = HashMultimap.create();
-    private final SetMultimap<String, TimelineNodeIdWithTripId> arrivalTimelineNodes = HashMultimap.create();
+    /**
+     * The times of the nodes we add, by node minus the first one.
+     */
+    private final IntArrayList times = new IntArrayList();
+    private int firstNode;
+    private final TimelineNodes departureTimelineNodes = new TimelineNodes();
+    private final TimelineNodes arrivalTimelineNodes = new TimelineNodes();
+    private final Map<String, List<FrequencyStopTime>> frequencyStopTimes = new HashMap<>();
     private Collection<EnterAndExitNodeIdWithStopId> stopEnterAndExitNodes = new ArrayList<>();
     private final PtFlagEncoder encoder;
+    private int workerThreads = Runtime.getRuntime().availableProcessors();
+    private boolean pruneDominatedTransfers = true;
+    private int transferEdges;
+    private int dominatedTransferEdges;
 
     GtfsReader(String id, GraphHopperStorage ghStorage, LocationIndex walkNetworkIndex) {
         this.id = id;
@@ -102,11 +158,26 @@ class GtfsReader {
         this.encoder = (PtFlagEncoder) graph.getEncodingManager().getEncoder("pt");
     }
 
+    /**
+     * The number of threads reading trips from the feed. The graph is the same for any number.
+     */
+    void setWorkerThreads(int workerThreads) {
+        this.workerThreads = workerThreads;
+    }
+
+    /**
+     * Whether to leave out the transfers which no journey needs, see {@link #insertInboundTransfers(String, String, int, long[])}.
+     */
+    void setPruneDominatedTransfers(boolean pruneDominatedTransfers) {
+        this.pruneDominatedTransfers = pruneDominatedTransfers;
+    }
+
     public void readGraph() {
         feed = this.gtfsStorage.getGtfsFeeds().get(id);
         transfers = new Transfers(feed);
         gtfsStorage.getFares().putAll(feed.fares);
         i = graph.getNodes();
+        firstNode = i;
         buildPtNetwork();
         EdgeFilter filter = new EverythingButPt(encoder);
         for (EnterAndExitNodeIdWithStopId entry : stopEnterAndExitNodes) {
@@ -130,199 +201,685 @@ class GtfsReader {
                 setEdgeType(exitEdge, GtfsStorage.EdgeType.EXIT_PT);
                 exitEdge.setName(stop.stop_name);
             }
-            gtfsStorage.getStationNodes().put(entry.stopId, streetNode);
+            gtfsStorage.putStationNode(entry.stopId, streetNode);
+        }
+    }
+
+    /**
+     * Brings a graph built from the feed with our id up to date with the next version of it. Only what changed is touched: trips which
+     * are gone, or whose stop times changed, get a validity which is never valid, trips whose
+     * calendar changed get new validities, and new trips are added to the timelines of their stops.
+     * <p>
+     * Nothing is taken out of the graph. Wait edges which skip a new departure stay, as waiting
+     * past it is still possible, and so do transfers to a departure which is no longer the first
+     * one after an arrival.
+     *
+     * @return false, without having changed anything, if the feeds differ in more than trips and
+     * calendars, or in more than the given share of trips, or if a new or changed trip is given by
+     * frequencies. The graph has to be built from scratch then.
+     */
+    boolean updateGraph(GTFSFeed next, double maxChangedShare) {
+        final GTFSFeed previous = this.gtfsStorage.getGtfsFeeds().get(id);
+        feed = next;
+        final GtfsFeedDiff diff = GtfsFeedDiff.compute(previous, feed);
+        if (diff.incompatibility != null) {
+            LOGGER.info("Cannot update the graph, {}.", diff.incompatibility);
+            return false;
+        }
+        if (diff.addedTrips.size() > maxChangedShare * feed.trips.size()) {
+            LOGGER.info("Cannot update the graph, {} of {} trips changed.", diff.addedTrips.size(), feed.trips.size());
+            return false;
+        }
+        final Map<Fun.Tuple2<String, String>, Integer> stopEnterNodes = new HashMap<>();
+        final Map<Fun.Tuple2<String, String>, Integer> stopExitNodes = new HashMap<>();
+        findStopEnterAndExitNodes(previous, stopEnterNodes, stopExitNodes);
+        for (String tripId : diff.addedTrips) {
+            if (!feed.getFrequencies(tripId).isEmpty()) {
+                // They have timelines of their own, which only the full build creates.
+                LOGGER.info("Cannot update the graph, trip {} is given by frequencies.", tripId);
+                return false;
+            }
+            final String routeId = feed.trips.get(tripId).route_id;
+            for (StopTime stopTime : getInterpolatedStopTimesForTrip(tripId)) {
+                final Fun.Tuple2<String, String> stopAndRoute = new Fun.Tuple2<>(stopTime.stop_id, routeId);
+                if (!stopEnterNodes.containsKey(stopAndRoute) || !stopExitNodes.containsKey(stopAndRoute)) {
+                    LOGGER.info("Cannot update the graph, route {} doesn't stop at {} yet.", routeId, stopTime.stop_id);
+                    return false;
+                }
+            }
+        }
+        LOGGER.info("Updating the graph: {} trips removed or changed, {} added or changed, {} with changed calendar.",
+                diff.removedTrips.size(), diff.addedTrips.size(), diff.revalidatedTrips.size());
+        transfers = new Transfers(feed);
+        gtfsStorage.getFares().clear();
+        gtfsStorage.getFares().putAll(feed.fares);
+        i = graph.getNodes();
+        firstNode = i;
+        final int firstNewNode = i;
+        final LocalDate startDate = feed.calculateStats().getStartDate();
+        final LocalDate endDate = feed.calculateStats().getEndDate();
+        updateValidities(diff, startDate, endDate);
+        for (String tripId : diff.addedTrips) {
+            addTrip(planTrip(feed.trips.get(tripId), startDate, endDate), 0, null, startDate, new ArrayList<>(), new IntArrayList(), new IntArrayList());
+        }
+        departureTimelineNodes.sort();
+        arrivalTimelineNodes.sort();
+        // Transfers from the arrivals we had to the new departures, before the new arrivals are in.
+        for (String stopId : departureTimelineNodes.getStopIds()) {
+            final Stop stop = feed.stops.get(stopId);
+            departureTimelineNodes.forEachRoute(stopId, (routeId, timelineNodes) -> {
+                final int stopEnterNode = stopEnterNodes.get(new Fun.Tuple2<>(stopId, routeId));
+                GtfsStorage.Timeline timeline = gtfsStorage.getDepartureTimeline(stopEnterNode);
+                for (long timeNode : toTimeline(timelineNodes)) {
+                    timeline = insertDeparture(stop, stopEnterNode, timeline, TimelineNodes.lower(timeNode));
+                }
+                gtfsStorage.putDepartureTimeline(stopEnterNode, timeline);
+                for (Transfer transfer : getInboundTransfers(stop, routeId)) {
+                    insertInboundTransfers(stopExitNodes, transfer, timeline, firstNewNode);
+                }
+            });
+        }
+        for (String stopId : arrivalTimelineNodes.getStopIds()) {
+            final Stop stop = feed.stops.get(stopId);
+            arrivalTimelineNodes.forEachRoute(stopId, (routeId, timelineNodes) -> {
+                final int stopExitNode = stopExitNodes.get(new Fun.Tuple2<>(stopId, routeId));
+                GtfsStorage.Timeline timeline = gtfsStorage.getArrivalTimeline(stopExitNode);
+                for (long timeNode : toTimeline(timelineNodes)) {
+                    timeline = insertArrival(stop, stopExitNode, timeline, TimelineNodes.lower(timeNode));
+                }
+                gtfsStorage.putArrivalTimeline(stopExitNode, timeline);
+            });
+        }
+        // Transfers from the new arrivals, to all departures.
+        final Map<String, List<Fun.Tuple2<Transfer, Integer>>> outboundTransfers = new HashMap<>();
+        stopEnterNodes.forEach((stopAndRoute, stopEnterNode) -> {
+            for (Transfer transfer : getInboundTransfers(feed.stops.get(stopAndRoute.a), stopAndRoute.b)) {
+                outboundTransfers.computeIfAbsent(transfer.from_stop_id, stopId -> new ArrayList<>()).add(new Fun.Tuple2<>(transfer, stopEnterNode));
+            }
+        });
+        for (String stopId : arrivalTimelineNodes.getStopIds()) {
+            arrivalTimelineNodes.forEachRoute(stopId, (routeId, timelineNodes) -> {
+                for (Fun.Tuple2<Transfer, Integer> transfer : outboundTransfers.getOrDefault(stopId, Collections.emptyList())) {
+                    if (transfer.a.from_route_id == null || transfer.a.from_route_id.equals(routeId)) {
+                        for (int timelineNode : timelineNodes) {
+                            insertTransfer(timelineNode, getTime(timelineNode), transfer.a.min_transfer_time, gtfsStorage.getDepartureTimeline(transfer.b));
+                        }
+                    }
+                }
+            });
+        }
+        return true;
+    }
+
+    /**
+     * The stop enter and exit nodes by stop and route, found from the station nodes. Which stop and
+     * route a timeline is for, we learn from the first trip on it.
+     */
+    private void findStopEnterAndExitNodes(GTFSFeed previous, Map<Fun.Tuple2<String, String>, Integer> stopEnterNodes, Map<Fun.Tuple2<String, String>, Integer> stopExitNodes) {
+        final EdgeExplorer explorer = graph.createEdgeExplorer();
+        for (int stationNode : new HashSet<>(gtfsStorage.getStationNodes().values())) {
+            final EdgeIterator edges = explorer.setBaseNode(stationNode);
+            while (edges.next()) {
+                final GtfsStorage.EdgeType edgeType = encoder.getEdgeType(edges.getFlags());
+                if (edgeType == GtfsStorage.EdgeType.ENTER_PT) {
+                    final int stopEnterNode = edges.getAdjNode();
+                    final GtfsStorage.Timeline timeline = gtfsStorage.getDepartureTimeline(stopEnterNode);
+                    if (timeline.isFrequencyBased()) {
+                        // Runs are found at query time, nothing to insert into.
+                        continue;
+                    }
+                    final int timelineNode = timeline.timeNode(0);
+                    stopEnterNodes.put(getStopAndRoute(previous, explorer, timelineNode, GtfsStorage.EdgeType.BOARD), stopEnterNode);
+                } else if (edgeType == GtfsStorage.EdgeType.EXIT_PT) {
+                    final int stopExitNode = edges.getAdjNode();
+                    final GtfsStorage.Timeline timeline = gtfsStorage.getArrivalTimeline(stopExitNode);
+                    if (timeline.isFrequencyBased()) {
+                        continue;
+                    }
+                    final int timelineNode = timeline.timeNode(0);
+                    stopExitNodes.put(getStopAndRoute(previous, explorer, timelineNode, GtfsStorage.EdgeType.ALIGHT), stopExitNode);
+                }
+            }
+        }
+    }
+
+    private Fun.Tuple2<String, String> getStopAndRoute(GTFSFeed previous, EdgeExplorer explorer, int timelineNode, GtfsStorage.EdgeType edgeType) {
+        final EdgeIterator edges = explorer.setBaseNode(timelineNode);
+        while (edges.next()) {
+            if (encoder.getEdgeType(edges.getFlags()) == edgeType) {
+                final String tripId = gtfsStorage.getTripId(edges.getEdge());
+                final StopTime stopTime = previous.stop_times.get(new Fun.Tuple2<>(tripId, gtfsStorage.getStopSequence(edges.getEdge())));
+                return new Fun.Tuple2<>(stopTime.stop_id, previous.trips.get(tripId).route_id);
+            }
+        }
+        throw new IllegalStateException("No " + edgeType + " edge at timeline node " + timelineNode);
+    }
+
+    /**
+     * Removed trips get a validity which is never valid, trips with a new calendar their new one.
+     * Only the edges which were there before are looked at, as added trips may have the same ids.
+     */
+    private void updateValidities(GtfsFeedDiff diff, LocalDate startDate, LocalDate endDate) {
+        final int neverValid = getValidityId(new GtfsStorage.Validity(new BitSet(), ZoneId.of(feed.agency.values().iterator().next().agency_timezone), startDate));
+        final Map<String, TIntIntHashMap> validityIdsByTrip = new HashMap<>();
+        final int nEdges = graph.getAllEdges().getMaxId();
+        for (int edge = 0; edge < nEdges; edge++) {
+            final int trip = gtfsStorage.getTrip(edge);
+            if (trip == IntColumn.NONE) {
+                continue;
+            }
+            final String tripId = gtfsStorage.getTripIdOfTrip(trip);
+            final int validityId;
+            if (diff.removedTrips.contains(tripId)) {
+                validityId = neverValid;
+            } else if (diff.revalidatedTrips.contains(tripId)) {
+                validityId = validityIdsByTrip.computeIfAbsent(tripId, t -> getValidityIdsByStopSequence(feed.trips.get(t), startDate, endDate))
+                        .get(gtfsStorage.getStopSequence(edge));
+            } else {
+                continue;
+            }
+            final EdgeIteratorState edgeIteratorState = graph.getEdgeIteratorState(edge, Integer.MIN_VALUE);
+            edgeIteratorState.setFlags(encoder.setValidityId(edgeIteratorState.getFlags(), validityId));
+        }
+    }
+
+    private TIntIntHashMap getValidityIdsByStopSequence(Trip trip, LocalDate startDate, LocalDate endDate) {
+        final BitSet validOnDay = getValidOnDay(trip, startDate, endDate);
+        final ZoneId zoneId = ZoneId.of(feed.agency.get(feed.routes.get(trip.route_id).agency_id).agency_timezone);
+        final TIntIntHashMap result = new TIntIntHashMap();
+        for (StopTime stopTime : getInterpolatedStopTimesForTrip(trip.trip_id)) {
+            int dayShift = stopTime.departure_time / (24 * 60 * 60);
+            result.put(stopTime.stop_sequence, getValidityId(new GtfsStorage.Validity(getValidOn(validOnDay, dayShift), zoneId, startDate)));
+        }
+        return result;
+    }
+
+    /**
+     * The nodes with their time of day, sorted by that and then by node.
+     */
+    private long[] toTimeline(int[] timelineNodes) {
+        final long[] result = new long[timelineNodes.length];
+        for (int j = 0; j < timelineNodes.length; j++) {
+            result[j] = TimelineNodes.pack(getTime(timelineNodes[j]) % (24 * 60 * 60), timelineNodes[j]);
+        }
+        Arrays.sort(result);
+        return result;
+    }
+
+    private int getTime(int node) {
+        return times.get(node - firstNode);
+    }
+
+    private void setTime(int node, int time) {
+        if (node - firstNode >= times.size()) {
+            times.resize(node - firstNode + 1);
+        }
+        times.set(node - firstNode, time);
+    }
+
+    private GtfsStorage.Timeline insertDeparture(Stop stop, int stopEnterNode, GtfsStorage.Timeline timeline, int timelineNode) {
+        final int time = getTime(timelineNode) % (24 * 60 * 60);
+        // behind those at the same time, as it has the highest node id
+        final int k = timeline.firstNotBefore(time + 1);
+        final int n = timeline.size();
+        EdgeIteratorState enterTimeExpandedNetworkEdge = graph.edge(stopEnterNode, timelineNode, 0.0, false);
+        enterTimeExpandedNetworkEdge.setName(stop.stop_name);
+        setEdgeType(enterTimeExpandedNetworkEdge, GtfsStorage.EdgeType.ENTER_TIME_EXPANDED_NETWORK);
+        enterTimeExpandedNetworkEdge.setFlags(encoder.setTime(enterTimeExpandedNetworkEdge.getFlags(), time));
+        enterTimeExpandedNetworkEdge.setFlags(encoder.setValidityId(enterTimeExpandedNetworkEdge.getFlags(), timeline.timeZoneId));
+        if (k > 0) {
+            insertWait(stop, GtfsStorage.EdgeType.WAIT, timeline.timeNode(k - 1), timelineNode, time - timeline.time(k - 1));
+        } else {
+            insertWait(stop, GtfsStorage.EdgeType.OVERNIGHT, timeline.timeNode(n - 1), timelineNode, 24 * 60 * 60 - timeline.time(n - 1) + time);
+        }
+        if (k < n) {
+            insertWait(stop, GtfsStorage.EdgeType.WAIT, timelineNode, timeline.timeNode(k), timeline.time(k) - time);
+        } else {
+            insertWait(stop, GtfsStorage.EdgeType.OVERNIGHT, timelineNode, timeline.timeNode(0), 24 * 60 * 60 - time + timeline.time(0));
+        }
+        return insert(timeline, k, time, enterTimeExpandedNetworkEdge.getEdge(), timelineNode);
+    }
+
+    private GtfsStorage.Timeline insertArrival(Stop stop, int stopExitNode, GtfsStorage.Timeline timeline, int timelineNode) {
+        final int time = getTime(timelineNode) % (24 * 60 * 60);
+        final int k = timeline.firstNotBefore(time + 1);
+        EdgeIteratorState leaveTimeExpandedNetworkEdge = graph.edge(timelineNode, stopExitNode, 0.0, false);
+        setEdgeType(leaveTimeExpandedNetworkEdge, GtfsStorage.EdgeType.LEAVE_TIME_EXPANDED_NETWORK);
+        leaveTimeExpandedNetworkEdge.setFlags(encoder.setTime(leaveTimeExpandedNetworkEdge.getFlags(), time));
+        leaveTimeExpandedNetworkEdge.setFlags(encoder.setValidityId(leaveTimeExpandedNetworkEdge.getFlags(), timeline.timeZoneId));
+        if (k > 0) {
+            insertWait(stop, GtfsStorage.EdgeType.WAIT_ARRIVAL, timeline.timeNode(k - 1), timelineNode, time - timeline.time(k - 1));
+        }
+        if (k < timeline.size()) {
+            insertWait(stop, GtfsStorage.EdgeType.WAIT_ARRIVAL, timelineNode, timeline.timeNode(k), timeline.time(k) - time);
+        }
+        return insert(timeline, k, time, leaveTimeExpandedNetworkEdge.getEdge(), timelineNode);
+    }
+
+    private void insertWait(Stop stop, GtfsStorage.EdgeType edgeType, int from, int to, int time) {
+        EdgeIteratorState edge = graph.edge(from, to, 0.0, false);
+        setEdgeType(edge, edgeType);
+        edge.setName(stop.stop_name);
+        edge.setFlags(encoder.setTime(edge.getFlags(), time));
+    }
+
+    private static GtfsStorage.Timeline insert(GtfsStorage.Timeline timeline, int k, int time, int edge, int timelineNode) {
+        final int n = timeline.size();
+        final int[] times = new int[n + 1];
+        final int[] edges = new int[n + 1];
+        final int[] timeNodes = new int[n + 1];
+        for (int i = 0; i < n; i++) {
+            final int j = i < k ? i : i + 1;
+            times[j] = timeline.time(i);
+            edges[j] = timeline.edge(i);
+            timeNodes[j] = timeline.timeNode(i);
+        }
+        times[k] = time;
+        edges[k] = edge;
+        timeNodes[k] = timelineNode;
+        return new GtfsStorage.Timeline(timeline.timeZoneId, times, edges, timeNodes);
+    }
+
+    /**
+     * The transfers into the departures of a route at a stop, as the full build inserts them: from
+     * all arrivals at the same stop, unless there is a rule for that, and then by the rules.
+     */
+    private List<Transfer> getInboundTransfers(Stop toStop, String toRouteId) {
+        final List<Transfer> result = new ArrayList<>();
+        final List<Transfer> rules = transfers.getTransfersToStop(toStop, toRouteId);
+        if (rules.stream().noneMatch(t -> t.from_stop_id.equals(toStop.stop_id))) {
+            final Transfer withinStation = new Transfer();
+            withinStation.from_stop_id = toStop.stop_id;
+            withinStation.to_stop_id = toStop.stop_id;
+            withinStation.min_transfer_time = 0;
+            result.add(withinStation);
+        }
+        result.addAll(rules);
+        return result;
+    }
+
+    /**
+     * From the arrivals we had before at the stop a transfer comes from, to a new departure if that
+     * is now the first one they can make.
+     */
+    private void insertInboundTransfers(Map<Fun.Tuple2<String, String>, Integer> stopExitNodes, Transfer transfer, GtfsStorage.Timeline toTimeline, int firstNewNode) {
+        stopExitNodes.forEach((stopAndRoute, stopExitNode) -> {
+            if (stopAndRoute.a.equals(transfer.from_stop_id) && (transfer.from_route_id == null || transfer.from_route_id.equals(stopAndRoute.b))) {
+                final GtfsStorage.Timeline fromTimeline = gtfsStorage.getArrivalTimeline(stopExitNode);
+                for (int j = 0; j < fromTimeline.size(); j++) {
+                    final int k = toTimeline.firstNotBefore(fromTimeline.time(j) + transfer.min_transfer_time);
+                    if (k < toTimeline.size() && toTimeline.timeNode(k) >= firstNewNode) {
+                        EdgeIteratorState edge = graph.edge(fromTimeline.timeNode(j), toTimeline.timeNode(k), 0.0, false);
+                        setEdgeType(edge, GtfsStorage.EdgeType.TRANSFER);
+                        edge.setFlags(encoder.setTime(edge.getFlags(), toTimeline.time(k) - fromTimeline.time(j)));
+                    }
+                }
+            }
+        });
+    }
+
+    private void insertTransfer(int arrivalTimelineNode, int arrivalTime, int minimumTransferTime, GtfsStorage.Timeline toTimeline) {
+        final int k = toTimeline.firstNotBefore(arrivalTime + minimumTransferTime);
+        if (k < toTimeline.size()) {
+            EdgeIteratorState edge = graph.edge(arrivalTimelineNode, toTimeline.timeNode(k), 0.0, false);
+            setEdgeType(edge, GtfsStorage.EdgeType.TRANSFER);
+            edge.setFlags(encoder.setTime(edge.getFlags(), toTimeline.time(k) - arrivalTime));
         }
     }
 
     private void buildPtNetwork() {
         LocalDate startDate = feed.calculateStats().getStartDate();
         LocalDate endDate = feed.calculateStats().getEndDate();
-        HashMultimap<String, Trip> blockTrips = HashMultimap.create();
+        // sorted, so that the order in which trips get their nodes depends on nothing but the feed
+        TreeMap<String, List<Trip>> blockTrips = new TreeMap<>();
         for (Trip trip : feed.trips.values()) {
             if (trip.block_id != null) {
-                blockTrips.put(trip.block_id, trip);
+                blockTrips.computeIfAbsent(trip.block_id, blockId -> new ArrayList<>()).add(trip);
             } else {
-                blockTrips.put("non-block-trip"+trip.trip_id, trip);
+                blockTrips.put("non-block-trip"+trip.trip_id, Collections.singletonList(trip));
             }
         }
-        blockTrips.asMap().values().forEach(unsortedTrips -> {
-            ArrayList<Trip> trips = new ArrayList<>(unsortedTrips);
-            trips.sort(Comparator.comparingInt(trip -> getInterpolatedStopTimesForTrip(trip.trip_id).iterator().next().departure_time));
-            if (trips.stream().map(trip -> feed.getFrequencies(trip.trip_id)).distinct().count() != 1) {
-                throw new RuntimeException("Found a block with frequency-based trips. Not supported.");
-            }
-            Collection<Frequency> frequencies = feed.getFrequencies(trips.iterator().next().trip_id);
-            for (Frequency frequency : (frequencies.isEmpty() ? Collections.singletonList(SINGLE_FREQUENCY) : frequencies)) {
-                for (int time = frequency.start_time; time < frequency.end_time; time += frequency.headway_secs) {
-                    List<Integer> arrivalNodes = new ArrayList<>();
-                    IntArrayList boardEdges = new IntArrayList();
-                    IntArrayList alightEdges = new IntArrayList();
-                    for (Trip trip : trips) {
-                        Service service = feed.services.get(trip.service_id);
-                        BitSet validOnDay = new BitSet((int) DAYS.between(startDate, endDate));
-                        for (LocalDate date = startDate; !date.isAfter(endDate); date = date.plusDays(1)) {
-                            if (service.activeOn(date)) {
-                                validOnDay.set((int) DAYS.between(startDate, date));
+        List<List<Trip>> blocks = new ArrayList<>(blockTrips.values());
+        ForkJoinPool pool = new ForkJoinPool(workerThreads);
+        try {
+            for (int from = 0; from < blocks.size(); from += BLOCKS_PER_BATCH) {
+                List<List<Trip>> batch = blocks.subList(from, Math.min(from + BLOCKS_PER_BATCH, blocks.size()));
+                List<BlockPlan> blockPlans = pool.submit(() -> batch.parallelStream()
+                        .map(trips -> planBlock(trips, startDate, endDate))
+                        .collect(Collectors.toList())).get();
+                for (BlockPlan blockPlan : blockPlans) {
+                    for (Frequency frequency : (blockPlan.frequencies.isEmpty() ? Collections.singletonList(SINGLE_FREQUENCY) : blockPlan.frequencies)) {
+                        if (isCompact(blockPlan, frequency)) {
+                            List<Integer> arrivalNodes = new ArrayList<>();
+                            IntArrayList boardEdges = new IntArrayList();
+                            IntArrayList alightEdges = new IntArrayList();
+                            for (TripPlan tripPlan : blockPlan.trips) {
+                                addTrip(tripPlan, frequency.start_time, frequency, startDate, arrivalNodes, boardEdges, alightEdges);
                             }
+                            continue;
                         }
-                        ZoneId zoneId = ZoneId.of(feed.agency.get(feed.routes.get(trip.route_id).agency_id).agency_timezone);
-                        StopTime prev = null;
-                        int arrivalNode = -1;
-                        int departureNode = -1;
-                        for (StopTime stopTime : getInterpolatedStopTimesForTrip(trip.trip_id)) {
-                            Stop stop = feed.stops.get(stopTime.stop_id);
-                            arrivalNode = i++;
-                            nodeAccess.setNode(arrivalNode, stop.stop_lat, stop.stop_lon);
-                            nodeAccess.setAdditionalNodeField(arrivalNode, NodeType.INTERNAL_PT.ordinal());
-                            times.put(arrivalNode, stopTime.arrival_time + time);
-                            if (prev != null) {
-                                Stop fromStop = feed.stops.get(prev.stop_id);
-                                double distance = distCalc.calcDist(
-                                        fromStop.stop_lat,
-                                        fromStop.stop_lon,
-                                        stop.stop_lat,
-                                        stop.stop_lon);
-                                EdgeIteratorState edge = graph.edge(
-                                        departureNode,
-                                        arrivalNode,
-                                        distance,
-                                        false);
-                                edge.setName(stop.stop_name);
-                                setEdgeType(edge, GtfsStorage.EdgeType.HOP);
-                                edge.setFlags(encoder.setTime(edge.getFlags(), stopTime.arrival_time - prev.departure_time));
-                                gtfsStorage.getStopSequences().put(edge.getEdge(), stopTime.stop_sequence);
+                        for (int time = frequency.start_time; time < frequency.end_time; time += frequency.headway_secs) {
+                            List<Integer> arrivalNodes = new ArrayList<>();
+                            IntArrayList boardEdges = new IntArrayList();
+                            IntArrayList alightEdges = new IntArrayList();
+                            for (TripPlan tripPlan : blockPlan.trips) {
+                                addTrip(tripPlan, time, null, startDate, arrivalNodes, boardEdges, alightEdges);
                             }
-                            final int departureTimelineNode = i++;
-                            nodeAccess.setNode(departureTimelineNode, stop.stop_lat, stop.stop_lon);
-                            nodeAccess.setAdditionalNodeField(departureTimelineNode, NodeType.INTERNAL_PT.ordinal());
-                            times.put(departureTimelineNode, stopTime.departure_time + time);
-                            departureTimelineNodes.put(stopTime.stop_id, new TimelineNodeIdWithTripId(departureTimelineNode, trip.trip_id));
-                            final int arrivalTimelineNode = i++;
-                            nodeAccess.setNode(arrivalTimelineNode, stop.stop_lat, stop.stop_lon);
-                            nodeAccess.setAdditionalNodeField(arrivalTimelineNode, NodeType.INTERNAL_PT.ordinal());
-                            times.put(arrivalTimelineNode, stopTime.arrival_time + time);
-                            arrivalTimelineNodes.put(stopTime.stop_id, new TimelineNodeIdWithTripId(arrivalTimelineNode, trip.trip_id));
-                            departureNode = i++;
-                            nodeAccess.setNode(departureNode, stop.stop_lat, stop.stop_lon);
-                            nodeAccess.setAdditionalNodeField(departureNode, NodeType.INTERNAL_PT.ordinal());
-                            times.put(departureNode, stopTime.departure_time + time);
-                            int dayShift = stopTime.departure_time / (24 * 60 * 60);
-                            GtfsStorage.Validity validOn = new GtfsStorage.Validity(getValidOn(validOnDay, dayShift), zoneId, startDate);
-                            int validityId;
-                            if (gtfsStorage.getOperatingDayPatterns().containsKey(validOn)) {
-                                validityId = gtfsStorage.getOperatingDayPatterns().get(validOn);
-                            } else {
-                                validityId = gtfsStorage.getOperatingDayPatterns().size();
-                                gtfsStorage.getOperatingDayPatterns().put(validOn, validityId);
-                            }
-
-                            EdgeIteratorState boardEdge = graph.edge(
-                                    departureTimelineNode,
-                                    departureNode,
-                                    0.0,
-                                    false);
-                            boardEdge.setName(getRouteName(feed, trip));
-                            setEdgeType(boardEdge, GtfsStorage.EdgeType.BOARD);
-                            boardEdges.add(boardEdge.getEdge());
-                            gtfsStorage.getStopSequences().put(boardEdge.getEdge(), stopTime.stop_sequence);
-                            gtfsStorage.getExtraStrings().put(boardEdge.getEdge(), trip.trip_id);
-                            boardEdge.setFlags(encoder.setValidityId(boardEdge.getFlags(), validityId));
-                            boardEdge.setFlags(encoder.setTransfers(boardEdge.getFlags(), 1));
-
-                            EdgeIteratorState alightEdge = graph.edge(
-                                    arrivalNode,
-                                    arrivalTimelineNode,
-                                    0.0,
-                                    false);
-                            alightEdge.setName(getRouteName(feed, trip));
-                            setEdgeType(alightEdge, GtfsStorage.EdgeType.ALIGHT);
-                            alightEdges.add(alightEdge.getEdge());
-                            gtfsStorage.getStopSequences().put(alightEdge.getEdge(), stopTime.stop_sequence);
-                            gtfsStorage.getExtraStrings().put(alightEdge.getEdge(), trip.trip_id);
-                            alightEdge.setFlags(encoder.setValidityId(alightEdge.getFlags(), validityId));
-//                            alightEdge.setFlags(encoder.setTransfers(alightEdge.getFlags(), 1));
-
-
-                            EdgeIteratorState dwellEdge = graph.edge(
-                                    arrivalNode,
-                                    departureNode,
-                                    0.0,
-                                    false);
-                            dwellEdge.setName(getRouteName(feed, trip));
-                            setEdgeType(dwellEdge, GtfsStorage.EdgeType.DWELL);
-                            dwellEdge.setFlags(encoder.setTime(dwellEdge.getFlags(), stopTime.departure_time - stopTime.arrival_time));
-                            if (prev == null) {
-                                insertInboundBlockTransfers(arrivalNodes, trip, departureNode, stopTime, stop, validityId);
-                            }
-                            prev = stopTime;
                         }
-                        final GtfsRealtime.TripDescriptor tripDescriptor = GtfsRealtime.TripDescriptor.newBuilder().setTripId(trip.trip_id).setStartTime(Entity.Writer.convertToGtfsTime(time)).build();
-                        gtfsStorage.getBoardEdgesForTrip().put(tripDescriptor, boardEdges.toArray());
-                        gtfsStorage.getAlightEdgesForTrip().put(tripDescriptor, alightEdges.toArray());
-                        arrivalNodes.add(arrivalNode);
                     }
                 }
             }
-        });
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException(e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw new RuntimeException(e.getCause());
+        } finally {
+            pool.shutdown();
+        }
+        departureTimelineNodes.sort();
+        arrivalTimelineNodes.sort();
 
+        final Map<String, List<Fun.Tuple2<String, Integer>>> stopEnterNodesByStop = new HashMap<>();
+        final Map<String, List<Fun.Tuple2<String, Integer>>> stopExitNodesByStop = new HashMap<>();
+        final IntHashSet frequencyBasedNodes = new IntHashSet();
         for (Stop stop : feed.stops.values()) {
             if (stop.location_type == 0) { // Only stops. Not interested in parent stations for now.
-                final Map<String, List<TimelineNodeIdWithTripId>> arrivalTimelineNodesByRoute = arrivalTimelineNodes.get(stop.stop_id).stream().collect(Collectors.groupingBy(t -> feed.trips.get(t.tripId).route_id));
-
                 List<Integer> stopExitNodeIds = new ArrayList<>();
-                arrivalTimelineNodesByRoute.forEach((routeId, timelineNodesWithTripId) -> {
+                List<Fun.Tuple2<String, Integer>> exitNodes = new ArrayList<>();
+                arrivalTimelineNodes.forEachRoute(stop.stop_id, (routeId, timelineNodes) -> {
                     nodeAccess.setNode(i++, stop.stop_lat, stop.stop_lon);
                     int stopExitNode = i-1;
                     nodeAccess.setAdditionalNodeField(stopExitNode, NodeType.STOP_EXIT_NODE.ordinal());
                     stopExitNodeIds.add(stopExitNode);
-                    NavigableSet<Fun.Tuple2<Integer, Integer>> timeNodes = new TreeSet<>();
-                    timelineNodesWithTripId.stream().map(t -> t.timelineNodeId)
-                            .forEach(nodeId -> timeNodes.add(new Fun.Tuple2<>(times.get(nodeId) % (24*60*60), nodeId)));
-                    wireUpAndAndConnectArrivalTimeline(stop, routeId,stopExitNode, timeNodes);
+                    exitNodes.add(new Fun.Tuple2<>(routeId, stopExitNode));
+                    wireUpAndAndConnectArrivalTimeline(stop, routeId,stopExitNode, toTimeline(timelineNodes));
                 });
 
-
-
-                final Map<String, List<TimelineNodeIdWithTripId>> departureTimelineNodesByRoute = departureTimelineNodes.get(stop.stop_id).stream().collect(Collectors.groupingBy(t -> feed.trips.get(t.tripId).route_id));
-
                 List<Integer> stopEnterNodeIds = new ArrayList<>();
-                departureTimelineNodesByRoute.forEach((routeId, timelineNodesWithTripId) -> {
+                List<Fun.Tuple2<String, Integer>> enterNodes = new ArrayList<>();
+                departureTimelineNodes.forEachRoute(stop.stop_id, (routeId, timelineNodes) -> {
                     nodeAccess.setNode(i++, stop.stop_lat, stop.stop_lon);
                     int stopEnterNode = i-1;
                     nodeAccess.setAdditionalNodeField(stopEnterNode, NodeType.STOP_ENTER_NODE.ordinal());
                     stopEnterNodeIds.add(stopEnterNode);
-                    NavigableSet<Fun.Tuple2<Integer, Integer>> timeNodes = new TreeSet<>();
-                    timelineNodesWithTripId.stream().map(t -> t.timelineNodeId)
-                            .forEach(nodeId -> timeNodes.add(new Fun.Tuple2<>(times.get(nodeId) % (24*60*60), nodeId)));
-                    wireUpAndAndConnectDepartureTimeline(stop, routeId,stopEnterNode, timeNodes);
+                    enterNodes.add(new Fun.Tuple2<>(routeId, stopEnterNode));
+                    wireUpAndAndConnectDepartureTimeline(stop, routeId,stopEnterNode, toTimeline(timelineNodes));
                 });
+
+                for (FrequencyStopTime frequencyStopTime : frequencyStopTimes.getOrDefault(stop.stop_id, Collections.emptyList())) {
+                    nodeAccess.setNode(i++, stop.stop_lat, stop.stop_lon);
+                    int stopExitNode = i-1;
+                    nodeAccess.setAdditionalNodeField(stopExitNode, NodeType.STOP_EXIT_NODE.ordinal());
+                    stopExitNodeIds.add(stopExitNode);
+                    exitNodes.add(new Fun.Tuple2<>(frequencyStopTime.routeId, stopExitNode));
+                    frequencyBasedNodes.add(stopExitNode);
+                    wireUpFrequencyBasedArrival(frequencyStopTime, stopExitNode);
+
+                    nodeAccess.setNode(i++, stop.stop_lat, stop.stop_lon);
+                    int stopEnterNode = i-1;
+                    nodeAccess.setAdditionalNodeField(stopEnterNode, NodeType.STOP_ENTER_NODE.ordinal());
+                    stopEnterNodeIds.add(stopEnterNode);
+                    enterNodes.add(new Fun.Tuple2<>(frequencyStopTime.routeId, stopEnterNode));
+                    frequencyBasedNodes.add(stopEnterNode);
+                    wireUpFrequencyBasedDeparture(stop, frequencyStopTime, stopEnterNode);
+                }
+                stopExitNodesByStop.put(stop.stop_id, exitNodes);
+                stopEnterNodesByStop.put(stop.stop_id, enterNodes);
                 stopEnterAndExitNodes.add(new EnterAndExitNodeIdWithStopId(stopEnterNodeIds, stop.stop_id, stopExitNodeIds));
             }
         }
+        if (!frequencyBasedNodes.isEmpty()) {
+            insertFrequencyBasedTransfers(stopEnterNodesByStop, stopExitNodesByStop, frequencyBasedNodes);
+        }
+        if (transferEdges + dominatedTransferEdges > 0) {
+            LOGGER.info("Inserted {} transfer edges, left out {} dominated ones ({}%).", transferEdges, dominatedTransferEdges,
+                    100 * dominatedTransferEdges / (transferEdges + dominatedTransferEdges));
+        }
+    }
+
+    /**
+     * Whether the runs in the frequency window can be put into the graph as one, which they can't
+     * if some of them are past midnight at some stop, as the time of day would start over.
+     */
+    private static boolean isCompact(BlockPlan blockPlan, Frequency frequency) {
+        if (frequency == SINGLE_FREQUENCY) {
+            return false;
+        }
+        final List<StopTime> lastStopTimes = blockPlan.trips.get(blockPlan.trips.size() - 1).stopTimes;
+        final StopTime last = lastStopTimes.get(lastStopTimes.size() - 1);
+        return frequency.end_time - 1 + Math.max(last.arrival_time, last.departure_time) < 24 * 60 * 60;
+    }
+
+    private void wireUpFrequencyBasedDeparture(Stop stop, FrequencyStopTime frequencyStopTime, int stopEnterNode) {
+        ZoneId zoneId = ZoneId.of(feed.agency.get(feed.routes.get(frequencyStopTime.routeId).agency_id).agency_timezone);
+        int firstRun = getTime(frequencyStopTime.departureTimelineNode);
+        EdgeIteratorState enterTimeExpandedNetworkEdge = graph.edge(stopEnterNode, frequencyStopTime.departureTimelineNode, 0.0, false);
+        enterTimeExpandedNetworkEdge.setName(stop.stop_name);
+        setEdgeType(enterTimeExpandedNetworkEdge, GtfsStorage.EdgeType.ENTER_TIME_EXPANDED_NETWORK);
+        enterTimeExpandedNetworkEdge.setFlags(encoder.setTime(enterTimeExpandedNetworkEdge.getFlags(), firstRun));
+        int timeZoneId = setFeedIdWithTimezone(enterTimeExpandedNetworkEdge, new GtfsStorage.FeedIdWithTimezone(id, zoneId));
+        gtfsStorage.putDepartureTimeline(stopEnterNode, new GtfsStorage.Timeline(timeZoneId, new int[]{firstRun},
+                new int[]{enterTimeExpandedNetworkEdge.getEdge()}, new int[]{frequencyStopTime.departureTimelineNode},
+                frequencyStopTime.headway, firstRun + frequencyStopTime.lastRunOffset));
+    }
+
+    private void wireUpFrequencyBasedArrival(FrequencyStopTime frequencyStopTime, int stopExitNode) {
+        ZoneId zoneId = ZoneId.of(feed.agency.get(feed.routes.get(frequencyStopTime.routeId).agency_id).agency_timezone);
+        int firstRun = getTime(frequencyStopTime.arrivalTimelineNode);
+        EdgeIteratorState leaveTimeExpandedNetworkEdge = graph.edge(frequencyStopTime.arrivalTimelineNode, stopExitNode, 0.0, false);
+        setEdgeType(leaveTimeExpandedNetworkEdge, GtfsStorage.EdgeType.LEAVE_TIME_EXPANDED_NETWORK);
+        leaveTimeExpandedNetworkEdge.setFlags(encoder.setTime(leaveTimeExpandedNetworkEdge.getFlags(), firstRun));
+        int timeZoneId = setFeedIdWithTimezone(leaveTimeExpandedNetworkEdge, new GtfsStorage.FeedIdWithTimezone(id, zoneId));
+        gtfsStorage.putArrivalTimeline(stopExitNode, new GtfsStorage.Timeline(timeZoneId, new int[]{firstRun},
+                new int[]{leaveTimeExpandedNetworkEdge.getEdge()}, new int[]{frequencyStopTime.arrivalTimelineNode},
+                frequencyStopTime.headway, firstRun + frequencyStopTime.lastRunOffset));
+    }
+
+    /**
+     * Which run of a frequency based trip we arrive with, or can still make, is only known at query
+     * time, so transfers from or to one go from the stop exit node to the stop enter node, where
+     * the run is looked up, in both directions of search.
+     */
+    private void insertFrequencyBasedTransfers(Map<String, List<Fun.Tuple2<String, Integer>>> stopEnterNodesByStop, Map<String, List<Fun.Tuple2<String, Integer>>> stopExitNodesByStop, IntHashSet frequencyBasedNodes) {
+        stopEnterNodesByStop.forEach((toStopId, enterNodes) -> {
+            for (Fun.Tuple2<String, Integer> enterNode : enterNodes) {
+                for (Transfer transfer : getInboundTransfers(feed.stops.get(toStopId), enterNode.a)) {
+                    for (Fun.Tuple2<String, Integer> exitNode : stopExitNodesByStop.getOrDefault(transfer.from_stop_id, Collections.emptyList())) {
+                        if ((transfer.from_route_id == null || transfer.from_route_id.equals(exitNode.a))
+                                && (frequencyBasedNodes.contains(enterNode.b) || frequencyBasedNodes.contains(exitNode.b))) {
+                            EdgeIteratorState edge = graph.edge(exitNode.b, enterNode.b, 0.0, false);
+                            setEdgeType(edge, GtfsStorage.EdgeType.TRANSFER);
+                            edge.setFlags(encoder.setTime(edge.getFlags(), transfer.min_transfer_time));
+                        }
+                    }
+                }
+            }
+        });
+    }
+
+    /**
+     * Runs on the worker threads, so it only reads from the feed.
+     */
+    private BlockPlan planBlock(List<Trip> unsortedTrips, LocalDate startDate, LocalDate endDate) {
+        List<TripPlan> trips = new ArrayList<>();
+        for (Trip trip : unsortedTrips) {
+            trips.add(planTrip(trip, startDate, endDate));
+        }
+        trips.sort(Comparator.comparingInt(tripPlan -> tripPlan.stopTimes.get(0).departure_time));
+        if (trips.stream().map(tripPlan -> feed.getFrequencies(tripPlan.trip.trip_id)).distinct().count() != 1) {
+            throw new RuntimeException("Found a block with frequency-based trips. Not supported.");
+        }
+        return new BlockPlan(trips, feed.getFrequencies(trips.get(0).trip.trip_id));
+    }
+
+    private TripPlan planTrip(Trip trip, LocalDate startDate, LocalDate endDate) {
+        List<StopTime> stopTimes = new ArrayList<>();
+        getInterpolatedStopTimesForTrip(trip.trip_id).forEach(stopTimes::add);
+        return new TripPlan(trip, stopTimes, getValidOnDay(trip, startDate, endDate),
+                ZoneId.of(feed.agency.get(feed.routes.get(trip.route_id).agency_id).agency_timezone),
+                getRouteName(feed, trip));
     }
 
-    private void wireUpAndAndConnectArrivalTimeline(Stop toStop, String routeId, int stopExitNode, NavigableSet<Fun.Tuple2<Integer, Integer>> timeNodes) {
+    /**
+     * @param frequency if not null, the trip is added once for all runs in this frequency window,
+     *                  with the time of the first
+     */
+    private void addTrip(TripPlan tripPlan, int time, Frequency frequency, LocalDate startDate, List<Integer> arrivalNodes, IntArrayList boardEdges, IntArrayList alightEdges) {
+        Trip trip = tripPlan.trip;
+        BitSet validOnDay = tripPlan.validOnDay;
+        ZoneId zoneId = tripPlan.zoneId;
+        StopTime prev = null;
+        int arrivalNode = -1;
+        int departureNode = -1;
+        for (StopTime stopTime : tripPlan.stopTimes) {
+            Stop stop = feed.stops.get(stopTime.stop_id);
+            arrivalNode = i++;
+            nodeAccess.setNode(arrivalNode, stop.stop_lat, stop.stop_lon);
+            nodeAccess.setAdditionalNodeField(arrivalNode, NodeType.INTERNAL_PT.ordinal());
+            setTime(arrivalNode, stopTime.arrival_time + time);
+            if (prev != null) {
+                Stop fromStop = feed.stops.get(prev.stop_id);
+                double distance = distCalc.calcDist(
+                        fromStop.stop_lat,
+                        fromStop.stop_lon,
+                        stop.stop_lat,
+                        stop.stop_lon);
+                EdgeIteratorState edge = graph.edge(
+                        departureNode,
+                        arrivalNode,
+                        distance,
+                        false);
+                edge.setName(stop.stop_name);
+                setEdgeType(edge, GtfsStorage.EdgeType.HOP);
+                edge.setFlags(encoder.setTime(edge.getFlags(), stopTime.arrival_time - prev.departure_time));
+                gtfsStorage.putStopSequence(edge.getEdge(), stopTime.stop_sequence);
+            }
+            final int departureTimelineNode = i++;
+            nodeAccess.setNode(departureTimelineNode, stop.stop_lat, stop.stop_lon);
+            nodeAccess.setAdditionalNodeField(departureTimelineNode, NodeType.INTERNAL_PT.ordinal());
+            setTime(departureTimelineNode, stopTime.departure_time + time);
+            if (frequency == null) {
+                departureTimelineNodes.add(stopTime.stop_id, trip.route_id, departureTimelineNode);
+            }
+            final int arrivalTimelineNode = i++;
+            nodeAccess.setNode(arrivalTimelineNode, stop.stop_lat, stop.stop_lon);
+            nodeAccess.setAdditionalNodeField(arrivalTimelineNode, NodeType.INTERNAL_PT.ordinal());
+            setTime(arrivalTimelineNode, stopTime.arrival_time + time);
+            if (frequency == null) {
+                arrivalTimelineNodes.add(stopTime.stop_id, trip.route_id, arrivalTimelineNode);
+            } else {
+                frequencyStopTimes.computeIfAbsent(stopTime.stop_id, stopId -> new ArrayList<>())
+                        .add(new FrequencyStopTime(trip.route_id, departureTimelineNode, arrivalTimelineNode, frequency));
+            }
+            departureNode = i++;
+            nodeAccess.setNode(departureNode, stop.stop_lat, stop.stop_lon);
+            nodeAccess.setAdditionalNodeField(departureNode, NodeType.INTERNAL_PT.ordinal());
+            setTime(departureNode, stopTime.departure_time + time);
+            int dayShift = stopTime.departure_time / (24 * 60 * 60);
+            GtfsStorage.Validity validOn = new GtfsStorage.Validity(getValidOn(validOnDay, dayShift), zoneId, startDate);
+            int validityId = getValidityId(validOn);
+
+            EdgeIteratorState boardEdge = graph.edge(
+                    departureTimelineNode,
+                    departureNode,
+                    0.0,
+                    false);
+            boardEdge.setName(tripPlan.routeName);
+            setEdgeType(boardEdge, GtfsStorage.EdgeType.BOARD);
+            boardEdges.add(boardEdge.getEdge());
+            gtfsStorage.putStopSequence(boardEdge.getEdge(), stopTime.stop_sequence);
+            gtfsStorage.putTripId(boardEdge.getEdge(), trip.trip_id);
+            boardEdge.setFlags(encoder.setValidityId(boardEdge.getFlags(), validityId));
+            boardEdge.setFlags(encoder.setTransfers(boardEdge.getFlags(), 1));
+
+            EdgeIteratorState alightEdge = graph.edge(
+                    arrivalNode,
+                    arrivalTimelineNode,
+                    0.0,
+                    false);
+            alightEdge.setName(tripPlan.routeName);
+            setEdgeType(alightEdge, GtfsStorage.EdgeType.ALIGHT);
+            alightEdges.add(alightEdge.getEdge());
+            gtfsStorage.putStopSequence(alightEdge.getEdge(), stopTime.stop_sequence);
+            gtfsStorage.putTripId(alightEdge.getEdge(), trip.trip_id);
+            alightEdge.setFlags(encoder.setValidityId(alightEdge.getFlags(), validityId));
+//            alightEdge.setFlags(encoder.setTransfers(alightEdge.getFlags(), 1));
+
+
+            EdgeIteratorState dwellEdge = graph.edge(
+                    arrivalNode,
+                    departureNode,
+                    0.0,
+                    false);
+            dwellEdge.setName(tripPlan.routeName);
+            setEdgeType(dwellEdge, GtfsStorage.EdgeType.DWELL);
+            dwellEdge.setFlags(encoder.setTime(dwellEdge.getFlags(), stopTime.departure_time - stopTime.arrival_time));
+            if (prev == null) {
+                insertInboundBlockTransfers(arrivalNodes, trip, departureNode, stopTime, stop, validityId);
+            }
+            prev = stopTime;
+        }
+        gtfsStorage.putTripDescriptor(trip.trip_id, time, boardEdges.toArray(), alightEdges.toArray());
+        arrivalNodes.add(arrivalNode);
+    }
+
+    private BitSet getValidOnDay(Trip trip, LocalDate startDate, LocalDate endDate) {
+        Service service = feed.services.get(trip.service_id);
+        BitSet validOnDay = new BitSet((int) DAYS.between(startDate, endDate));
+        for (LocalDate date = startDate; !date.isAfter(endDate); date = date.plusDays(1)) {
+            if (service.activeOn(date)) {
+                validOnDay.set((int) DAYS.between(startDate, date));
+            }
+        }
+        return validOnDay;
+    }
+
+    private int getValidityId(GtfsStorage.Validity validOn) {
+        int validityId;
+        if (gtfsStorage.getOperatingDayPatterns().containsKey(validOn)) {
+            validityId = gtfsStorage.getOperatingDayPatterns().get(validOn);
+        } else {
+            validityId = gtfsStorage.getOperatingDayPatterns().size();
+            gtfsStorage.getOperatingDayPatterns().put(validOn, validityId);
+        }
+        return validityId;
+    }
+
+    private void wireUpAndAndConnectArrivalTimeline(Stop toStop, String routeId, int stopExitNode, long[] timeNodes) {
         ZoneId zoneId = ZoneId.of(feed.agency.get(feed.routes.get(routeId).agency_id).agency_timezone);
         int time = 0;
         int prev = -1;
-        for (Fun.Tuple2<Integer, Integer> e : timeNodes.descendingSet()) {
-            EdgeIteratorState leaveTimeExpandedNetworkEdge = graph.edge(e.b, stopExitNode, 0.0, false);
+        int timeZoneId = -1;
+        int[] times = new int[timeNodes.length];
+        int[] edges = new int[timeNodes.length];
+        int[] nodes = new int[timeNodes.length];
+        for (int k = timeNodes.length - 1; k >= 0; k--) {
+            int arrivalTime = TimelineNodes.upper(timeNodes[k]);
+            int node = TimelineNodes.lower(timeNodes[k]);
+            EdgeIteratorState leaveTimeExpandedNetworkEdge = graph.edge(node, stopExitNode, 0.0, false);
             setEdgeType(leaveTimeExpandedNetworkEdge, GtfsStorage.EdgeType.LEAVE_TIME_EXPANDED_NETWORK);
-            int arrivalTime = e.a;
             leaveTimeExpandedNetworkEdge.setFlags(encoder.setTime(leaveTimeExpandedNetworkEdge.getFlags(), arrivalTime));
-            setFeedIdWithTimezone(leaveTimeExpandedNetworkEdge, new GtfsStorage.FeedIdWithTimezone(id, zoneId));
+            timeZoneId = setFeedIdWithTimezone(leaveTimeExpandedNetworkEdge, new GtfsStorage.FeedIdWithTimezone(id, zoneId));
+            times[k] = arrivalTime;
+            edges[k] = leaveTimeExpandedNetworkEdge.getEdge();
+            nodes[k] = node;
             if (prev != -1) {
-                EdgeIteratorState edge = graph.edge(e.b, prev, 0.0, false);
+                EdgeIteratorState edge = graph.edge(node, prev, 0.0, false);
                 setEdgeType(edge, GtfsStorage.EdgeType.WAIT_ARRIVAL);
                 edge.setName(toStop.stop_name);
-                edge.setFlags(encoder.setTime(edge.getFlags(), time-e.a));
+                edge.setFlags(encoder.setTime(edge.getFlags(), time-arrivalTime));
             }
-            time = e.a;
-            prev = e.b;
+            time = arrivalTime;
+            prev = node;
         }
+        gtfsStorage.putArrivalTimeline(stopExitNode, new GtfsStorage.Timeline(timeZoneId, times, edges, nodes));
     }
 
-    private void setFeedIdWithTimezone(EdgeIteratorState leaveTimeExpandedNetworkEdge, GtfsStorage.FeedIdWithTimezone validOn) {
+    private int setFeedIdWithTimezone(EdgeIteratorState leaveTimeExpandedNetworkEdge, GtfsStorage.FeedIdWithTimezone validOn) {
         int validityId;
         if (gtfsStorage.getWritableTimeZones().containsKey(validOn)) {
             validityId = gtfsStorage.getWritableTimeZones().get(validOn);
@@ -331,34 +888,47 @@ class GtfsReader {
             gtfsStorage.getWritableTimeZones().put(validOn, validityId);
         }
         leaveTimeExpandedNetworkEdge.setFlags(encoder.setValidityId(leaveTimeExpandedNetworkEdge.getFlags(), validityId));
+        return validityId;
     }
 
-    private void wireUpAndAndConnectDepartureTimeline(Stop toStop, String toRouteId, int stopEnterNode, NavigableSet<Fun.Tuple2<Integer, Integer>> timeNodes) {
+    private void wireUpAndAndConnectDepartureTimeline(Stop toStop, String toRouteId, int stopEnterNode, long[] timeNodes) {
         ZoneId zoneId = ZoneId.of(feed.agency.get(feed.routes.get(toRouteId).agency_id).agency_timezone);
         int time = 0;
         int prev = -1;
-        for (Fun.Tuple2<Integer, Integer> e : timeNodes.descendingSet()) {
-            EdgeIteratorState enterTimeExpandedNetworkEdge = graph.edge(stopEnterNode, e.b, 0.0, false);
+        int timeZoneId = -1;
+        int[] times = new int[timeNodes.length];
+        int[] edges = new int[timeNodes.length];
+        int[] nodes = new int[timeNodes.length];
+        for (int k = timeNodes.length - 1; k >= 0; k--) {
+            int departureTime = TimelineNodes.upper(timeNodes[k]);
+            int node = TimelineNodes.lower(timeNodes[k]);
+            EdgeIteratorState enterTimeExpandedNetworkEdge = graph.edge(stopEnterNode, node, 0.0, false);
             enterTimeExpandedNetworkEdge.setName(toStop.stop_name);
             setEdgeType(enterTimeExpandedNetworkEdge, GtfsStorage.EdgeType.ENTER_TIME_EXPANDED_NETWORK);
-            enterTimeExpandedNetworkEdge.setFlags(encoder.setTime(enterTimeExpandedNetworkEdge.getFlags(), e.a));
-            setFeedIdWithTimezone(enterTimeExpandedNetworkEdge, new GtfsStorage.FeedIdWithTimezone(id, zoneId));
+            enterTimeExpandedNetworkEdge.setFlags(encoder.setTime(enterTimeExpandedNetworkEdge.getFlags(), departureTime));
+            timeZoneId = setFeedIdWithTimezone(enterTimeExpandedNetworkEdge, new GtfsStorage.FeedIdWithTimezone(id, zoneId));
+            times[k] = departureTime;
+            edges[k] = enterTimeExpandedNetworkEdge.getEdge();
+            nodes[k] = node;
             if (prev != -1) {
-                EdgeIteratorState edge = graph.edge(e.b, prev, 0.0, false);
+                EdgeIteratorState edge = graph.edge(node, prev, 0.0, false);
                 setEdgeType(edge, GtfsStorage.EdgeType.WAIT);
                 edge.setName(toStop.stop_name);
-                edge.setFlags(encoder.setTime(edge.getFlags(), time-e.a));
+                edge.setFlags(encoder.setTime(edge.getFlags(), time-departureTime));
             }
-            time = e.a;
-            prev = e.b;
+            time = departureTime;
+            prev = node;
         }
-        if (!timeNodes.isEmpty()) {
-            EdgeIteratorState edge = graph.edge(timeNodes.last().b, timeNodes.first().b, 0.0, false);
-            int rolloverTime = 24 * 60 * 60 - timeNodes.last().a + timeNodes.first().a;
+        if (timeNodes.length > 0) {
+            long first = timeNodes[0];
+            long last = timeNodes[timeNodes.length - 1];
+            EdgeIteratorState edge = graph.edge(TimelineNodes.lower(last), TimelineNodes.lower(first), 0.0, false);
+            int rolloverTime = 24 * 60 * 60 - TimelineNodes.upper(last) + TimelineNodes.upper(first);
             setEdgeType(edge, GtfsStorage.EdgeType.OVERNIGHT);
             edge.setName(toStop.stop_name);
             edge.setFlags(encoder.setTime(edge.getFlags(), rolloverTime));
         }
+        gtfsStorage.putDepartureTimeline(stopEnterNode, new GtfsStorage.Timeline(timeZoneId, times, edges, nodes));
         final Optional<Transfer> withinStationTransfer = transfers.getTransfersToStop(toStop, toRouteId).stream().filter(t -> t.from_stop_id.equals(toStop.stop_id)).findAny();
         if (!withinStationTransfer.isPresent()) {
             insertInboundTransfers(toStop.stop_id, null, 0, timeNodes);
@@ -371,7 +941,7 @@ class GtfsReader {
     private void insertInboundBlockTransfers(List<Integer> arrivalNodes, Trip trip, int departureNode, StopTime stopTime, Stop stop, int validityId) {
         EdgeIteratorState edge;
         for (int lastTripArrivalNode : arrivalNodes) {
-            int dwellTime = times.get(departureNode) - times.get(lastTripArrivalNode);
+            int dwellTime = getTime(departureNode) - getTime(lastTripArrivalNode);
             if (dwellTime >= 0) {
                 nodeAccess.setNode(i++, stop.stop_lat, stop.stop_lon);
                 nodeAccess.setAdditionalNodeField(i-1, NodeType.INTERNAL_PT.ordinal());
@@ -391,8 +961,8 @@ class GtfsReader {
                         false);
                 setEdgeType(edge, GtfsStorage.EdgeType.BOARD);
                 edge.setFlags(encoder.setValidityId(edge.getFlags(), validityId));
-                gtfsStorage.getStopSequences().put(edge.getEdge(), stopTime.stop_sequence);
-                gtfsStorage.getExtraStrings().put(edge.getEdge(), trip.trip_id);
+                gtfsStorage.putStopSequence(edge.getEdge(), stopTime.stop_sequence);
+                gtfsStorage.putTripId(edge.getEdge(), trip.trip_id);
             }
         }
     }
@@ -405,22 +975,39 @@ class GtfsReader {
         }
     }
 
-    private void insertInboundTransfers(String fromStopId, String from_route_id, int minimumTransferTime, SortedSet<Fun.Tuple2<Integer, Integer>> toStopTimelineNode) {
-        for (TimelineNodeIdWithTripId entry : arrivalTimelineNodes.get(fromStopId)) {
-            if (from_route_id == null || from_route_id.equals(feed.trips.get(entry.tripId).route_id)) {
-                int arrivalTime = times.get(entry.timelineNodeId);
-                SortedSet<Fun.Tuple2<Integer, Integer>> tailSet = toStopTimelineNode.tailSet(new Fun.Tuple2<>(arrivalTime + minimumTransferTime, -1));
-                if (!tailSet.isEmpty()) {
-                    Fun.Tuple2<Integer, Integer> e = tailSet.first();
-                    EdgeIteratorState edge = graph.edge(entry.timelineNodeId, e.b, 0.0, false);
-                    setEdgeType(edge, GtfsStorage.EdgeType.TRANSFER);
-                    edge.setFlags(encoder.setTime(edge.getFlags(), e.a-arrivalTime));
+    /**
+     * Inserts a transfer from each arrival at the stop to the first departure it makes. If the next
+     * arrival on the same arrival timeline makes the same departure, the transfer is dominated: we
+     * can wait for that arrival and transfer from there, and reach the departure at the same time
+     * and with the same number of transfers, on any day. So it is left out. Forward searches wait
+     * on the arrival timeline for this, like reverse ones.
+     */
+    private void insertInboundTransfers(String fromStopId, String from_route_id, int minimumTransferTime, long[] toStopTimelineNode) {
+        arrivalTimelineNodes.forEachRoute(fromStopId, (routeId, timelineNodes) -> {
+            if (from_route_id == null || from_route_id.equals(routeId)) {
+                long[] fromTimeline = toTimeline(timelineNodes);
+                int nextArrivalsDeparture = -1;
+                for (int j = fromTimeline.length - 1; j >= 0; j--) {
+                    int timelineNode = TimelineNodes.lower(fromTimeline[j]);
+                    int arrivalTime = getTime(timelineNode);
+                    int k = TimelineNodes.firstNotBefore(toStopTimelineNode, arrivalTime + minimumTransferTime);
+                    if (k < toStopTimelineNode.length) {
+                        if (pruneDominatedTransfers && k == nextArrivalsDeparture) {
+                            dominatedTransferEdges++;
+                        } else {
+                            EdgeIteratorState edge = graph.edge(timelineNode, TimelineNodes.lower(toStopTimelineNode[k]), 0.0, false);
+                            setEdgeType(edge, GtfsStorage.EdgeType.TRANSFER);
+                            edge.setFlags(encoder.setTime(edge.getFlags(), TimelineNodes.upper(toStopTimelineNode[k])-arrivalTime));
+                            transferEdges++;
+                        }
+                    }
+                    nextArrivalsDeparture = k;
                 }
             }
-        }
+        });
     }
 
-    private String getRouteName(GTFSFeed feed, Trip trip) {
+    static String getRouteName(GTFSFeed feed, Trip trip) {
         Route route = feed.routes.get(trip.route_id);
         return (route.route_long_name != null ? route.route_long_name : route.route_short_name) + " " + trip.trip_headsign;
     }
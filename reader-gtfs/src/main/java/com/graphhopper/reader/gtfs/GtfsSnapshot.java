@@ -0,0 +1,281 @@
+/*
+ *  Licensed to GraphHopper GmbH under one or more contributor
+ *  license agreements. See the NOTICE file distributed with this work for
+ *  additional information regarding copyright ownership.
+ *
+ *  GraphHopper GmbH licenses this file to you under the Apache License,
+ *  Version 2.0 (the "License"); you may not use this file except in
+ *  compliance with the License. You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.graphhopper.reader.gtfs;
+
+import com.conveyal.gtfs.model.Stop;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.time.LocalDate;
+import java.time.ZoneId;
+import java.util.*;
+import java.util.zip.CRC32;
+
+/**
+ * What a query needs besides the graph and the columns, in one file written at the end of the
+ * import: the feed ids, time zones, validities, and the stops with their station nodes. Loading it is a few bulk reads from a
+ * mapped buffer, where the transit schedule and the feed databases would be deserialized record
+ * by record.
+ * <p>
+ * The file starts with a magic number, the format version, the length and a CRC32 of the rest.
+ * A snapshot of another version, or a damaged one, is not read at all.
+ */
+final class GtfsSnapshot {
+
+    static final String NAME = "gtfs_snapshot";
+    static final int VERSION = 2;
+    private static final int MAGIC = 0x47545353;
+    private static final int HEADER_BYTES = 4 + 4 + 4 + 8;
+
+    final List<String> feedIds;
+    final Map<Integer, GtfsStorage.FeedIdWithTimezone> timeZones;
+    final Map<Integer, GtfsStorage.Validity> validities;
+    final Map<String, Stop[]> stops;
+    // by stop, -1 for a stop without one
+    final Map<String, int[]> stationNodes;
+
+    GtfsSnapshot(List<String> feedIds, Map<Integer, GtfsStorage.FeedIdWithTimezone> timeZones,
+                 Map<Integer, GtfsStorage.Validity> validities, Map<String, Stop[]> stops, Map<String, int[]> stationNodes) {
+        this.feedIds = feedIds;
+        this.timeZones = timeZones;
+        this.validities = validities;
+        this.stops = stops;
+        this.stationNodes = stationNodes;
+    }
+
+    /**
+     * Writes to a temporary file first, so that a reader never sees half a snapshot.
+     */
+    void write(File file) {
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (DataOutputStream out = new DataOutputStream(bytes)) {
+            writeStrings(out, feedIds.toArray(new String[0]));
+            out.writeInt(timeZones.size());
+            for (Map.Entry<Integer, GtfsStorage.FeedIdWithTimezone> timeZone : timeZones.entrySet()) {
+                out.writeInt(timeZone.getKey());
+                writeStrings(out, new String[]{timeZone.getValue().feedId, timeZone.getValue().zoneId.getId()});
+            }
+            out.writeInt(validities.size());
+            for (Map.Entry<Integer, GtfsStorage.Validity> validity : validities.entrySet()) {
+                out.writeInt(validity.getKey());
+                writeStrings(out, new String[]{validity.getValue().zoneId.getId()});
+                out.writeLong(validity.getValue().start.toEpochDay());
+                final long[] words = validity.getValue().validity.toLongArray();
+                out.writeInt(words.length);
+                for (long word : words) {
+                    out.writeLong(word);
+                }
+            }
+            for (String feedId : feedIds) {
+                writeStops(out, stops.get(feedId));
+                for (int stationNode : stationNodes.get(feedId)) {
+                    out.writeInt(stationNode);
+                }
+            }
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+        final byte[] payload = bytes.toByteArray();
+        final CRC32 crc = new CRC32();
+        crc.update(payload);
+        final File temp = new File(file.getPath() + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temp)))) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(payload.length);
+            out.writeLong(crc.getValue());
+            out.write(payload);
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+        try {
+            Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * Stops are written column by column, so that reading them is one bulk read per field.
+     */
+    private static void writeStops(DataOutputStream out, Stop[] stops) throws IOException {
+        out.writeInt(stops.length);
+        writeStrings(out, Arrays.stream(stops).map(stop -> stop.stop_id).toArray(String[]::new));
+        writeStrings(out, Arrays.stream(stops).map(stop -> stop.stop_code).toArray(String[]::new));
+        writeStrings(out, Arrays.stream(stops).map(stop -> stop.stop_name).toArray(String[]::new));
+        writeStrings(out, Arrays.stream(stops).map(stop -> stop.stop_desc).toArray(String[]::new));
+        writeStrings(out, Arrays.stream(stops).map(stop -> stop.zone_id).toArray(String[]::new));
+        writeStrings(out, Arrays.stream(stops).map(stop -> stop.parent_station).toArray(String[]::new));
+        writeStrings(out, Arrays.stream(stops).map(stop -> stop.stop_timezone).toArray(String[]::new));
+        writeStrings(out, Arrays.stream(stops).map(stop -> stop.wheelchair_boarding).toArray(String[]::new));
+        for (Stop stop : stops) {
+            out.writeInt(stop.location_type);
+        }
+        for (Stop stop : stops) {
+            out.writeDouble(stop.stop_lat);
+        }
+        for (Stop stop : stops) {
+            out.writeDouble(stop.stop_lon);
+        }
+    }
+
+    /**
+     * The byte lengths, -1 for null, and then all the bytes.
+     */
+    private static void writeStrings(DataOutputStream out, String[] strings) throws IOException {
+        final byte[][] encoded = new byte[strings.length][];
+        out.writeInt(strings.length);
+        for (int i = 0; i < strings.length; i++) {
+            encoded[i] = strings[i] != null ? strings[i].getBytes(StandardCharsets.UTF_8) : null;
+            out.writeInt(encoded[i] != null ? encoded[i].length : -1);
+        }
+        for (byte[] string : encoded) {
+            if (string != null) {
+                out.write(string);
+            }
+        }
+    }
+
+    /**
+     * @return the snapshot in the file, or null if there is none we can read
+     */
+    static GtfsSnapshot read(File file) {
+        if (!file.exists()) {
+            return null;
+        }
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            if (channel.size() < HEADER_BYTES) {
+                return null;
+            }
+            final MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            if (buffer.getInt() != MAGIC || buffer.getInt() != VERSION) {
+                return null;
+            }
+            final int length = buffer.getInt();
+            final long checksum = buffer.getLong();
+            if (length != channel.size() - HEADER_BYTES) {
+                return null;
+            }
+            final CRC32 crc = new CRC32();
+            crc.update(buffer.duplicate());
+            if (crc.getValue() != checksum) {
+                return null;
+            }
+            return read(buffer);
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private static GtfsSnapshot read(ByteBuffer buffer) {
+        final List<String> feedIds = Arrays.asList(readStrings(buffer));
+        final Map<Integer, GtfsStorage.FeedIdWithTimezone> timeZones = new HashMap<>();
+        final int nTimeZones = buffer.getInt();
+        for (int i = 0; i < nTimeZones; i++) {
+            final int id = buffer.getInt();
+            final String[] feedIdAndZone = readStrings(buffer);
+            timeZones.put(id, new GtfsStorage.FeedIdWithTimezone(feedIdAndZone[0], ZoneId.of(feedIdAndZone[1])));
+        }
+        final Map<Integer, GtfsStorage.Validity> validities = new HashMap<>();
+        final int nValidities = buffer.getInt();
+        for (int i = 0; i < nValidities; i++) {
+            final int id = buffer.getInt();
+            final ZoneId zoneId = ZoneId.of(readStrings(buffer)[0]);
+            final LocalDate start = LocalDate.ofEpochDay(buffer.getLong());
+            final long[] words = new long[buffer.getInt()];
+            buffer.asLongBuffer().get(words);
+            buffer.position(buffer.position() + words.length * 8);
+            validities.put(id, new GtfsStorage.Validity(BitSet.valueOf(words), zoneId, start));
+        }
+        final Map<String, Stop[]> stops = new HashMap<>();
+        final Map<String, int[]> stationNodes = new HashMap<>();
+        for (String feedId : feedIds) {
+            stops.put(feedId, readStops(buffer));
+            final int[] nodes = new int[stops.get(feedId).length];
+            buffer.asIntBuffer().get(nodes);
+            buffer.position(buffer.position() + nodes.length * 4);
+            stationNodes.put(feedId, nodes);
+        }
+        return new GtfsSnapshot(feedIds, timeZones, validities, stops, stationNodes);
+    }
+
+    private static Stop[] readStops(ByteBuffer buffer) {
+        final Stop[] stops = new Stop[buffer.getInt()];
+        final String[] stopIds = readStrings(buffer);
+        final String[] codes = readStrings(buffer);
+        final String[] names = readStrings(buffer);
+        final String[] descriptions = readStrings(buffer);
+        final String[] zoneIds = readStrings(buffer);
+        final String[] parentStations = readStrings(buffer);
+        final String[] timeZones = readStrings(buffer);
+        final String[] wheelchairBoardings = readStrings(buffer);
+        final int[] locationTypes = new int[stops.length];
+        buffer.asIntBuffer().get(locationTypes);
+        buffer.position(buffer.position() + stops.length * 4);
+        final double[] lats = new double[stops.length];
+        buffer.asDoubleBuffer().get(lats);
+        buffer.position(buffer.position() + stops.length * 8);
+        final double[] lons = new double[stops.length];
+        buffer.asDoubleBuffer().get(lons);
+        buffer.position(buffer.position() + stops.length * 8);
+        for (int i = 0; i < stops.length; i++) {
+            final Stop stop = new Stop();
+            stop.stop_id = stopIds[i];
+            stop.stop_code = codes[i];
+            stop.stop_name = names[i];
+            stop.stop_desc = descriptions[i];
+            stop.zone_id = zoneIds[i];
+            stop.parent_station = parentStations[i];
+            stop.stop_timezone = timeZones[i];
+            stop.wheelchair_boarding = wheelchairBoardings[i];
+            stop.location_type = locationTypes[i];
+            stop.stop_lat = lats[i];
+            stop.stop_lon = lons[i];
+            stops[i] = stop;
+        }
+        return stops;
+    }
+
+    private static String[] readStrings(ByteBuffer buffer) {
+        final int[] lengths = new int[buffer.getInt()];
+        buffer.asIntBuffer().get(lengths);
+        buffer.position(buffer.position() + lengths.length * 4);
+        int total = 0;
+        for (int length : lengths) {
+            total += Math.max(length, 0);
+        }
+        final byte[] bytes = new byte[total];
+        buffer.get(bytes);
+        final String[] strings = new String[lengths.length];
+        int offset = 0;
+        for (int i = 0; i < lengths.length; i++) {
+            if (lengths[i] >= 0) {
+                strings[i] = new String(bytes, offset, lengths[i], StandardCharsets.UTF_8);
+                offset += lengths[i];
+            }
+        }
+        return strings;
+    }
+
+}
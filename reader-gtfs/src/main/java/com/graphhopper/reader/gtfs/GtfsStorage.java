@@ -18,9 +18,12 @@
 
 package com.graphhopper.reader.gtfs;
 
+import com.carrotsearch.hppc.IntObjectHashMap;
 import com.conveyal.gtfs.GTFSFeed;
+import com.conveyal.gtfs.model.Entity;
 import com.conveyal.gtfs.model.Fare;
 import com.conveyal.gtfs.model.FareRule;
+import com.conveyal.gtfs.model.Stop;
 import com.google.transit.realtime.GtfsRealtime;
 import com.graphhopper.gtfs.fare.FixedFareAttributeLoader;
 import com.graphhopper.storage.Directory;
@@ -38,6 +41,7 @@ import java.nio.file.Files;
 import java.time.LocalDate;
 import java.time.ZoneId;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ExecutionException;
 import java.util.zip.ZipFile;
 
@@ -90,27 +94,202 @@ public class GtfsStorage implements GraphExtension {
 
 	}
 
+	/**
+	 * The departures from a stop enter node, or the arrivals at a stop exit node, sorted by time of
+	 * day, so that the explorer can find the next feasible one by binary search instead of walking
+	 * all edges of the node.
+	 * <p>
+	 * A trip given by frequencies gets a timeline of its own at each stop, with one entry for its
+	 * first run in a frequency window. The others are computed from the headway.
+	 * <p>
+	 * The timelines of a loaded graph are read straight from their column, the others, which are
+	 * being built or sliced, are backed by arrays. A column-backed timeline can be moved to another
+	 * index, so that a search can look at all the timelines it meets through one object.
+	 */
+	static class Timeline {
+		int timeZoneId;
+		int headway;
+		int lastRun;
+		private int size;
+		private final int[] times;
+		private final int[] edges;
+		private final int[] timeNodes;
+		private IntArrayColumn column;
+		// where the times start in the column
+		private int from;
+
+		Timeline(int timeZoneId, int[] times, int[] edges, int[] timeNodes) {
+			this(timeZoneId, times, edges, timeNodes, 0, 0);
+		}
+
+		Timeline(int timeZoneId, int[] times, int[] edges, int[] timeNodes, int headway, int lastRun) {
+			this.timeZoneId = timeZoneId;
+			this.size = times.length;
+			this.times = times;
+			this.edges = edges;
+			this.timeNodes = timeNodes;
+			this.headway = headway;
+			this.lastRun = lastRun;
+			this.column = null;
+			this.from = 0;
+		}
+
+		/**
+		 * The timeline stored at this index of the column, see {@link #addTimeline}.
+		 */
+		Timeline(IntArrayColumn column, int index) {
+			this();
+			moveTo(column, index);
+		}
+
+		/**
+		 * A timeline which has to be moved to an index of a column before it is read.
+		 */
+		Timeline() {
+			this.times = null;
+			this.edges = null;
+			this.timeNodes = null;
+		}
+
+		void moveTo(IntArrayColumn column, int index) {
+			final int offset = column.offset(index);
+			final boolean frequencyBased = (column.value(offset + 1) & 2) != 0;
+			this.timeZoneId = column.value(offset + 2);
+			this.size = (column.length(index) - 3 - (frequencyBased ? 2 : 0)) / 3;
+			this.from = offset + 3;
+			this.headway = frequencyBased ? column.value(from + 3 * size) : 0;
+			this.lastRun = frequencyBased ? column.value(from + 3 * size + 1) : 0;
+			this.column = column;
+		}
+
+		int size() {
+			return size;
+		}
+
+		int time(int i) {
+			return column == null ? times[i] : column.value(from + i);
+		}
+
+		int edge(int i) {
+			return column == null ? edges[i] : column.value(from + size + i);
+		}
+
+		int timeNode(int i) {
+			return column == null ? timeNodes[i] : column.value(from + 2 * size + i);
+		}
+
+		boolean isFrequencyBased() {
+			return headway > 0;
+		}
+
+		/**
+		 * The time of the first run not before the given seconds of day, or -1 if none.
+		 */
+		int nextRun(int seconds) {
+			final int first = time(0);
+			if (seconds <= first) {
+				return first;
+			}
+			final int run = first + (seconds - first + headway - 1) / headway * headway;
+			return run <= lastRun ? run : -1;
+		}
+
+		/**
+		 * The time of the last run not after the given seconds of day, or -1 if none.
+		 */
+		int previousRun(int seconds) {
+			final int first = time(0);
+			if (seconds < first) {
+				return -1;
+			}
+			return Math.min(lastRun, first + (seconds - first) / headway * headway);
+		}
+
+		/**
+		 * Index of the first entry not before the given seconds of day, or the length if none.
+		 */
+		int firstNotBefore(int seconds) {
+			int low = 0;
+			int high = size;
+			while (low < high) {
+				int mid = (low + high) >>> 1;
+				if (time(mid) < seconds) {
+					low = mid + 1;
+				} else {
+					high = mid;
+				}
+			}
+			return low;
+		}
+
+		/**
+		 * Index of the last entry not after the given seconds of day, or -1 if none.
+		 */
+		int lastNotAfter(int seconds) {
+			return firstNotBefore(seconds + 1) - 1;
+		}
+	}
+
 	private boolean isClosed = false;
 	private Directory dir;
 	private Set<String> gtfsFeedIds;
-	private Map<String, GTFSFeed> gtfsFeeds = new HashMap<>();
+	private final Map<String, GTFSFeed> gtfsFeeds = new HashMap<>();
+	private volatile boolean gtfsFeedsOpen = false;
+	private final Map<String, StopTable> stopTables = new ConcurrentHashMap<>();
+	private final Map<String, Timetable> timetables = new ConcurrentHashMap<>();
+	private final Map<String, Raptor> raptors = new ConcurrentHashMap<>();
+	private final Map<String, ConnectionScan> connectionScans = new ConcurrentHashMap<>();
 	private HTreeMap<Validity, Integer> operatingDayPatterns;
 	private Map<Integer, Validity> validities;
 	private Bind.MapWithModificationListener<FeedIdWithTimezone, Integer> timeZones;
 	private Map<Integer, FeedIdWithTimezone> readableTimeZones;
-	private Map<Integer, String> extra;
-	private Map<Integer, Integer> stopSequences;
-	private Map<String, Fare> fares;
-	private Map<GtfsRealtime.TripDescriptor, int[]> boardEdgesForTrip;
-	private Map<GtfsRealtime.TripDescriptor, int[]> leaveEdgesForTrip;
-
-	private Map<String, Integer> stationNodes;
+	private volatile ServiceCalendar serviceCalendar;
+	private volatile ServiceDaySlices serviceDaySlices;
+	private volatile Map<String, Fare> fares;
+
+	// Everything which grows with the size of the network is kept in columns of the graph directory
+	// rather than in the transit schedule, so that loading is a bulk read and lookups are array accesses.
+	private IntColumn edgeTrips;
+	private IntColumn edgeStopSequences;
+	private StringColumn tripIds;
+	// only the import adds trips, so these are built on first use
+	private Map<String, Integer> tripIndex;
+	private IntColumn tripDescriptorTrips;
+	private IntColumn tripDescriptorStartTimes;
+	private IntArrayColumn boardEdgesForTrip;
+	private IntArrayColumn alightEdgesForTrip;
+	private volatile Map<String, Integer> tripDescriptorIndex;
+	private StringColumn stationStopIds;
+	private IntColumn stationNodeColumn;
+	private Map<String, Integer> stationIndex;
+	private IntArrayColumn timelines;
+	// where the timeline of a stop enter or exit node is in the column
+	// the timeline of each stop enter or exit node, by node
+	private IntColumn departureTimelineIndex;
+	private IntColumn arrivalTimelineIndex;
+
+	private static final String NEXT_FEED = ".next";
+	// the files MapDB keeps a feed database in
+	private static final String[] FEED_FILE_SUFFIXES = {"", ".p", ".t"};
 
 	enum EdgeType {
 		HIGHWAY, ENTER_TIME_EXPANDED_NETWORK, LEAVE_TIME_EXPANDED_NETWORK, ENTER_PT, EXIT_PT, HOP, DWELL, BOARD, ALIGHT, OVERNIGHT, TRANSFER, WAIT, WAIT_ARRIVAL
     }
 
 	private DB data;
+	private boolean importing = false;
+	private final boolean forUpdate;
+
+	GtfsStorage() {
+		this(false);
+	}
+
+	/**
+	 * @param forUpdate if the graph is loaded to be updated with a new version of its feeds, rather than to be queried
+	 */
+	GtfsStorage(boolean forUpdate) {
+		this.forUpdate = forUpdate;
+	}
 
 	@Override
 	public boolean isRequireNodeField() {
@@ -135,6 +314,18 @@ public class GtfsStorage implements GraphExtension {
 	@Override
 	public void init(Graph graph, Directory dir) {
 		this.dir = dir;
+		this.edgeTrips = new IntColumn(dir, "gtfs_edge_trips");
+		this.edgeStopSequences = new IntColumn(dir, "gtfs_edge_stop_sequences");
+		this.tripIds = new StringColumn(dir, "gtfs_trip_ids");
+		this.tripDescriptorTrips = new IntColumn(dir, "gtfs_trip_descriptor_trips");
+		this.tripDescriptorStartTimes = new IntColumn(dir, "gtfs_trip_descriptor_start_times");
+		this.boardEdgesForTrip = new IntArrayColumn(dir, "gtfs_board_edges");
+		this.alightEdgesForTrip = new IntArrayColumn(dir, "gtfs_alight_edges");
+		this.stationStopIds = new StringColumn(dir, "gtfs_station_stop_ids");
+		this.stationNodeColumn = new IntColumn(dir, "gtfs_station_nodes");
+		this.timelines = new IntArrayColumn(dir, "gtfs_timelines");
+		this.departureTimelineIndex = new IntColumn(dir, "gtfs_departure_timeline_index");
+		this.arrivalTimelineIndex = new IntColumn(dir, "gtfs_arrival_timeline_index");
 	}
 
 	@Override
@@ -149,19 +340,39 @@ public class GtfsStorage implements GraphExtension {
 
 	@Override
 	public boolean loadExisting() {
-		this.data = DBMaker.newFileDB(new File(dir.getLocation() + "/transit_schedule")).transactionDisable().mmapFileEnable().readOnly().make();
-		init();
-		for (String gtfsFeedId : this.gtfsFeedIds) {
-			try {
-				GTFSFeed feed = new GTFSFeed(dir.getLocation() + "/" + gtfsFeedId);
-				this.gtfsFeeds.put(gtfsFeedId, feed);
-			} catch (IOException | ExecutionException e) {
-				throw new RuntimeException(e);
+		if (!edgeTrips.loadExisting() || !edgeStopSequences.loadExisting() || !tripIds.loadExisting()
+				|| !tripDescriptorTrips.loadExisting() || !tripDescriptorStartTimes.loadExisting()
+				|| !boardEdgesForTrip.loadExisting() || !alightEdgesForTrip.loadExisting()
+				|| !stationStopIds.loadExisting() || !stationNodeColumn.loadExisting() || !timelines.loadExisting()
+				|| !departureTimelineIndex.loadExisting() || !arrivalTimelineIndex.loadExisting()) {
+			return false;
+		}
+		final GtfsSnapshot snapshot = forUpdate ? null : GtfsSnapshot.read(new File(dir.getLocation(), GtfsSnapshot.NAME));
+		if (forUpdate) {
+			this.data = DBMaker.newFileDB(new File(dir.getLocation() + "/transit_schedule")).transactionDisable().mmapFileEnable().asyncWriteEnable().make();
+			init();
+			importing = true;
+		} else if (snapshot != null) {
+			this.gtfsFeedIds = new LinkedHashSet<>(snapshot.feedIds);
+			this.validities = Collections.unmodifiableMap(snapshot.validities);
+			this.readableTimeZones = Collections.unmodifiableMap(snapshot.timeZones);
+		} else {
+			// graphs from before the snapshot
+			this.data = openTransitSchedule();
+			init();
+		}
+		if (snapshot != null) {
+			for (String gtfsFeedId : this.gtfsFeedIds) {
+				stopTables.put(gtfsFeedId, new StopTable(snapshot.stops.get(gtfsFeedId), snapshot.stationNodes.get(gtfsFeedId)));
 			}
 		}
 		return true;
 	}
 
+	private DB openTransitSchedule() {
+		return DBMaker.newFileDB(new File(dir.getLocation() + "/transit_schedule")).transactionDisable().mmapFileEnable().readOnly().make();
+	}
+
 	@Override
 	public GraphExtension create(long byteCount) {
 		final File file = new File(dir.getLocation() + "/transit_schedule");
@@ -172,6 +383,20 @@ public class GtfsStorage implements GraphExtension {
 		}
 		this.data = DBMaker.newFileDB(file).transactionDisable().mmapFileEnable().asyncWriteEnable().make();
 		init();
+		importing = true;
+		gtfsFeedsOpen = true;
+		edgeTrips.create(byteCount);
+		edgeStopSequences.create(byteCount);
+		tripIds.create(byteCount);
+		tripDescriptorTrips.create(byteCount);
+		tripDescriptorStartTimes.create(byteCount);
+		boardEdgesForTrip.create(byteCount);
+		alightEdgesForTrip.create(byteCount);
+		stationStopIds.create(byteCount);
+		stationNodeColumn.create(byteCount);
+		timelines.create(byteCount);
+		departureTimelineIndex.create(byteCount);
+		arrivalTimelineIndex.create(byteCount);
 		return this;
 	}
 
@@ -191,12 +416,7 @@ public class GtfsStorage implements GraphExtension {
 		Bind.mapInverse(this.timeZones, readableTimeZones);
 		this.readableTimeZones = Collections.unmodifiableMap(readableTimeZones);
 		this.validities = Collections.unmodifiableMap(reverseOperatingDayPatterns);
-		this.extra = data.getTreeMap("extra");
-		this.stopSequences = data.getTreeMap("stopSequences");
 		this.fares = data.getTreeMap("fares");
-		this.boardEdgesForTrip = data.getHashMap("boardEdgesForTrip");
-		this.leaveEdgesForTrip = data.getHashMap("leaveEdgesForTrip");
-		this.stationNodes = data.getHashMap("stationNodes");
 	}
 
 	void loadGtfsFromFile(String id, ZipFile zip) {
@@ -211,6 +431,62 @@ public class GtfsStorage implements GraphExtension {
 		this.gtfsFeedIds.add(id);
 	}
 
+	/**
+	 * Loads a new version of a feed next to the current one, for an incremental import. It becomes
+	 * the feed with {@link #replaceGtfsFeed}, or is thrown away with {@link #discardGtfsFeed}.
+	 */
+	GTFSFeed loadNextGtfsFromFile(String id, ZipFile zip) {
+		try {
+			GTFSFeed feed = new GTFSFeed(dir.getLocation() + "/" + id + NEXT_FEED);
+			feed.loadFromFile(zip);
+			fixFares(feed, zip);
+			return feed;
+		} catch (Exception e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	synchronized void replaceGtfsFeed(String id, GTFSFeed next) {
+		final GTFSFeed current = getGtfsFeeds().get(id);
+		current.close();
+		next.close();
+		deleteFeedFiles(id);
+		for (String suffix : FEED_FILE_SUFFIXES) {
+			final File file = new File(dir.getLocation(), id + NEXT_FEED + suffix);
+			if (file.exists()) {
+				try {
+					Files.move(file.toPath(), new File(dir.getLocation(), id + suffix).toPath());
+				} catch (IOException e) {
+					throw new RuntimeException(e);
+				}
+			}
+		}
+		try {
+			gtfsFeeds.put(id, new GTFSFeed(dir.getLocation() + "/" + id));
+		} catch (IOException | ExecutionException e) {
+			throw new RuntimeException(e);
+		}
+		stopTables.remove(id);
+		timetables.remove(id);
+		raptors.remove(id);
+		connectionScans.remove(id);
+	}
+
+	void discardGtfsFeed(String id, GTFSFeed next) {
+		next.close();
+		deleteFeedFiles(id + NEXT_FEED);
+	}
+
+	private void deleteFeedFiles(String name) {
+		for (String suffix : FEED_FILE_SUFFIXES) {
+			try {
+				Files.deleteIfExists(new File(dir.getLocation(), name + suffix).toPath());
+			} catch (IOException e) {
+				throw new RuntimeException(e);
+			}
+		}
+	}
+
 	private void fixFares(GTFSFeed feed, ZipFile zip) {
 		feed.fares.clear();
 		Map<String, Fare> fares = new HashMap<>();
@@ -225,15 +501,57 @@ public class GtfsStorage implements GraphExtension {
 
 	@Override
 	public void flush() {
+		edgeTrips.flush();
+		edgeStopSequences.flush();
+		tripIds.flush();
+		tripDescriptorTrips.flush();
+		tripDescriptorStartTimes.flush();
+		boardEdgesForTrip.flush();
+		alightEdgesForTrip.flush();
+		stationStopIds.flush();
+		stationNodeColumn.flush();
+		timelines.flush();
+		departureTimelineIndex.flush();
+		arrivalTimelineIndex.flush();
+		if (importing) {
+			writeSnapshot();
+		}
+	}
+
+	private void writeSnapshot() {
+		final Map<String, Stop[]> stops = new HashMap<>();
+		final Map<String, int[]> stationNodes = new HashMap<>();
+		for (String gtfsFeedId : gtfsFeedIds) {
+			stops.put(gtfsFeedId, gtfsFeeds.get(gtfsFeedId).stops.values().toArray(new Stop[0]));
+			stationNodes.put(gtfsFeedId, getStationNodes(stops.get(gtfsFeedId)));
+		}
+		new GtfsSnapshot(new ArrayList<>(gtfsFeedIds), readableTimeZones, validities, stops, stationNodes)
+				.write(new File(dir.getLocation(), GtfsSnapshot.NAME));
 	}
 
 	@Override
 	public void close() {
 		if (!isClosed) {
 			isClosed = true;
-			data.close();
-			for (GTFSFeed feed : gtfsFeeds.values()) {
-				feed.close();
+			edgeTrips.close();
+			edgeStopSequences.close();
+			tripIds.close();
+			tripDescriptorTrips.close();
+			tripDescriptorStartTimes.close();
+			boardEdgesForTrip.close();
+			alightEdgesForTrip.close();
+			stationStopIds.close();
+			stationNodeColumn.close();
+			timelines.close();
+			departureTimelineIndex.close();
+			arrivalTimelineIndex.close();
+			synchronized (this) {
+				if (data != null) {
+					data.close();
+				}
+				for (GTFSFeed feed : gtfsFeeds.values()) {
+					feed.close();
+				}
 			}
 		}
 	}
@@ -245,7 +563,11 @@ public class GtfsStorage implements GraphExtension {
 
 	@Override
 	public long getCapacity() {
-		return 0;
+		return edgeTrips.getCapacity() + edgeStopSequences.getCapacity() + tripIds.getCapacity()
+				+ tripDescriptorTrips.getCapacity() + tripDescriptorStartTimes.getCapacity()
+				+ boardEdgesForTrip.getCapacity() + alightEdgesForTrip.getCapacity()
+				+ stationStopIds.getCapacity() + stationNodeColumn.getCapacity() + timelines.getCapacity()
+				+ departureTimelineIndex.getCapacity() + arrivalTimelineIndex.getCapacity();
 	}
 
     Map<Validity, Integer> getOperatingDayPatterns() {
@@ -260,36 +582,353 @@ public class GtfsStorage implements GraphExtension {
 		return readableTimeZones;
 	}
 
+	/**
+	 * The validities and time zones as flat arrays, rebuilt if the import has added any since.
+	 */
+	ServiceCalendar getServiceCalendar() {
+		ServiceCalendar result = serviceCalendar;
+		if (result == null || !result.isUpToDate(validities.size(), readableTimeZones.size())) {
+			result = new ServiceCalendar(validities, readableTimeZones);
+			serviceCalendar = result;
+		}
+		return result;
+	}
+
 	Map<FeedIdWithTimezone, Integer> getWritableTimeZones() {
 		return timeZones;
 	}
 
-	Map<Integer, String> getExtraStrings() {
-		return extra;
+	/**
+	 * The trip a boarding or alighting edge belongs to, or null for any other edge.
+	 */
+	String getTripId(int edge) {
+		final int trip = edgeTrips.get(edge);
+		return trip == IntColumn.NONE ? null : tripIds.get(trip);
+	}
+
+	/**
+	 * The number of the trip a boarding or alighting edge belongs to, or {@link IntColumn#NONE}.
+	 */
+	int getTrip(int edge) {
+		return edgeTrips.get(edge);
 	}
 
-	Map<Integer, Integer> getStopSequences() {
-		return stopSequences;
+	String getTripIdOfTrip(int trip) {
+		return tripIds.get(trip);
 	}
 
-	Map<GtfsRealtime.TripDescriptor, int[]> getBoardEdgesForTrip() {
-		return boardEdgesForTrip;
+	int getTripCount() {
+		return tripIds.size();
 	}
 
-	Map<GtfsRealtime.TripDescriptor, int[]> getAlightEdgesForTrip() {
-		return leaveEdgesForTrip;
+	void putTripId(int edge, String tripId) {
+		edgeTrips.set(edge, getOrAddTrip(tripId));
+	}
+
+	private int getOrAddTrip(String tripId) {
+		if (tripIndex == null) {
+			tripIndex = new HashMap<>();
+			for (int i = 0; i < tripIds.size(); i++) {
+				tripIndex.put(tripIds.get(i), i);
+			}
+		}
+		Integer trip = tripIndex.get(tripId);
+		if (trip == null) {
+			trip = tripIds.add(tripId);
+			tripIndex.put(tripId, trip);
+		}
+		return trip;
 	}
 
+	/**
+	 * The stop sequence of a hop, boarding or alighting edge, or -1 for any other edge.
+	 */
+	int getStopSequence(int edge) {
+		return edgeStopSequences.get(edge);
+	}
+
+	void putStopSequence(int edge, int stopSequence) {
+		edgeStopSequences.set(edge, stopSequence);
+	}
+
+	void putTripDescriptor(String tripId, int startTime, int[] boardEdges, int[] alightEdges) {
+		final int tripDescriptor = boardEdgesForTrip.add(boardEdges);
+		alightEdgesForTrip.add(alightEdges);
+		tripDescriptorTrips.set(tripDescriptor, getOrAddTrip(tripId));
+		tripDescriptorStartTimes.set(tripDescriptor, startTime);
+		tripDescriptorIndex = null;
+	}
+
+	/**
+	 * The boarding edges of a trip by stop sequence, or null if we don't know the trip.
+	 */
+	int[] getBoardEdgesForTrip(GtfsRealtime.TripDescriptor tripDescriptor) {
+		final Integer index = getTripDescriptorIndex().get(tripDescriptor.getTripId() + "@" + tripDescriptor.getStartTime());
+		return index == null ? null : boardEdgesForTrip.get(index);
+	}
+
+	/**
+	 * The alighting edges of a trip by stop sequence, or null if we don't know the trip.
+	 */
+	int[] getAlightEdgesForTrip(GtfsRealtime.TripDescriptor tripDescriptor) {
+		final Integer index = getTripDescriptorIndex().get(tripDescriptor.getTripId() + "@" + tripDescriptor.getStartTime());
+		return index == null ? null : alightEdgesForTrip.get(index);
+	}
+
+	/**
+	 * Only realtime updates look trips up by descriptor, so the index is built on first use.
+	 */
+	private Map<String, Integer> getTripDescriptorIndex() {
+		Map<String, Integer> result = tripDescriptorIndex;
+		if (result == null) {
+			result = new HashMap<>();
+			for (int i = 0; i < boardEdgesForTrip.size(); i++) {
+				result.put(tripIds.get(tripDescriptorTrips.get(i)) + "@" + Entity.Writer.convertToGtfsTime(tripDescriptorStartTimes.get(i)), i);
+			}
+			tripDescriptorIndex = result;
+		}
+		return result;
+	}
+
+	void putDepartureTimeline(int stopEnterNode, Timeline timeline) {
+		departureTimelineIndex.set(stopEnterNode, addTimeline(stopEnterNode, false, timeline));
+	}
+
+	void putArrivalTimeline(int stopExitNode, Timeline timeline) {
+		arrivalTimelineIndex.set(stopExitNode, addTimeline(stopExitNode, true, timeline));
+	}
+
+	/**
+	 * Stored as node, direction, time zone and then the times, edges and time nodes. If the second
+	 * bit of the direction is set, the timeline is frequency based, and headway and last run follow.
+	 */
+	private int addTimeline(int node, boolean arrivals, Timeline timeline) {
+		final int n = timeline.size();
+		final int[] values = new int[3 + 3 * n + (timeline.isFrequencyBased() ? 2 : 0)];
+		values[0] = node;
+		values[1] = (arrivals ? 1 : 0) | (timeline.isFrequencyBased() ? 2 : 0);
+		values[2] = timeline.timeZoneId;
+		for (int i = 0; i < n; i++) {
+			values[3 + i] = timeline.time(i);
+			values[3 + n + i] = timeline.edge(i);
+			values[3 + 2 * n + i] = timeline.timeNode(i);
+		}
+		if (timeline.isFrequencyBased()) {
+			values[3 + 3 * n] = timeline.headway;
+			values[4 + 3 * n] = timeline.lastRun;
+		}
+		return timelines.add(values);
+	}
+
+	/**
+	 * The departures from a stop enter node, or null for any other node.
+	 */
+	Timeline getDepartureTimeline(int node) {
+		final int index = departureTimelineIndex.get(node);
+		return index != IntColumn.NONE ? new Timeline(timelines, index) : null;
+	}
+
+	/**
+	 * The arrivals at a stop exit node, or null for any other node.
+	 */
+	Timeline getArrivalTimeline(int node) {
+		final int index = arrivalTimelineIndex.get(node);
+		return index != IntColumn.NONE ? new Timeline(timelines, index) : null;
+	}
+
+	/**
+	 * Moves the timeline to the departures from a stop enter node, without allocating.
+	 *
+	 * @return false for any other node, in which case the timeline is left as it was
+	 */
+	boolean findDepartureTimeline(int node, Timeline timeline) {
+		return findTimeline(departureTimelineIndex, node, timeline);
+	}
+
+	/**
+	 * Moves the timeline to the arrivals at a stop exit node, without allocating.
+	 *
+	 * @return false for any other node, in which case the timeline is left as it was
+	 */
+	boolean findArrivalTimeline(int node, Timeline timeline) {
+		return findTimeline(arrivalTimelineIndex, node, timeline);
+	}
+
+	private boolean findTimeline(IntColumn index, int node, Timeline timeline) {
+		final int i = index.get(node);
+		if (i == IntColumn.NONE) {
+			return false;
+		}
+		timeline.moveTo(timelines, i);
+		return true;
+	}
+
+	/**
+	 * The departure timelines of all stop enter nodes, read from the column on each call. Only the
+	 * service day slices need them all, nothing reads them when the graph is loaded.
+	 */
+	IntObjectHashMap<Timeline> getDepartureTimelines() {
+		return getTimelines(departureTimelineIndex);
+	}
+
+	IntObjectHashMap<Timeline> getArrivalTimelines() {
+		return getTimelines(arrivalTimelineIndex);
+	}
+
+	private IntObjectHashMap<Timeline> getTimelines(IntColumn index) {
+		final IntObjectHashMap<Timeline> result = new IntObjectHashMap<>();
+		for (int node = 0; node < index.size(); node++) {
+			final int i = index.get(node);
+			if (i != IntColumn.NONE) {
+				result.put(node, new Timeline(timelines, i));
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * The timelines of the service days around now, or null if nobody has started building them.
+	 */
+	ServiceDaySlices getServiceDaySlices() {
+		return serviceDaySlices;
+	}
+
+	void setServiceDaySlices(ServiceDaySlices serviceDaySlices) {
+		this.serviceDaySlices = serviceDaySlices;
+	}
+
+	/**
+	 * Loaded from a snapshot, the fares are only read from the transit schedule when first asked for.
+	 */
 	Map<String, Fare> getFares() {
-		return fares;
+		Map<String, Fare> result = fares;
+		if (result == null) {
+			synchronized (this) {
+				if (fares == null) {
+					data = openTransitSchedule();
+					fares = data.getTreeMap("fares");
+				}
+				result = fares;
+			}
+		}
+		return result;
 	}
 
+	public Set<String> getGtfsFeedIds() {
+		return Collections.unmodifiableSet(gtfsFeedIds);
+	}
+
+	/**
+	 * The feed databases are only opened when first asked for, as the stations, the time zones and
+	 * the validities come from the snapshot. Only timetable routing, plans and fares need them.
+	 */
 	public Map<String, GTFSFeed> getGtfsFeeds() {
+		if (!gtfsFeedsOpen) {
+			openGtfsFeeds();
+		}
 		return Collections.unmodifiableMap(gtfsFeeds);
 	}
 
+	private synchronized void openGtfsFeeds() {
+		if (gtfsFeedsOpen) {
+			return;
+		}
+		for (String gtfsFeedId : this.gtfsFeedIds) {
+			try {
+				GTFSFeed feed = new GTFSFeed(dir.getLocation() + "/" + gtfsFeedId);
+				this.gtfsFeeds.put(gtfsFeedId, feed);
+			} catch (IOException | ExecutionException e) {
+				throw new RuntimeException(e);
+			}
+		}
+		gtfsFeedsOpen = true;
+	}
+
+	/**
+	 * The stops of a feed as arrays, read from the snapshot when the graph is loaded, or from the feed
+	 * on first use otherwise. Don't ask before the import is done, as the station nodes are part of it.
+	 */
+	public StopTable getStopTable(String feedId) {
+		return stopTables.computeIfAbsent(feedId, id -> {
+			final Stop[] stops = getGtfsFeeds().get(id).stops.values().toArray(new Stop[0]);
+			return new StopTable(stops, getStationNodes(stops));
+		});
+	}
+
+	/**
+	 * RAPTOR on the timetable of a feed, built on first use. The timetable is built only once per
+	 * feed and shared with {@link #getConnectionScan(String)}.
+	 */
+	public Raptor getRaptor(String feedId) {
+		return raptors.computeIfAbsent(feedId, id -> new Raptor(getTimetable(id)));
+	}
+
+	public ConnectionScan getConnectionScan(String feedId) {
+		return connectionScans.computeIfAbsent(feedId, id -> new ConnectionScan(getTimetable(id)));
+	}
+
+	private Timetable getTimetable(String feedId) {
+		return timetables.computeIfAbsent(feedId, id -> new Timetable(getGtfsFeeds().get(id)));
+	}
+
+	/**
+	 * The station node of a stop, or -1 if it has none, looked up in the stop tables.
+	 */
+	public int getStationNode(String stopId) {
+		for (String gtfsFeedId : gtfsFeedIds) {
+			final StopTable stopTable = getStopTable(gtfsFeedId);
+			final int stop = stopTable.getStopIndex(stopId);
+			if (stop != StopTable.NO_STOP && stopTable.getStationNode(stop) != -1) {
+				return stopTable.getStationNode(stop);
+			}
+		}
+		return -1;
+	}
+
+	/**
+	 * All station nodes by stop id, read from their columns on each call. Use
+	 * {@link #getStationNode(String)} to look up one.
+	 */
 	public Map<String, Integer> getStationNodes() {
-		return stationNodes;
+		final Map<String, Integer> result = new HashMap<>();
+		for (int i = 0; i < stationStopIds.size(); i++) {
+			result.put(stationStopIds.get(i), stationNodeColumn.get(i));
+		}
+		return result;
+	}
+
+	private int[] getStationNodes(Stop[] stops) {
+		final Map<String, Integer> stationIndex = getStationIndex();
+		final int[] result = new int[stops.length];
+		for (int i = 0; i < stops.length; i++) {
+			final Integer station = stationIndex.get(stops[i].stop_id);
+			result[i] = station != null ? stationNodeColumn.get(station) : -1;
+		}
+		return result;
+	}
+
+	/**
+	 * Only the import and the stop tables of a graph without a snapshot need it, so it is built on
+	 * first use.
+	 */
+	private synchronized Map<String, Integer> getStationIndex() {
+		if (stationIndex == null) {
+			stationIndex = new HashMap<>();
+			for (int i = 0; i < stationStopIds.size(); i++) {
+				stationIndex.put(stationStopIds.get(i), i);
+			}
+		}
+		return stationIndex;
+	}
+
+	void putStationNode(String stopId, int node) {
+		final Map<String, Integer> stationIndex = getStationIndex();
+		Integer station = stationIndex.get(stopId);
+		if (station == null) {
+			station = stationStopIds.add(stopId);
+			stationIndex.put(stopId, station);
+		}
+		stationNodeColumn.set(station, node);
 	}
 
 }
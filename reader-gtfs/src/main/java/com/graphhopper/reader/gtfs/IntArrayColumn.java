@@ -0,0 +1,120 @@
+/*
+ *  Licensed to GraphHopper GmbH under one or more contributor
+ *  license agreements. See the NOTICE file distributed with this work for
+ *  additional information regarding copyright ownership.
+ *
+ *  GraphHopper GmbH licenses this file to you under the Apache License,
+ *  Version 2.0 (the "License"); you may not use this file except in
+ *  compliance with the License. You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.graphhopper.reader.gtfs;
+
+import com.graphhopper.storage.DataAccess;
+import com.graphhopper.storage.Directory;
+
+/**
+ * A list of int arrays in two {@link DataAccess} objects: the values of all arrays one after the
+ * other, and where each array starts.
+ */
+final class IntArrayColumn {
+
+    private final DataAccess offsets;
+    private final DataAccess values;
+    private int size;
+    private int valueCount;
+
+    IntArrayColumn(Directory dir, String name) {
+        this.offsets = dir.find(name + "_offsets");
+        this.values = dir.find(name);
+    }
+
+    void create(long bytes) {
+        offsets.create(bytes);
+        values.create(bytes);
+    }
+
+    boolean loadExisting() {
+        if (!offsets.loadExisting() || !values.loadExisting()) {
+            return false;
+        }
+        size = offsets.getHeader(0);
+        valueCount = offsets.getHeader(4);
+        return true;
+    }
+
+    /**
+     * @return the index of the new array
+     */
+    int add(int[] array) {
+        values.ensureCapacity((long) (valueCount + array.length) * 4L);
+        for (int i = 0; i < array.length; i++) {
+            values.setInt((long) (valueCount + i) * 4L, array[i]);
+        }
+        valueCount += array.length;
+        size++;
+        offsets.ensureCapacity((size + 1) * 4L);
+        offsets.setInt(size * 4L, valueCount);
+        return size - 1;
+    }
+
+    int length(int index) {
+        return offsets.getInt((index + 1) * 4L) - offsets.getInt(index * 4L);
+    }
+
+    /**
+     * Where the array starts among the values of all arrays, see {@link #value(int)}.
+     */
+    int offset(int index) {
+        return offsets.getInt(index * 4L);
+    }
+
+    int value(int position) {
+        return values.getInt(position * 4L);
+    }
+
+    int get(int index, int i) {
+        return values.getInt((long) (offsets.getInt(index * 4L) + i) * 4L);
+    }
+
+    int[] get(int index) {
+        final int from = offsets.getInt(index * 4L);
+        final int[] result = new int[offsets.getInt((index + 1) * 4L) - from];
+        for (int i = 0; i < result.length; i++) {
+            result[i] = values.getInt((long) (from + i) * 4L);
+        }
+        return result;
+    }
+
+    int size() {
+        return size;
+    }
+
+    void flush() {
+        offsets.setHeader(0, size);
+        offsets.setHeader(4, valueCount);
+        offsets.flush();
+        values.flush();
+    }
+
+    void close() {
+        offsets.close();
+        values.close();
+    }
+
+    boolean isClosed() {
+        return values.isClosed();
+    }
+
+    long getCapacity() {
+        return offsets.getCapacity() + values.getCapacity();
+    }
+
+}
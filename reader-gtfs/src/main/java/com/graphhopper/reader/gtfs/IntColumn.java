@@ -0,0 +1,85 @@
+/*
+ *  Licensed to GraphHopper GmbH under one or more contributor
+ *  license agreements. See the NOTICE file distributed with this work for
+ *  additional information regarding copyright ownership.
+ *
+ *  GraphHopper GmbH licenses this file to you under the Apache License,
+ *  Version 2.0 (the "License"); you may not use this file except in
+ *  compliance with the License. You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.graphhopper.reader.gtfs;
+
+import com.graphhopper.storage.DataAccess;
+import com.graphhopper.storage.Directory;
+
+/**
+ * One int per index, e.g. per edge, in a {@link DataAccess}. Only non-negative values can be
+ * stored, and indices which were never set read as {@link #NONE}.
+ */
+final class IntColumn {
+
+    static final int NONE = -1;
+
+    private final DataAccess values;
+    private int size;
+
+    IntColumn(Directory dir, String name) {
+        this.values = dir.find(name);
+    }
+
+    void create(long bytes) {
+        values.create(bytes);
+    }
+
+    boolean loadExisting() {
+        if (!values.loadExisting()) {
+            return false;
+        }
+        size = values.getHeader(0);
+        return true;
+    }
+
+    void set(int index, int value) {
+        if (value < 0) {
+            throw new IllegalArgumentException("Cannot store negative value " + value + " at " + index);
+        }
+        values.ensureCapacity((index + 1) * 4L);
+        // stored plus one, so that the zeros of fresh memory mean nothing was set
+        values.setInt(index * 4L, value + 1);
+        size = Math.max(size, index + 1);
+    }
+
+    int get(int index) {
+        return index >= 0 && index < size ? values.getInt(index * 4L) - 1 : NONE;
+    }
+
+    int size() {
+        return size;
+    }
+
+    void flush() {
+        values.setHeader(0, size);
+        values.flush();
+    }
+
+    void close() {
+        values.close();
+    }
+
+    boolean isClosed() {
+        return values.isClosed();
+    }
+
+    long getCapacity() {
+        return values.getCapacity();
+    }
+
+}
@@ -127,6 +127,14 @@ public class Label {
         };
     }
 
+    /**
+     * The transition into a label which is not the first one, with the edge in travel direction.
+     */
+    static Transition getTransition(Label label, Graph graph, PtFlagEncoder flagEncoder) {
+        EdgeIteratorState edgeIteratorState = graph.getEdgeIteratorState(label.edge, label.parent.node).detach(true);
+        return new Transition(label, getEdgeLabel(edgeIteratorState, flagEncoder));
+    }
+
     private static EdgeLabel getEdgeLabel(EdgeIteratorState edgeIteratorState, PtFlagEncoder flagEncoder) {
         return new EdgeLabel(edgeIteratorState, flagEncoder.getEdgeType(edgeIteratorState.getFlags()), flagEncoder.getValidityId(edgeIteratorState.getFlags()), flagEncoder.getTransfers(edgeIteratorState.getFlags()), edgeIteratorState.getDistance());
     }
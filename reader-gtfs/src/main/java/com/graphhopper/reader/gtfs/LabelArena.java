@@ -0,0 +1,184 @@
+/*
+ *  Licensed to GraphHopper GmbH under one or more contributor
+ *  license agreements. See the NOTICE file distributed with this work for 
+ *  additional information regarding copyright ownership.
+ *
+ *  GraphHopper GmbH licenses this file to you under the Apache License,
+ *  Version 2.0 (the "License"); you may not use this file except in
+ *  compliance with the License. You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.graphhopper.reader.gtfs;
+
+import com.carrotsearch.hppc.IntArrayList;
+
+import java.util.Arrays;
+
+/**
+ * The labels of one search, stored as parallel primitive arrays and addressed by int id,
+ * so that relaxing an edge does not allocate. {@link Label} objects are only created for
+ * labels which are handed out of the search, see {@link #toLabel(int)}.
+ * <p>
+ * The arrays are reused for the next search on the same thread, so a thread can only run
+ * one search at a time. A search which needed more than the initial capacity gives it back
+ * when it is released, so a thread does not hold on to the size of its largest search.
+ */
+final class LabelArena {
+
+    static final int NO_LABEL = -1;
+    static final long NO_DEPARTURE_TIME = Long.MIN_VALUE;
+
+    private static final ThreadLocal<LabelArena> PER_THREAD = ThreadLocal.withInitial(LabelArena::new);
+    private static final int INITIAL_CAPACITY = 1 << 12;
+
+    long[] currentTime;
+    int[] edge;
+    int[] node;
+    int[] nTransfers;
+    int[] nWalkDistanceConstraintViolations;
+    double[] walkDistanceOnCurrentLeg;
+    long[] departureTime;
+    long[] walkTime;
+    int[] parent;
+    // position in the LabelHeap, -1 when not in it
+    int[] heapIndex;
+    // next label in the LabelBags entry of the same node
+    int[] nextInBag;
+    private Label[] materialized;
+    private int size;
+
+    private final LabelBags bags = new LabelBags(this);
+    private final IntArrayList pendingMaterialization = new IntArrayList();
+    private Object owner;
+
+    private LabelArena() {
+        allocate(INITIAL_CAPACITY);
+    }
+
+    static LabelArena acquire(Object owner, int nodes) {
+        final LabelArena labelArena = PER_THREAD.get();
+        labelArena.reset(nodes);
+        labelArena.owner = owner;
+        return labelArena;
+    }
+
+    boolean isOwnedBy(Object owner) {
+        return this.owner == owner;
+    }
+
+    /**
+     * Drops the labels of a finished search, so the thread does not keep its tree alive.
+     */
+    void release(Object owner) {
+        if (isOwnedBy(owner)) {
+            reset(0);
+            this.owner = null;
+            if (currentTime.length > INITIAL_CAPACITY) {
+                shrink();
+            }
+        }
+    }
+
+    int capacity() {
+        return currentTime.length;
+    }
+
+    private void reset(int nodes) {
+        Arrays.fill(materialized, 0, size, null);
+        size = 0;
+        bags.reset(nodes);
+    }
+
+    LabelBags getBags() {
+        return bags;
+    }
+
+    int add(long currentTime, int edge, int node, int nTransfers, int nWalkDistanceConstraintViolations, double walkDistanceOnCurrentLeg, long departureTime, long walkTime, int parent) {
+        if (size == this.currentTime.length) {
+            allocate(size * 2);
+        }
+        final int label = size++;
+        this.currentTime[label] = currentTime;
+        this.edge[label] = edge;
+        this.node[label] = node;
+        this.nTransfers[label] = nTransfers;
+        this.nWalkDistanceConstraintViolations[label] = nWalkDistanceConstraintViolations;
+        this.walkDistanceOnCurrentLeg[label] = walkDistanceOnCurrentLeg;
+        this.departureTime[label] = departureTime;
+        this.walkTime[label] = walkTime;
+        this.parent[label] = parent;
+        this.heapIndex[label] = -1;
+        this.nextInBag[label] = NO_LABEL;
+        return label;
+    }
+
+    /**
+     * Takes back the label added last, which must not be referenced from anywhere yet.
+     */
+    void removeLast() {
+        size--;
+    }
+
+    boolean hasDepartureTime(int label) {
+        return departureTime[label] != NO_DEPARTURE_TIME;
+    }
+
+    /**
+     * Creates the Label object for a label and its ancestors. Ancestors which have already been
+     * handed out are shared.
+     */
+    Label toLabel(int label) {
+        if (materialized[label] == null) {
+            // no recursion, paths can be long
+            pendingMaterialization.clear();
+            for (int l = label; l != NO_LABEL && materialized[l] == null; l = parent[l]) {
+                pendingMaterialization.add(l);
+            }
+            for (int i = pendingMaterialization.size() - 1; i >= 0; i--) {
+                final int l = pendingMaterialization.get(i);
+                materialized[l] = new Label(currentTime[l], edge[l], node[l], nTransfers[l], nWalkDistanceConstraintViolations[l], walkDistanceOnCurrentLeg[l],
+                        hasDepartureTime(l) ? departureTime[l] : null, walkTime[l], parent[l] == NO_LABEL ? null : materialized[parent[l]]);
+            }
+        }
+        return materialized[label];
+    }
+
+    private void shrink() {
+        currentTime = null;
+        edge = null;
+        node = null;
+        nTransfers = null;
+        nWalkDistanceConstraintViolations = null;
+        walkDistanceOnCurrentLeg = null;
+        departureTime = null;
+        walkTime = null;
+        parent = null;
+        heapIndex = null;
+        nextInBag = null;
+        materialized = null;
+        allocate(INITIAL_CAPACITY);
+    }
+
+    private void allocate(int capacity) {
+        currentTime = currentTime == null ? new long[capacity] : Arrays.copyOf(currentTime, capacity);
+        edge = edge == null ? new int[capacity] : Arrays.copyOf(edge, capacity);
+        node = node == null ? new int[capacity] : Arrays.copyOf(node, capacity);
+        nTransfers = nTransfers == null ? new int[capacity] : Arrays.copyOf(nTransfers, capacity);
+        nWalkDistanceConstraintViolations = nWalkDistanceConstraintViolations == null ? new int[capacity] : Arrays.copyOf(nWalkDistanceConstraintViolations, capacity);
+        walkDistanceOnCurrentLeg = walkDistanceOnCurrentLeg == null ? new double[capacity] : Arrays.copyOf(walkDistanceOnCurrentLeg, capacity);
+        departureTime = departureTime == null ? new long[capacity] : Arrays.copyOf(departureTime, capacity);
+        walkTime = walkTime == null ? new long[capacity] : Arrays.copyOf(walkTime, capacity);
+        parent = parent == null ? new int[capacity] : Arrays.copyOf(parent, capacity);
+        heapIndex = heapIndex == null ? new int[capacity] : Arrays.copyOf(heapIndex, capacity);
+        nextInBag = nextInBag == null ? new int[capacity] : Arrays.copyOf(nextInBag, capacity);
+        materialized = materialized == null ? new Label[capacity] : Arrays.copyOf(materialized, capacity);
+    }
+
+}
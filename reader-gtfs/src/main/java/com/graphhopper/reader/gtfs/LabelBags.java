@@ -0,0 +1,85 @@
+/*
+ *  Licensed to GraphHopper GmbH under one or more contributor
+ *  license agreements. See the NOTICE file distributed with this work for 
+ *  additional information regarding copyright ownership.
+ *
+ *  GraphHopper GmbH licenses this file to you under the Apache License,
+ *  Version 2.0 (the "License"); you may not use this file except in
+ *  compliance with the License. You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.graphhopper.reader.gtfs;
+
+import com.carrotsearch.hppc.IntArrayList;
+import com.carrotsearch.hppc.cursors.IntCursor;
+
+import java.util.Arrays;
+
+import static com.graphhopper.reader.gtfs.LabelArena.NO_LABEL;
+
+/**
+ * The Pareto sets of labels at each node, as one array indexed by node id.
+ * Each set is a singly linked list through {@link LabelArena#nextInBag}, since it rarely
+ * holds more than a handful of labels.
+ * <p>
+ * The array is as large as the graph, so it lives as long as its {@link LabelArena}, and
+ * only the nodes touched by the previous search are reset.
+ */
+final class LabelBags {
+
+    private final LabelArena labels;
+    private int[] heads = new int[0];
+    private final IntArrayList touchedNodes = new IntArrayList();
+
+    LabelBags(LabelArena labels) {
+        this.labels = labels;
+    }
+
+    void reset(int nodes) {
+        for (IntCursor node : touchedNodes) {
+            heads[node.value] = NO_LABEL;
+        }
+        touchedNodes.clear();
+        if (heads.length < nodes) {
+            heads = new int[nodes];
+            Arrays.fill(heads, NO_LABEL);
+        }
+    }
+
+    int first(int node) {
+        return node < heads.length ? heads[node] : NO_LABEL;
+    }
+
+    void add(int node, int label) {
+        if (node >= heads.length) {
+            final int oldLength = heads.length;
+            heads = Arrays.copyOf(heads, Math.max(node + 1, oldLength * 2));
+            Arrays.fill(heads, oldLength, heads.length, NO_LABEL);
+        }
+        if (heads[node] == NO_LABEL) {
+            touchedNodes.add(node);
+        }
+        labels.nextInBag[label] = heads[node];
+        heads[node] = label;
+    }
+
+    /**
+     * Removes label from the bag of node, where prev is its predecessor in the bag, or
+     * NO_LABEL if it is the first one.
+     */
+    void unlink(int node, int prev, int label) {
+        if (prev == NO_LABEL) {
+            heads[node] = labels.nextInBag[label];
+        } else {
+            labels.nextInBag[prev] = labels.nextInBag[label];
+        }
+    }
+
+}
@@ -0,0 +1,151 @@
+/*
+ *  Licensed to GraphHopper GmbH under one or more contributor
+ *  license agreements. See the NOTICE file distributed with this work for 
+ *  additional information regarding copyright ownership.
+ *
+ *  GraphHopper GmbH licenses this file to you under the Apache License,
+ *  Version 2.0 (the "License"); you may not use this file except in
+ *  compliance with the License. You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.graphhopper.reader.gtfs;
+
+import com.carrotsearch.hppc.sorting.IndirectComparator;
+
+import java.util.Arrays;
+import java.util.NoSuchElementException;
+
+/**
+ * Binary min heap of labels which remembers the position of each label in the heap,
+ * so that removing a dominated label is O(log n) instead of the linear scan
+ * java.util.PriorityQueue does.
+ * <p>
+ * Labels are ids in a {@link LabelArena}, which also holds their heap positions, so a label
+ * can only be in one LabelHeap at a time.
+ */
+final class LabelHeap {
+
+    private static final int GROW_FACTOR = 2;
+    private final IndirectComparator comparator;
+    private final LabelArena labels;
+    private int[] elements;
+    private int size;
+
+    LabelHeap(IndirectComparator comparator, LabelArena labels) {
+        this(comparator, labels, 1000);
+    }
+
+    LabelHeap(IndirectComparator comparator, LabelArena labels, int initialCapacity) {
+        this.comparator = comparator;
+        this.labels = labels;
+        // +1 as element 0 is noop
+        this.elements = new int[initialCapacity + 1];
+    }
+
+    void add(int label) {
+        if (elements.length == size + 1) {
+            elements = Arrays.copyOf(elements, elements.length * GROW_FACTOR);
+        }
+        size++;
+        elements[size] = label;
+        labels.heapIndex[label] = size;
+        percolateUp(size);
+    }
+
+    int peek() {
+        if (isEmpty()) {
+            throw new NoSuchElementException("Heap is empty. Cannot peek element.");
+        }
+        return elements[1];
+    }
+
+    int poll() {
+        final int result = peek();
+        removeAt(1);
+        return result;
+    }
+
+    /**
+     * Removes the label if it is in the heap. Does nothing if it has already been polled.
+     */
+    boolean remove(int label) {
+        final int index = labels.heapIndex[label];
+        if (index <= 0 || index > size || elements[index] != label) {
+            return false;
+        }
+        removeAt(index);
+        return true;
+    }
+
+    private void removeAt(int index) {
+        labels.heapIndex[elements[index]] = -1;
+        final int last = elements[size];
+        size--;
+        if (index <= size) {
+            elements[index] = last;
+            labels.heapIndex[last] = index;
+            if (index > 1 && comparator.compare(last, elements[index / 2]) < 0) {
+                percolateUp(index);
+            } else {
+                percolateDown(index);
+            }
+        }
+    }
+
+    private void percolateUp(int index) {
+        final int label = elements[index];
+        int hole = index;
+        // parent == hole/2
+        while (hole > 1 && comparator.compare(label, elements[hole / 2]) < 0) {
+            final int next = hole / 2;
+            elements[hole] = elements[next];
+            labels.heapIndex[elements[hole]] = hole;
+            hole = next;
+        }
+        elements[hole] = label;
+        labels.heapIndex[label] = hole;
+    }
+
+    private void percolateDown(int index) {
+        final int label = elements[index];
+        int hole = index;
+        while (hole * 2 <= size) {
+            int child = hole * 2;
+            // if we have a right child and that child is smaller then move onto it
+            if (child != size && comparator.compare(elements[child + 1], elements[child]) < 0) {
+                child++;
+            }
+            if (comparator.compare(elements[child], label) >= 0) {
+                break;
+            }
+            elements[hole] = elements[child];
+            labels.heapIndex[elements[hole]] = hole;
+            hole = child;
+        }
+        elements[hole] = label;
+        labels.heapIndex[label] = hole;
+    }
+
+    boolean isEmpty() {
+        return size == 0;
+    }
+
+    int size() {
+        return size;
+    }
+
+    void clear() {
+        for (int i = 1; i <= size; i++) {
+            labels.heapIndex[elements[i]] = -1;
+        }
+        size = 0;
+    }
+
+}
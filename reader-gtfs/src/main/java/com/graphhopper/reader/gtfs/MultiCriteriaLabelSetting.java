@@ -17,8 +17,8 @@
  */
 package com.graphhopper.reader.gtfs;
 
-import com.google.common.collect.HashMultimap;
-import com.google.common.collect.SetMultimap;
+import com.carrotsearch.hppc.IntArrayList;
+import com.carrotsearch.hppc.sorting.IndirectComparator;
 import com.graphhopper.routing.weighting.Weighting;
 import com.graphhopper.util.EdgeIterator;
 import com.graphhopper.util.EdgeIteratorState;
@@ -29,28 +29,36 @@ import java.util.function.Consumer;
 import java.util.stream.Stream;
 import java.util.stream.StreamSupport;
 
+import static com.graphhopper.reader.gtfs.LabelArena.NO_DEPARTURE_TIME;
+import static com.graphhopper.reader.gtfs.LabelArena.NO_LABEL;
+
 /**
  * Implements a Multi-Criteria Label Setting (MLS) path finding algorithm
  * with the criteria earliest arrival time and number of transfers.
  * <p>
+ * Labels are kept in a per-thread {@link LabelArena} while searching and only
+ * become {@link Label} objects when they are settled and handed out.
  *
  * @author Michael Zilske
  * @author Peter Karich
  */
 public class MultiCriteriaLabelSetting {
 
-    private final Comparator<Label> queueComparator;
+    private final IndirectComparator queueComparator;
     private long startTime;
     private final PtFlagEncoder flagEncoder;
     private final PtTravelTimeWeighting weighting;
-    public final SetMultimap<Integer, Label> fromMap;
-    private final PriorityQueue<Label> fromHeap;
+    private LabelArena labels;
+    private LabelBags fromMap;
+    private LabelHeap fromHeap;
     private final int maxVisitedNodes;
     private final boolean reverse;
     private final double maxWalkDistancePerLeg;
     private final double maxTransferDistancePerLeg;
     private final boolean mindTransfers;
     private final boolean profileQuery;
+    private long maxTravelTime = Long.MAX_VALUE;
+    private int maxTransfers = Integer.MAX_VALUE;
     private int visitedNodes;
     private final GraphExplorer explorer;
 
@@ -65,16 +73,43 @@ public class MultiCriteriaLabelSetting {
         this.mindTransfers = mindTransfers;
         this.profileQuery = profileQuery;
 
-        queueComparator = Comparator.<Label>comparingLong(l2 -> currentTimeCriterion(l2))
-                .thenComparing(Comparator.comparingLong(l1 -> l1.nTransfers))
-                .thenComparing(Comparator.comparingLong(l1 -> l1.nWalkDistanceConstraintViolations))
-                .thenComparing(Comparator.comparingLong(l -> departureTimeCriterion(l) != null ? departureTimeCriterion(l) : 0));
-        fromHeap = new PriorityQueue<>(queueComparator);
-        fromMap = HashMultimap.create();
+        queueComparator = (l1, l2) -> {
+            int c = Long.compare(currentTimeCriterion(l1), currentTimeCriterion(l2));
+            if (c != 0)
+                return c;
+            c = Integer.compare(labels.nTransfers[l1], labels.nTransfers[l2]);
+            if (c != 0)
+                return c;
+            c = Integer.compare(labels.nWalkDistanceConstraintViolations[l1], labels.nWalkDistanceConstraintViolations[l2]);
+            if (c != 0)
+                return c;
+            return Long.compare(labels.hasDepartureTime(l1) ? departureTimeCriterion(l1) : 0, labels.hasDepartureTime(l2) ? departureTimeCriterion(l2) : 0);
+        };
+    }
+
+    /**
+     * Labels which are more than this many milliseconds away from the start time are never
+     * created, so the search stops once every node within the budget has been settled.
+     */
+    public void setMaxTravelTime(long maxTravelTime) {
+        this.maxTravelTime = maxTravelTime;
     }
 
+    /**
+     * Labels with more changes of vehicle are never created. Labels with fewer changes must then
+     * not be dominated by faster ones with more, so the number of transfers becomes a criterion.
+     */
+    public void setMaxTransfers(int maxTransfers) {
+        this.maxTransfers = maxTransfers;
+    }
+
+    /**
+     * Like {@link #getLabelStream(int, int, Instant)}, the stream must be closed if it is not
+     * consumed to the end.
+     */
     public Stream<Label> calcPaths(int from, int to, Instant startTime) {
-        final Spliterator<Label> spliterator = getLabelStream(from, to, startTime).spliterator();
+        final Stream<Label> labelStream = getLabelStream(from, to, startTime);
+        final Spliterator<Label> spliterator = labelStream.spliterator();
         return StreamSupport.stream(new Spliterators.AbstractSpliterator<Label>(0, 0) {
             Label current = null;
             List<Label> solutions = new ArrayList<>();
@@ -90,12 +125,19 @@ public class MultiCriteriaLabelSetting {
                 return false;
             }
         }, false)
+                .onClose(labelStream::close)
                 .filter(me -> me.nWalkDistanceConstraintViolations <= 0);
     }
 
+    /**
+     * The labels in the order they are settled. The search keeps its labels on this thread until
+     * the stream has been consumed to the end or closed, so callers which stop early must close it.
+     */
     public Stream<Label> getLabelStream(int from, int to, Instant startTime) {
         this.startTime = startTime.toEpochMilli();
-        return (Stream<Label>) StreamSupport.stream(new MultiCriteriaLabelSetting.MultiCriteriaLabelSettingSpliterator(from, to), false)
+        final MultiCriteriaLabelSettingSpliterator spliterator = new MultiCriteriaLabelSettingSpliterator(from, to);
+        return (Stream<Label>) StreamSupport.stream(spliterator, false)
+                .onClose(spliterator::release)
                 .limit(maxVisitedNodes)
                 .peek(label -> visitedNodes++);
     }
@@ -103,63 +145,83 @@ public class MultiCriteriaLabelSetting {
     private class MultiCriteriaLabelSettingSpliterator extends Spliterators.AbstractSpliterator<Label> {
 
         private final int to;
-        private final Set<Label> targetLabels;
+        private final IntArrayList targetLabels;
 
         MultiCriteriaLabelSettingSpliterator(int from, int to) {
             super(0, 0);
             this.to = to;
-            targetLabels = new HashSet<>();
-            Label label = new Label(startTime, EdgeIterator.NO_EDGE, from, 0, 0, 0.0, null, 0, null);
-            fromMap.put(from, label);
+            targetLabels = new IntArrayList();
+            labels = LabelArena.acquire(this, explorer.getNodes());
+            fromMap = labels.getBags();
+            fromHeap = new LabelHeap(queueComparator, labels);
+            int label = labels.add(startTime, EdgeIterator.NO_EDGE, from, 0, 0, 0.0, NO_DEPARTURE_TIME, 0, NO_LABEL);
+            fromMap.add(from, label);
             fromHeap.add(label);
             if (to == from) {
                 targetLabels.add(label);
             }
         }
 
+        void release() {
+            labels.release(this);
+        }
+
         @Override
         public boolean tryAdvance(Consumer<? super Label> action) {
             if (fromHeap.isEmpty()) {
+                labels.release(this);
                 return false;
+            } else if (!labels.isOwnedBy(this)) {
+                throw new IllegalStateException("Another search has been started on this thread.");
             } else {
-                Label label = fromHeap.poll();
-                action.accept(label);
-                for (EdgeIteratorState edge : explorer.exploreEdgesAround(label)) {
+                int label = fromHeap.poll();
+                action.accept(labels.toLabel(label));
+                final long currentTime = labels.currentTime[label];
+                final int labelNTransfers = labels.nTransfers[label];
+                final int labelNWalkDistanceConstraintViolations = labels.nWalkDistanceConstraintViolations[label];
+                final double labelWalkDistanceOnCurrentLeg = labels.walkDistanceOnCurrentLeg[label];
+                final long labelWalkTime = labels.walkTime[label];
+                for (EdgeIteratorState edge : explorer.exploreEdgesAround(labels.node[label], currentTime)) {
                     GtfsStorage.EdgeType edgeType = flagEncoder.getEdgeType(edge.getFlags());
                     long nextTime;
                     if (reverse) {
-                        nextTime = label.currentTime - explorer.calcTravelTimeMillis(edge, label.currentTime);
+                        nextTime = currentTime - explorer.calcTravelTimeMillis(edge, currentTime);
                     } else {
-                        nextTime = label.currentTime + explorer.calcTravelTimeMillis(edge, label.currentTime);
+                        nextTime = currentTime + explorer.calcTravelTimeMillis(edge, currentTime);
+                    }
+                    int nTransfers = labelNTransfers + weighting.calcNTransfers(edge);
+                    if ((reverse ? startTime - nextTime : nextTime - startTime) > maxTravelTime || nTransfers - 1 > maxTransfers) {
+                        continue;
                     }
-                    int nTransfers = label.nTransfers + weighting.calcNTransfers(edge);
-                    Long firstPtDepartureTime = label.departureTime;
+                    long firstPtDepartureTime = labels.departureTime[label];
                     if (!reverse && (edgeType == GtfsStorage.EdgeType.ENTER_TIME_EXPANDED_NETWORK || edgeType == GtfsStorage.EdgeType.WAIT)) {
-                        if (label.nTransfers == 0) {
-                            firstPtDepartureTime = nextTime - label.walkTime;
+                        if (labelNTransfers == 0) {
+                            firstPtDepartureTime = nextTime - labelWalkTime;
                         }
                     } else if (reverse && (edgeType == GtfsStorage.EdgeType.LEAVE_TIME_EXPANDED_NETWORK || edgeType == GtfsStorage.EdgeType.WAIT_ARRIVAL)) {
-                        if (label.nTransfers == 0) {
-                            firstPtDepartureTime = nextTime - label.walkTime;
+                        if (labelNTransfers == 0) {
+                            firstPtDepartureTime = nextTime - labelWalkTime;
                         }
                     }
-                    double walkDistanceOnCurrentLeg = (!reverse && edgeType == GtfsStorage.EdgeType.BOARD || reverse && edgeType == GtfsStorage.EdgeType.ALIGHT) ? 0 : (label.walkDistanceOnCurrentLeg + weighting.getWalkDistance(edge));
-                    boolean isTryingToReEnterPtAfterTransferWalking = (!reverse && edgeType == GtfsStorage.EdgeType.ENTER_PT || reverse && edgeType == GtfsStorage.EdgeType.EXIT_PT) && label.nTransfers > 0 && label.walkDistanceOnCurrentLeg > maxTransferDistancePerLeg;
-                    long walkTime = label.walkTime + (edgeType == GtfsStorage.EdgeType.HIGHWAY ? nextTime - label.currentTime : 0);
-                    int nWalkDistanceConstraintViolations = Math.min(1, label.nWalkDistanceConstraintViolations + (
-                            isTryingToReEnterPtAfterTransferWalking ? 1 : (label.walkDistanceOnCurrentLeg <= maxWalkDistancePerLeg && walkDistanceOnCurrentLeg > maxWalkDistancePerLeg ? 1 : 0)));
-                    Set<Label> sptEntries = fromMap.get(edge.getAdjNode());
-                    Label nEdge = new Label(nextTime, edge.getEdge(), edge.getAdjNode(), nTransfers, nWalkDistanceConstraintViolations, walkDistanceOnCurrentLeg, firstPtDepartureTime, walkTime, label);
-                    if (isNotDominatedByAnyOf(nEdge, sptEntries) && isNotDominatedByAnyOf(nEdge, targetLabels)) {
-                        removeDominated(nEdge, sptEntries);
-                        if (to == edge.getAdjNode()) {
+                    double walkDistanceOnCurrentLeg = (!reverse && edgeType == GtfsStorage.EdgeType.BOARD || reverse && edgeType == GtfsStorage.EdgeType.ALIGHT) ? 0 : (labelWalkDistanceOnCurrentLeg + weighting.getWalkDistance(edge));
+                    boolean isTryingToReEnterPtAfterTransferWalking = (!reverse && edgeType == GtfsStorage.EdgeType.ENTER_PT || reverse && edgeType == GtfsStorage.EdgeType.EXIT_PT) && labelNTransfers > 0 && labelWalkDistanceOnCurrentLeg > maxTransferDistancePerLeg;
+                    long walkTime = labelWalkTime + (edgeType == GtfsStorage.EdgeType.HIGHWAY ? nextTime - currentTime : 0);
+                    int nWalkDistanceConstraintViolations = Math.min(1, labelNWalkDistanceConstraintViolations + (
+                            isTryingToReEnterPtAfterTransferWalking ? 1 : (labelWalkDistanceOnCurrentLeg <= maxWalkDistancePerLeg && walkDistanceOnCurrentLeg > maxWalkDistancePerLeg ? 1 : 0)));
+                    int adjNode = edge.getAdjNode();
+                    int nEdge = labels.add(nextTime, edge.getEdge(), adjNode, nTransfers, nWalkDistanceConstraintViolations, walkDistanceOnCurrentLeg, firstPtDepartureTime, walkTime, label);
+                    if (isNotDominatedByAnyOf(nEdge, adjNode) && isNotDominatedByAnyOf(nEdge, targetLabels)) {
+                        removeDominated(nEdge, adjNode);
+                        if (to == adjNode) {
                             removeDominated(nEdge, targetLabels);
                         }
-                        fromMap.put(edge.getAdjNode(), nEdge);
-                        if (to == edge.getAdjNode()) {
+                        fromMap.add(adjNode, nEdge);
+                        if (to == adjNode) {
                             targetLabels.add(nEdge);
                         }
                         fromHeap.add(nEdge);
+                    } else {
+                        labels.removeLast();
                     }
                 }
                 return true;
@@ -167,8 +229,8 @@ public class MultiCriteriaLabelSetting {
         }
     }
 
-    private boolean isNotDominatedByAnyOf(Label me, Set<Label> sptEntries) {
-        for (Label they : sptEntries) {
+    private boolean isNotDominatedByAnyOf(int me, int node) {
+        for (int they = fromMap.first(node); they != NO_LABEL; they = labels.nextInBag[they]) {
             if (dominates(they, me)) {
                 return false;
             }
@@ -176,20 +238,41 @@ public class MultiCriteriaLabelSetting {
         return true;
     }
 
+    private boolean isNotDominatedByAnyOf(int me, IntArrayList sptEntries) {
+        for (int i = 0; i < sptEntries.size(); i++) {
+            if (dominates(sptEntries.get(i), me)) {
+                return false;
+            }
+        }
+        return true;
+    }
 
-    private void removeDominated(Label me, Set<Label> sptEntries) {
-        for (Iterator<Label> iterator = sptEntries.iterator(); iterator.hasNext();) {
-            Label sptEntry = iterator.next();
+    private void removeDominated(int me, int node) {
+        int prev = NO_LABEL;
+        for (int sptEntry = fromMap.first(node); sptEntry != NO_LABEL; sptEntry = labels.nextInBag[sptEntry]) {
             if (dominates(me, sptEntry)) {
                 fromHeap.remove(sptEntry);
-                iterator.remove();
+                fromMap.unlink(node, prev, sptEntry);
+            } else {
+                prev = sptEntry;
             }
         }
     }
 
-    private boolean dominates(Label me, Label they) {
+    private void removeDominated(int me, IntArrayList sptEntries) {
+        for (int i = sptEntries.size() - 1; i >= 0; i--) {
+            int sptEntry = sptEntries.get(i);
+            if (dominates(me, sptEntry)) {
+                fromHeap.remove(sptEntry);
+                sptEntries.remove(i);
+            }
+        }
+    }
+
+    private boolean dominates(int me, int they) {
+        final boolean bothHaveDepartureTime = labels.hasDepartureTime(me) && labels.hasDepartureTime(they);
         if (profileQuery) {
-            if (me.departureTime != null && they.departureTime != null) {
+            if (bothHaveDepartureTime) {
                 if (currentTimeCriterion(me) > currentTimeCriterion(they))
                     return false;
                 if (departureTimeCriterion(me) > departureTimeCriterion(they))
@@ -203,13 +286,13 @@ public class MultiCriteriaLabelSetting {
                 return false;
         }
 
-        if (mindTransfers && me.nTransfers > they.nTransfers)
+        if (isMindingTransfers() && labels.nTransfers[me] > labels.nTransfers[they])
             return false;
-        if (me.nWalkDistanceConstraintViolations  > they.nWalkDistanceConstraintViolations)
+        if (labels.nWalkDistanceConstraintViolations[me] > labels.nWalkDistanceConstraintViolations[they])
             return false;
 
         if (profileQuery) {
-            if (me.departureTime != null && they.departureTime != null) {
+            if (bothHaveDepartureTime) {
                 if (currentTimeCriterion(me) < currentTimeCriterion(they))
                     return true;
                 if (departureTimeCriterion(me) < departureTimeCriterion(they))
@@ -222,27 +305,32 @@ public class MultiCriteriaLabelSetting {
             if (currentTimeCriterion(me) < currentTimeCriterion(they))
                 return true;
         }
-        if (mindTransfers && me.nTransfers  < they.nTransfers)
+        if (isMindingTransfers() && labels.nTransfers[me] < labels.nTransfers[they])
             return true;
-        if (me.nWalkDistanceConstraintViolations < they.nWalkDistanceConstraintViolations)
+        if (labels.nWalkDistanceConstraintViolations[me] < labels.nWalkDistanceConstraintViolations[they])
             return true;
 
-        return queueComparator.compare(me,they) <= 0;
+        return queueComparator.compare(me, they) <= 0;
+    }
+
+    private boolean isMindingTransfers() {
+        return mindTransfers || maxTransfers != Integer.MAX_VALUE;
     }
 
-    private Long departureTimeCriterion(Label label) {
-        return label.departureTime == null ? null : reverse ? label.departureTime : -label.departureTime;
+    // only meaningful if the label has a departure time
+    private long departureTimeCriterion(int label) {
+        return reverse ? labels.departureTime[label] : -labels.departureTime[label];
     }
 
-    private long currentTimeCriterion(Label label) {
-        return reverse ? -label.currentTime : label.currentTime;
+    private long currentTimeCriterion(int label) {
+        return reverse ? -labels.currentTime[label] : labels.currentTime[label];
     }
 
-    private long travelTimeCriterion(Label label) {
-        if (label.departureTime == null) {
-            return label.walkTime;
+    private long travelTimeCriterion(int label) {
+        if (!labels.hasDepartureTime(label)) {
+            return labels.walkTime[label];
         } else {
-            return (reverse ? -1 : 1) * (label.currentTime - label.departureTime);
+            return (reverse ? -1 : 1) * (labels.currentTime[label] - labels.departureTime[label]);
         }
     }
 
@@ -0,0 +1,655 @@
+/*
+ *  Licensed to GraphHopper GmbH under one or more contributor
+ *  license agreements. See the NOTICE file distributed with this work for
+ *  additional information regarding copyright ownership.
+ *
+ *  GraphHopper GmbH licenses this file to you under the Apache License,
+ *  Version 2.0 (the "License"); you may not use this file except in
+ *  compliance with the License. You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package com.graphhopper.reader.gtfs;
+
+import com.carrotsearch.hppc.IntArrayList;
+import com.conveyal.gtfs.GTFSFeed;
+import com.conveyal.gtfs.model.StopTime;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.time.LocalDate;
+import java.time.ZoneId;
+import java.util.*;
+
+/**
+ * Round-based public transit routing (RAPTOR) on arrays derived from the feed, as an alternative
+ * to {@link MultiCriteriaLabelSetting} on the time-expanded graph.
+ * <p>
+ * Trips which stop at the same sequence of stops and never overtake each other form a pattern.
+ * Round k scans every pattern serving a stop which improved in round k-1 and so finds the earliest
+ * arrival using at most k trips. An arrival is only kept when it is earlier than the ones from the
+ * rounds before, so the rounds give the Pareto set of arrival time and number of trips per stop.
+ * <p>
+ * The model is the same as in {@link ConnectionScan}.
+ */
+public final class Raptor {
+
+    private static final long NOT_REACHED = Long.MAX_VALUE;
+    private static final long SOURCE = Long.MIN_VALUE;
+
+    public static class Arrival {
+        public final String stopId;
+        public final long arrivalTime;
+        /**
+         * Departure of the first vehicle on the way here, or null for the source stop.
+         */
+        public final Long departureTime;
+        public final int nTrips;
+
+        Arrival(String stopId, long arrivalTime, Long departureTime, int nTrips) {
+            this.stopId = stopId;
+            this.arrivalTime = arrivalTime;
+            this.departureTime = departureTime;
+            this.nTrips = nTrips;
+        }
+    }
+
+    /**
+     * A ride on one trip, from the stop where it is boarded to the stop where it is left.
+     */
+    public static class Leg {
+        public final String tripId;
+        public final List<String> stopIds;
+        public final long[] arrivalTimes;
+        public final long[] departureTimes;
+
+        Leg(String tripId, List<String> stopIds, long[] arrivalTimes, long[] departureTimes) {
+            this.tripId = tripId;
+            this.stopIds = stopIds;
+            this.arrivalTimes = arrivalTimes;
+            this.departureTimes = departureTimes;
+        }
+
+        public long getDepartureTime() {
+            return departureTimes[0];
+        }
+
+        public long getArrivalTime() {
+            return arrivalTimes[arrivalTimes.length - 1];
+        }
+    }
+
+    public static class Journey {
+        public final List<Leg> legs;
+
+        Journey(List<Leg> legs) {
+            this.legs = legs;
+        }
+
+        public long getDepartureTime() {
+            return legs.get(0).getDepartureTime();
+        }
+
+        public long getArrivalTime() {
+            return legs.get(legs.size() - 1).getArrivalTime();
+        }
+    }
+
+    /**
+     * Trips with the same stops, sorted so that every trip departs and arrives at every stop no
+     * earlier than the one before. Times are GTFS seconds, trip-major.
+     */
+    private static final class Pattern {
+        final int zone;
+        final int[] stops;
+        final int[] arrivalTimes;
+        final int[] departureTimes;
+        final int[] validity;
+        final String[] tripIds;
+        final int maxDayShift;
+
+        Pattern(int zone, int[] stops, List<int[]> trips, IntArrayList validity, List<String> tripIds) {
+            this.zone = zone;
+            this.stops = stops;
+            this.arrivalTimes = new int[trips.size() * stops.length];
+            this.departureTimes = new int[trips.size() * stops.length];
+            int maxDeparture = 0;
+            for (int trip = 0; trip < trips.size(); trip++) {
+                for (int position = 0; position < stops.length; position++) {
+                    arrivalTimes[trip * stops.length + position] = trips.get(trip)[2 * position];
+                    departureTimes[trip * stops.length + position] = trips.get(trip)[2 * position + 1];
+                    maxDeparture = Math.max(maxDeparture, trips.get(trip)[2 * position + 1]);
+                }
+            }
+            this.validity = validity.toArray();
+            this.tripIds = tripIds.toArray(new String[0]);
+            this.maxDayShift = maxDeparture / (24 * 60 * 60);
+        }
+
+        int nTrips() {
+            return tripIds.length;
+        }
+
+        int arrivalTime(int trip, int position) {
+            return arrivalTimes[trip * stops.length + position];
+        }
+
+        int departureTime(int trip, int position) {
+            return departureTimes[trip * stops.length + position];
+        }
+    }
+
+    /**
+     * Collects the runs of trips with one sequence of stops and splits them into patterns
+     * without overtaking.
+     */
+    private static final class PatternBuilder {
+        final int zone;
+        final int[] stops;
+        final List<int[]> trips = new ArrayList<>();
+        final IntArrayList validity = new IntArrayList();
+        final List<String> tripIds = new ArrayList<>();
+
+        PatternBuilder(int zone, int[] stops) {
+            this.zone = zone;
+            this.stops = stops;
+        }
+
+        void add(int[] times, int validity, String tripId) {
+            this.trips.add(times);
+            this.validity.add(validity);
+            this.tripIds.add(tripId);
+        }
+
+        List<Pattern> build() {
+            final Integer[] order = new Integer[trips.size()];
+            for (int i = 0; i < order.length; i++) {
+                order[i] = i;
+            }
+            Arrays.sort(order, Comparator.comparingInt(i -> trips.get(i)[1]));
+            final List<PatternBuilder> fifo = new ArrayList<>();
+            for (int i : order) {
+                PatternBuilder target = null;
+                for (PatternBuilder candidate : fifo) {
+                    if (notOvertaking(candidate.trips.get(candidate.trips.size() - 1), trips.get(i))) {
+                        target = candidate;
+                        break;
+                    }
+                }
+                if (target == null) {
+                    target = new PatternBuilder(zone, stops);
+                    fifo.add(target);
+                }
+                target.add(trips.get(i), validity.get(i), tripIds.get(i));
+            }
+            final List<Pattern> result = new ArrayList<>();
+            for (PatternBuilder builder : fifo) {
+                result.add(new Pattern(zone, stops, builder.trips, builder.validity, builder.tripIds));
+            }
+            return result;
+        }
+
+        private static boolean notOvertaking(int[] earlier, int[] later) {
+            for (int i = 0; i < earlier.length; i++) {
+                if (later[i] < earlier[i]) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+
+    private final Timetable timetable;
+    private final List<ZoneId> zones = new ArrayList<>();
+    private final int[] zoneMaxDayShift;
+    private final Pattern[] patterns;
+    private final int[] stopPatternOffsets;
+    private final int[] stopPatterns;
+    private final int[] stopPatternPositions;
+
+    public Raptor(GTFSFeed feed) {
+        this(new Timetable(feed));
+    }
+
+    Raptor(Timetable timetable) {
+        this.timetable = timetable;
+        final Map<List<Object>, PatternBuilder> builders = new LinkedHashMap<>();
+        timetable.forEachTripInstance((trip, zoneId, validity, offset, stopTimes) -> {
+            if (!zones.contains(zoneId)) {
+                zones.add(zoneId);
+            }
+            final int zone = zones.indexOf(zoneId);
+            final int[] stops = new int[stopTimes.size()];
+            final int[] times = new int[2 * stopTimes.size()];
+            for (int i = 0; i < stopTimes.size(); i++) {
+                StopTime stopTime = stopTimes.get(i);
+                stops[i] = timetable.stopIndex.get(stopTime.stop_id);
+                times[2 * i] = stopTime.arrival_time + offset;
+                times[2 * i + 1] = stopTime.departure_time + offset;
+            }
+            builders.computeIfAbsent(Arrays.asList(zone, IntArrayList.from(stops)), key -> new PatternBuilder(zone, stops))
+                    .add(times, validity, trip.trip_id);
+        });
+        final List<Pattern> patternList = new ArrayList<>();
+        builders.values().forEach(builder -> patternList.addAll(builder.build()));
+        patterns = patternList.toArray(new Pattern[0]);
+
+        zoneMaxDayShift = new int[zones.size()];
+        final int nStops = timetable.stopIds.length;
+        final int[] count = new int[nStops + 1];
+        for (Pattern pattern : patterns) {
+            zoneMaxDayShift[pattern.zone] = Math.max(zoneMaxDayShift[pattern.zone], pattern.maxDayShift);
+            for (int stop : pattern.stops) {
+                count[stop]++;
+            }
+        }
+        stopPatternOffsets = new int[nStops + 1];
+        for (int i = 0; i < nStops; i++) {
+            stopPatternOffsets[i + 1] = stopPatternOffsets[i] + count[i];
+        }
+        stopPatterns = new int[stopPatternOffsets[nStops]];
+        stopPatternPositions = new int[stopPatternOffsets[nStops]];
+        final int[] next = Arrays.copyOf(stopPatternOffsets, nStops);
+        for (int p = 0; p < patterns.length; p++) {
+            for (int position = 0; position < patterns[p].stops.length; position++) {
+                final int stop = patterns[p].stops[position];
+                stopPatterns[next[stop]] = p;
+                stopPatternPositions[next[stop]] = position;
+                next[stop]++;
+            }
+        }
+    }
+
+    /**
+     * The Pareto set of arrival time and number of trips at every stop reachable from the source
+     * within the horizon, sorted by arrival time. The source stop itself comes first.
+     */
+    public List<Arrival> route(String sourceStopId, Instant departureTime, Duration horizon, int maxTrips) {
+        final Search search = new Search(stop(sourceStopId), -1, departureTime, horizon, maxTrips);
+        search.run();
+        return search.getArrivals();
+    }
+
+    /**
+     * The journeys from the source to the target which are Pareto optimal in arrival time and
+     * number of trips, fastest first.
+     */
+    public List<Journey> route(String sourceStopId, String targetStopId, Instant departureTime, Duration horizon, int maxTrips) {
+        final Search search = new Search(stop(sourceStopId), stop(targetStopId), departureTime, horizon, maxTrips);
+        search.run();
+        return search.getJourneys();
+    }
+
+    /**
+     * The earliest arrival profile of every stop reachable from the source: for every time within
+     * the window, the earliest arrival when leaving no earlier, as in rRAPTOR. Only the departures
+     * from the source can change the answer, so the rounds run once from the end of the window and
+     * once per departure within it, latest first. Every run keeps the arrivals of the runs before
+     * and only explores what leaving earlier improves.
+     * <p>
+     * The departure time of an entry is that of the first vehicle, which may be after the window if
+     * waiting for it is best. Vehicles are taken if they depart no later than the horizon after the
+     * end of the window. The result is sorted by departure time and, for each stop, by arrival time
+     * as well.
+     */
+    public List<Arrival> profile(String sourceStopId, Instant earliestDeparture, Instant latestDeparture, Duration horizon) {
+        final Search search = new Search(stop(sourceStopId), -1, earliestDeparture,
+                Duration.between(earliestDeparture, latestDeparture).plus(horizon), Integer.MAX_VALUE);
+        final long[] departures = search.getSourceDepartures(latestDeparture.toEpochMilli());
+        final List<Arrival> result = new ArrayList<>();
+        search.reset();
+        search.run(latestDeparture.toEpochMilli());
+        addImprovedArrivals(search, result);
+        for (int i = departures.length - 1; i >= 0; i--) {
+            search.run(departures[i]);
+            addImprovedArrivals(search, result);
+        }
+        result.sort(Comparator.comparingLong((Arrival a) -> a.departureTime).thenComparingLong(a -> a.arrivalTime));
+        return result;
+    }
+
+    private static void addImprovedArrivals(Search search, List<Arrival> result) {
+        final Set<String> reached = new HashSet<>();
+        search.getArrivals().stream()
+                .filter(arrival -> arrival.nTrips > 0)
+                .filter(arrival -> reached.add(arrival.stopId))
+                .forEach(result::add);
+    }
+
+    private int stop(String stopId) {
+        final Integer stop = timetable.stopIndex.get(stopId);
+        if (stop == null) {
+            throw new IllegalArgumentException("Unknown stop: " + stopId);
+        }
+        return stop;
+    }
+
+    /**
+     * The state of one query. Everything indexed by round has one entry per stop, round 0 being
+     * the source. The arrays of a round are allocated when a run first gets that far, and are reset
+     * for the runs after it, so a profile allocates them once and not once per departure.
+     */
+    private final class Search {
+        final int source;
+        final int target;
+        final long earliestDeparture;
+        final long latestDeparture;
+        final int maxTrips;
+        final int nStops = timetable.stopIds.length;
+        final long[][] dayBases = new long[zones.size()][];
+        final int[][] days = new int[zones.size()][];
+
+        final long[] bestArrival = new long[nStops];
+        final long[] earliestBoardable = new long[nStops];
+        final long[] earliestBoardableDeparture = new long[nStops];
+        final int[] earliestBoardableRound = new int[nStops];
+
+        final List<long[]> arrival = new ArrayList<>();
+        final List<long[]> arrivalDeparture = new ArrayList<>();
+        final List<int[]> parentPattern = new ArrayList<>();
+        final List<int[]> parentTrip = new ArrayList<>();
+        final List<long[]> parentBase = new ArrayList<>();
+        final List<int[]> parentBoardPosition = new ArrayList<>();
+        final List<int[]> parentAlightPosition = new ArrayList<>();
+        final List<int[]> parentBoardRound = new ArrayList<>();
+        final List<int[]> footpathFrom = new ArrayList<>();
+        // the rounds of the current run, the lists above may hold more from earlier runs
+        int rounds;
+
+        final int[] firstPosition = new int[patterns.length];
+        final IntArrayList touchedPatterns = new IntArrayList();
+        final BitSet improved = new BitSet(nStops);
+        final BitSet reached = new BitSet(nStops);
+        final long[] boardable = new long[nStops];
+        final long[] boardableDeparture = new long[nStops];
+
+        final int[] trip;
+        final int[] boardPosition;
+        final int[] boardRound;
+        final long[] tripDeparture;
+
+        Search(int source, int target, Instant departureTime, Duration horizon, int maxTrips) {
+            this.source = source;
+            this.target = target;
+            this.earliestDeparture = departureTime.toEpochMilli();
+            this.latestDeparture = earliestDeparture + horizon.toMillis();
+            this.maxTrips = maxTrips;
+            for (int zone = 0; zone < zones.size(); zone++) {
+                final ZoneId zoneId = zones.get(zone);
+                final LocalDate lastDay = Instant.ofEpochMilli(latestDeparture).atZone(zoneId).toLocalDate();
+                final List<LocalDate> serviceDays = new ArrayList<>();
+                for (LocalDate day = departureTime.atZone(zoneId).toLocalDate().minusDays(zoneMaxDayShift[zone]); !day.isAfter(lastDay); day = day.plusDays(1)) {
+                    serviceDays.add(day);
+                }
+                dayBases[zone] = serviceDays.stream().mapToLong(day -> Timetable.getBase(day, zoneId)).toArray();
+                days[zone] = serviceDays.stream().mapToInt(timetable::getDay).toArray();
+            }
+            final int maxDays = Arrays.stream(days).mapToInt(zoneDays -> zoneDays.length).max().orElse(0);
+            trip = new int[maxDays];
+            boardPosition = new int[maxDays];
+            boardRound = new int[maxDays];
+            tripDeparture = new long[maxDays];
+            Arrays.fill(firstPosition, Integer.MAX_VALUE);
+            Arrays.fill(boardable, NOT_REACHED);
+        }
+
+        void run() {
+            reset();
+            run(earliestDeparture);
+        }
+
+        void reset() {
+            Arrays.fill(bestArrival, NOT_REACHED);
+            Arrays.fill(earliestBoardable, NOT_REACHED);
+        }
+
+        /**
+         * Runs the rounds from the source at the given time. Only arrivals which improve on those
+         * of the runs since the last reset are recorded, and only those of this run are kept.
+         */
+        void run(long departure) {
+            rounds = 0;
+            bestArrival[source] = departure;
+            earliestBoardable[source] = departure;
+            earliestBoardableDeparture[source] = SOURCE;
+            earliestBoardableRound[source] = 0;
+            newRound();
+            arrival.get(0)[source] = departure;
+            arrivalDeparture.get(0)[source] = SOURCE;
+
+            BitSet marked = reached;
+            marked.clear();
+            marked.set(source);
+            for (int round = 1; round <= maxTrips && !marked.isEmpty(); round++) {
+                newRound();
+                touchedPatterns.clear();
+                for (int stop = marked.nextSetBit(0); stop >= 0; stop = marked.nextSetBit(stop + 1)) {
+                    for (int i = stopPatternOffsets[stop]; i < stopPatternOffsets[stop + 1]; i++) {
+                        if (firstPosition[stopPatterns[i]] == Integer.MAX_VALUE) {
+                            touchedPatterns.add(stopPatterns[i]);
+                        }
+                        firstPosition[stopPatterns[i]] = Math.min(firstPosition[stopPatterns[i]], stopPatternPositions[i]);
+                    }
+                }
+                improved.clear();
+                for (int i = 0; i < touchedPatterns.size(); i++) {
+                    final int p = touchedPatterns.get(i);
+                    scanPattern(round, p, firstPosition[p], improved);
+                    firstPosition[p] = Integer.MAX_VALUE;
+                }
+                marked = relaxFootpaths(round, improved);
+            }
+        }
+
+        /**
+         * The distinct departure times of valid trips from the source, from the earliest departure
+         * up to the given time, in ascending order.
+         */
+        long[] getSourceDepartures(long until) {
+            final Set<Long> departures = new TreeSet<>();
+            for (int i = stopPatternOffsets[source]; i < stopPatternOffsets[source + 1]; i++) {
+                final Pattern pattern = patterns[stopPatterns[i]];
+                final int position = stopPatternPositions[i];
+                if (position == pattern.stops.length - 1) {
+                    continue;
+                }
+                for (int d = 0; d < dayBases[pattern.zone].length; d++) {
+                    for (int trip = 0; trip < pattern.nTrips(); trip++) {
+                        final long time = dayBases[pattern.zone][d] + pattern.departureTime(trip, position) * 1000L;
+                        if (time >= earliestDeparture && time <= until
+                                && timetable.isValid(pattern.validity[trip], days[pattern.zone][d])) {
+                            departures.add(time);
+                        }
+                    }
+                }
+            }
+            return departures.stream().mapToLong(Long::longValue).toArray();
+        }
+
+        /**
+         * The other arrays of a round are only read where its arrival is set, and are written
+         * together with it, so only the arrivals and footpaths need to be reset.
+         */
+        private void newRound() {
+            if (rounds == arrival.size()) {
+                arrival.add(new long[nStops]);
+                arrivalDeparture.add(new long[nStops]);
+                parentPattern.add(new int[nStops]);
+                parentTrip.add(new int[nStops]);
+                parentBase.add(new long[nStops]);
+                parentBoardPosition.add(new int[nStops]);
+                parentAlightPosition.add(new int[nStops]);
+                parentBoardRound.add(new int[nStops]);
+                footpathFrom.add(new int[nStops]);
+            }
+            Arrays.fill(arrival.get(rounds), NOT_REACHED);
+            Arrays.fill(footpathFrom.get(rounds), -1);
+            rounds++;
+        }
+
+        /**
+         * Rides the pattern from the first position where it can be boarded. Trips of one pattern
+         * never overtake each other on the same service day, but they may overtake the ones of the
+         * day before, so there is one current trip per service day.
+         */
+        private void scanPattern(int round, int p, int firstPosition, BitSet improved) {
+            final Pattern pattern = patterns[p];
+            final long[] bases = dayBases[pattern.zone];
+            Arrays.fill(trip, 0, bases.length, -1);
+            for (int position = firstPosition; position < pattern.stops.length; position++) {
+                final int stop = pattern.stops[position];
+                for (int d = 0; d < bases.length; d++) {
+                    if (trip[d] == -1) {
+                        continue;
+                    }
+                    final long time = bases[d] + pattern.arrivalTime(trip[d], position) * 1000L;
+                    if (time < bestArrival[stop] && (target == -1 || time < bestArrival[target])) {
+                        bestArrival[stop] = time;
+                        arrival.get(round)[stop] = time;
+                        arrivalDeparture.get(round)[stop] = tripDeparture[d];
+                        parentPattern.get(round)[stop] = p;
+                        parentTrip.get(round)[stop] = trip[d];
+                        parentBase.get(round)[stop] = bases[d];
+                        parentBoardPosition.get(round)[stop] = boardPosition[d];
+                        parentAlightPosition.get(round)[stop] = position;
+                        parentBoardRound.get(round)[stop] = boardRound[d];
+                        improved.set(stop);
+                    }
+                }
+                for (int d = 0; d < bases.length; d++) {
+                    if (earliestBoardable[stop] != NOT_REACHED
+                            && (trip[d] == -1 || earliestBoardable[stop] <= bases[d] + pattern.departureTime(trip[d], position) * 1000L)) {
+                        final int earlierTrip = findTrip(pattern, position, earliestBoardable[stop], d);
+                        if (earlierTrip != -1 && earlierTrip != trip[d]) {
+                            trip[d] = earlierTrip;
+                            boardPosition[d] = position;
+                            boardRound[d] = earliestBoardableRound[stop];
+                            tripDeparture[d] = earliestBoardableDeparture[stop] == SOURCE ?
+                                    bases[d] + pattern.departureTime(earlierTrip, position) * 1000L :
+                                    earliestBoardableDeparture[stop];
+                        }
+                    }
+                    if (trip[d] != -1 && bases[d] + pattern.departureTime(trip[d], position) * 1000L > latestDeparture) {
+                        trip[d] = -1;
+                    }
+                }
+            }
+        }
+
+        /**
+         * Finds the earliest trip of the pattern on one service day which departs from the position
+         * no earlier than the given time and within the horizon, or -1.
+         */
+        private int findTrip(Pattern pattern, int position, long time, int d) {
+            final long base = dayBases[pattern.zone][d];
+            int low = 0;
+            int high = pattern.nTrips();
+            while (low < high) {
+                int mid = (low + high) >>> 1;
+                if (base + pattern.departureTime(mid, position) * 1000L < time) {
+                    low = mid + 1;
+                } else {
+                    high = mid;
+                }
+            }
+            for (int trip = low; trip < pattern.nTrips(); trip++) {
+                if (base + pattern.departureTime(trip, position) * 1000L > latestDeparture) {
+                    break;
+                }
+                if (timetable.isValid(pattern.validity[trip], days[pattern.zone][d])) {
+                    return trip;
+                }
+            }
+            return -1;
+        }
+
+        private BitSet relaxFootpaths(int round, BitSet improved) {
+            final long[] roundArrival = arrival.get(round);
+            reached.clear();
+            for (int stop = improved.nextSetBit(0); stop >= 0; stop = improved.nextSetBit(stop + 1)) {
+                if (roundArrival[stop] < earliestBoardable[stop]) {
+                    boardable[stop] = roundArrival[stop];
+                    boardableDeparture[stop] = arrivalDeparture.get(round)[stop];
+                    reached.set(stop);
+                }
+            }
+            for (int stop = improved.nextSetBit(0); stop >= 0; stop = improved.nextSetBit(stop + 1)) {
+                for (int i = timetable.footpathOffsets[stop]; i < timetable.footpathOffsets[stop + 1]; i++) {
+                    final int to = timetable.footpathTargets[i];
+                    final long time = roundArrival[stop] + timetable.footpathTimes[i] * 1000L;
+                    if (time < earliestBoardable[to] && time < boardable[to]) {
+                        boardable[to] = time;
+                        boardableDeparture[to] = arrivalDeparture.get(round)[stop];
+                        footpathFrom.get(round)[to] = stop;
+                        reached.set(to);
+                    }
+                }
+            }
+            for (int stop = reached.nextSetBit(0); stop >= 0; stop = reached.nextSetBit(stop + 1)) {
+                earliestBoardable[stop] = boardable[stop];
+                earliestBoardableDeparture[stop] = boardableDeparture[stop];
+                earliestBoardableRound[stop] = round;
+                boardable[stop] = NOT_REACHED;
+            }
+            return reached;
+        }
+
+        List<Arrival> getArrivals() {
+            final List<Arrival> result = new ArrayList<>();
+            for (int round = 0; round < rounds; round++) {
+                for (int stop = 0; stop < nStops; stop++) {
+                    if (arrival.get(round)[stop] != NOT_REACHED) {
+                        final long departure = arrivalDeparture.get(round)[stop];
+                        result.add(new Arrival(timetable.stopIds[stop], arrival.get(round)[stop], departure == SOURCE ? null : departure, round));
+                    }
+                }
+            }
+            result.sort(Comparator.comparingLong((Arrival a) -> a.arrivalTime).thenComparingInt(a -> a.nTrips));
+            return result;
+        }
+
+        List<Journey> getJourneys() {
+            final List<Journey> result = new ArrayList<>();
+            for (int round = 1; round < rounds; round++) {
+                if (arrival.get(round)[target] != NOT_REACHED) {
+                    result.add(getJourney(round));
+                }
+            }
+            result.sort(Comparator.comparingLong(Journey::getArrivalTime));
+            return result;
+        }
+
+        private Journey getJourney(int round) {
+            final LinkedList<Leg> legs = new LinkedList<>();
+            int stop = target;
+            while (round > 0) {
+                final Pattern pattern = patterns[parentPattern.get(round)[stop]];
+                final int trip = parentTrip.get(round)[stop];
+                final long base = parentBase.get(round)[stop];
+                final int boardPosition = parentBoardPosition.get(round)[stop];
+                final int alightPosition = parentAlightPosition.get(round)[stop];
+                final List<String> stopIds = new ArrayList<>();
+                final long[] arrivalTimes = new long[alightPosition - boardPosition + 1];
+                final long[] departureTimes = new long[alightPosition - boardPosition + 1];
+                for (int position = boardPosition; position <= alightPosition; position++) {
+                    stopIds.add(timetable.stopIds[pattern.stops[position]]);
+                    arrivalTimes[position - boardPosition] = base + pattern.arrivalTime(trip, position) * 1000L;
+                    departureTimes[position - boardPosition] = base + pattern.departureTime(trip, position) * 1000L;
+                }
+                legs.addFirst(new Leg(pattern.tripIds[trip], stopIds, arrivalTimes, departureTimes));
+                final int boardStop = pattern.stops[boardPosition];
+                round = parentBoardRound.get(round)[stop];
+                stop = footpathFrom.get(round)[boardStop] != -1 ? footpathFrom.get(round)[boardStop] : boardStop;
+            }
+            return new Journey(legs);
+        }
+    }
+
+}
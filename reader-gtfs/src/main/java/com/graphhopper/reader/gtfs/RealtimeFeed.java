@@ -19,41 +19,248 @@
 package com.graphhopper.reader.gtfs;
 
 import com.carrotsearch.hppc.IntHashSet;
+import com.carrotsearch.hppc.IntIntHashMap;
+import com.carrotsearch.hppc.LongHashSet;
+import com.conveyal.gtfs.GTFSFeed;
+import com.conveyal.gtfs.model.Entity;
+import com.conveyal.gtfs.model.Frequency;
 import com.google.transit.realtime.GtfsRealtime;
+import com.graphhopper.storage.Graph;
+import com.graphhopper.util.EdgeExplorer;
+import com.graphhopper.util.EdgeIterator;
+import com.graphhopper.util.EdgeIteratorState;
+
+import java.util.HashMap;
+import java.util.Map;
 
 import static com.google.transit.realtime.GtfsRealtime.TripUpdate.StopTimeUpdate.ScheduleRelationship.SKIPPED;
 
+/**
+ * What a realtime feed changes about the timetable, as an overlay on the graph. It is never
+ * changed once built, so any number of queries can read it without locking, and a newer feed is
+ * applied by building a new one, see {@link RealtimeFeedUpdater}.
+ * <p>
+ * Skipped stops block the boarding and alighting edges of the trip there. Delays are per-edge
+ * travel times: the boarding edge waits for the delayed departure, and the hop and dwell edges
+ * take the trip from there to its delayed arrivals. Trips which run early are taken as on time.
+ * Transfers from a delayed arrival are shortened by the delay, or impossible if it is longer than
+ * they are.
+ * <p>
+ * A frequency based trip which is in the graph once for all its runs can have stops skipped on
+ * single runs, but no delays.
+ */
 public class RealtimeFeed {
     private final IntHashSet blockedEdges;
+    private final LongHashSet blockedRuns;
+    private final IntIntHashMap travelTimes;
+    private final IntIntHashMap arrivalDelays;
 
-    private RealtimeFeed(IntHashSet blockedEdges) {
+    private RealtimeFeed(IntHashSet blockedEdges, LongHashSet blockedRuns, IntIntHashMap travelTimes, IntIntHashMap arrivalDelays) {
         this.blockedEdges = blockedEdges;
+        this.blockedRuns = blockedRuns;
+        this.travelTimes = travelTimes;
+        this.arrivalDelays = arrivalDelays;
     }
 
     public static RealtimeFeed empty() {
-        return new RealtimeFeed(new IntHashSet());
+        return new RealtimeFeed(new IntHashSet(), new LongHashSet(), new IntIntHashMap(), new IntIntHashMap());
     }
 
-    public static RealtimeFeed fromProtobuf(GtfsStorage staticGtfs, GtfsRealtime.FeedMessage feedMessage) {
-        final IntHashSet blockedEdges = new IntHashSet();
+    public static RealtimeFeed fromProtobuf(Graph graph, PtFlagEncoder encoder, GtfsStorage staticGtfs, GtfsRealtime.FeedMessage feedMessage) {
+        final RealtimeFeed result = empty();
+        final EdgeExplorer explorer = graph.createEdgeExplorer();
         feedMessage.getEntityList().stream()
             .filter(GtfsRealtime.FeedEntity::hasTripUpdate)
             .map(GtfsRealtime.FeedEntity::getTripUpdate)
-            .forEach(tripUpdate -> {
-                final int[] boardEdges = staticGtfs.getBoardEdgesForTrip().get(tripUpdate.getTrip());
-                final int[] leaveEdges = staticGtfs.getAlightEdgesForTrip().get(tripUpdate.getTrip());
-                tripUpdate.getStopTimeUpdateList().stream()
-                        .filter(stopTimeUpdate -> stopTimeUpdate.getScheduleRelationship() == SKIPPED)
-                        .mapToInt(stu -> stu.getStopSequence()-1) // stop sequence number is 1-based, not 0-based
-                        .forEach(skippedStopSequenceNumber -> {
-                            blockedEdges.add(boardEdges[skippedStopSequenceNumber]);
-                            blockedEdges.add(leaveEdges[skippedStopSequenceNumber]);
-                        });
-            });
-        return new RealtimeFeed(blockedEdges);
+            .forEach(tripUpdate -> result.apply(graph, explorer, encoder, staticGtfs, tripUpdate));
+        return result;
+    }
+
+    private void apply(Graph graph, EdgeExplorer explorer, PtFlagEncoder encoder, GtfsStorage staticGtfs, GtfsRealtime.TripUpdate tripUpdate) {
+        int[] boardEdges = staticGtfs.getBoardEdgesForTrip(tripUpdate.getTrip());
+        int[] leaveEdges = staticGtfs.getAlightEdgesForTrip(tripUpdate.getTrip());
+        int runOffset = 0;
+        if (boardEdges == null) {
+            // Maybe one run of a frequency based trip, which is in the graph once for all of them.
+            final int startTime = parseTime(tripUpdate.getTrip().getStartTime());
+            final int windowStart = findFrequencyWindow(staticGtfs, tripUpdate.getTrip().getTripId(), startTime);
+            if (windowStart == -1) {
+                return;
+            }
+            final GtfsRealtime.TripDescriptor window = GtfsRealtime.TripDescriptor.newBuilder()
+                    .setTripId(tripUpdate.getTrip().getTripId())
+                    .setStartTime(Entity.Writer.convertToGtfsTime(windowStart))
+                    .build();
+            boardEdges = staticGtfs.getBoardEdgesForTrip(window);
+            leaveEdges = staticGtfs.getAlightEdgesForTrip(window);
+            runOffset = startTime - windowStart;
+            if (boardEdges == null) {
+                return;
+            }
+        }
+        if (boardEdges.length > 0 && isFrequencyBased(graph, explorer, encoder, staticGtfs, boardEdges[0])) {
+            applySkippedRun(graph, explorer, encoder, tripUpdate, boardEdges, leaveEdges, runOffset);
+            return;
+        }
+        final Map<Integer, GtfsRealtime.TripUpdate.StopTimeUpdate> stopTimeUpdates = new HashMap<>();
+        for (GtfsRealtime.TripUpdate.StopTimeUpdate stopTimeUpdate : tripUpdate.getStopTimeUpdateList()) {
+            final int stopSequenceNumber = stopTimeUpdate.getStopSequence() - 1; // stop sequence number is 1-based, not 0-based
+            if (stopSequenceNumber < 0 || stopSequenceNumber >= boardEdges.length) {
+                continue;
+            }
+            if (stopTimeUpdate.getScheduleRelationship() == SKIPPED) {
+                blockedEdges.add(boardEdges[stopSequenceNumber]);
+                blockedEdges.add(leaveEdges[stopSequenceNumber]);
+            } else {
+                stopTimeUpdates.put(stopSequenceNumber, stopTimeUpdate);
+            }
+        }
+        // A delay holds for the stops after it, until the next one.
+        int delay = 0;
+        for (int stopSequenceNumber = 0; stopSequenceNumber < boardEdges.length; stopSequenceNumber++) {
+            final GtfsRealtime.TripUpdate.StopTimeUpdate stopTimeUpdate = stopTimeUpdates.get(stopSequenceNumber);
+            int arrivalDelay = delay;
+            int departureDelay = delay;
+            if (stopTimeUpdate != null && stopTimeUpdate.hasArrival() && stopTimeUpdate.getArrival().hasDelay()) {
+                arrivalDelay = Math.max(0, stopTimeUpdate.getArrival().getDelay());
+                departureDelay = arrivalDelay;
+            }
+            if (stopTimeUpdate != null && stopTimeUpdate.hasDeparture() && stopTimeUpdate.getDeparture().hasDelay()) {
+                departureDelay = Math.max(arrivalDelay, stopTimeUpdate.getDeparture().getDelay());
+            }
+            final int arrivalNode = inVehicleNode(graph, explorer, encoder, leaveEdges[stopSequenceNumber]);
+            if (stopSequenceNumber > 0 && arrivalDelay != delay) {
+                final EdgeIteratorState hop = findEdge(explorer, encoder, arrivalNode, GtfsStorage.EdgeType.HOP);
+                if (hop != null) {
+                    travelTimes.put(hop.getEdge(), Math.max(0, (int) encoder.getTime(hop.getFlags()) + arrivalDelay - delay));
+                }
+            }
+            if (departureDelay != arrivalDelay) {
+                final EdgeIteratorState dwell = findEdge(explorer, encoder, arrivalNode, GtfsStorage.EdgeType.DWELL);
+                if (dwell != null) {
+                    travelTimes.put(dwell.getEdge(), (int) encoder.getTime(dwell.getFlags()) + departureDelay - arrivalDelay);
+                }
+            }
+            if (arrivalDelay > 0) {
+                arrivalDelays.put(graph.getEdgeIteratorState(leaveEdges[stopSequenceNumber], arrivalNode).getBaseNode(), arrivalDelay);
+            }
+            if (departureDelay > 0) {
+                travelTimes.put(boardEdges[stopSequenceNumber], departureDelay);
+            }
+            delay = departureDelay;
+        }
+    }
+
+    /**
+     * The boarding and alighting edges of a frequency based trip are there for all of its runs, so
+     * for a skipped stop, we block them for the run which skips it only. The run is known by its
+     * time at the stop, which is the time of its first run plus the offset.
+     */
+    private void applySkippedRun(Graph graph, EdgeExplorer explorer, PtFlagEncoder encoder, GtfsRealtime.TripUpdate tripUpdate, int[] boardEdges, int[] leaveEdges, int runOffset) {
+        for (GtfsRealtime.TripUpdate.StopTimeUpdate stopTimeUpdate : tripUpdate.getStopTimeUpdateList()) {
+            final int stopSequenceNumber = stopTimeUpdate.getStopSequence() - 1;
+            if (stopTimeUpdate.getScheduleRelationship() != SKIPPED || stopSequenceNumber < 0 || stopSequenceNumber >= boardEdges.length) {
+                continue;
+            }
+            final int departureTimelineNode = timelineNode(graph, explorer, encoder, boardEdges[stopSequenceNumber]);
+            final EdgeIteratorState enterTimeExpandedNetworkEdge = findEdge(explorer, encoder, departureTimelineNode, GtfsStorage.EdgeType.ENTER_TIME_EXPANDED_NETWORK);
+            blockedRuns.add(TimelineNodes.pack(boardEdges[stopSequenceNumber], (int) encoder.getTime(enterTimeExpandedNetworkEdge.getFlags()) + runOffset));
+            final int arrivalTimelineNode = timelineNode(graph, explorer, encoder, leaveEdges[stopSequenceNumber]);
+            final EdgeIteratorState leaveTimeExpandedNetworkEdge = findEdge(explorer, encoder, arrivalTimelineNode, GtfsStorage.EdgeType.LEAVE_TIME_EXPANDED_NETWORK);
+            blockedRuns.add(TimelineNodes.pack(leaveEdges[stopSequenceNumber], (int) encoder.getTime(leaveTimeExpandedNetworkEdge.getFlags()) + runOffset));
+        }
+    }
+
+    private static boolean isFrequencyBased(Graph graph, EdgeExplorer explorer, PtFlagEncoder encoder, GtfsStorage staticGtfs, int boardEdge) {
+        final int departureTimelineNode = timelineNode(graph, explorer, encoder, boardEdge);
+        final EdgeIteratorState enterTimeExpandedNetworkEdge = findEdge(explorer, encoder, departureTimelineNode, GtfsStorage.EdgeType.ENTER_TIME_EXPANDED_NETWORK);
+        if (enterTimeExpandedNetworkEdge == null) {
+            return false;
+        }
+        final GtfsStorage.Timeline timeline = staticGtfs.getDepartureTimeline(enterTimeExpandedNetworkEdge.getAdjNode());
+        return timeline != null && timeline.isFrequencyBased();
+    }
+
+    /**
+     * The node of a boarding or alighting edge which is in the vehicle, which is the one with the
+     * dwell edge.
+     */
+    private static int inVehicleNode(Graph graph, EdgeExplorer explorer, PtFlagEncoder encoder, int edgeId) {
+        final EdgeIteratorState edge = graph.getEdgeIteratorState(edgeId, Integer.MIN_VALUE);
+        return findEdge(explorer, encoder, edge.getBaseNode(), GtfsStorage.EdgeType.DWELL) != null ? edge.getBaseNode() : edge.getAdjNode();
+    }
+
+    /**
+     * The node of a boarding or alighting edge which is on the timeline of the stop.
+     */
+    private static int timelineNode(Graph graph, EdgeExplorer explorer, PtFlagEncoder encoder, int edgeId) {
+        return graph.getEdgeIteratorState(edgeId, inVehicleNode(graph, explorer, encoder, edgeId)).getBaseNode();
+    }
+
+    /**
+     * The first edge of the type at the node, seen from the node, or null.
+     */
+    private static EdgeIteratorState findEdge(EdgeExplorer explorer, PtFlagEncoder encoder, int node, GtfsStorage.EdgeType edgeType) {
+        final EdgeIterator edges = explorer.setBaseNode(node);
+        while (edges.next()) {
+            if (encoder.getEdgeType(edges.getFlags()) == edgeType) {
+                return edges.detach(false);
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @return the start of the frequency window the run starting at the time belongs to, or -1
+     */
+    private static int findFrequencyWindow(GtfsStorage staticGtfs, String tripId, int startTime) {
+        for (GTFSFeed feed : staticGtfs.getGtfsFeeds().values()) {
+            if (feed.trips.containsKey(tripId)) {
+                for (Frequency frequency : feed.getFrequencies(tripId)) {
+                    if (startTime >= frequency.start_time && startTime < frequency.end_time && (startTime - frequency.start_time) % frequency.headway_secs == 0) {
+                        return frequency.start_time;
+                    }
+                }
+            }
+        }
+        return -1;
+    }
+
+    private static int parseTime(String time) {
+        final String[] fields = time.split(":");
+        if (fields.length != 3) {
+            return -1;
+        }
+        return Integer.parseInt(fields[0]) * 3600 + Integer.parseInt(fields[1]) * 60 + Integer.parseInt(fields[2]);
     }
 
     boolean isBlocked(int edgeId) {
         return blockedEdges.contains(edgeId);
     }
+
+    boolean hasBlockedRuns() {
+        return !blockedRuns.isEmpty();
+    }
+
+    /**
+     * Whether the edge is blocked for the trip passing it at the seconds of day, which only makes a
+     * difference for frequency based trips.
+     */
+    boolean isBlocked(int edgeId, int seconds) {
+        return blockedEdges.contains(edgeId) || blockedRuns.contains(TimelineNodes.pack(edgeId, seconds));
+    }
+
+    /**
+     * @return the travel time of the edge in seconds, given its scheduled one
+     */
+    int getTravelTime(int edgeId, int scheduled) {
+        return travelTimes.isEmpty() ? scheduled : travelTimes.getOrDefault(edgeId, scheduled);
+    }
+
+    /**
+     * @return how many seconds late the trip arriving at the arrival timeline node is
+     */
+    int getArrivalDelay(int arrivalTimelineNode) {
+        return arrivalDelays.isEmpty() ? 0 : arrivalDelays.getOrDefault(arrivalTimelineNode, 0);
+    }
 }
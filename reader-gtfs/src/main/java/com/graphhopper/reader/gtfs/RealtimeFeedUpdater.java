@@ -0,0 +1,121 @@
+/*
+ *  Licensed to GraphHopper GmbH under one or more contributor
+ *  license agreements. See the NOTICE file distributed with this work for
+ *  additional information regarding copyright ownership.
+ *
+ *  GraphHopper GmbH licenses this file to you under the Apache License,
+ *  Version 2.0 (the "License"); you may not use this file except in
+ *  compliance with the License. You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package com.graphhopper.reader.gtfs;
+
+import com.google.transit.realtime.GtfsRealtime;
+import com.graphhopper.storage.Graph;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.time.Duration;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Keeps the realtime feed of one graph up to date. Each feed message is merged into the trip
+ * updates we have, then a new {@link RealtimeFeed} is built from them and published, so queries
+ * just read the current one and never wait for an update.
+ * <p>
+ * Messages with the full dataset replace all trip updates, differential ones replace or delete
+ * the trip updates they have.
+ */
+public final class RealtimeFeedUpdater implements Closeable {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(RealtimeFeedUpdater.class);
+
+    private final Graph graph;
+    private final PtFlagEncoder encoder;
+    private final GtfsStorage staticGtfs;
+    private final Map<String, GtfsRealtime.FeedEntity> tripUpdates = new LinkedHashMap<>();
+    private volatile RealtimeFeed current = RealtimeFeed.empty();
+    private ScheduledExecutorService poller;
+
+    public RealtimeFeedUpdater(Graph graph, PtFlagEncoder encoder, GtfsStorage staticGtfs) {
+        this.graph = graph;
+        this.encoder = encoder;
+        this.staticGtfs = staticGtfs;
+    }
+
+    public RealtimeFeed get() {
+        return current;
+    }
+
+    public synchronized void apply(GtfsRealtime.FeedMessage feedMessage) {
+        if (feedMessage.getHeader().getIncrementality() != GtfsRealtime.FeedHeader.Incrementality.DIFFERENTIAL) {
+            tripUpdates.clear();
+        }
+        for (GtfsRealtime.FeedEntity entity : feedMessage.getEntityList()) {
+            if (entity.getIsDeleted()) {
+                tripUpdates.remove(entity.getId());
+            } else if (entity.hasTripUpdate()) {
+                tripUpdates.put(entity.getId(), entity);
+            }
+        }
+        final GtfsRealtime.FeedMessage merged = GtfsRealtime.FeedMessage.newBuilder()
+                .setHeader(feedMessage.getHeader())
+                .addAllEntity(tripUpdates.values())
+                .build();
+        current = RealtimeFeed.fromProtobuf(graph, encoder, staticGtfs, merged);
+    }
+
+    /**
+     * Reads the feed message in the file whenever it has changed, checking every period. A file
+     * which can't be read leaves the realtime feed as it is, and is read again at the next check.
+     */
+    public synchronized void poll(File file, Duration period) {
+        if (poller != null) {
+            throw new IllegalStateException("Already polling.");
+        }
+        poller = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            final Thread thread = new Thread(runnable, "realtime-feed-" + file.getName());
+            thread.setDaemon(true);
+            return thread;
+        });
+        final long[] lastModified = {-1};
+        poller.scheduleWithFixedDelay(() -> {
+            final long modified = file.lastModified();
+            if (modified == 0 || modified == lastModified[0]) {
+                return;
+            }
+            try (InputStream in = new FileInputStream(file)) {
+                apply(GtfsRealtime.FeedMessage.parseFrom(in));
+                lastModified[0] = modified;
+                LOGGER.info("Applied realtime feed {}.", file);
+            } catch (IOException | RuntimeException e) {
+                LOGGER.warn("Cannot apply realtime feed " + file, e);
+            }
+        }, 0, period.toMillis(), TimeUnit.MILLISECONDS);
+    }
+
+    @Override
+    public synchronized void close() {
+        if (poller != null) {
+            poller.shutdownNow();
+        }
+    }
+
+}
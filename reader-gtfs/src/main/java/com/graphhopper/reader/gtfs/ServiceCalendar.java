@@ -0,0 +1,153 @@
+/*
+ *  Licensed to GraphHopper GmbH under one or more contributor
+ *  license agreements. See the NOTICE file distributed with this work for
+ *  additional information regarding copyright ownership.
+ *
+ *  GraphHopper GmbH licenses this file to you under the Apache License,
+ *  Version 2.0 (the "License"); you may not use this file except in
+ *  compliance with the License. You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package com.graphhopper.reader.gtfs;
+
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.zone.ZoneOffsetTransition;
+import java.time.zone.ZoneRules;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The validities and time zones of {@link GtfsStorage} as flat arrays: one row of bits per
+ * validity, one bit per traffic day, and the time zone of every validity and time zone id as an
+ * index into one array of zones.
+ * <p>
+ * Times of day and traffic days are evaluated through a {@link Context}, which knows the UTC offset
+ * of every zone for the period of time around the last instant it was asked about, so that it only
+ * has to look at the time zone rules again when a query crosses a change of offset.
+ */
+final class ServiceCalendar {
+
+    private static final long MILLIS_PER_DAY = 24 * 60 * 60 * 1000L;
+
+    private final ZoneId[] zones;
+    private final int[] zoneOfTimeZone;
+    private final int[] zoneOfValidity;
+    private final long[] validityStartDay;
+    private final int wordsPerValidity;
+    private final long[] validOnDay;
+
+    ServiceCalendar(Map<Integer, GtfsStorage.Validity> validities, Map<Integer, GtfsStorage.FeedIdWithTimezone> timeZones) {
+        final List<ZoneId> zoneList = new ArrayList<>();
+        zoneOfTimeZone = new int[timeZones.size()];
+        timeZones.forEach((id, timeZone) -> zoneOfTimeZone[id] = zoneIndex(zoneList, timeZone.zoneId));
+        zoneOfValidity = new int[validities.size()];
+        validityStartDay = new long[validities.size()];
+        int maxDays = 0;
+        for (GtfsStorage.Validity validity : validities.values()) {
+            maxDays = Math.max(maxDays, validity.validity.length());
+        }
+        wordsPerValidity = (maxDays + 63) / 64;
+        validOnDay = new long[validities.size() * wordsPerValidity];
+        validities.forEach((id, validity) -> {
+            zoneOfValidity[id] = zoneIndex(zoneList, validity.zoneId);
+            validityStartDay[id] = validity.start.toEpochDay();
+            for (int day = validity.validity.nextSetBit(0); day >= 0; day = validity.validity.nextSetBit(day + 1)) {
+                validOnDay[id * wordsPerValidity + (day >>> 6)] |= 1L << day;
+            }
+        });
+        zones = zoneList.toArray(new ZoneId[0]);
+    }
+
+    private static int zoneIndex(List<ZoneId> zoneList, ZoneId zoneId) {
+        int index = zoneList.indexOf(zoneId);
+        if (index == -1) {
+            index = zoneList.size();
+            zoneList.add(zoneId);
+        }
+        return index;
+    }
+
+    boolean isUpToDate(int nValidities, int nTimeZones) {
+        return zoneOfValidity.length == nValidities && zoneOfTimeZone.length == nTimeZones;
+    }
+
+    /**
+     * Whether the validity includes the given traffic day, counted in days since the epoch.
+     */
+    boolean isValidOnDay(int validityId, long epochDay) {
+        final long day = epochDay - validityStartDay[validityId];
+        return day >= 0 && day < wordsPerValidity * 64L
+                && (validOnDay[validityId * wordsPerValidity + (int) (day >>> 6)] & (1L << day)) != 0;
+    }
+
+    Context createContext() {
+        return new Context();
+    }
+
+    /**
+     * The time zone state of one query. Not thread-safe.
+     */
+    final class Context {
+        private final long[] offset = new long[zones.length];
+        private final long[] offsetValidFrom = new long[zones.length];
+        private final long[] offsetValidUntil = new long[zones.length];
+
+        private Context() {
+            // empty periods, so that the first lookup resolves the offset
+            Arrays.fill(offsetValidFrom, Long.MAX_VALUE);
+            Arrays.fill(offsetValidUntil, Long.MIN_VALUE);
+        }
+
+        /**
+         * Whether the validity includes the traffic day the instant falls on in its time zone.
+         */
+        boolean isValidOn(int validityId, long instant) {
+            return isValidOnDay(validityId, Math.floorDiv(localMillis(zoneOfValidity[validityId], instant), MILLIS_PER_DAY));
+        }
+
+        /**
+         * The traffic day the instant falls on in the time zone, counted in days since the epoch.
+         */
+        long trafficDay(int timeZoneId, long instant) {
+            return Math.floorDiv(localMillis(zoneOfTimeZone[timeZoneId], instant), MILLIS_PER_DAY);
+        }
+
+        int secondsOnTrafficDay(int timeZoneId, long instant) {
+            return (int) (millisOnTravelDay(timeZoneId, instant) / 1000L);
+        }
+
+        long millisOnTravelDay(int timeZoneId, long instant) {
+            return Math.floorMod(localMillis(zoneOfTimeZone[timeZoneId], instant), MILLIS_PER_DAY);
+        }
+
+        private long localMillis(int zone, long instant) {
+            if (instant < offsetValidFrom[zone] || instant >= offsetValidUntil[zone]) {
+                resolveOffset(zone, instant);
+            }
+            return instant + offset[zone];
+        }
+
+        private void resolveOffset(int zone, long instant) {
+            final ZoneRules rules = zones[zone].getRules();
+            final Instant i = Instant.ofEpochMilli(instant);
+            offset[zone] = rules.getOffset(i).getTotalSeconds() * 1000L;
+            // previousTransition is strictly before its argument, so ask just after the instant
+            final ZoneOffsetTransition previous = rules.previousTransition(i.plusNanos(1));
+            final ZoneOffsetTransition next = rules.nextTransition(i);
+            offsetValidFrom[zone] = previous != null ? previous.getInstant().toEpochMilli() : Long.MIN_VALUE;
+            offsetValidUntil[zone] = next != null ? next.getInstant().toEpochMilli() : Long.MAX_VALUE;
+        }
+    }
+
+}
@@ -0,0 +1,212 @@
+/*
+ *  Licensed to GraphHopper GmbH under one or more contributor
+ *  license agreements. See the NOTICE file distributed with this work for
+ *  additional information regarding copyright ownership.
+ *
+ *  GraphHopper GmbH licenses this file to you under the Apache License,
+ *  Version 2.0 (the "License"); you may not use this file except in
+ *  compliance with the License. You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package com.graphhopper.reader.gtfs;
+
+import com.carrotsearch.hppc.IntArrayList;
+import com.carrotsearch.hppc.IntObjectHashMap;
+import com.carrotsearch.hppc.cursors.IntObjectCursor;
+import com.graphhopper.routing.util.DefaultEdgeFilter;
+import com.graphhopper.storage.Graph;
+import com.graphhopper.util.EdgeExplorer;
+import com.graphhopper.util.EdgeIterator;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.time.Clock;
+import java.time.LocalDate;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The departure and arrival timelines of {@link GtfsStorage}, once per service day and with only
+ * the trips which run on that day, so that the explorer goes straight to the next trip it can
+ * actually board instead of waiting past all those which don't run today.
+ * <p>
+ * A background thread keeps the slices from yesterday up to a configurable number of days ahead,
+ * counted in UTC, builds the new day when the date rolls over and forgets the old one. Days outside
+ * of that window are routed on the full timelines, as without slices.
+ */
+public final class ServiceDaySlices implements Closeable {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(ServiceDaySlices.class);
+    private static final int[] NONE = new int[0];
+
+    private static final class Slice {
+        final IntObjectHashMap<GtfsStorage.Timeline> departures;
+        final IntObjectHashMap<GtfsStorage.Timeline> arrivals;
+
+        Slice(IntObjectHashMap<GtfsStorage.Timeline> departures, IntObjectHashMap<GtfsStorage.Timeline> arrivals) {
+            this.departures = departures;
+            this.arrivals = arrivals;
+        }
+    }
+
+    private static final class Window {
+        final long firstDay;
+        final Slice[] slices;
+
+        Window(long firstDay, Slice[] slices) {
+            this.firstDay = firstDay;
+            this.slices = slices;
+        }
+
+        Slice get(long day) {
+            return day >= firstDay && day < firstDay + slices.length ? slices[(int) (day - firstDay)] : null;
+        }
+    }
+
+    private final GtfsStorage gtfsStorage;
+    private final ServiceCalendar calendar;
+    private final Clock clock;
+    private final int days;
+    private final IntObjectHashMap<int[]> departureValidities;
+    private final IntObjectHashMap<int[]> arrivalValidities;
+    private final ScheduledExecutorService executor;
+    private volatile Window window = new Window(0, new Slice[0]);
+
+    /**
+     * Starts building slices for the given number of days from today in the background and makes
+     * them known to every {@link GraphExplorer} on the storage.
+     */
+    public static ServiceDaySlices start(Graph graph, PtFlagEncoder flagEncoder, GtfsStorage gtfsStorage, int days) {
+        ServiceDaySlices serviceDaySlices = new ServiceDaySlices(graph, flagEncoder, gtfsStorage, Clock.systemUTC(), days);
+        serviceDaySlices.executor.scheduleWithFixedDelay(serviceDaySlices::update, 0, 1, TimeUnit.HOURS);
+        gtfsStorage.setServiceDaySlices(serviceDaySlices);
+        return serviceDaySlices;
+    }
+
+    ServiceDaySlices(Graph graph, PtFlagEncoder flagEncoder, GtfsStorage gtfsStorage, Clock clock, int days) {
+        if (days < 1) {
+            throw new IllegalArgumentException("Need at least one day, got " + days);
+        }
+        this.gtfsStorage = gtfsStorage;
+        this.calendar = gtfsStorage.getServiceCalendar();
+        this.clock = clock;
+        this.days = days;
+        this.departureValidities = findValidities(gtfsStorage.getDepartureTimelines(),
+                graph.createEdgeExplorer(new DefaultEdgeFilter(flagEncoder, false, true)), flagEncoder, GtfsStorage.EdgeType.BOARD);
+        this.arrivalValidities = findValidities(gtfsStorage.getArrivalTimelines(),
+                graph.createEdgeExplorer(new DefaultEdgeFilter(flagEncoder, true, false)), flagEncoder, GtfsStorage.EdgeType.ALIGHT);
+        this.executor = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "service-day-slices");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * The validity of the boarding or alighting edge at every entry of every timeline, -1 if there
+     * is none.
+     */
+    private static IntObjectHashMap<int[]> findValidities(IntObjectHashMap<GtfsStorage.Timeline> timelines, EdgeExplorer explorer, PtFlagEncoder flagEncoder, GtfsStorage.EdgeType edgeType) {
+        final IntObjectHashMap<int[]> result = new IntObjectHashMap<>(timelines.size());
+        for (IntObjectCursor<GtfsStorage.Timeline> timeline : timelines) {
+            final int[] validities = new int[timeline.value.size()];
+            for (int i = 0; i < validities.length; i++) {
+                validities[i] = -1;
+                EdgeIterator edge = explorer.setBaseNode(timeline.value.timeNode(i));
+                while (edge.next()) {
+                    if (flagEncoder.getEdgeType(edge.getFlags()) == edgeType) {
+                        validities[i] = flagEncoder.getValidityId(edge.getFlags());
+                        break;
+                    }
+                }
+            }
+            result.put(timeline.key, validities);
+        }
+        return result;
+    }
+
+    /**
+     * The departures from a stop enter node, or in reverse the arrivals at a stop exit node, of the
+     * trips which run on the given traffic day, or null if that day has not been sliced.
+     */
+    GtfsStorage.Timeline getTimeline(int node, boolean arrivals, long trafficDay) {
+        final Slice slice = window.get(trafficDay);
+        if (slice == null) {
+            return null;
+        }
+        return arrivals ? slice.arrivals.get(node) : slice.departures.get(node);
+    }
+
+    void update() {
+        try {
+            final long firstDay = LocalDate.now(clock).toEpochDay() - 1;
+            final Window current = window;
+            final Slice[] slices = new Slice[days + 1];
+            for (int i = 0; i < slices.length; i++) {
+                final Slice slice = current.get(firstDay + i);
+                slices[i] = slice != null ? slice : createSlice(firstDay + i);
+            }
+            window = new Window(firstDay, slices);
+        } catch (RuntimeException e) {
+            // Keep the thread alive, we try again at the next run.
+            LOGGER.error("Could not build service day slices", e);
+        }
+    }
+
+    private Slice createSlice(long day) {
+        return new Slice(filter(gtfsStorage.getDepartureTimelines(), departureValidities, day),
+                filter(gtfsStorage.getArrivalTimelines(), arrivalValidities, day));
+    }
+
+    private IntObjectHashMap<GtfsStorage.Timeline> filter(IntObjectHashMap<GtfsStorage.Timeline> timelines, IntObjectHashMap<int[]> validities, long day) {
+        final IntObjectHashMap<GtfsStorage.Timeline> result = new IntObjectHashMap<>(timelines.size());
+        final IntArrayList entries = new IntArrayList();
+        for (IntObjectCursor<GtfsStorage.Timeline> cursor : timelines) {
+            final GtfsStorage.Timeline timeline = cursor.value;
+            if (timeline.isFrequencyBased()) {
+                // the explorer computes their runs itself
+                continue;
+            }
+            final int[] validity = validities.get(cursor.key);
+            entries.clear();
+            for (int i = 0; i < validity.length; i++) {
+                if (validity[i] != -1 && calendar.isValidOnDay(validity[i], day)) {
+                    entries.add(i);
+                }
+            }
+            if (entries.isEmpty()) {
+                result.put(cursor.key, new GtfsStorage.Timeline(timeline.timeZoneId, NONE, NONE, NONE));
+                continue;
+            }
+            final int[] times = new int[entries.size()];
+            final int[] edges = new int[entries.size()];
+            final int[] timeNodes = new int[entries.size()];
+            for (int j = 0; j < entries.size(); j++) {
+                times[j] = timeline.time(entries.get(j));
+                edges[j] = timeline.edge(entries.get(j));
+                timeNodes[j] = timeline.timeNode(entries.get(j));
+            }
+            result.put(cursor.key, new GtfsStorage.Timeline(timeline.timeZoneId, times, edges, timeNodes));
+        }
+        return result;
+    }
+
+    @Override
+    public void close() {
+        executor.shutdownNow();
+        if (gtfsStorage.getServiceDaySlices() == this) {
+            gtfsStorage.setServiceDaySlices(null);
+        }
+    }
+
+}
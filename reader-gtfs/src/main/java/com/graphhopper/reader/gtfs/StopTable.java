@@ -0,0 +1,203 @@
+/*
+ *  Licensed to GraphHopper GmbH under one or more contributor
+ *  license agreements. See the NOTICE file distributed with this work for
+ *  additional information regarding copyright ownership.
+ *
+ *  GraphHopper GmbH licenses this file to you under the Apache License,
+ *  Version 2.0 (the "License"); you may not use this file except in
+ *  compliance with the License. You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package com.graphhopper.reader.gtfs;
+
+import com.conveyal.gtfs.model.Stop;
+import com.graphhopper.util.Helper;
+import com.vividsolutions.jts.geom.Coordinate;
+import com.vividsolutions.jts.geom.GeometryFactory;
+import com.vividsolutions.jts.geom.Point;
+
+import java.util.*;
+import java.util.stream.IntStream;
+
+/**
+ * The stops of one feed as arrays, read from the feed or the snapshot once, so that turning the nodes a search
+ * settles into stops is an array access and never a lookup in the feed database.
+ * <p>
+ * Stops are numbered in feed order. Only the station nodes of the graph map to a stop.
+ * <p>
+ * The platforms, stops which are not stations themselves, are also kept sorted by latitude, so
+ * that the closest one to a point is found without looking at all of them.
+ */
+public final class StopTable {
+
+    public static final int NO_STOP = -1;
+
+    private final Stop[] stops;
+    private final String[] stopIds;
+    private final String[] names;
+    private final double[] lats;
+    private final double[] lons;
+    private final Point[] geometries;
+    private final int[] stationNodes;
+    private final int[] stopOfNode;
+    private final Map<String, Integer> stopIndex = new HashMap<>();
+    private final List<Stop> stopList;
+    // the stops with location_type 0, by latitude
+    private final int[] platformsByLat;
+    private final double[] platformLats;
+
+    /**
+     * @param stationNodes the station node of each stop, -1 if it has none
+     */
+    StopTable(Stop[] stops, int[] stationNodes) {
+        final GeometryFactory geometryFactory = new GeometryFactory();
+        this.stops = stops;
+        stopIds = new String[stops.length];
+        names = new String[stops.length];
+        lats = new double[stops.length];
+        lons = new double[stops.length];
+        geometries = new Point[stops.length];
+        this.stationNodes = stationNodes;
+        int maxNode = -1;
+        for (int i = 0; i < stops.length; i++) {
+            final Stop stop = stops[i];
+            stopIds[i] = stop.stop_id;
+            names[i] = stop.stop_name;
+            lats[i] = stop.stop_lat;
+            lons[i] = stop.stop_lon;
+            geometries[i] = geometryFactory.createPoint(new Coordinate(stop.stop_lon, stop.stop_lat));
+            stopIndex.put(stop.stop_id, i);
+            maxNode = Math.max(maxNode, stationNodes[i]);
+        }
+        stopOfNode = new int[maxNode + 1];
+        Arrays.fill(stopOfNode, NO_STOP);
+        for (int i = 0; i < stops.length; i++) {
+            if (stationNodes[i] != -1) {
+                stopOfNode[stationNodes[i]] = i;
+            }
+        }
+        stopList = Collections.unmodifiableList(Arrays.asList(stops));
+        platformsByLat = IntStream.range(0, stops.length)
+                .filter(i -> stops[i].location_type == 0)
+                .boxed()
+                .sorted(Comparator.comparingDouble(i -> lats[i]))
+                .mapToInt(Integer::intValue)
+                .toArray();
+        platformLats = new double[platformsByLat.length];
+        for (int i = 0; i < platformsByLat.length; i++) {
+            platformLats[i] = lats[platformsByLat[i]];
+        }
+    }
+
+    public int size() {
+        return stops.length;
+    }
+
+    /**
+     * @return the stop whose station node this is, or {@link #NO_STOP}
+     */
+    public int getStopOfNode(int node) {
+        return node >= 0 && node < stopOfNode.length ? stopOfNode[node] : NO_STOP;
+    }
+
+    /**
+     * @return the stop with this id, or {@link #NO_STOP}
+     */
+    public int getStopIndex(String stopId) {
+        final Integer result = stopIndex.get(stopId);
+        return result != null ? result : NO_STOP;
+    }
+
+    /**
+     * @return the station node of the stop, or -1 if it has none, like parent stations
+     */
+    public int getStationNode(int stop) {
+        return stationNodes[stop];
+    }
+
+    /**
+     * The platform closest to the point. We go north and south from its latitude, and stop in each
+     * direction once the difference in latitude alone is farther than the closest one so far.
+     *
+     * @return the stop, or {@link #NO_STOP} if there are no platforms
+     */
+    public int getClosestPlatform(double lat, double lon) {
+        int closest = NO_STOP;
+        double closestDistance = Double.MAX_VALUE;
+        final int start = insertionPoint(lat);
+        int north = start;
+        int south = start - 1;
+        while (north < platformsByLat.length || south >= 0) {
+            if (north < platformsByLat.length) {
+                if (Helper.DIST_EARTH.calcDist(lat, lon, platformLats[north], lon) > closestDistance) {
+                    north = platformsByLat.length;
+                } else {
+                    final int stop = platformsByLat[north++];
+                    final double distance = Helper.DIST_EARTH.calcDist(lat, lon, lats[stop], lons[stop]);
+                    if (distance < closestDistance) {
+                        closest = stop;
+                        closestDistance = distance;
+                    }
+                }
+            }
+            if (south >= 0) {
+                if (Helper.DIST_EARTH.calcDist(lat, lon, platformLats[south], lon) > closestDistance) {
+                    south = -1;
+                } else {
+                    final int stop = platformsByLat[south--];
+                    final double distance = Helper.DIST_EARTH.calcDist(lat, lon, lats[stop], lons[stop]);
+                    if (distance < closestDistance) {
+                        closest = stop;
+                        closestDistance = distance;
+                    }
+                }
+            }
+        }
+        return closest;
+    }
+
+    private int insertionPoint(double lat) {
+        final int i = Arrays.binarySearch(platformLats, lat);
+        return i >= 0 ? i : -i - 1;
+    }
+
+    public Stop getStop(int stop) {
+        return stops[stop];
+    }
+
+    public String getStopId(int stop) {
+        return stopIds[stop];
+    }
+
+    public String getName(int stop) {
+        return names[stop];
+    }
+
+    public double getLat(int stop) {
+        return lats[stop];
+    }
+
+    public double getLon(int stop) {
+        return lons[stop];
+    }
+
+    public Point getGeometry(int stop) {
+        return geometries[stop];
+    }
+
+    /**
+     * All stops in feed order.
+     */
+    public List<Stop> getStops() {
+        return stopList;
+    }
+
+}
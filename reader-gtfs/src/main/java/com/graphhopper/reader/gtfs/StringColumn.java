@@ -0,0 +1,100 @@
+/*
+ *  Licensed to GraphHopper GmbH under one or more contributor
+ *  license agreements. See the NOTICE file distributed with this work for
+ *  additional information regarding copyright ownership.
+ *
+ *  GraphHopper GmbH licenses this file to you under the Apache License,
+ *  Version 2.0 (the "License"); you may not use this file except in
+ *  compliance with the License. You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.graphhopper.reader.gtfs;
+
+import com.graphhopper.storage.DataAccess;
+import com.graphhopper.storage.Directory;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * A list of strings in two {@link DataAccess} objects: their UTF-8 bytes one after the other, and
+ * where each string starts.
+ */
+final class StringColumn {
+
+    private final DataAccess offsets;
+    private final DataAccess bytes;
+    private int size;
+    private int byteCount;
+
+    StringColumn(Directory dir, String name) {
+        this.offsets = dir.find(name + "_offsets");
+        this.bytes = dir.find(name);
+    }
+
+    void create(long byteCount) {
+        offsets.create(byteCount);
+        bytes.create(byteCount);
+    }
+
+    boolean loadExisting() {
+        if (!offsets.loadExisting() || !bytes.loadExisting()) {
+            return false;
+        }
+        size = offsets.getHeader(0);
+        byteCount = offsets.getHeader(4);
+        return true;
+    }
+
+    /**
+     * @return the index of the new string
+     */
+    int add(String string) {
+        final byte[] value = string.getBytes(StandardCharsets.UTF_8);
+        bytes.ensureCapacity((long) byteCount + value.length);
+        bytes.setBytes(byteCount, value, value.length);
+        byteCount += value.length;
+        size++;
+        offsets.ensureCapacity((size + 1) * 4L);
+        offsets.setInt(size * 4L, byteCount);
+        return size - 1;
+    }
+
+    String get(int index) {
+        final int from = offsets.getInt(index * 4L);
+        final byte[] value = new byte[offsets.getInt((index + 1) * 4L) - from];
+        bytes.getBytes(from, value, value.length);
+        return new String(value, StandardCharsets.UTF_8);
+    }
+
+    int size() {
+        return size;
+    }
+
+    void flush() {
+        offsets.setHeader(0, size);
+        offsets.setHeader(4, byteCount);
+        offsets.flush();
+        bytes.flush();
+    }
+
+    void close() {
+        offsets.close();
+        bytes.close();
+    }
+
+    boolean isClosed() {
+        return bytes.isClosed();
+    }
+
+    long getCapacity() {
+        return offsets.getCapacity() + bytes.getCapacity();
+    }
+
+}
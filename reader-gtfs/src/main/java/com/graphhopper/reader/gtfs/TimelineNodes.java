@@ -0,0 +1,123 @@
+/*
+ *  Licensed to GraphHopper GmbH under one or more contributor
+ *  license agreements. See the NOTICE file distributed with this work for
+ *  additional information regarding copyright ownership.
+ *
+ *  GraphHopper GmbH licenses this file to you under the Apache License,
+ *  Version 2.0 (the "License"); you may not use this file except in
+ *  compliance with the License. You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.graphhopper.reader.gtfs;
+
+import com.carrotsearch.hppc.LongArrayList;
+import com.carrotsearch.hppc.ObjectIntHashMap;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.function.BiConsumer;
+
+/**
+ * The timeline nodes of the trips at each stop, while the graph is built. Per stop, there is one
+ * array of longs with the route in the upper and the node in the lower half, so that sorting it
+ * groups the nodes by route. Stops and routes are numbered in the order we first see them.
+ * <p>
+ * Timelines themselves are sorted arrays of longs with the time of day in the upper and the node in
+ * the lower half, which is the order they are wired up in.
+ */
+final class TimelineNodes {
+
+    private final ObjectIntHashMap<String> stopIndex = new ObjectIntHashMap<>();
+    private final List<String> stopIds = new ArrayList<>();
+    private final List<LongArrayList> nodesByStop = new ArrayList<>();
+    private final ObjectIntHashMap<String> routeIndex = new ObjectIntHashMap<>();
+    private final List<String> routeIds = new ArrayList<>();
+
+    void add(String stopId, String routeId, int node) {
+        int stop = stopIndex.getOrDefault(stopId, -1);
+        if (stop == -1) {
+            stop = stopIds.size();
+            stopIndex.put(stopId, stop);
+            stopIds.add(stopId);
+            nodesByStop.add(new LongArrayList());
+        }
+        int route = routeIndex.getOrDefault(routeId, -1);
+        if (route == -1) {
+            route = routeIds.size();
+            routeIndex.put(routeId, route);
+            routeIds.add(routeId);
+        }
+        nodesByStop.get(stop).add(pack(route, node));
+    }
+
+    /**
+     * The stops with nodes, in the order we first saw them.
+     */
+    List<String> getStopIds() {
+        return stopIds;
+    }
+
+    /**
+     * Sorts the nodes of every stop, which has to be done once after they are all added and
+     * before they are looked at.
+     */
+    void sort() {
+        for (LongArrayList nodes : nodesByStop) {
+            Arrays.sort(nodes.buffer, 0, nodes.size());
+        }
+    }
+
+    /**
+     * Calls the action with the nodes of each route at the stop, by route number and then by node.
+     */
+    void forEachRoute(String stopId, BiConsumer<String, int[]> action) {
+        final int stop = stopIndex.getOrDefault(stopId, -1);
+        if (stop == -1) {
+            return;
+        }
+        final LongArrayList nodes = nodesByStop.get(stop);
+        int from = 0;
+        while (from < nodes.size()) {
+            final int route = upper(nodes.get(from));
+            int to = from;
+            while (to < nodes.size() && upper(nodes.get(to)) == route) {
+                to++;
+            }
+            final int[] routeNodes = new int[to - from];
+            for (int j = from; j < to; j++) {
+                routeNodes[j - from] = lower(nodes.get(j));
+            }
+            action.accept(routeIds.get(route), routeNodes);
+            from = to;
+        }
+    }
+
+    static long pack(int upper, int lower) {
+        return ((long) upper << 32) | (lower & 0xFFFFFFFFL);
+    }
+
+    static int upper(long packed) {
+        return (int) (packed >>> 32);
+    }
+
+    static int lower(long packed) {
+        return (int) packed;
+    }
+
+    /**
+     * @return the index of the first entry of the timeline at or after the time, or its length
+     */
+    static int firstNotBefore(long[] timeline, int time) {
+        final int k = Arrays.binarySearch(timeline, pack(time, 0));
+        return k >= 0 ? k : -k - 1;
+    }
+
+}
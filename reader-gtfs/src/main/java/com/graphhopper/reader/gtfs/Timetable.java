@@ -0,0 +1,150 @@
+/*
+ *  Licensed to GraphHopper GmbH under one or more contributor
+ *  license agreements. See the NOTICE file distributed with this work for
+ *  additional information regarding copyright ownership.
+ *
+ *  GraphHopper GmbH licenses this file to you under the Apache License,
+ *  Version 2.0 (the "License"); you may not use this file except in
+ *  compliance with the License. You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package com.graphhopper.reader.gtfs;
+
+import com.carrotsearch.hppc.IntArrayList;
+import com.conveyal.gtfs.GTFSFeed;
+import com.conveyal.gtfs.model.*;
+
+import java.time.LocalDate;
+import java.time.LocalTime;
+import java.time.ZoneId;
+import java.util.*;
+
+import static java.time.temporal.ChronoUnit.DAYS;
+
+/**
+ * Stops, operating days and footpaths of a feed as arrays, for the routers which scan the
+ * timetable instead of the graph. Stops are numbered in feed order, operating days from the
+ * start of the feed, like in GtfsReader.
+ */
+final class Timetable {
+
+    interface TripInstanceConsumer {
+        /**
+         * @param offset the frequency start time added to the stop times, 0 for a plain trip
+         */
+        void accept(Trip trip, ZoneId zoneId, int validity, int offset, List<StopTime> stopTimes);
+    }
+
+    final String[] stopIds;
+    final Map<String, Integer> stopIndex = new HashMap<>();
+    final LocalDate startDate;
+    final BitSet[] validities;
+    final int[] footpathOffsets;
+    final int[] footpathTargets;
+    final int[] footpathTimes;
+    private final GTFSFeed feed;
+    private final Map<String, Integer> validityByService = new HashMap<>();
+
+    Timetable(GTFSFeed feed) {
+        this.feed = feed;
+        stopIds = new String[feed.stops.size()];
+        for (String stopId : feed.stops.keySet()) {
+            stopIds[stopIndex.size()] = stopId;
+            stopIndex.put(stopId, stopIndex.size());
+        }
+
+        startDate = feed.calculateStats().getStartDate();
+        final LocalDate endDate = feed.calculateStats().getEndDate();
+        final List<BitSet> validityList = new ArrayList<>();
+        for (Service service : feed.services.values()) {
+            BitSet validOnDay = new BitSet((int) DAYS.between(startDate, endDate));
+            for (LocalDate date = startDate; !date.isAfter(endDate); date = date.plusDays(1)) {
+                if (service.activeOn(date)) {
+                    validOnDay.set((int) DAYS.between(startDate, date));
+                }
+            }
+            validityByService.put(service.service_id, validityList.size());
+            validityList.add(validOnDay);
+        }
+        validities = validityList.toArray(new BitSet[0]);
+
+        final List<Map<Integer, Integer>> footpaths = new ArrayList<>();
+        for (int i = 0; i < stopIds.length; i++) {
+            footpaths.add(new TreeMap<>());
+        }
+        for (Transfer transfer : feed.transfers.values()) {
+            final Integer from = stopIndex.get(transfer.from_stop_id);
+            final Integer to = stopIndex.get(transfer.to_stop_id);
+            if (transfer.transfer_type == 2 && from != null && to != null && !from.equals(to)) {
+                footpaths.get(from).merge(to, transfer.min_transfer_time, Math::min);
+            }
+        }
+        footpathOffsets = new int[stopIds.length + 1];
+        final IntArrayList targets = new IntArrayList();
+        final IntArrayList times = new IntArrayList();
+        for (int i = 0; i < stopIds.length; i++) {
+            footpathOffsets[i] = targets.size();
+            footpaths.get(i).forEach((to, time) -> {
+                targets.add(to);
+                times.add(time);
+            });
+        }
+        footpathOffsets[stopIds.length] = targets.size();
+        footpathTargets = targets.toArray();
+        footpathTimes = times.toArray();
+    }
+
+    /**
+     * Every run of every trip, with frequency-based trips expanded the same way GtfsReader does.
+     */
+    void forEachTripInstance(TripInstanceConsumer consumer) {
+        for (Trip trip : feed.trips.values()) {
+            final ZoneId zoneId = ZoneId.of(feed.agency.get(feed.routes.get(trip.route_id).agency_id).agency_timezone);
+            final int validity = validityByService.get(trip.service_id);
+            final List<StopTime> stopTimes = new ArrayList<>();
+            getInterpolatedStopTimesForTrip(trip.trip_id).forEach(stopTimes::add);
+            final Collection<Frequency> frequencies = feed.getFrequencies(trip.trip_id);
+            if (frequencies.isEmpty()) {
+                consumer.accept(trip, zoneId, validity, 0, stopTimes);
+            } else {
+                for (Frequency frequency : frequencies) {
+                    for (int time = frequency.start_time; time < frequency.end_time; time += frequency.headway_secs) {
+                        consumer.accept(trip, zoneId, validity, time, stopTimes);
+                    }
+                }
+            }
+        }
+    }
+
+    private Iterable<StopTime> getInterpolatedStopTimesForTrip(String tripId) {
+        try {
+            return feed.getInterpolatedStopTimesForTrip(tripId);
+        } catch (GTFSFeed.FirstAndLastStopsDoNotHaveTimes e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    int getDay(LocalDate serviceDay) {
+        return (int) DAYS.between(startDate, serviceDay);
+    }
+
+    boolean isValid(int validity, int day) {
+        return day >= 0 && validities[validity].get(day);
+    }
+
+    /**
+     * The instant GTFS times on this service day are counted from: noon minus 12 hours.
+     */
+    static long getBase(LocalDate serviceDay, ZoneId zoneId) {
+        return serviceDay.atTime(LocalTime.NOON).atZone(zoneId).minusHours(12).toInstant().toEpochMilli();
+    }
+
+}
@@ -19,7 +19,6 @@
 package com.graphhopper.reader.gtfs;
 
 import com.conveyal.gtfs.GTFSFeed;
-import com.conveyal.gtfs.model.Stop;
 import com.conveyal.gtfs.model.StopTime;
 import com.graphhopper.PathWrapper;
 import com.graphhopper.Trip;
@@ -45,10 +44,49 @@ import static com.graphhopper.reader.gtfs.Label.reverseEdges;
 public class TripFromLabel {
 
     public PathWrapper parseSolutionIntoPath(Instant initialTime, boolean arriveBy, PtFlagEncoder encoder, Translation tr, Graph queryGraph, PtTravelTimeWeighting weighting, Label solution, PointList waypoints) {
+        final List<Trip.Leg> legs = getTrip(arriveBy, encoder, tr, queryGraph, weighting, solution);
+        PathWrapper path = createPathWrapper(tr, legs, waypoints);
+        path.addDebugInfo(String.format("Violations: %d, Last leg dist: %f", solution.nWalkDistanceConstraintViolations, solution.walkDistanceOnCurrentLeg));
+        path.setTime((solution.currentTime - initialTime.toEpochMilli()) * (arriveBy ? -1 : 1));
+        if (solution.departureTime != null) {
+            path.setFirstPtLegDeparture(solution.departureTime);
+        }
+        return path;
+    }
+
+    public PathWrapper parseJourneyIntoPath(Instant initialTime, Translation tr, String feedId, Raptor.Journey journey, PointList waypoints) {
+        final GTFSFeed gtfsFeed = gtfsStorage.getGtfsFeeds().get(feedId);
+        final StopTable stopTable = gtfsStorage.getStopTable(feedId);
+        final List<Trip.Leg> legs = new ArrayList<>();
+        for (Raptor.Leg leg : journey.legs) {
+            final com.conveyal.gtfs.model.Trip trip = gtfsFeed.trips.get(leg.tripId);
+            final List<Trip.Stop> stops = new ArrayList<>();
+            final PointList points = new PointList(leg.stopIds.size(), false);
+            double distance = 0.0;
+            for (int i = 0; i < leg.stopIds.size(); i++) {
+                final int stop = stopTable.getStopIndex(leg.stopIds.get(i));
+                stops.add(new Trip.Stop(stopTable.getStopId(stop), stopTable.getName(stop), stopTable.getGeometry(stop),
+                        i > 0 ? Instant.ofEpochMilli(leg.arrivalTimes[i]) : null,
+                        i < leg.stopIds.size() - 1 ? Instant.ofEpochMilli(leg.departureTimes[i]) : null));
+                if (i > 0) {
+                    distance += Helper.DIST_EARTH.calcDist(points.getLat(i - 1), points.getLon(i - 1), stopTable.getLat(stop), stopTable.getLon(stop));
+                }
+                points.add(stopTable.getLat(stop), stopTable.getLon(stop));
+            }
+            // The same headsign as the name GtfsReader gives the board edges.
+            legs.add(new Trip.PtLeg(feedId, false, leg.tripId, trip.route_id, GtfsReader.getRouteName(gtfsFeed, trip),
+                    Instant.ofEpochMilli(leg.getDepartureTime()), stops, distance, leg.getArrivalTime() - leg.getDepartureTime(),
+                    Instant.ofEpochMilli(leg.getArrivalTime()), geometryFactory.createLineString(toCoordinateArray(points).toArray(new Coordinate[0]))));
+        }
+        PathWrapper path = createPathWrapper(tr, legs, waypoints);
+        path.setTime(journey.getArrivalTime() - initialTime.toEpochMilli());
+        path.setFirstPtLegDeparture(journey.getDepartureTime());
+        return path;
+    }
+
+    private PathWrapper createPathWrapper(Translation tr, List<Trip.Leg> legs, PointList waypoints) {
         PathWrapper path = new PathWrapper();
         path.setWaypoints(waypoints);
-
-        final List<Trip.Leg> legs = getTrip(arriveBy, encoder, tr, queryGraph, weighting, solution);
         path.getLegs().addAll(legs);
 
         final InstructionList instructions = getInstructions(tr, path.getLegs());
@@ -57,13 +95,8 @@ public class TripFromLabel {
         for (Instruction instruction : instructions) {
             pointsList.add(instruction.getPoints());
         }
-        path.addDebugInfo(String.format("Violations: %d, Last leg dist: %f", solution.nWalkDistanceConstraintViolations, solution.walkDistanceOnCurrentLeg));
         path.setPoints(pointsList);
         path.setDistance(path.getLegs().stream().mapToDouble(Trip.Leg::getDistance).sum());
-        path.setTime((solution.currentTime - initialTime.toEpochMilli()) * (arriveBy ? -1 : 1));
-        if (solution.departureTime != null) {
-            path.setFirstPtLegDeparture(solution.departureTime);
-        }
         path.setNumChanges((int) path.getLegs().stream()
                 .filter(l -> l instanceof Trip.PtLeg)
                 .filter(l -> !((Trip.PtLeg) l).isInSameVehicleAsPrevious)
@@ -106,6 +139,46 @@ public class TripFromLabel {
         return getLegs(encoder, tr, queryGraph, weighting, partitions);
     }
 
+    /**
+     * The trips to many labels of one forward search, in the same order. The labels form a tree, so
+     * every transition is looked up in the graph only once, and the legs before the start of a
+     * partition are parsed only once for all trips passing through it.
+     */
+    public List<List<Trip.Leg>> getTrips(PtFlagEncoder encoder, Translation tr, Graph queryGraph, PtTravelTimeWeighting weighting, List<Label> solutions) {
+        final Map<Label, Label.Transition> transitions = new IdentityHashMap<>();
+        final Map<Label, List<Trip.Leg>> legsBeforePartition = new IdentityHashMap<>();
+        final List<List<Trip.Leg>> result = new ArrayList<>();
+        for (Label solution : solutions) {
+            final List<Label.Transition> path = new ArrayList<>();
+            Label label = solution;
+            while (label.parent != null) {
+                final Label.Transition transition = transitions.computeIfAbsent(label, l -> Label.getTransition(l, queryGraph, encoder));
+                // A partition starts here for every trip if we got here by leaving pt, otherwise
+                // only if we go on by entering pt.
+                final boolean startsPartition = transition.edge.edgeType == GtfsStorage.EdgeType.EXIT_PT
+                        || !path.isEmpty() && path.get(path.size() - 1).edge.edgeType == GtfsStorage.EdgeType.ENTER_PT;
+                if (startsPartition && legsBeforePartition.containsKey(label)) {
+                    break;
+                }
+                path.add(transition);
+                label = label.parent;
+            }
+            path.add(new Label.Transition(label, null));
+            Collections.reverse(path);
+
+            final List<Trip.Leg> legs = new ArrayList<>(legsBeforePartition.getOrDefault(label, Collections.emptyList()));
+            final List<List<Label.Transition>> partitions = getPartitions(path);
+            for (int i = 0; i < partitions.size(); i++) {
+                legs.addAll(parsePathIntoLegs(partitions.get(i), queryGraph, encoder, weighting, tr));
+                if (i < partitions.size() - 1) {
+                    legsBeforePartition.put(partitions.get(i + 1).get(0).label, new ArrayList<>(legs));
+                }
+            }
+            result.add(legs);
+        }
+        return result;
+    }
+
     public List<List<Label.Transition>> getPartitions(List<Label.Transition> transitions) {
         List<List<Label.Transition>> partitions = new ArrayList<>();
         partitions.add(new ArrayList<>());
@@ -170,12 +243,14 @@ public class TripFromLabel {
         private final String tripId;
         private final List<Trip.Stop> stops = new ArrayList<>();
         private final GTFSFeed gtfsFeed;
+        private final StopTable stopTable;
         private long arrivalTimeFromHopEdge;
-        private Stop stop = null;
+        private int stop = StopTable.NO_STOP;
 
         StopsFromBoardHopDwellEdges(String feedId, String tripId) {
             this.tripId = tripId;
             this.gtfsFeed = gtfsStorage.getGtfsFeeds().get(feedId);
+            this.stopTable = gtfsStorage.getStopTable(feedId);
         }
 
         void next(Label.Transition t) {
@@ -184,7 +259,7 @@ public class TripFromLabel {
                 case BOARD:
                     stop = findStop(t);
                     departureTime = t.label.currentTime;
-                    stops.add(new Trip.Stop(stop.stop_id, stop.stop_name, geometryFactory.createPoint(new Coordinate(stop.stop_lon, stop.stop_lat)), null, Instant.ofEpochMilli(departureTime)));
+                    stops.add(new Trip.Stop(stopTable.getStopId(stop), stopTable.getName(stop), stopTable.getGeometry(stop), null, Instant.ofEpochMilli(departureTime)));
                     break;
                 case HOP:
                     stop = findStop(t);
@@ -192,21 +267,21 @@ public class TripFromLabel {
                     break;
                 case DWELL:
                     departureTime = t.label.currentTime;
-                    stops.add(new Trip.Stop(stop.stop_id, stop.stop_name, geometryFactory.createPoint(new Coordinate(stop.stop_lon, stop.stop_lat)), Instant.ofEpochMilli(arrivalTimeFromHopEdge), Instant.ofEpochMilli(departureTime)));
+                    stops.add(new Trip.Stop(stopTable.getStopId(stop), stopTable.getName(stop), stopTable.getGeometry(stop), Instant.ofEpochMilli(arrivalTimeFromHopEdge), Instant.ofEpochMilli(departureTime)));
                     break;
                 default:
                     throw new RuntimeException();
             }
         }
 
-        private Stop findStop(Label.Transition t) {
-            int stopSequence = gtfsStorage.getStopSequences().get(t.edge.edgeIteratorState.getEdge());
+        private int findStop(Label.Transition t) {
+            int stopSequence = gtfsStorage.getStopSequence(t.edge.edgeIteratorState.getEdge());
             StopTime stopTime = gtfsFeed.stop_times.get(new Fun.Tuple2<>(tripId, stopSequence));
-            return gtfsFeed.stops.get(stopTime.stop_id);
+            return stopTable.getStopIndex(stopTime.stop_id);
         }
 
         void finish() {
-            stops.add(new Trip.Stop(stop.stop_id, stop.stop_name, geometryFactory.createPoint(new Coordinate(stop.stop_lon, stop.stop_lat)), Instant.ofEpochMilli(arrivalTimeFromHopEdge), null));
+            stops.add(new Trip.Stop(stopTable.getStopId(stop), stopTable.getName(stop), stopTable.getGeometry(stop), Instant.ofEpochMilli(arrivalTimeFromHopEdge), null));
         }
 
     }
@@ -244,9 +319,10 @@ public class TripFromLabel {
                 if (partition != null) {
                     partition.add(path.get(i));
                 }
-                if (EnumSet.of(GtfsStorage.EdgeType.TRANSFER, GtfsStorage.EdgeType.LEAVE_TIME_EXPANDED_NETWORK).contains(edge.edgeType)) {
+                // a transfer from a stop exit node comes after the leg has already ended
+                if (partition != null && EnumSet.of(GtfsStorage.EdgeType.TRANSFER, GtfsStorage.EdgeType.LEAVE_TIME_EXPANDED_NETWORK).contains(edge.edgeType)) {
                     Geometry lineString = lineStringFromEdges(partition);
-                    String tripId = gtfsStorage.getExtraStrings().get(partition.get(0).edge.edgeIteratorState.getEdge());
+                    String tripId = gtfsStorage.getTripId(partition.get(0).edge.edgeIteratorState.getEdge());
                     final StopsFromBoardHopDwellEdges stopsFromBoardHopDwellEdges = new StopsFromBoardHopDwellEdges(feedIdWithTimezone.feedId, tripId);
                     partition.stream()
                             .filter(e -> EnumSet.of(GtfsStorage.EdgeType.HOP, GtfsStorage.EdgeType.BOARD, GtfsStorage.EdgeType.DWELL).contains(e.edge.edgeType))
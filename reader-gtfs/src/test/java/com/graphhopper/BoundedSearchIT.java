@@ -0,0 +1,114 @@
+/*
+ *  Licensed to GraphHopper GmbH under one or more contributor
+ *  license agreements. See the NOTICE file distributed with this work for
+ *  additional information regarding copyright ownership.
+ *
+ *  GraphHopper GmbH licenses this file to you under the Apache License,
+ *  Version 2.0 (the "License"); you may not use this file except in
+ *  compliance with the License. You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package com.graphhopper;
+
+import com.graphhopper.reader.gtfs.*;
+import com.graphhopper.routing.util.EncodingManager;
+import com.graphhopper.storage.GHDirectory;
+import com.graphhopper.storage.GraphHopperStorage;
+import com.graphhopper.storage.index.LocationIndex;
+import com.graphhopper.util.Helper;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.io.File;
+import java.time.Duration;
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.util.*;
+
+import static org.junit.Assert.assertEquals;
+
+public class BoundedSearchIT {
+
+    private static final String GRAPH_LOC = "target/BoundedSearchIT";
+    private static final ZoneId zoneId = ZoneId.of("America/Los_Angeles");
+    private static final Instant DEPARTURE_TIME = LocalDateTime.of(2007, 1, 1, 6, 0).atZone(zoneId).toInstant();
+    private static PtFlagEncoder ptFlagEncoder;
+    private static GtfsStorage gtfsStorage;
+    private static GraphHopperStorage graphHopperStorage;
+    private static LocationIndex locationIndex;
+    private static Map<Integer, String> stopNodes = new HashMap<>();
+
+    @BeforeClass
+    public static void init() {
+        Helper.removeDir(new File(GRAPH_LOC));
+        ptFlagEncoder = new PtFlagEncoder();
+        EncodingManager encodingManager = new EncodingManager(Arrays.asList(ptFlagEncoder), 8);
+        GHDirectory directory = GraphHopperGtfs.createGHDirectory(GRAPH_LOC);
+        gtfsStorage = GraphHopperGtfs.createGtfsStorage();
+        graphHopperStorage = GraphHopperGtfs.createOrLoad(directory, encodingManager, ptFlagEncoder, gtfsStorage, false, Collections.singleton("files/sample-feed.zip"), Collections.emptyList());
+        locationIndex = GraphHopperGtfs.createOrLoadIndex(directory, graphHopperStorage);
+        gtfsStorage.getStationNodes().forEach((stopId, node) -> stopNodes.put(node, stopId));
+    }
+
+    @AfterClass
+    public static void close() {
+        graphHopperStorage.close();
+        locationIndex.close();
+    }
+
+    @Test
+    public void testTravelTimeBudget() {
+        long budget = Duration.ofHours(2).toMillis();
+        for (String sourceStopId : gtfsStorage.getStationNodes().keySet()) {
+            Map<String, Long> expected = new TreeMap<>();
+            search(sourceStopId, false, Long.MAX_VALUE, Integer.MAX_VALUE).stream()
+                    .filter(label -> label.currentTime - DEPARTURE_TIME.toEpochMilli() <= budget)
+                    .forEach(label -> expected.merge(stopNodes.get(label.node), label.currentTime, Math::min));
+            Map<String, Long> actual = new TreeMap<>();
+            search(sourceStopId, false, budget, Integer.MAX_VALUE)
+                    .forEach(label -> actual.merge(stopNodes.get(label.node), label.currentTime, Math::min));
+            assertEquals(sourceStopId, expected, actual);
+        }
+    }
+
+    @Test
+    public void testTransferCap() {
+        for (int maxTransfers = 0; maxTransfers <= 2; maxTransfers++) {
+            final int maxBoardings = maxTransfers + 1;
+            for (String sourceStopId : gtfsStorage.getStationNodes().keySet()) {
+                Map<String, Long> expected = new TreeMap<>();
+                search(sourceStopId, true, Long.MAX_VALUE, Integer.MAX_VALUE).stream()
+                        .filter(label -> label.nTransfers <= maxBoardings)
+                        .forEach(label -> expected.merge(stopNodes.get(label.node), label.currentTime, Math::min));
+                Map<String, Long> actual = new TreeMap<>();
+                search(sourceStopId, false, Long.MAX_VALUE, maxTransfers)
+                        .forEach(label -> actual.merge(stopNodes.get(label.node), label.currentTime, Math::min));
+                assertEquals(sourceStopId + " with " + maxTransfers + " transfers", expected, actual);
+            }
+        }
+    }
+
+    private List<Label> search(String sourceStopId, boolean mindTransfers, long maxTravelTime, int maxTransfers) {
+        PtTravelTimeWeighting weighting = new PtTravelTimeWeighting(ptFlagEncoder, 0.0);
+        GraphExplorer explorer = new GraphExplorer(graphHopperStorage, weighting, ptFlagEncoder, gtfsStorage, RealtimeFeed.empty(), false);
+        MultiCriteriaLabelSetting router = new MultiCriteriaLabelSetting(explorer, weighting, false, Double.MAX_VALUE, Double.MAX_VALUE, mindTransfers, false, Integer.MAX_VALUE);
+        router.setMaxTravelTime(maxTravelTime);
+        router.setMaxTransfers(maxTransfers);
+        List<Label> result = new ArrayList<>();
+        router.getLabelStream(gtfsStorage.getStationNodes().get(sourceStopId), -1, DEPARTURE_TIME)
+                .filter(label -> stopNodes.containsKey(label.node))
+                .forEach(result::add);
+        return result;
+    }
+
+}
@@ -0,0 +1,116 @@
+/*
+ *  Licensed to GraphHopper GmbH under one or more contributor
+ *  license agreements. See the NOTICE file distributed with this work for
+ *  additional information regarding copyright ownership.
+ *
+ *  GraphHopper GmbH licenses this file to you under the Apache License,
+ *  Version 2.0 (the "License"); you may not use this file except in
+ *  compliance with the License. You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package com.graphhopper;
+
+import com.graphhopper.reader.gtfs.*;
+import com.graphhopper.routing.util.EncodingManager;
+import com.graphhopper.storage.GHDirectory;
+import com.graphhopper.storage.GraphHopperStorage;
+import com.graphhopper.storage.index.LocationIndex;
+import com.graphhopper.util.Helper;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.io.File;
+import java.time.Duration;
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.util.*;
+
+import static org.junit.Assert.assertEquals;
+
+public class ConnectionScanIT {
+
+    private static final String GRAPH_LOC = "target/ConnectionScanIT";
+    private static final ZoneId zoneId = ZoneId.of("America/Los_Angeles");
+    private static final Duration HORIZON = Duration.ofDays(1);
+    private static PtFlagEncoder ptFlagEncoder;
+    private static GtfsStorage gtfsStorage;
+    private static GraphHopperStorage graphHopperStorage;
+    private static LocationIndex locationIndex;
+    private static ConnectionScan connectionScan;
+
+    @BeforeClass
+    public static void init() {
+        Helper.removeDir(new File(GRAPH_LOC));
+        ptFlagEncoder = new PtFlagEncoder();
+        EncodingManager encodingManager = new EncodingManager(Arrays.asList(ptFlagEncoder), 8);
+        GHDirectory directory = GraphHopperGtfs.createGHDirectory(GRAPH_LOC);
+        gtfsStorage = GraphHopperGtfs.createGtfsStorage();
+        graphHopperStorage = GraphHopperGtfs.createOrLoad(directory, encodingManager, ptFlagEncoder, gtfsStorage, false, Collections.singleton("files/sample-feed.zip"), Collections.emptyList());
+        locationIndex = GraphHopperGtfs.createOrLoadIndex(directory, graphHopperStorage);
+        connectionScan = new ConnectionScan(gtfsStorage.getGtfsFeeds().get("gtfs_0"));
+    }
+
+    @AfterClass
+    public static void close() {
+        graphHopperStorage.close();
+        locationIndex.close();
+    }
+
+    @Test
+    public void testSameArrivalTimesAsLabelSetting() {
+        List<LocalDateTime> departureTimes = Arrays.asList(
+                LocalDateTime.of(2007, 1, 1, 0, 0),
+                LocalDateTime.of(2007, 1, 1, 8, 44),
+                LocalDateTime.of(2007, 1, 1, 23, 0),
+                LocalDateTime.of(2007, 1, 6, 12, 0));
+        for (LocalDateTime departureTime : departureTimes) {
+            Instant instant = departureTime.atZone(zoneId).toInstant();
+            for (String sourceStopId : gtfsStorage.getStationNodes().keySet()) {
+                assertEquals(sourceStopId + " at " + departureTime,
+                        labelSettingArrivals(sourceStopId, instant), connectionScanArrivals(sourceStopId, instant));
+            }
+        }
+    }
+
+    @Test
+    public void testTargetStopsTerminateEarly() {
+        Instant instant = LocalDateTime.of(2007, 1, 1, 8, 44).atZone(zoneId).toInstant();
+        Map<String, Long> all = connectionScanArrivals("FUR_CREEK_RES", instant);
+        List<ConnectionScan.Arrival> toTarget = connectionScan.route("FUR_CREEK_RES", instant, HORIZON, Collections.singleton("STAGECOACH"));
+        assertEquals((long) all.get("STAGECOACH"), toTarget.stream().filter(a -> a.stopId.equals("STAGECOACH")).findFirst().get().arrivalTime);
+    }
+
+    private Map<String, Long> labelSettingArrivals(String sourceStopId, Instant departureTime) {
+        Map<Integer, String> stopNodes = new HashMap<>();
+        gtfsStorage.getStationNodes().forEach((stopId, node) -> stopNodes.put(node, stopId));
+        PtTravelTimeWeighting weighting = new PtTravelTimeWeighting(ptFlagEncoder, 0.0);
+        GraphExplorer explorer = new GraphExplorer(graphHopperStorage, weighting, ptFlagEncoder, gtfsStorage, RealtimeFeed.empty(), false);
+        MultiCriteriaLabelSetting router = new MultiCriteriaLabelSetting(explorer, weighting, false, Double.MAX_VALUE, Double.MAX_VALUE, false, false, Integer.MAX_VALUE);
+        Map<String, Long> arrivals = new TreeMap<>();
+        router.getLabelStream(gtfsStorage.getStationNodes().get(sourceStopId), -1, departureTime)
+                .filter(label -> stopNodes.containsKey(label.node))
+                .filter(label -> label.currentTime <= departureTime.plus(HORIZON).toEpochMilli())
+                .forEach(label -> arrivals.merge(stopNodes.get(label.node), label.currentTime, Math::min));
+        return arrivals;
+    }
+
+    private Map<String, Long> connectionScanArrivals(String sourceStopId, Instant departureTime) {
+        Map<String, Long> arrivals = new TreeMap<>();
+        connectionScan.route(sourceStopId, departureTime, HORIZON, null).stream()
+                .filter(arrival -> gtfsStorage.getStationNodes().containsKey(arrival.stopId))
+                .filter(arrival -> arrival.arrivalTime <= departureTime.plus(HORIZON).toEpochMilli())
+                .forEach(arrival -> arrivals.put(arrival.stopId, arrival.arrivalTime));
+        return arrivals;
+    }
+
+}
@@ -0,0 +1,152 @@
+/*
+ *  Licensed to GraphHopper GmbH under one or more contributor
+ *  license agreements. See the NOTICE file distributed with this work for
+ *  additional information regarding copyright ownership.
+ *
+ *  GraphHopper GmbH licenses this file to you under the Apache License,
+ *  Version 2.0 (the "License"); you may not use this file except in
+ *  compliance with the License. You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package com.graphhopper;
+
+import com.graphhopper.reader.gtfs.*;
+import com.graphhopper.routing.util.EncodingManager;
+import com.graphhopper.storage.GHDirectory;
+import com.graphhopper.storage.GraphHopperStorage;
+import com.graphhopper.storage.index.LocationIndex;
+import com.graphhopper.util.Helper;
+import com.graphhopper.util.Parameters;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.io.File;
+import java.time.Duration;
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.util.*;
+
+import static com.graphhopper.reader.gtfs.GtfsHelper.time;
+import static org.junit.Assert.*;
+
+public class RaptorIT {
+
+    private static final String GRAPH_LOC = "target/RaptorIT";
+    private static final ZoneId zoneId = ZoneId.of("America/Los_Angeles");
+    private static final Duration HORIZON = Duration.ofDays(1);
+    private static GtfsStorage gtfsStorage;
+    private static GraphHopperStorage graphHopperStorage;
+    private static LocationIndex locationIndex;
+    private static GraphHopperGtfs graphHopper;
+    private static ConnectionScan connectionScan;
+    private static Raptor raptor;
+
+    @BeforeClass
+    public static void init() {
+        Helper.removeDir(new File(GRAPH_LOC));
+        final PtFlagEncoder ptFlagEncoder = new PtFlagEncoder();
+        EncodingManager encodingManager = new EncodingManager(Arrays.asList(ptFlagEncoder), 8);
+        GHDirectory directory = GraphHopperGtfs.createGHDirectory(GRAPH_LOC);
+        gtfsStorage = GraphHopperGtfs.createGtfsStorage();
+        graphHopperStorage = GraphHopperGtfs.createOrLoad(directory, encodingManager, ptFlagEncoder, gtfsStorage, false, Collections.singleton("files/sample-feed.zip"), Collections.emptyList());
+        locationIndex = GraphHopperGtfs.createOrLoadIndex(directory, graphHopperStorage);
+        graphHopper = GraphHopperGtfs.createFactory(ptFlagEncoder, GraphHopperGtfs.createTranslationMap(), graphHopperStorage, locationIndex, gtfsStorage)
+                .createWithoutRealtimeFeed();
+        connectionScan = new ConnectionScan(gtfsStorage.getGtfsFeeds().get("gtfs_0"));
+        raptor = new Raptor(gtfsStorage.getGtfsFeeds().get("gtfs_0"));
+    }
+
+    @AfterClass
+    public static void close() {
+        graphHopperStorage.close();
+        locationIndex.close();
+    }
+
+    @Test
+    public void testSameArrivalTimesAsConnectionScan() {
+        List<LocalDateTime> departureTimes = Arrays.asList(
+                LocalDateTime.of(2007, 1, 1, 0, 0),
+                LocalDateTime.of(2007, 1, 1, 8, 44),
+                LocalDateTime.of(2007, 1, 1, 23, 0),
+                LocalDateTime.of(2007, 1, 6, 12, 0));
+        for (LocalDateTime departureTime : departureTimes) {
+            Instant instant = departureTime.atZone(zoneId).toInstant();
+            for (String sourceStopId : gtfsStorage.getStationNodes().keySet()) {
+                Map<String, Long> expected = new TreeMap<>();
+                connectionScan.route(sourceStopId, instant, HORIZON, null)
+                        .forEach(arrival -> expected.put(arrival.stopId, arrival.arrivalTime));
+                Map<String, Long> actual = new TreeMap<>();
+                raptor.route(sourceStopId, instant, HORIZON, Integer.MAX_VALUE)
+                        .forEach(arrival -> actual.merge(arrival.stopId, arrival.arrivalTime, Math::min));
+                assertEquals(sourceStopId + " at " + departureTime, expected, actual);
+            }
+        }
+    }
+
+    @Test
+    public void testArrivalsPerStopAreParetoOptimal() {
+        Instant instant = LocalDateTime.of(2007, 1, 1, 8, 44).atZone(zoneId).toInstant();
+        for (String sourceStopId : gtfsStorage.getStationNodes().keySet()) {
+            Map<String, Raptor.Arrival> previous = new HashMap<>();
+            for (Raptor.Arrival arrival : raptor.route(sourceStopId, instant, HORIZON, Integer.MAX_VALUE)) {
+                Raptor.Arrival earlier = previous.put(arrival.stopId, arrival);
+                if (earlier != null) {
+                    assertTrue(arrival.arrivalTime > earlier.arrivalTime);
+                    assertTrue(arrival.nTrips < earlier.nTrips);
+                }
+            }
+        }
+    }
+
+    @Test
+    public void testProfileMatchesRepeatedQueries() {
+        Instant earliest = LocalDateTime.of(2007, 1, 1, 6, 0).atZone(zoneId).toInstant();
+        Instant latest = LocalDateTime.of(2007, 1, 1, 9, 0).atZone(zoneId).toInstant();
+        for (String sourceStopId : gtfsStorage.getStationNodes().keySet()) {
+            List<Raptor.Arrival> profile = raptor.profile(sourceStopId, earliest, latest, HORIZON);
+            for (Raptor.Arrival entry : profile) {
+                Instant departure = Instant.ofEpochMilli(entry.departureTime);
+                Duration horizon = Duration.between(departure, latest.plus(HORIZON));
+                long expected = raptor.route(sourceStopId, departure, horizon, Integer.MAX_VALUE).stream()
+                        .filter(arrival -> arrival.stopId.equals(entry.stopId))
+                        .mapToLong(arrival -> arrival.arrivalTime)
+                        .min().getAsLong();
+                assertEquals(sourceStopId + " to " + entry.stopId + " at " + departure, expected, entry.arrivalTime);
+            }
+            Map<String, Long> latestEntry = new HashMap<>();
+            for (Raptor.Arrival entry : profile) {
+                Long before = latestEntry.put(entry.stopId, entry.arrivalTime);
+                assertTrue(before == null || before < entry.arrivalTime);
+            }
+        }
+    }
+
+    @Test
+    public void testRoute() {
+        final double FROM_LAT = 36.914893, FROM_LON = -116.76821; // NADAV stop
+        final double TO_LAT = 36.914944, TO_LON = -116.761472; // NANAA stop
+        GHRequest ghRequest = new GHRequest(
+                FROM_LAT, FROM_LON,
+                TO_LAT, TO_LON
+        );
+        ghRequest.setAlgorithm(Parameters.Algorithms.RAPTOR);
+        ghRequest.getHints().put(Parameters.PT.EARLIEST_DEPARTURE_TIME, LocalDateTime.of(2007,1,1,0,0,0).atZone(zoneId).toInstant());
+        GHResponse route = graphHopper.route(ghRequest);
+
+        assertFalse(route.hasErrors());
+        assertEquals(1, route.getAll().size());
+        assertEquals("Expected travel time == scheduled arrival time", time(6, 49), route.getBest().getTime(), 0.1);
+        assertEquals(0, route.getBest().getNumChanges());
+    }
+
+}
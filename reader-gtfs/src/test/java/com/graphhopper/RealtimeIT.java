@@ -22,6 +22,8 @@ import com.google.transit.realtime.GtfsRealtime;
 import com.graphhopper.reader.gtfs.GraphHopperGtfs;
 import com.graphhopper.reader.gtfs.GtfsStorage;
 import com.graphhopper.reader.gtfs.PtFlagEncoder;
+import com.graphhopper.reader.gtfs.RealtimeFeed;
+import com.graphhopper.reader.gtfs.RealtimeFeedUpdater;
 import com.graphhopper.routing.util.EncodingManager;
 import com.graphhopper.storage.GHDirectory;
 import com.graphhopper.storage.GraphHopperStorage;
@@ -33,6 +35,9 @@ import org.junit.BeforeClass;
 import org.junit.Test;
 
 import java.io.File;
+import java.io.FileOutputStream;
+import java.io.OutputStream;
+import java.time.Duration;
 import java.time.Instant;
 import java.time.LocalDateTime;
 import java.time.ZoneId;
@@ -50,14 +55,16 @@ public class RealtimeIT {
     private static GraphHopperGtfs.Factory graphHopperFactory;
     private static GraphHopperStorage graphHopperStorage;
     private static LocationIndex locationIndex;
+    private static PtFlagEncoder ptFlagEncoder;
+    private static GtfsStorage gtfsStorage;
 
     @BeforeClass
     public static void init() {
         Helper.removeDir(new File(GRAPH_LOC));
-        final PtFlagEncoder ptFlagEncoder = new PtFlagEncoder();
+        ptFlagEncoder = new PtFlagEncoder();
         EncodingManager encodingManager = new EncodingManager(Arrays.asList(ptFlagEncoder), 8);
         GHDirectory directory = GraphHopperGtfs.createGHDirectory(GRAPH_LOC);
-        GtfsStorage gtfsStorage = GraphHopperGtfs.createGtfsStorage();
+        gtfsStorage = GraphHopperGtfs.createGtfsStorage();
         graphHopperStorage = GraphHopperGtfs.createOrLoad(directory, encodingManager, ptFlagEncoder, gtfsStorage, true, Collections.singleton("files/sample-feed.zip"), Collections.emptyList());
         locationIndex = GraphHopperGtfs.createOrLoadIndex(directory, graphHopperStorage);
         graphHopperFactory = GraphHopperGtfs.createFactory(ptFlagEncoder, GraphHopperGtfs.createTranslationMap(), graphHopperStorage, locationIndex, gtfsStorage);
@@ -191,5 +198,104 @@ public class RealtimeIT {
         assertEquals("It takes", time(1,20), response.getBest().getTime());
     }
 
+    @Test
+    public void testFirstDepartureOnTimelineCancelled() {
+        final double FROM_LAT = 36.868446, FROM_LON = -116.784582; // BEATTY_AIRPORT stop
+        final double TO_LAT = 36.641496, TO_LON = -116.40094; // AMV stop
+        GHRequest ghRequest = new GHRequest(
+                FROM_LAT, FROM_LON,
+                TO_LAT, TO_LON
+        );
+        // On a Saturday, when the line to Amargosa Valley runs
+        ghRequest.getHints().put(Parameters.PT.EARLIEST_DEPARTURE_TIME, LocalDateTime.of(2007,1,6,7,50).atZone(zoneId).toInstant());
+        ghRequest.getHints().put(Parameters.PT.IGNORE_TRANSFERS, true);
+        ghRequest.getHints().put(Parameters.PT.MAX_WALK_DISTANCE_PER_LEG, 30);
+
+        // The 8:00 departure, the first one on the timeline of the line at the airport, is cancelled there.
+        final GtfsRealtime.FeedMessage.Builder feedMessageBuilder = GtfsRealtime.FeedMessage.newBuilder();
+        feedMessageBuilder.setHeader(GtfsRealtime.FeedHeader.newBuilder().setGtfsRealtimeVersion("wurst"));
+        feedMessageBuilder.addEntityBuilder()
+                .setId("pups")
+                .getTripUpdateBuilder()
+                .setTrip(GtfsRealtime.TripDescriptor.newBuilder().setTripId("AAMV1").setStartTime("00:00:00"))
+                .addStopTimeUpdateBuilder()
+                .setStopSequence(1)
+                .setScheduleRelationship(SKIPPED);
+
+        GHResponse response = graphHopperFactory.createWith(feedMessageBuilder.build()).route(ghRequest);
+        assertEquals("I wait for the next one", "AAMV3", (((Trip.PtLeg) response.getBest().getLegs().get(0)).trip_id));
+        assertEquals("and arrive at 14:00", time(6, 10), response.getBest().getTime());
+    }
+
+    @Test
+    public void testDelay() {
+        final double FROM_LAT = 36.868446, FROM_LON = -116.784582; // BEATTY_AIRPORT stop
+        final double TO_LAT = 36.88108, TO_LON = -116.81797; // BULLFROG stop
+        GHRequest ghRequest = new GHRequest(
+                FROM_LAT, FROM_LON,
+                TO_LAT, TO_LON
+        );
+        ghRequest.getHints().put(Parameters.PT.EARLIEST_DEPARTURE_TIME, LocalDateTime.of(2007,1,1,7,55).atZone(zoneId).toInstant());
+        ghRequest.getHints().put(Parameters.PT.IGNORE_TRANSFERS, true);
+        ghRequest.getHints().put(Parameters.PT.MAX_WALK_DISTANCE_PER_LEG, 30);
+
+        GHResponse response = graphHopperFactory.createWithoutRealtimeFeed().route(ghRequest);
+        assertEquals("Wait 5 minutes, ride 10", time(0, 15), response.getBest().getTime());
+
+        // My bus is going to leave 10 minutes late.
+        final GtfsRealtime.FeedMessage.Builder feedMessageBuilder = GtfsRealtime.FeedMessage.newBuilder();
+        feedMessageBuilder.setHeader(GtfsRealtime.FeedHeader.newBuilder().setGtfsRealtimeVersion("wurst"));
+        feedMessageBuilder.addEntityBuilder()
+                .setId("pups")
+                .getTripUpdateBuilder()
+                .setTrip(GtfsRealtime.TripDescriptor.newBuilder().setTripId("AB1").setStartTime("00:00:00"))
+                .addStopTimeUpdateBuilder()
+                .setStopSequence(1)
+                .setDeparture(GtfsRealtime.TripUpdate.StopTimeEvent.newBuilder().setDelay(600));
+
+        response = graphHopperFactory.createWith(feedMessageBuilder.build()).route(ghRequest);
+        assertEquals("The delay holds until Bullfrog", time(0, 25), response.getBest().getTime());
+    }
+
+    @Test
+    public void testRealtimeFeedFromFile() throws Exception {
+        final double FROM_LAT = 36.868446, FROM_LON = -116.784582; // BEATTY_AIRPORT stop
+        final double TO_LAT = 36.88108, TO_LON = -116.81797; // BULLFROG stop
+        GHRequest ghRequest = new GHRequest(
+                FROM_LAT, FROM_LON,
+                TO_LAT, TO_LON
+        );
+        ghRequest.getHints().put(Parameters.PT.EARLIEST_DEPARTURE_TIME, LocalDateTime.of(2007,1,1,7,55).atZone(zoneId).toInstant());
+        ghRequest.getHints().put(Parameters.PT.IGNORE_TRANSFERS, true);
+        ghRequest.getHints().put(Parameters.PT.MAX_WALK_DISTANCE_PER_LEG, 30);
+
+        try (RealtimeFeedUpdater realtimeFeedUpdater = new RealtimeFeedUpdater(graphHopperStorage, ptFlagEncoder, gtfsStorage)) {
+            GraphHopperGtfs graphHopper = graphHopperFactory.createWith(realtimeFeedUpdater);
+            assertEquals(time(0, 15), graphHopper.route(ghRequest).getBest().getTime());
+
+            // It arrives 5 minutes late at Bullfrog, says the file.
+            final GtfsRealtime.FeedMessage.Builder feedMessageBuilder = GtfsRealtime.FeedMessage.newBuilder();
+            feedMessageBuilder.setHeader(GtfsRealtime.FeedHeader.newBuilder().setGtfsRealtimeVersion("wurst"));
+            feedMessageBuilder.addEntityBuilder()
+                    .setId("pups")
+                    .getTripUpdateBuilder()
+                    .setTrip(GtfsRealtime.TripDescriptor.newBuilder().setTripId("AB1").setStartTime("00:00:00"))
+                    .addStopTimeUpdateBuilder()
+                    .setStopSequence(2)
+                    .setArrival(GtfsRealtime.TripUpdate.StopTimeEvent.newBuilder().setDelay(300));
+            final File file = new File(GRAPH_LOC, "realtime.pb");
+            try (OutputStream out = new FileOutputStream(file)) {
+                feedMessageBuilder.build().writeTo(out);
+            }
+            final RealtimeFeed before = realtimeFeedUpdater.get();
+            realtimeFeedUpdater.poll(file, Duration.ofMillis(50));
+            final long deadline = System.currentTimeMillis() + 10000;
+            while (realtimeFeedUpdater.get() == before && System.currentTimeMillis() < deadline) {
+                Thread.sleep(50);
+            }
+            assertEquals(time(0, 20), graphHopper.route(ghRequest).getBest().getTime());
+        }
+    }
+
 
 }
@@ -0,0 +1,100 @@
+/*
+ *  Licensed to GraphHopper GmbH under one or more contributor
+ *  license agreements. See the NOTICE file distributed with this work for
+ *  additional information regarding copyright ownership.
+ *
+ *  GraphHopper GmbH licenses this file to you under the Apache License,
+ *  Version 2.0 (the "License"); you may not use this file except in
+ *  compliance with the License. You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package com.graphhopper;
+
+import com.graphhopper.reader.gtfs.*;
+import com.graphhopper.routing.util.EncodingManager;
+import com.graphhopper.storage.GHDirectory;
+import com.graphhopper.storage.GraphHopperStorage;
+import com.graphhopper.storage.index.LocationIndex;
+import com.graphhopper.util.Helper;
+import com.graphhopper.util.Translation;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.io.File;
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.util.*;
+import java.util.stream.Collectors;
+
+import static org.junit.Assert.assertEquals;
+
+public class TripFromLabelIT {
+
+    private static final String GRAPH_LOC = "target/TripFromLabelIT";
+    private static final ZoneId zoneId = ZoneId.of("America/Los_Angeles");
+    private static PtFlagEncoder ptFlagEncoder;
+    private static GtfsStorage gtfsStorage;
+    private static GraphHopperStorage graphHopperStorage;
+    private static LocationIndex locationIndex;
+    private static TripFromLabel tripFromLabel;
+
+    @BeforeClass
+    public static void init() {
+        Helper.removeDir(new File(GRAPH_LOC));
+        ptFlagEncoder = new PtFlagEncoder();
+        EncodingManager encodingManager = new EncodingManager(Arrays.asList(ptFlagEncoder), 8);
+        GHDirectory directory = GraphHopperGtfs.createGHDirectory(GRAPH_LOC);
+        gtfsStorage = GraphHopperGtfs.createGtfsStorage();
+        graphHopperStorage = GraphHopperGtfs.createOrLoad(directory, encodingManager, ptFlagEncoder, gtfsStorage, false, Collections.singleton("files/sample-feed.zip"), Collections.emptyList());
+        locationIndex = GraphHopperGtfs.createOrLoadIndex(directory, graphHopperStorage);
+        tripFromLabel = new TripFromLabel(gtfsStorage);
+    }
+
+    @AfterClass
+    public static void close() {
+        graphHopperStorage.close();
+        locationIndex.close();
+    }
+
+    @Test
+    public void testTripsOfOneSearchSameAsOneByOne() {
+        Instant departureTime = LocalDateTime.of(2007, 1, 1, 6, 0).atZone(zoneId).toInstant();
+        Translation tr = GraphHopperGtfs.createTranslationMap().getWithFallBack(Locale.US);
+        PtTravelTimeWeighting weighting = new PtTravelTimeWeighting(ptFlagEncoder, 0.0);
+        Set<Integer> stationNodes = new HashSet<>(gtfsStorage.getStationNodes().values());
+        for (int sourceNode : stationNodes) {
+            GraphExplorer explorer = new GraphExplorer(graphHopperStorage, weighting, ptFlagEncoder, gtfsStorage, RealtimeFeed.empty(), false);
+            MultiCriteriaLabelSetting router = new MultiCriteriaLabelSetting(explorer, weighting, false, Double.MAX_VALUE, Double.MAX_VALUE, false, false, Integer.MAX_VALUE);
+            List<Label> solutions = router.getLabelStream(sourceNode, -1, departureTime)
+                    .filter(label -> stationNodes.contains(label.node))
+                    .collect(Collectors.toList());
+            List<List<Trip.Leg>> trips = tripFromLabel.getTrips(ptFlagEncoder, tr, graphHopperStorage, weighting, solutions);
+            assertEquals(solutions.size(), trips.size());
+            for (int i = 0; i < solutions.size(); i++) {
+                assertEquals(describe(tripFromLabel.getTrip(false, ptFlagEncoder, tr, graphHopperStorage, weighting, solutions.get(i))), describe(trips.get(i)));
+            }
+        }
+    }
+
+    private static List<String> describe(List<Trip.Leg> legs) {
+        return legs.stream().map(leg -> {
+            String description = leg.type + " " + leg.departureLocation + " " + leg.departureTime + " " + leg.arrivalTime + " " + leg.distance + " " + leg.geometry;
+            if (leg instanceof Trip.PtLeg) {
+                Trip.PtLeg ptLeg = (Trip.PtLeg) leg;
+                description += " " + ptLeg.trip_id + " " + ptLeg.isInSameVehicleAsPrevious + " " + ptLeg.stops.stream().map(stop -> stop.stop_id).collect(Collectors.toList());
+            }
+            return description;
+        }).collect(Collectors.toList());
+    }
+
+}
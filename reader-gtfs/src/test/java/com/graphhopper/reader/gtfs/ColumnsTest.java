@@ -0,0 +1,111 @@
+/*
+ *  Licensed to GraphHopper GmbH under one or more contributor
+ *  license agreements. See the NOTICE file distributed with this work for
+ *  additional information regarding copyright ownership.
+ *
+ *  GraphHopper GmbH licenses this file to you under the Apache License,
+ *  Version 2.0 (the "License"); you may not use this file except in
+ *  compliance with the License. You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package com.graphhopper.reader.gtfs;
+
+import com.graphhopper.storage.Directory;
+import com.graphhopper.storage.RAMDirectory;
+import com.graphhopper.util.Helper;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+
+import static org.junit.Assert.*;
+
+public class ColumnsTest {
+
+    private static final String LOCATION = "target/ColumnsTest";
+
+    @Before
+    @After
+    public void removeDir() {
+        Helper.removeDir(new File(LOCATION));
+    }
+
+    @Test
+    public void testStoreAndLoad() {
+        Directory dir = new RAMDirectory(LOCATION, true).create();
+        IntColumn ints = new IntColumn(dir, "ints");
+        IntArrayColumn arrays = new IntArrayColumn(dir, "arrays");
+        StringColumn strings = new StringColumn(dir, "strings");
+        ints.create(100);
+        arrays.create(100);
+        strings.create(100);
+        ints.set(3, 0);
+        ints.set(100000, 42);
+        assertEquals(0, arrays.add(new int[]{1, 2, 3}));
+        assertEquals(1, arrays.add(new int[0]));
+        assertEquals(2, arrays.add(new int[]{7}));
+        StringBuilder longString = new StringBuilder();
+        for (int i = 0; i < 5000; i++) {
+            longString.append("Hauptbahnhof ");
+        }
+        assertEquals(0, strings.add("Z\u00fcrich HB"));
+        assertEquals(1, strings.add(""));
+        assertEquals(2, strings.add(longString.toString()));
+        ints.flush();
+        arrays.flush();
+        strings.flush();
+        ints.close();
+        arrays.close();
+        strings.close();
+
+        dir = new RAMDirectory(LOCATION, true);
+        ints = new IntColumn(dir, "ints");
+        arrays = new IntArrayColumn(dir, "arrays");
+        strings = new StringColumn(dir, "strings");
+        assertTrue(ints.loadExisting());
+        assertTrue(arrays.loadExisting());
+        assertTrue(strings.loadExisting());
+        assertEquals(IntColumn.NONE, ints.get(0));
+        assertEquals(0, ints.get(3));
+        assertEquals(42, ints.get(100000));
+        assertEquals(IntColumn.NONE, ints.get(100001));
+        assertEquals(3, arrays.size());
+        assertArrayEquals(new int[]{1, 2, 3}, arrays.get(0));
+        assertArrayEquals(new int[0], arrays.get(1));
+        assertEquals(1, arrays.length(2));
+        assertEquals(7, arrays.get(2, 0));
+        assertEquals(3, strings.size());
+        assertEquals("Z\u00fcrich HB", strings.get(0));
+        assertEquals("", strings.get(1));
+        assertEquals(longString.toString(), strings.get(2));
+    }
+
+    @Test
+    public void testNothingToLoad() {
+        Directory dir = new RAMDirectory(LOCATION, true).create();
+        assertFalse(new IntColumn(dir, "ints").loadExisting());
+        assertFalse(new StringColumn(dir, "strings").loadExisting());
+    }
+
+    @Test
+    public void testNegativeValue() {
+        IntColumn ints = new IntColumn(new RAMDirectory(), "ints");
+        ints.create(100);
+        try {
+            ints.set(0, -1);
+            fail();
+        } catch (IllegalArgumentException e) {
+            assertEquals(IntColumn.NONE, ints.get(0));
+        }
+    }
+
+}
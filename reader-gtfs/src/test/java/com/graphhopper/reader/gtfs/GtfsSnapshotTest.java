@@ -0,0 +1,127 @@
+/*
+ *  Licensed to GraphHopper GmbH under one or more contributor
+ *  license agreements. See the NOTICE file distributed with this work for
+ *  additional information regarding copyright ownership.
+ *
+ *  GraphHopper GmbH licenses this file to you under the Apache License,
+ *  Version 2.0 (the "License"); you may not use this file except in
+ *  compliance with the License. You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.graphhopper.reader.gtfs;
+
+import com.conveyal.gtfs.model.Stop;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.time.LocalDate;
+import java.time.ZoneId;
+import java.util.*;
+
+import static org.junit.Assert.*;
+
+public class GtfsSnapshotTest {
+
+    private File file;
+
+    @Before
+    public void setUp() throws IOException {
+        file = File.createTempFile("gtfs_snapshot", "");
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        Files.deleteIfExists(file.toPath());
+    }
+
+    @Test
+    public void testRoundTrip() {
+        createSnapshot().write(file);
+        GtfsSnapshot snapshot = GtfsSnapshot.read(file);
+
+        assertEquals(Collections.singletonList("gtfs_0"), snapshot.feedIds);
+        assertEquals(new GtfsStorage.FeedIdWithTimezone("gtfs_0", ZoneId.of("Europe/Berlin")), snapshot.timeZones.get(0));
+        assertEquals(createValidity(), snapshot.validities.get(0));
+        Stop[] stops = snapshot.stops.get("gtfs_0");
+        assertEquals(2, stops.length);
+        assertEquals("8000105", stops[0].stop_id);
+        assertEquals("Frankfurt(Main)Hbf", stops[0].stop_name);
+        assertNull(stops[0].stop_code);
+        assertEquals(50.107145, stops[0].stop_lat, 0.0);
+        assertEquals(8.663789, stops[0].stop_lon, 0.0);
+        assertEquals("M\u00fcnchen Hbf", stops[1].stop_name);
+        assertEquals("8000105", stops[1].parent_station);
+        assertEquals(1, stops[1].location_type);
+        assertArrayEquals(new int[]{4, -1}, snapshot.stationNodes.get("gtfs_0"));
+    }
+
+    @Test
+    public void testMissing() throws IOException {
+        Files.delete(file.toPath());
+        assertNull(GtfsSnapshot.read(file));
+    }
+
+    @Test
+    public void testDamaged() throws IOException {
+        createSnapshot().write(file);
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            raf.seek(raf.length() - 1);
+            int last = raf.read();
+            raf.seek(raf.length() - 1);
+            raf.write(last ^ 1);
+        }
+        assertNull(GtfsSnapshot.read(file));
+    }
+
+    @Test
+    public void testOtherVersion() throws IOException {
+        createSnapshot().write(file);
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            raf.seek(4);
+            raf.writeInt(GtfsSnapshot.VERSION + 1);
+        }
+        assertNull(GtfsSnapshot.read(file));
+    }
+
+    private GtfsSnapshot createSnapshot() {
+        Stop frankfurt = new Stop();
+        frankfurt.stop_id = "8000105";
+        frankfurt.stop_name = "Frankfurt(Main)Hbf";
+        frankfurt.stop_lat = 50.107145;
+        frankfurt.stop_lon = 8.663789;
+        Stop munich = new Stop();
+        munich.stop_id = "8000261";
+        munich.stop_name = "M\u00fcnchen Hbf";
+        munich.parent_station = "8000105";
+        munich.location_type = 1;
+        munich.stop_lat = 48.140232;
+        munich.stop_lon = 11.558335;
+        Map<String, Stop[]> stops = new HashMap<>();
+        stops.put("gtfs_0", new Stop[]{frankfurt, munich});
+        return new GtfsSnapshot(Collections.singletonList("gtfs_0"),
+                Collections.singletonMap(0, new GtfsStorage.FeedIdWithTimezone("gtfs_0", ZoneId.of("Europe/Berlin"))),
+                Collections.singletonMap(0, createValidity()),
+                stops, Collections.singletonMap("gtfs_0", new int[]{4, -1}));
+    }
+
+    private GtfsStorage.Validity createValidity() {
+        BitSet days = new BitSet();
+        days.set(0);
+        days.set(3);
+        days.set(200);
+        return new GtfsStorage.Validity(days, ZoneId.of("Europe/Berlin"), LocalDate.of(2017, 6, 1));
+    }
+
+}
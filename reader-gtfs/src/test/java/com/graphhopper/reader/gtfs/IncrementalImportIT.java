@@ -0,0 +1,198 @@
+/*
+ *  Licensed to GraphHopper GmbH under one or more contributor
+ *  license agreements. See the NOTICE file distributed with this work for
+ *  additional information regarding copyright ownership.
+ *
+ *  GraphHopper GmbH licenses this file to you under the Apache License,
+ *  Version 2.0 (the "License"); you may not use this file except in
+ *  compliance with the License. You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package com.graphhopper.reader.gtfs;
+
+import com.conveyal.gtfs.model.Stop;
+import com.graphhopper.GHRequest;
+import com.graphhopper.GHResponse;
+import com.graphhopper.routing.util.EncodingManager;
+import com.graphhopper.storage.GHDirectory;
+import com.graphhopper.storage.GraphHopperStorage;
+import com.graphhopper.storage.index.LocationIndex;
+import com.graphhopper.util.Helper;
+import com.graphhopper.util.Parameters;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.time.LocalDate;
+import java.time.ZoneId;
+import java.util.*;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+import java.util.zip.ZipOutputStream;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class IncrementalImportIT {
+
+    private static final String UPDATED_LOC = "target/IncrementalImportIT/updated";
+    private static final String REBUILT_LOC = "target/IncrementalImportIT/rebuilt";
+    private static final String NEXT_FEED = "target/IncrementalImportIT/sample-feed-next.zip";
+    private static final ZoneId zoneId = ZoneId.of("America/Los_Angeles");
+
+    @BeforeClass
+    public static void init() throws IOException {
+        Helper.removeDir(new File("target/IncrementalImportIT"));
+        new File("target/IncrementalImportIT").mkdirs();
+        // AAMV4 is cancelled, AAMV5 is new, and AAMV1 now also runs on weekdays
+        Map<String, Edit> edits = new HashMap<>();
+        edits.put("trips.txt", lines -> {
+            lines.removeIf(line -> line.startsWith("AAMV,WE,AAMV4,"));
+            lines.replaceAll(line -> line.startsWith("AAMV,WE,AAMV1,") ? line.replace("AAMV,WE,", "AAMV,FULLW,") : line);
+            lines.add("AAMV,WE,AAMV5,to Amargosa Valley,0,,");
+        });
+        edits.put("stop_times.txt", lines -> {
+            lines.removeIf(line -> line.startsWith("AAMV4,"));
+            lines.add("AAMV5,17:00:00,17:00:00,BEATTY_AIRPORT,1");
+            lines.add("AAMV5,18:00:00,18:00:00,AMV,2");
+        });
+        writeFeed(NEXT_FEED, edits);
+        PtFlagEncoder ptFlagEncoder = new PtFlagEncoder();
+        EncodingManager encodingManager = new EncodingManager(Arrays.asList(ptFlagEncoder), 8);
+        GraphHopperGtfs.createOrLoad(GraphHopperGtfs.createGHDirectory(UPDATED_LOC), encodingManager, ptFlagEncoder, GraphHopperGtfs.createGtfsStorage(), false, Collections.singleton("files/sample-feed.zip"), Collections.emptyList()).close();
+    }
+
+    @AfterClass
+    public static void close() {
+        Helper.removeDir(new File("target/IncrementalImportIT"));
+    }
+
+    @Test
+    public void testSameRoutesAsFullImport() {
+        final int nodesBefore = nodes(UPDATED_LOC);
+        PtFlagEncoder ptFlagEncoder = new PtFlagEncoder();
+        EncodingManager encodingManager = new EncodingManager(Arrays.asList(ptFlagEncoder), 8);
+        GraphHopperGtfs.createOrUpdate(GraphHopperGtfs.createGHDirectory(UPDATED_LOC), encodingManager, ptFlagEncoder, NEXT_FEED).close();
+        // Only the nodes of the new trip were added, nothing was built again.
+        assertTrue(nodes(UPDATED_LOC) - nodesBefore < 10);
+        assertEquals(routeAll(REBUILT_LOC, NEXT_FEED), routeAll(UPDATED_LOC, NEXT_FEED));
+    }
+
+    @Test
+    public void testFullImportIfStopsChanged() throws IOException {
+        final String loc = "target/IncrementalImportIT/stops-changed";
+        final String feed = "target/IncrementalImportIT/sample-feed-stops-changed.zip";
+        writeFeed(feed, Collections.singletonMap("stops.txt", lines -> lines.replaceAll(line -> line.replace("Amargosa Valley", "Amargosa"))));
+        PtFlagEncoder ptFlagEncoder = new PtFlagEncoder();
+        EncodingManager encodingManager = new EncodingManager(Arrays.asList(ptFlagEncoder), 8);
+        GraphHopperGtfs.createOrLoad(GraphHopperGtfs.createGHDirectory(loc), encodingManager, ptFlagEncoder, GraphHopperGtfs.createGtfsStorage(), false, Collections.singleton("files/sample-feed.zip"), Collections.emptyList()).close();
+        GraphHopperGtfs.createOrUpdate(GraphHopperGtfs.createGHDirectory(loc), new EncodingManager(Arrays.asList(ptFlagEncoder), 8), ptFlagEncoder, feed).close();
+        assertEquals(routeAll(REBUILT_LOC + "-stops-changed", feed), routeAll(loc, feed));
+    }
+
+    @Test
+    public void testFullImportIfFrequencyTripChanged() throws IOException {
+        final String loc = "target/IncrementalImportIT/frequencies-changed";
+        final String feed = "target/IncrementalImportIT/sample-feed-frequencies-changed.zip";
+        // The shuttle now runs every 20 minutes.
+        writeFeed(feed, Collections.singletonMap("frequencies.txt", lines -> lines.replaceAll(line -> line.startsWith("STBA,") ? line.replace(",1800", ",1200") : line)));
+        PtFlagEncoder ptFlagEncoder = new PtFlagEncoder();
+        EncodingManager encodingManager = new EncodingManager(Arrays.asList(ptFlagEncoder), 8);
+        GraphHopperGtfs.createOrLoad(GraphHopperGtfs.createGHDirectory(loc), encodingManager, ptFlagEncoder, GraphHopperGtfs.createGtfsStorage(), false, Collections.singleton("files/sample-feed.zip"), Collections.emptyList()).close();
+        GraphHopperGtfs.createOrUpdate(GraphHopperGtfs.createGHDirectory(loc), new EncodingManager(Arrays.asList(ptFlagEncoder), 8), ptFlagEncoder, feed).close();
+        assertEquals(routeAll(REBUILT_LOC + "-frequencies-changed", feed), routeAll(loc, feed));
+    }
+
+    private static int nodes(String graphLocation) {
+        PtFlagEncoder ptFlagEncoder = new PtFlagEncoder();
+        GraphHopperStorage graphHopperStorage = GraphHopperGtfs.createOrLoad(GraphHopperGtfs.createGHDirectory(graphLocation), new EncodingManager(Arrays.asList(ptFlagEncoder), 8), ptFlagEncoder, GraphHopperGtfs.createGtfsStorage(), false, Collections.emptyList(), Collections.emptyList());
+        try {
+            return graphHopperStorage.getNodes();
+        } finally {
+            graphHopperStorage.close();
+        }
+    }
+
+    private static List<String> routeAll(String graphLocation, String gtfsFile) {
+        PtFlagEncoder ptFlagEncoder = new PtFlagEncoder();
+        EncodingManager encodingManager = new EncodingManager(Arrays.asList(ptFlagEncoder), 8);
+        GHDirectory directory = GraphHopperGtfs.createGHDirectory(graphLocation);
+        GtfsStorage gtfsStorage = GraphHopperGtfs.createGtfsStorage();
+        GraphHopperStorage graphHopperStorage = GraphHopperGtfs.createOrLoad(directory, encodingManager, ptFlagEncoder, gtfsStorage, false, Collections.singleton(gtfsFile), Collections.emptyList());
+        LocationIndex locationIndex = GraphHopperGtfs.createOrLoadIndex(directory, graphHopperStorage);
+        try {
+            GraphHopperGtfs graphHopper = GraphHopperGtfs.createFactory(ptFlagEncoder, GraphHopperGtfs.createTranslationMap(), graphHopperStorage, locationIndex, gtfsStorage)
+                    .createWithoutRealtimeFeed();
+            List<Stop> stops = new ArrayList<>(gtfsStorage.getGtfsFeeds().get("gtfs_0").stops.values());
+            stops.sort(Comparator.comparing(stop -> stop.stop_id));
+            // Saturday and Monday, the sample feed runs different services on weekends
+            List<Instant> times = new ArrayList<>();
+            for (LocalDate date : Arrays.asList(LocalDate.of(2007, 1, 6), LocalDate.of(2007, 1, 8))) {
+                for (int hour = 0; hour < 24; hour += 3) {
+                    times.add(date.atTime(hour, 17).atZone(zoneId).toInstant());
+                }
+            }
+            List<String> result = new ArrayList<>();
+            for (Stop from : stops) {
+                for (Stop to : stops) {
+                    if (from == to) {
+                        continue;
+                    }
+                    for (Instant time : times) {
+                        GHRequest ghRequest = new GHRequest(from.stop_lat, from.stop_lon, to.stop_lat, to.stop_lon);
+                        ghRequest.getHints().put(Parameters.PT.EARLIEST_DEPARTURE_TIME, time);
+                        ghRequest.getHints().put(Parameters.PT.IGNORE_TRANSFERS, true);
+                        GHResponse response = graphHopper.route(ghRequest);
+                        result.add(from.stop_id + " " + to.stop_id + " " + time + ": "
+                                + (response.hasErrors() ? "error" : response.getBest().getTime()));
+                    }
+                }
+            }
+            return result;
+        } finally {
+            locationIndex.close();
+            graphHopperStorage.close();
+        }
+    }
+
+    interface Edit {
+        void apply(List<String> lines);
+    }
+
+    /**
+     * The sample feed, with the lines of some of its files changed.
+     */
+    static void writeFeed(String file, Map<String, Edit> edits) throws IOException {
+        try (ZipFile zip = new ZipFile("files/sample-feed.zip");
+             ZipOutputStream out = new ZipOutputStream(new FileOutputStream(file))) {
+            for (ZipEntry entry : Collections.list(zip.entries())) {
+                if (entry.isDirectory()) {
+                    continue;
+                }
+                final String name = entry.getName().substring(entry.getName().lastIndexOf('/') + 1);
+                final List<String> lines = new ArrayList<>();
+                try (BufferedReader reader = new BufferedReader(new InputStreamReader(zip.getInputStream(entry), StandardCharsets.UTF_8))) {
+                    reader.lines().forEach(lines::add);
+                }
+                if (edits.containsKey(name)) {
+                    edits.get(name).apply(lines);
+                }
+                out.putNextEntry(new ZipEntry(name));
+                out.write(String.join("\n", lines).concat("\n").getBytes(StandardCharsets.UTF_8));
+                out.closeEntry();
+            }
+        }
+    }
+
+}
@@ -0,0 +1,52 @@
+/*
+ *  Licensed to GraphHopper GmbH under one or more contributor
+ *  license agreements. See the NOTICE file distributed with this work for
+ *  additional information regarding copyright ownership.
+ *
+ *  GraphHopper GmbH licenses this file to you under the Apache License,
+ *  Version 2.0 (the "License"); you may not use this file except in
+ *  compliance with the License. You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package com.graphhopper.reader.gtfs;
+
+import com.graphhopper.util.EdgeIterator;
+import org.junit.Test;
+
+import static com.graphhopper.reader.gtfs.LabelArena.NO_DEPARTURE_TIME;
+import static com.graphhopper.reader.gtfs.LabelArena.NO_LABEL;
+import static org.junit.Assert.*;
+
+public class LabelArenaTest {
+
+    @Test
+    public void testReleaseGivesBackGrownCapacity() {
+        LabelArena labels = LabelArena.acquire(this, 0);
+        final int initialCapacity = labels.capacity();
+        for (int i = 0; i < 3 * initialCapacity; i++) {
+            labels.add(i, EdgeIterator.NO_EDGE, 0, 0, 0, 0.0, NO_DEPARTURE_TIME, 0, NO_LABEL);
+        }
+        assertTrue(labels.capacity() > initialCapacity);
+        labels.release(this);
+        assertEquals(initialCapacity, labels.capacity());
+        assertFalse(labels.isOwnedBy(this));
+    }
+
+    @Test
+    public void testReleaseOnlyByOwner() {
+        LabelArena labels = LabelArena.acquire(this, 0);
+        labels.release(new Object());
+        assertTrue(labels.isOwnedBy(this));
+        labels.release(this);
+        assertFalse(labels.isOwnedBy(this));
+    }
+
+}
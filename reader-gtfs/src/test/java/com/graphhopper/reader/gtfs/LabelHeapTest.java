@@ -0,0 +1,116 @@
+/*
+ *  Licensed to GraphHopper GmbH under one or more contributor
+ *  license agreements. See the NOTICE file distributed with this work for
+ *  additional information regarding copyright ownership.
+ *
+ *  GraphHopper GmbH licenses this file to you under the Apache License,
+ *  Version 2.0 (the "License"); you may not use this file except in
+ *  compliance with the License. You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package com.graphhopper.reader.gtfs;
+
+import com.carrotsearch.hppc.sorting.IndirectComparator;
+import com.graphhopper.util.EdgeIterator;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.*;
+
+import static com.graphhopper.reader.gtfs.LabelArena.NO_DEPARTURE_TIME;
+import static com.graphhopper.reader.gtfs.LabelArena.NO_LABEL;
+import static org.junit.Assert.*;
+
+public class LabelHeapTest {
+
+    private LabelArena labels;
+    private IndirectComparator byTime;
+
+    @Before
+    public void setUp() {
+        labels = LabelArena.acquire(this, 0);
+        byTime = (a, b) -> Long.compare(labels.currentTime[a], labels.currentTime[b]);
+    }
+
+    private int label(long time) {
+        return labels.add(time, EdgeIterator.NO_EDGE, 0, 0, 0, 0.0, NO_DEPARTURE_TIME, 0, NO_LABEL);
+    }
+
+    @Test
+    public void testPollInOrder() {
+        LabelHeap heap = new LabelHeap(byTime, labels, 2);
+        heap.add(label(5));
+        heap.add(label(1));
+        heap.add(label(3));
+        heap.add(label(2));
+        assertEquals(4, heap.size());
+        assertEquals(1, labels.currentTime[heap.poll()]);
+        assertEquals(2, labels.currentTime[heap.poll()]);
+        assertEquals(3, labels.currentTime[heap.poll()]);
+        assertEquals(5, labels.currentTime[heap.poll()]);
+        assertTrue(heap.isEmpty());
+    }
+
+    @Test
+    public void testRemove() {
+        LabelHeap heap = new LabelHeap(byTime, labels);
+        int a = label(1);
+        int b = label(2);
+        int c = label(3);
+        heap.add(a);
+        heap.add(b);
+        heap.add(c);
+        assertTrue(heap.remove(b));
+        assertFalse(heap.remove(b));
+        assertEquals(a, heap.poll());
+        assertFalse(heap.remove(a));
+        assertEquals(c, heap.poll());
+        assertTrue(heap.isEmpty());
+    }
+
+    @Test
+    public void testSameAsPriorityQueue() {
+        Random random = new Random(42);
+        LabelHeap heap = new LabelHeap(byTime, labels);
+        PriorityQueue<Integer> queue = new PriorityQueue<>(byTime::compare);
+        List<Integer> inserted = new ArrayList<>();
+        for (int i = 0; i < 10000; i++) {
+            int op = random.nextInt(3);
+            if (op == 0 && !queue.isEmpty()) {
+                assertEquals(labels.currentTime[queue.poll()], labels.currentTime[heap.poll()]);
+            } else if (op == 1 && !inserted.isEmpty()) {
+                int label = inserted.get(random.nextInt(inserted.size()));
+                assertEquals(queue.remove(label), heap.remove(label));
+            } else {
+                int label = label(random.nextInt(1000));
+                inserted.add(label);
+                queue.add(label);
+                heap.add(label);
+            }
+            assertEquals(queue.size(), heap.size());
+        }
+    }
+
+    @Test
+    public void testMaterializeSharesAncestors() {
+        int root = label(0);
+        int child = labels.add(10, 0, 1, 0, 0, 0.0, NO_DEPARTURE_TIME, 0, root);
+        int grandChild = labels.add(20, 1, 2, 1, 0, 0.0, 15, 0, child);
+        Label label = labels.toLabel(grandChild);
+        assertEquals(20, label.currentTime);
+        assertEquals(15L, (long) label.departureTime);
+        assertEquals(1, label.parent.node);
+        assertNull(label.parent.departureTime);
+        assertSame(label.parent, labels.toLabel(child));
+        assertNull(label.parent.parent.parent);
+    }
+
+}
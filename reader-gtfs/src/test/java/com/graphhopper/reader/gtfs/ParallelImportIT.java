@@ -0,0 +1,77 @@
+/*
+ *  Licensed to GraphHopper GmbH under one or more contributor
+ *  license agreements. See the NOTICE file distributed with this work for
+ *  additional information regarding copyright ownership.
+ *
+ *  GraphHopper GmbH licenses this file to you under the Apache License,
+ *  Version 2.0 (the "License"); you may not use this file except in
+ *  compliance with the License. You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package com.graphhopper.reader.gtfs;
+
+import com.graphhopper.routing.util.EncodingManager;
+import com.graphhopper.storage.GraphHopperStorage;
+import com.graphhopper.util.EdgeIterator;
+import com.graphhopper.util.Helper;
+import org.junit.AfterClass;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.zip.ZipFile;
+
+import static org.junit.Assert.assertEquals;
+
+public class ParallelImportIT {
+
+    private static final String GRAPH_LOC = "target/ParallelImportIT";
+
+    @AfterClass
+    public static void close() {
+        Helper.removeDir(new File(GRAPH_LOC));
+    }
+
+    @Test
+    public void testSameGraphForAnyNumberOfThreads() throws IOException {
+        List<String> sequential = build(1);
+        assertEquals(sequential, build(4));
+        assertEquals(sequential, build(16));
+    }
+
+    private static List<String> build(int workerThreads) throws IOException {
+        final String graphLocation = GRAPH_LOC + "/" + workerThreads;
+        Helper.removeDir(new File(graphLocation));
+        PtFlagEncoder ptFlagEncoder = new PtFlagEncoder();
+        GtfsStorage gtfsStorage = GraphHopperGtfs.createGtfsStorage();
+        GraphHopperStorage graphHopperStorage = new GraphHopperStorage(GraphHopperGtfs.createGHDirectory(graphLocation), new EncodingManager(Arrays.asList(ptFlagEncoder), 8), false, gtfsStorage);
+        graphHopperStorage.create(1000);
+        try {
+            gtfsStorage.loadGtfsFromFile("gtfs_0", new ZipFile("files/sample-feed.zip"));
+            GtfsReader gtfsReader = new GtfsReader("gtfs_0", graphHopperStorage, new EmptyLocationIndex());
+            gtfsReader.setWorkerThreads(workerThreads);
+            gtfsReader.readGraph();
+            List<String> edges = new ArrayList<>();
+            EdgeIterator edge = graphHopperStorage.getAllEdges();
+            while (edge.next()) {
+                edges.add(edge.getEdge() + ": " + edge.getBaseNode() + " -> " + edge.getAdjNode() + " " + edge.getFlags() + " " + edge.getName()
+                        + " " + gtfsStorage.getTripId(edge.getEdge()) + " " + gtfsStorage.getStopSequence(edge.getEdge()));
+            }
+            return edges;
+        } finally {
+            graphHopperStorage.close();
+        }
+    }
+
+}
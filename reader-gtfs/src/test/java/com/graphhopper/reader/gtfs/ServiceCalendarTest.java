@@ -0,0 +1,99 @@
+/*
+ *  Licensed to GraphHopper GmbH under one or more contributor
+ *  license agreements. See the NOTICE file distributed with this work for
+ *  additional information regarding copyright ownership.
+ *
+ *  GraphHopper GmbH licenses this file to you under the Apache License,
+ *  Version 2.0 (the "License"); you may not use this file except in
+ *  compliance with the License. You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package com.graphhopper.reader.gtfs;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.time.*;
+import java.time.temporal.ChronoUnit;
+import java.util.*;
+
+import static org.junit.Assert.assertEquals;
+
+public class ServiceCalendarTest {
+
+    private static final List<ZoneId> ZONES = Arrays.asList(ZoneId.of("Europe/Berlin"), ZoneId.of("America/Los_Angeles"), ZoneId.of("UTC"));
+
+    private final Map<Integer, GtfsStorage.Validity> validities = new HashMap<>();
+    private final Map<Integer, GtfsStorage.FeedIdWithTimezone> timeZones = new HashMap<>();
+
+    @Before
+    public void setUp() {
+        Random random = new Random(42);
+        for (ZoneId zoneId : ZONES) {
+            timeZones.put(timeZones.size(), new GtfsStorage.FeedIdWithTimezone("gtfs_0", zoneId));
+            for (int i = 0; i < 4; i++) {
+                BitSet validOnDay = new BitSet();
+                for (int day = 0; day < 400; day++) {
+                    if (random.nextBoolean()) {
+                        validOnDay.set(day);
+                    }
+                }
+                validities.put(validities.size(), new GtfsStorage.Validity(validOnDay, zoneId, LocalDate.of(2017, 1, 1).plusDays(i * 50)));
+            }
+        }
+    }
+
+    @Test
+    public void testSameAsZonedDateTime() {
+        ServiceCalendar.Context calendar = new ServiceCalendar(validities, timeZones).createContext();
+        long from = LocalDate.of(2016, 12, 1).atStartOfDay(ZoneOffset.UTC).toInstant().toEpochMilli();
+        long to = LocalDate.of(2018, 3, 1).atStartOfDay(ZoneOffset.UTC).toInstant().toEpochMilli();
+        Random random = new Random(23);
+        List<Long> instants = new ArrayList<>();
+        for (int i = 0; i < 100000; i++) {
+            instants.add(from + (long) (random.nextDouble() * (to - from)));
+        }
+        // both sides of every change of offset, and in order, as a search would ask
+        for (ZoneId zoneId : ZONES) {
+            for (int year = 2016; year <= 2018; year++) {
+                for (LocalDateTime dateTime : Arrays.asList(LocalDateTime.of(year, 3, 1, 0, 0), LocalDateTime.of(year, 10, 1, 0, 0))) {
+                    Instant transition = zoneId.getRules().nextTransition(dateTime.atZone(zoneId).toInstant()) != null ?
+                            zoneId.getRules().nextTransition(dateTime.atZone(zoneId).toInstant()).getInstant() :
+                            dateTime.atZone(zoneId).toInstant();
+                    for (long delta = -2000; delta <= 2000; delta += 500) {
+                        instants.add(transition.toEpochMilli() + delta);
+                    }
+                }
+            }
+        }
+        Collections.sort(instants.subList(50000, instants.size()));
+        for (long instant : instants) {
+            for (int timeZoneId = 0; timeZoneId < timeZones.size(); timeZoneId++) {
+                LocalTime localTime = Instant.ofEpochMilli(instant).atZone(timeZones.get(timeZoneId).zoneId).toLocalTime();
+                assertEquals(localTime.toNanoOfDay() / 1000000L, calendar.millisOnTravelDay(timeZoneId, instant));
+                assertEquals(localTime.toSecondOfDay(), calendar.secondsOnTrafficDay(timeZoneId, instant));
+            }
+            for (int validityId = 0; validityId < validities.size(); validityId++) {
+                GtfsStorage.Validity validity = validities.get(validityId);
+                int trafficDay = (int) ChronoUnit.DAYS.between(validity.start, Instant.ofEpochMilli(instant).atZone(validity.zoneId).toLocalDate());
+                assertEquals(trafficDay >= 0 && validity.validity.get(trafficDay), calendar.isValidOn(validityId, instant));
+            }
+        }
+    }
+
+    @Test
+    public void testUpToDate() {
+        ServiceCalendar serviceCalendar = new ServiceCalendar(validities, timeZones);
+        assertEquals(true, serviceCalendar.isUpToDate(validities.size(), timeZones.size()));
+        assertEquals(false, serviceCalendar.isUpToDate(validities.size() + 1, timeZones.size()));
+    }
+
+}
@@ -0,0 +1,117 @@
+/*
+ *  Licensed to GraphHopper GmbH under one or more contributor
+ *  license agreements. See the NOTICE file distributed with this work for
+ *  additional information regarding copyright ownership.
+ *
+ *  GraphHopper GmbH licenses this file to you under the Apache License,
+ *  Version 2.0 (the "License"); you may not use this file except in
+ *  compliance with the License. You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package com.graphhopper.reader.gtfs;
+
+import com.conveyal.gtfs.model.Stop;
+import com.graphhopper.GHRequest;
+import com.graphhopper.GHResponse;
+import com.graphhopper.routing.util.EncodingManager;
+import com.graphhopper.storage.GHDirectory;
+import com.graphhopper.storage.GraphHopperStorage;
+import com.graphhopper.storage.index.LocationIndex;
+import com.graphhopper.util.Helper;
+import com.graphhopper.util.Parameters;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.io.File;
+import java.time.*;
+import java.util.*;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+
+public class ServiceDaySlicesIT {
+
+    private static final String GRAPH_LOC = "target/ServiceDaySlicesIT";
+    private static final ZoneId zoneId = ZoneId.of("America/Los_Angeles");
+    private static PtFlagEncoder ptFlagEncoder;
+    private static GtfsStorage gtfsStorage;
+    private static GraphHopperStorage graphHopperStorage;
+    private static LocationIndex locationIndex;
+    private static GraphHopperGtfs graphHopper;
+
+    @BeforeClass
+    public static void init() {
+        Helper.removeDir(new File(GRAPH_LOC));
+        ptFlagEncoder = new PtFlagEncoder();
+        EncodingManager encodingManager = new EncodingManager(Arrays.asList(ptFlagEncoder), 8);
+        GHDirectory directory = GraphHopperGtfs.createGHDirectory(GRAPH_LOC);
+        gtfsStorage = GraphHopperGtfs.createGtfsStorage();
+        graphHopperStorage = GraphHopperGtfs.createOrLoad(directory, encodingManager, ptFlagEncoder, gtfsStorage, false, Collections.singleton("files/sample-feed.zip"), Collections.emptyList());
+        locationIndex = GraphHopperGtfs.createOrLoadIndex(directory, graphHopperStorage);
+        graphHopper = GraphHopperGtfs.createFactory(ptFlagEncoder, GraphHopperGtfs.createTranslationMap(), graphHopperStorage, locationIndex, gtfsStorage)
+                .createWithoutRealtimeFeed();
+    }
+
+    @AfterClass
+    public static void close() {
+        graphHopperStorage.close();
+        locationIndex.close();
+    }
+
+    @Test
+    public void testSameRoutesWithSlices() {
+        List<Stop> stops = new ArrayList<>(gtfsStorage.getGtfsFeeds().get("gtfs_0").stops.values());
+        // Sunday to Tuesday, the sample feed runs different services on weekends
+        List<Instant> times = new ArrayList<>();
+        for (LocalDate date = LocalDate.of(2007, 1, 7); date.isBefore(LocalDate.of(2007, 1, 10)); date = date.plusDays(1)) {
+            for (int hour = 0; hour < 24; hour += 5) {
+                times.add(date.atTime(hour, 17).atZone(zoneId).toInstant());
+            }
+        }
+        List<String> withoutSlices = routeAll(stops, times);
+
+        ServiceDaySlices slices = new ServiceDaySlices(graphHopperStorage, ptFlagEncoder, gtfsStorage,
+                Clock.fixed(LocalDate.of(2007, 1, 8).atStartOfDay(ZoneOffset.UTC).toInstant(), ZoneOffset.UTC), 3);
+        slices.update();
+        assertNotNull(slices.getTimeline(gtfsStorage.getDepartureTimelines().keys().iterator().next().value, false, LocalDate.of(2007, 1, 8).toEpochDay()));
+        gtfsStorage.setServiceDaySlices(slices);
+        try {
+            assertEquals(withoutSlices, routeAll(stops, times));
+        } finally {
+            slices.close();
+        }
+    }
+
+    private List<String> routeAll(List<Stop> stops, List<Instant> times) {
+        List<String> result = new ArrayList<>();
+        for (Stop from : stops) {
+            for (Stop to : stops) {
+                if (from == to) {
+                    continue;
+                }
+                for (Instant time : times) {
+                    for (boolean arriveBy : new boolean[]{false, true}) {
+                        GHRequest ghRequest = new GHRequest(from.stop_lat, from.stop_lon, to.stop_lat, to.stop_lon);
+                        ghRequest.getHints().put(Parameters.PT.EARLIEST_DEPARTURE_TIME, time);
+                        ghRequest.getHints().put(Parameters.PT.ARRIVE_BY, arriveBy);
+                        ghRequest.getHints().put(Parameters.PT.IGNORE_TRANSFERS, true);
+                        GHResponse response = graphHopper.route(ghRequest);
+                        result.add(from.stop_id + " " + to.stop_id + " " + time + " " + arriveBy + ": "
+                                + (response.hasErrors() ? "error" : response.getAll().size() + " " + response.getBest().getTime()));
+                    }
+                }
+            }
+        }
+        return result;
+    }
+
+}
@@ -0,0 +1,72 @@
+/*
+ *  Licensed to GraphHopper GmbH under one or more contributor
+ *  license agreements. See the NOTICE file distributed with this work for
+ *  additional information regarding copyright ownership.
+ *
+ *  GraphHopper GmbH licenses this file to you under the Apache License,
+ *  Version 2.0 (the "License"); you may not use this file except in
+ *  compliance with the License. You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package com.graphhopper.reader.gtfs;
+
+import com.conveyal.gtfs.model.Stop;
+import com.graphhopper.util.Helper;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+
+public class StopTableTest {
+
+    @Test
+    public void testClosestPlatformSameAsScan() {
+        Random random = new Random(42);
+        Stop[] stops = new Stop[500];
+        for (int i = 0; i < stops.length; i++) {
+            stops[i] = new Stop();
+            stops[i].stop_id = "S" + i;
+            stops[i].stop_lat = 47 + 8 * random.nextDouble();
+            stops[i].stop_lon = 6 + 9 * random.nextDouble();
+            // every tenth is a station, which is never the closest
+            stops[i].location_type = i % 10 == 0 ? 1 : 0;
+        }
+        int[] stationNodes = new int[stops.length];
+        Arrays.fill(stationNodes, -1);
+        StopTable stopTable = new StopTable(stops, stationNodes);
+        for (int i = 0; i < 200; i++) {
+            double lat = 46 + 10 * random.nextDouble();
+            double lon = 5 + 11 * random.nextDouble();
+            int expected = StopTable.NO_STOP;
+            double expectedDistance = Double.MAX_VALUE;
+            for (int stop = 0; stop < stops.length; stop++) {
+                double distance = Helper.DIST_EARTH.calcDist(lat, lon, stops[stop].stop_lat, stops[stop].stop_lon);
+                if (stops[stop].location_type == 0 && distance < expectedDistance) {
+                    expected = stop;
+                    expectedDistance = distance;
+                }
+            }
+            assertEquals(expected, stopTable.getClosestPlatform(lat, lon));
+        }
+    }
+
+    @Test
+    public void testNoPlatforms() {
+        Stop station = new Stop();
+        station.stop_id = "S";
+        station.location_type = 1;
+        StopTable stopTable = new StopTable(new Stop[]{station}, new int[]{-1});
+        assertEquals(StopTable.NO_STOP, stopTable.getClosestPlatform(50, 8));
+    }
+
+}
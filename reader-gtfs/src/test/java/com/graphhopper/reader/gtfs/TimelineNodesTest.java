@@ -0,0 +1,77 @@
+/*
+ *  Licensed to GraphHopper GmbH under one or more contributor
+ *  license agreements. See the NOTICE file distributed with this work for
+ *  additional information regarding copyright ownership.
+ *
+ *  GraphHopper GmbH licenses this file to you under the Apache License,
+ *  Version 2.0 (the "License"); you may not use this file except in
+ *  compliance with the License. You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package com.graphhopper.reader.gtfs;
+
+import org.junit.Test;
+
+import java.util.*;
+
+import static org.junit.Assert.assertEquals;
+
+public class TimelineNodesTest {
+
+    @Test
+    public void testGroupedByRoute() {
+        TimelineNodes timelineNodes = new TimelineNodes();
+        timelineNodes.add("A", "R2", 7);
+        timelineNodes.add("B", "R1", 3);
+        timelineNodes.add("A", "R1", 5);
+        timelineNodes.add("A", "R2", 1);
+        timelineNodes.add("A", "R1", 2);
+        timelineNodes.sort();
+        assertEquals(Arrays.asList("A", "B"), timelineNodes.getStopIds());
+        Map<String, List<Integer>> byRoute = new LinkedHashMap<>();
+        timelineNodes.forEachRoute("A", (routeId, nodes) -> byRoute.put(routeId, toList(nodes)));
+        assertEquals(Arrays.asList("R2", "R1"), new ArrayList<>(byRoute.keySet()));
+        assertEquals(Arrays.asList(1, 7), byRoute.get("R2"));
+        assertEquals(Arrays.asList(2, 5), byRoute.get("R1"));
+        byRoute.clear();
+        timelineNodes.forEachRoute("C", (routeId, nodes) -> byRoute.put(routeId, toList(nodes)));
+        assertEquals(0, byRoute.size());
+    }
+
+    @Test
+    public void testFirstNotBeforeSameAsLinearScan() {
+        Random random = new Random(42);
+        for (int run = 0; run < 100; run++) {
+            long[] timeline = new long[random.nextInt(20)];
+            for (int i = 0; i < timeline.length; i++) {
+                timeline[i] = TimelineNodes.pack(random.nextInt(24 * 60 * 60), random.nextInt(Integer.MAX_VALUE));
+            }
+            Arrays.sort(timeline);
+            for (int j = 0; j < 50; j++) {
+                int seconds = j == 0 && timeline.length > 0 ? TimelineNodes.upper(timeline[random.nextInt(timeline.length)]) : random.nextInt(24 * 60 * 60);
+                int first = 0;
+                while (first < timeline.length && TimelineNodes.upper(timeline[first]) < seconds) {
+                    first++;
+                }
+                assertEquals(first, TimelineNodes.firstNotBefore(timeline, seconds));
+            }
+        }
+    }
+
+    private static List<Integer> toList(int[] nodes) {
+        List<Integer> result = new ArrayList<>();
+        for (int node : nodes) {
+            result.add(node);
+        }
+        return result;
+    }
+
+}
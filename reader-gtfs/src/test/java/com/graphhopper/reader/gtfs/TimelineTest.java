@@ -0,0 +1,114 @@
+/*
+ *  Licensed to GraphHopper GmbH under one or more contributor
+ *  license agreements. See the NOTICE file distributed with this work for
+ *  additional information regarding copyright ownership.
+ *
+ *  GraphHopper GmbH licenses this file to you under the Apache License,
+ *  Version 2.0 (the "License"); you may not use this file except in
+ *  compliance with the License. You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package com.graphhopper.reader.gtfs;
+
+import com.graphhopper.storage.RAMDirectory;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+public class TimelineTest {
+
+    @Test
+    public void testSameAsLinearScan() {
+        Random random = new Random(42);
+        for (int run = 0; run < 100; run++) {
+            int[] times = new int[random.nextInt(20)];
+            for (int i = 0; i < times.length; i++) {
+                times[i] = random.nextInt(24 * 60 * 60);
+            }
+            Arrays.sort(times);
+            GtfsStorage.Timeline timeline = new GtfsStorage.Timeline(0, times, new int[times.length], new int[times.length]);
+            for (int j = 0; j < 50; j++) {
+                int seconds = j == 0 && times.length > 0 ? times[random.nextInt(times.length)] : random.nextInt(24 * 60 * 60);
+                int first = 0;
+                while (first < times.length && times[first] < seconds) {
+                    first++;
+                }
+                int last = times.length - 1;
+                while (last >= 0 && times[last] > seconds) {
+                    last--;
+                }
+                assertEquals(first, timeline.firstNotBefore(seconds));
+                assertEquals(last, timeline.lastNotAfter(seconds));
+            }
+        }
+    }
+
+    @Test
+    public void testEqualTimes() {
+        GtfsStorage.Timeline timeline = new GtfsStorage.Timeline(0, new int[]{60, 120, 120, 180}, new int[4], new int[4]);
+        assertEquals(1, timeline.firstNotBefore(120));
+        assertEquals(2, timeline.lastNotAfter(120));
+        assertEquals(4, timeline.firstNotBefore(181));
+        assertEquals(-1, timeline.lastNotAfter(59));
+    }
+
+    @Test
+    public void testRunsSameAsExpandedTimeline() {
+        // every 10 minutes from 6:00, last run at 8:50
+        GtfsStorage.Timeline frequencyBased = new GtfsStorage.Timeline(0, new int[]{6 * 3600}, new int[1], new int[1], 600, 8 * 3600 + 50 * 60);
+        int[] runs = new int[18];
+        for (int k = 0; k < runs.length; k++) {
+            runs[k] = 6 * 3600 + k * 600;
+        }
+        GtfsStorage.Timeline expanded = new GtfsStorage.Timeline(0, runs, new int[runs.length], new int[runs.length]);
+        for (int seconds = 0; seconds < 24 * 3600; seconds += 7) {
+            int first = expanded.firstNotBefore(seconds);
+            int last = expanded.lastNotAfter(seconds);
+            assertEquals(first < runs.length ? runs[first] : -1, frequencyBased.nextRun(seconds));
+            assertEquals(last >= 0 ? runs[last] : -1, frequencyBased.previousRun(seconds));
+        }
+    }
+
+    @Test
+    public void testReadFromColumn() {
+        IntArrayColumn column = new IntArrayColumn(new RAMDirectory(), "timelines");
+        column.create(100);
+        column.add(new int[]{5});
+        // node, direction, time zone, times, edges, time nodes
+        int index = column.add(new int[]{17, 0, 3, 60, 120, 180, 10, 11, 12, 20, 21, 22});
+        GtfsStorage.Timeline timeline = new GtfsStorage.Timeline(column, index);
+        assertEquals(3, timeline.timeZoneId);
+        assertEquals(3, timeline.size());
+        assertEquals(120, timeline.time(1));
+        assertEquals(12, timeline.edge(2));
+        assertEquals(20, timeline.timeNode(0));
+        assertEquals(2, timeline.firstNotBefore(121));
+        assertFalse(timeline.isFrequencyBased());
+
+        // frequency based, with headway and last run behind
+        GtfsStorage.Timeline frequencyBased = new GtfsStorage.Timeline(column, column.add(new int[]{18, 3, 0, 6 * 3600, 30, 40, 600, 7 * 3600}));
+        assertEquals(1, frequencyBased.size());
+        assertEquals(40, frequencyBased.timeNode(0));
+        assertEquals(6 * 3600 + 600, frequencyBased.nextRun(6 * 3600 + 1));
+        assertEquals(-1, frequencyBased.nextRun(7 * 3600 + 1));
+
+        // one timeline moved from the frequency based one back to the first
+        frequencyBased.moveTo(column, index);
+        assertFalse(frequencyBased.isFrequencyBased());
+        assertEquals(3, frequencyBased.size());
+        assertEquals(22, frequencyBased.timeNode(2));
+    }
+
+}
@@ -0,0 +1,166 @@
+/*
+ *  Licensed to GraphHopper GmbH under one or more contributor
+ *  license agreements. See the NOTICE file distributed with this work for
+ *  additional information regarding copyright ownership.
+ *
+ *  GraphHopper GmbH licenses this file to you under the Apache License,
+ *  Version 2.0 (the "License"); you may not use this file except in
+ *  compliance with the License. You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package com.graphhopper.reader.gtfs;
+
+import com.conveyal.gtfs.model.Stop;
+import com.graphhopper.GHRequest;
+import com.graphhopper.GHResponse;
+import com.graphhopper.PathWrapper;
+import com.graphhopper.routing.util.EncodingManager;
+import com.graphhopper.storage.GHDirectory;
+import com.graphhopper.storage.GraphHopperStorage;
+import com.graphhopper.storage.index.LocationIndex;
+import com.graphhopper.util.EdgeIterator;
+import com.graphhopper.util.Helper;
+import com.graphhopper.util.Parameters;
+import org.junit.AfterClass;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.time.Duration;
+import java.time.Instant;
+import java.time.LocalDate;
+import java.time.ZoneId;
+import java.util.*;
+import java.util.zip.ZipFile;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class TransferPruningIT {
+
+    private static final String GRAPH_LOC = "target/TransferPruningIT";
+    private static final ZoneId zoneId = ZoneId.of("America/Los_Angeles");
+
+    @AfterClass
+    public static void close() {
+        Helper.removeDir(new File(GRAPH_LOC));
+    }
+
+    interface Queries {
+        void route(GraphHopperGtfs graphHopper, Map<String, Stop> stops, List<String> journeys);
+    }
+
+    @Test
+    public void testSameJourneysWithFewerTransfers() throws IOException {
+        List<String> all = new ArrayList<>();
+        int allTransfers = build(GRAPH_LOC + "/all", "files/sample-feed.zip", false, TransferPruningIT::routeAll, all);
+        List<String> pruned = new ArrayList<>();
+        int prunedTransfers = build(GRAPH_LOC + "/pruned", "files/sample-feed.zip", true, TransferPruningIT::routeAll, pruned);
+        assertTrue(prunedTransfers < allTransfers);
+        assertEquals(all, pruned);
+    }
+
+    @Test
+    public void testEarlierArrivalMakesDepartureOfLaterOne() throws IOException {
+        // AB3 arrives at the airport an hour before AB2, on the same route. Both make AAMV3 at 13:00,
+        // so the transfer from AB3 is left out, but only AB3 comes from Furnace Creek.
+        final String feed = GRAPH_LOC + "/sample-feed-later-arrival.zip";
+        new File(GRAPH_LOC).mkdirs();
+        Map<String, IncrementalImportIT.Edit> edits = new HashMap<>();
+        edits.put("trips.txt", lines -> lines.add("AB,FULLW,AB3,to Airport,1,,"));
+        edits.put("stop_times.txt", lines -> {
+            lines.add("AB3,10:30:00,10:30:00,FUR_CREEK_RES,1");
+            lines.add("AB3,11:10:00,11:10:00,BEATTY_AIRPORT,2");
+        });
+        IncrementalImportIT.writeFeed(feed, edits);
+        // Saturday, when AAMV runs. Only transfer edges lead from one trip to the next.
+        Queries queries = (graphHopper, stops, journeys) -> {
+            GHRequest ghRequest = new GHRequest(stops.get("FUR_CREEK_RES").stop_lat, stops.get("FUR_CREEK_RES").stop_lon,
+                    stops.get("AMV").stop_lat, stops.get("AMV").stop_lon);
+            ghRequest.getHints().put(Parameters.PT.EARLIEST_DEPARTURE_TIME, LocalDate.of(2007, 1, 6).atTime(10, 7).atZone(zoneId).toInstant());
+            ghRequest.getHints().put(Parameters.PT.MAX_TRANSFER_DISTANCE_PER_LEG, 0.0);
+            GHResponse response = graphHopper.route(ghRequest);
+            for (PathWrapper path : response.getAll()) {
+                journeys.add(path.getTime() + "/" + path.getNumChanges());
+            }
+        };
+        List<String> all = new ArrayList<>();
+        build(GRAPH_LOC + "/later-arrival-all", feed, false, queries, all);
+        List<String> pruned = new ArrayList<>();
+        build(GRAPH_LOC + "/later-arrival-pruned", feed, true, queries, pruned);
+        // at Amargosa Valley at 14:00, changing only at the airport
+        assertTrue(all.toString(), all.contains(Duration.ofMinutes(233).toMillis() + "/1"));
+        assertEquals(all, pruned);
+    }
+
+    /**
+     * Builds the graph from the feed and runs the queries on it.
+     *
+     * @return the number of transfer edges
+     */
+    private static int build(String graphLocation, String feed, boolean pruneDominatedTransfers, Queries queries, List<String> journeys) throws IOException {
+        Helper.removeDir(new File(graphLocation));
+        PtFlagEncoder ptFlagEncoder = new PtFlagEncoder();
+        GtfsStorage gtfsStorage = GraphHopperGtfs.createGtfsStorage();
+        GHDirectory directory = GraphHopperGtfs.createGHDirectory(graphLocation);
+        GraphHopperStorage graphHopperStorage = new GraphHopperStorage(directory, new EncodingManager(Arrays.asList(ptFlagEncoder), 8), false, gtfsStorage);
+        graphHopperStorage.create(1000);
+        gtfsStorage.loadGtfsFromFile("gtfs_0", new ZipFile(feed));
+        GtfsReader gtfsReader = new GtfsReader("gtfs_0", graphHopperStorage, new EmptyLocationIndex());
+        gtfsReader.setPruneDominatedTransfers(pruneDominatedTransfers);
+        gtfsReader.readGraph();
+        graphHopperStorage.flush();
+        LocationIndex locationIndex = GraphHopperGtfs.createOrLoadIndex(directory, graphHopperStorage);
+        try {
+            int transfers = 0;
+            EdgeIterator edge = graphHopperStorage.getAllEdges();
+            while (edge.next()) {
+                if (ptFlagEncoder.getEdgeType(edge.getFlags()) == GtfsStorage.EdgeType.TRANSFER) {
+                    transfers++;
+                }
+            }
+            GraphHopperGtfs graphHopper = GraphHopperGtfs.createFactory(ptFlagEncoder, GraphHopperGtfs.createTranslationMap(), graphHopperStorage, locationIndex, gtfsStorage)
+                    .createWithoutRealtimeFeed();
+            queries.route(graphHopper, gtfsStorage.getGtfsFeeds().get("gtfs_0").stops, journeys);
+            return transfers;
+        } finally {
+            locationIndex.close();
+            graphHopperStorage.close();
+        }
+    }
+
+    /**
+     * Routes between all stops, every two hours of a Monday.
+     */
+    private static void routeAll(GraphHopperGtfs graphHopper, Map<String, Stop> stopsById, List<String> journeys) {
+        List<Stop> stops = new ArrayList<>(stopsById.values());
+        stops.sort(Comparator.comparing(stop -> stop.stop_id));
+        for (Stop from : stops) {
+            for (Stop to : stops) {
+                if (from == to) {
+                    continue;
+                }
+                for (int hour = 0; hour < 24; hour += 2) {
+                    Instant time = LocalDate.of(2007, 1, 1).atTime(hour, 7).atZone(zoneId).toInstant();
+                    GHRequest ghRequest = new GHRequest(from.stop_lat, from.stop_lon, to.stop_lat, to.stop_lon);
+                    ghRequest.getHints().put(Parameters.PT.EARLIEST_DEPARTURE_TIME, time);
+                    GHResponse response = graphHopper.route(ghRequest);
+                    StringBuilder journey = new StringBuilder(from.stop_id + " " + to.stop_id + " " + time + ":");
+                    for (PathWrapper path : response.getAll()) {
+                        journey.append(" ").append(path.getTime()).append("/").append(path.getNumChanges());
+                    }
+                    journeys.add(journey.toString());
+                }
+            }
+        }
+    }
+
+}